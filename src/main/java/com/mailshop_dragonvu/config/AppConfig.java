@@ -1,17 +1,9 @@
 package com.mailshop_dragonvu.config;
 
-import io.netty.channel.ChannelOption;
-import io.netty.handler.timeout.ReadTimeoutHandler;
-import io.netty.handler.timeout.WriteTimeoutHandler;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.http.client.reactive.ReactorClientHttpConnector;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.reactive.function.client.WebClient;
-import reactor.netty.http.client.HttpClient;
-
-import java.time.Duration;
-import java.util.concurrent.TimeUnit;
 
 /**
  * Application Configuration
@@ -30,22 +22,19 @@ public class AppConfig {
     /**
      * WebClient bean for non-blocking HTTP requests
      * Used for Facebook UID checks and other high-throughput operations
+     * All calls share one adaptive concurrency limit per upstream host
+     * and use a separate connection pool per upstream (see UpstreamHttpConnector)
      */
     @Bean
-    public WebClient webClient() {
-        HttpClient httpClient = HttpClient.create()
-                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000)
-                .responseTimeout(Duration.ofSeconds(30))
-                .doOnConnected(conn -> conn
-                        .addHandlerLast(new ReadTimeoutHandler(30, TimeUnit.SECONDS))
-                        .addHandlerLast(new WriteTimeoutHandler(30, TimeUnit.SECONDS)));
-
+    public WebClient webClient(UpstreamConcurrencyLimiter upstreamConcurrencyLimiter,
+                               UpstreamHttpConnector upstreamHttpConnector) {
         return WebClient.builder()
-                .clientConnector(new ReactorClientHttpConnector(httpClient))
+                .clientConnector(upstreamHttpConnector)
                 .defaultHeader("User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36")
                 .defaultHeader("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,image/webp,*/*;q=0.8")
                 .defaultHeader("Accept-Language", "en-US,en;q=0.5")
                 .codecs(configurer -> configurer.defaultCodecs().maxInMemorySize(2 * 1024 * 1024)) // 2MB buffer
+                .filter(upstreamConcurrencyLimiter) // shared adaptive limit per upstream host
                 .build();
     }
 }
@@ -0,0 +1,298 @@
+package com.mailshop_dragonvu.config;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
+import org.springframework.web.reactive.function.client.ExchangeFunction;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Shared, adaptive concurrency limit per upstream host for every WebClient call
+ *
+ * AIMD:
+ * - Success: limit += 1 / limit (about +1 per "round" of requests)
+ * - 429 / 5xx / connection error / latency above tolerance x baseline: limit *= backoff-ratio, at most once per
+ *   round trip: only a request sent after the last decrease can lower the limit again, so a burst of failures
+ *   from requests that were already in flight counts as one congestion signal
+ * - Limit stays within [min-limit, max-limit]
+ *
+ * A permit is held until the response body has been consumed or released (the connection is busy until then),
+ * not just until the headers arrive.
+ * Requests above the limit wait in a FIFO queue per host instead of hitting the upstream.
+ * Metrics (tag host): upstream.limiter.limit, upstream.limiter.inflight, upstream.limiter.queued,
+ * upstream.limiter.rejected (429/5xx/errors)
+ */
+@Component
+@Slf4j
+public class UpstreamConcurrencyLimiter implements ExchangeFilterFunction {
+
+    private final MeterRegistry meterRegistry;
+
+    @Value("${app.upstream-limiter.enabled:true}")
+    private boolean enabled;
+
+    @Value("${app.upstream-limiter.initial-limit:20}")
+    private int initialLimit;
+
+    @Value("${app.upstream-limiter.min-limit:4}")
+    private int minLimit;
+
+    @Value("${app.upstream-limiter.max-limit:200}")
+    private int maxLimit;
+
+    @Value("${app.upstream-limiter.backoff-ratio:0.9}")
+    private double backoffRatio;
+
+    @Value("${app.upstream-limiter.latency-tolerance:3.0}")
+    private double latencyTolerance;
+
+    @Value("${app.upstream-limiter.max-queue:100000}")
+    private int maxQueue;
+
+    private final Map<String, HostLimiter> limiters = new ConcurrentHashMap<>();
+
+    public UpstreamConcurrencyLimiter(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    @NonNull
+    public Mono<ClientResponse> filter(@NonNull ClientRequest request, @NonNull ExchangeFunction next) {
+        String host = request.url().getHost();
+        if (!enabled || host == null) {
+            return next.exchange(request);
+        }
+
+        HostLimiter limiter = limiters.computeIfAbsent(host, HostLimiter::new);
+        return Mono.<Permit>create(limiter::acquire)
+                .flatMap(permit -> next.exchange(request)
+                        .map(response -> {
+                            permit.onResponse(response.statusCode());
+                            // Every way of reading or discarding the body goes through this Flux
+                            return response.mutate()
+                                    .body(body -> body.doFinally(signal -> permit.release()))
+                                    .build();
+                        })
+                        .doOnError(e -> {
+                            permit.onFailure();
+                            permit.release();
+                        })
+                        // Cancelled before the response arrived; after that the body owns the permit
+                        .doOnCancel(permit::releaseIfNoResponse));
+    }
+
+    /**
+     * Current limit of a host (for diagnostics)
+     */
+    public int currentLimit(String host) {
+        HostLimiter limiter = limiters.get(host);
+        return limiter != null ? limiter.limitAsInt() : initialLimit;
+    }
+
+    /**
+     * AIMD state of one upstream host
+     */
+    private class HostLimiter {
+        private final String host;
+        private final Queue<Waiter> waiters = new ArrayDeque<>();
+        private final Counter rejected;
+
+        private double limit;
+        private int inFlight;
+        private double baselineLatencyMs;
+        private boolean decreased;
+        private long lastDecreaseAt;
+
+        HostLimiter(String host) {
+            this.host = host;
+            this.limit = initialLimit;
+            this.rejected = Counter.builder("upstream.limiter.rejected")
+                    .tag("host", host)
+                    .description("Upstream responses counted as overload (429, 5xx, errors)")
+                    .register(meterRegistry);
+            Gauge.builder("upstream.limiter.limit", this, HostLimiter::limitAsInt)
+                    .tag("host", host)
+                    .description("Current adaptive concurrency limit")
+                    .register(meterRegistry);
+            Gauge.builder("upstream.limiter.inflight", this, HostLimiter::inFlight)
+                    .tag("host", host)
+                    .description("Requests currently in flight")
+                    .register(meterRegistry);
+            Gauge.builder("upstream.limiter.queued", this, HostLimiter::queued)
+                    .tag("host", host)
+                    .description("Requests waiting for a permit")
+                    .register(meterRegistry);
+        }
+
+        void acquire(MonoSink<Permit> sink) {
+            Permit granted = null;
+            synchronized (this) {
+                if (inFlight < limitAsInt()) {
+                    inFlight++;
+                    granted = new Permit(this);
+                } else if (waiters.size() >= maxQueue) {
+                    sink.error(new IllegalStateException("Upstream " + host + " queue is full"));
+                    return;
+                } else {
+                    Waiter waiter = new Waiter(sink);
+                    waiters.add(waiter);
+                    sink.onCancel(() -> cancel(waiter));
+                }
+            }
+            if (granted != null) {
+                sink.success(granted);
+            }
+        }
+
+        /**
+         * Free a slot and hand out as many slots as the (possibly grown) limit allows
+         */
+        void release() {
+            List<Waiter> granted = new ArrayList<>(1);
+            synchronized (this) {
+                inFlight--;
+                Waiter next;
+                while (inFlight < limitAsInt() && (next = waiters.poll()) != null) {
+                    inFlight++;
+                    next.permit = new Permit(this);
+                    granted.add(next);
+                }
+            }
+            granted.forEach(waiter -> waiter.sink.success(waiter.permit));
+        }
+
+        /**
+         * Cancelled while queued: leave the queue. Cancelled while being granted: give the slot back.
+         */
+        private void cancel(Waiter waiter) {
+            Permit granted;
+            synchronized (this) {
+                granted = waiter.permit;
+                if (granted == null) {
+                    waiters.remove(waiter);
+                }
+            }
+            if (granted != null) {
+                granted.release();
+            }
+        }
+
+        synchronized void onSuccess(long startedAt, long latencyMs) {
+            if (baselineLatencyMs == 0) {
+                baselineLatencyMs = latencyMs;
+            } else {
+                // Slow-moving baseline so one slow response does not move it much
+                baselineLatencyMs = baselineLatencyMs * 0.99 + latencyMs * 0.01;
+            }
+
+            if (latencyMs > baselineLatencyMs * latencyTolerance) {
+                decrease(startedAt);
+            } else if (inFlight >= limitAsInt() - 1) {
+                // Only grow when the limit is actually the bottleneck
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+        }
+
+        synchronized void onOverload(long startedAt) {
+            rejected.increment();
+            decrease(startedAt);
+        }
+
+        /**
+         * Multiplicative decrease, skipped for requests sent before the previous decrease (same round trip)
+         */
+        private void decrease(long startedAt) {
+            if (decreased && startedAt - lastDecreaseAt <= 0) {
+                return;
+            }
+            decreased = true;
+            lastDecreaseAt = System.nanoTime();
+            double previous = limit;
+            limit = Math.max(minLimit, limit * backoffRatio);
+            if ((int) previous != (int) limit) {
+                log.debug("Upstream {} concurrency limit lowered to {}", host, (int) limit);
+            }
+        }
+
+        synchronized int limitAsInt() {
+            return (int) limit;
+        }
+
+        synchronized int inFlight() {
+            return inFlight;
+        }
+
+        synchronized int queued() {
+            return waiters.size();
+        }
+    }
+
+    private static class Waiter {
+        private final MonoSink<Permit> sink;
+        private Permit permit;
+
+        Waiter(MonoSink<Permit> sink) {
+            this.sink = sink;
+        }
+    }
+
+    /**
+     * One in-flight request slot; release() is idempotent
+     */
+    private static class Permit {
+        private final HostLimiter limiter;
+        private final long startedAt = System.nanoTime();
+        private final AtomicBoolean released = new AtomicBoolean();
+        private final AtomicBoolean recorded = new AtomicBoolean();
+
+        Permit(HostLimiter limiter) {
+            this.limiter = limiter;
+        }
+
+        void onResponse(HttpStatusCode status) {
+            if (!recorded.compareAndSet(false, true)) {
+                return;
+            }
+            if (status.value() == 429 || status.is5xxServerError()) {
+                limiter.onOverload(startedAt);
+            } else {
+                limiter.onSuccess(startedAt, (System.nanoTime() - startedAt) / 1_000_000);
+            }
+        }
+
+        void onFailure() {
+            if (recorded.compareAndSet(false, true)) {
+                limiter.onOverload(startedAt);
+            }
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                limiter.release();
+            }
+        }
+
+        void releaseIfNoResponse() {
+            if (!recorded.get()) {
+                release();
+            }
+        }
+    }
+}
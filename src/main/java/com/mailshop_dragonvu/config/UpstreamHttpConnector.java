@@ -0,0 +1,128 @@
+package com.mailshop_dragonvu.config;
+
+import io.netty.channel.ChannelOption;
+import io.netty.handler.timeout.ReadTimeoutHandler;
+import io.netty.handler.timeout.WriteTimeoutHandler;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.reactive.ClientHttpConnector;
+import org.springframework.http.client.reactive.ClientHttpRequest;
+import org.springframework.http.client.reactive.ClientHttpResponse;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * WebClient connector with one named connection pool per upstream, so a slow host cannot use up
+ * the connections of the others
+ *
+ * - microsoft-login: login.microsoftonline.com, login.live.com (token refresh)
+ * - microsoft-graph: graph.microsoft.com (HTTP/2 when app.http.pools.http2=true)
+ * - facebook: graph.facebook.com (HTTP/2 when app.http.pools.http2=true)
+ * - default: every other host
+ *
+ * Each pool has its own max-connections, a bounded pending-acquire queue and idle / lifetime
+ * eviction in the background.
+ *
+ * Metrics (Reactor Netty, through the Micrometer global registry): reactor.netty.connection.provider.*
+ * (tag name = pool: total, active, idle, pending connections) and reactor.netty.http.client.*
+ * (uri tag = pool name, to keep cardinality bounded)
+ */
+@Component
+@Slf4j
+public class UpstreamHttpConnector implements ClientHttpConnector {
+
+    private static final String DEFAULT_POOL = "default";
+
+    private final Map<String, ReactorClientHttpConnector> connectorsByHost = new HashMap<>();
+    private final ReactorClientHttpConnector defaultConnector;
+    private final List<ConnectionProvider> providers = new ArrayList<>();
+
+    public UpstreamHttpConnector(
+            @Value("${app.http.pools.pending-acquire-max-count:1000}") int pendingAcquireMaxCount,
+            @Value("${app.http.pools.pending-acquire-timeout-ms:10000}") long pendingAcquireTimeoutMs,
+            @Value("${app.http.pools.max-idle-time-seconds:30}") long maxIdleTimeSeconds,
+            @Value("${app.http.pools.max-life-time-seconds:300}") long maxLifeTimeSeconds,
+            @Value("${app.http.pools.evict-interval-seconds:30}") long evictIntervalSeconds,
+            @Value("${app.http.pools.http2:true}") boolean http2,
+            @Value("${app.http.pools.microsoft-login.max-connections:100}") int loginMaxConnections,
+            @Value("${app.http.pools.microsoft-graph.max-connections:500}") int graphMaxConnections,
+            @Value("${app.http.pools.facebook.max-connections:200}") int facebookMaxConnections,
+            @Value("${app.http.pools.default.max-connections:100}") int defaultMaxConnections) {
+        Function<String, ConnectionProvider.Builder> pool = name -> ConnectionProvider.builder(name)
+                .pendingAcquireMaxCount(pendingAcquireMaxCount)
+                .pendingAcquireTimeout(Duration.ofMillis(pendingAcquireTimeoutMs))
+                .maxIdleTime(Duration.ofSeconds(maxIdleTimeSeconds))
+                .maxLifeTime(Duration.ofSeconds(maxLifeTimeSeconds))
+                .evictInBackground(Duration.ofSeconds(evictIntervalSeconds))
+                .metrics(true);
+
+        register(pool.apply("microsoft-login").maxConnections(loginMaxConnections), false,
+                Set.of("login.microsoftonline.com", "login.live.com"));
+        register(pool.apply("microsoft-graph").maxConnections(graphMaxConnections), http2,
+                Set.of("graph.microsoft.com"));
+        register(pool.apply("facebook").maxConnections(facebookMaxConnections), http2,
+                Set.of("graph.facebook.com"));
+        this.defaultConnector = connector(pool.apply(DEFAULT_POOL).maxConnections(defaultMaxConnections), false);
+
+        log.info("Upstream connection pools: microsoft-login={}, microsoft-graph={}, facebook={}, default={} (http2={})",
+                loginMaxConnections, graphMaxConnections, facebookMaxConnections, defaultMaxConnections, http2);
+    }
+
+    @Override
+    @NonNull
+    public Mono<ClientHttpResponse> connect(@NonNull HttpMethod method, @NonNull URI uri,
+                                            @NonNull Function<? super ClientHttpRequest, Mono<Void>> requestCallback) {
+        String host = uri.getHost();
+        ReactorClientHttpConnector connector = host != null
+                ? connectorsByHost.getOrDefault(host.toLowerCase(Locale.ROOT), defaultConnector)
+                : defaultConnector;
+        return connector.connect(method, uri, requestCallback);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        providers.forEach(ConnectionProvider::dispose);
+    }
+
+    private void register(ConnectionProvider.Builder builder, boolean http2, Set<String> hosts) {
+        ReactorClientHttpConnector connector = connector(builder, http2);
+        hosts.forEach(host -> connectorsByHost.put(host, connector));
+    }
+
+    private ReactorClientHttpConnector connector(ConnectionProvider.Builder builder, boolean http2) {
+        ConnectionProvider provider = builder.build();
+        providers.add(provider);
+        String poolName = provider.name();
+
+        HttpClient httpClient = HttpClient.create(provider)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000)
+                .responseTimeout(Duration.ofSeconds(30))
+                .metrics(true, uri -> poolName)
+                .doOnConnected(conn -> conn
+                        .addHandlerLast(new ReadTimeoutHandler(30, TimeUnit.SECONDS))
+                        .addHandlerLast(new WriteTimeoutHandler(30, TimeUnit.SECONDS)));
+        if (http2) {
+            // Negotiated through ALPN, falls back to HTTP/1.1
+            httpClient = httpClient.protocol(HttpProtocol.H2, HttpProtocol.HTTP11).secure();
+        }
+        return new ReactorClientHttpConnector(httpClient);
+    }
+}
@@ -1,9 +1,14 @@
 package com.mailshop_dragonvu.controller.client;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.mailshop_dragonvu.dto.orders.*;
 import com.mailshop_dragonvu.dto.ApiResponse;
+import com.mailshop_dragonvu.exception.BusinessException;
+import com.mailshop_dragonvu.exception.ErrorCode;
 import com.mailshop_dragonvu.security.UserPrincipal;
+import com.mailshop_dragonvu.service.AsyncOrderProcessor;
 import com.mailshop_dragonvu.service.MessageService;
+import com.mailshop_dragonvu.service.OrderIdempotencyCache;
 import com.mailshop_dragonvu.service.OrderService;
 import com.mailshop_dragonvu.utils.Constants;
 import com.mailshop_dragonvu.utils.MessageKeys;
@@ -11,8 +16,19 @@ import io.swagger.v3.oas.annotations.security.SecurityRequirement;
 import jakarta.validation.Valid;
 import lombok.RequiredArgsConstructor;
 import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
 
 @RestController
 @RequestMapping(Constants.API_PATH.ORDERS)
@@ -20,19 +36,118 @@ import org.springframework.web.bind.annotation.*;
 @SecurityRequirement(name = "Bearer Authentication")
 public class OrderController {
 
+    private static final int MAX_IDEMPOTENCY_KEY_LENGTH = 128;
+    private static final int MAX_ACCOUNT_PAGE_SIZE = 1000;
+
     private final OrderService orderService;
     private final MessageService messageService;
+    private final OrderIdempotencyCache orderIdempotencyCache;
+    private final AsyncOrderProcessor asyncOrderProcessor;
+    private final ObjectMapper objectMapper;
 
     /**
      * Mua mail - hỗ trợ cả header và query parameter apikey
      * VD: GET /api/v1/orders/buy?productId=1&quantity=10&apikey=msk_xxx
+     *
+     * Idempotency-Key (header hoặc query parameter idempotencyKey, tùy chọn): gọi lại với cùng key
+     * trả về kết quả của lần mua đầu tiên thay vì mua thêm lần nữa
      */
     @GetMapping("/buy")
     public ApiResponse<ClientOrderCreateResponseDTO> createOrder(
+            @Valid OrderCreateDTO request,
+            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyHeader,
+            @RequestParam(value = "idempotencyKey", required = false) String idempotencyParam,
+            @AuthenticationPrincipal UserPrincipal userPrincipal) {
+        String idempotencyKey = idempotencyHeader != null && !idempotencyHeader.isBlank()
+                ? idempotencyHeader.strip()
+                : idempotencyParam != null ? idempotencyParam.strip() : "";
+
+        ClientOrderCreateResponseDTO result;
+        if (idempotencyKey.isEmpty()) {
+            result = orderService.createOrder(request, userPrincipal.getId());
+        } else {
+            if (idempotencyKey.length() > MAX_IDEMPOTENCY_KEY_LENGTH) {
+                throw new BusinessException(ErrorCode.BAD_REQUEST,
+                        "Idempotency-Key tối đa " + MAX_IDEMPOTENCY_KEY_LENGTH + " ký tự");
+            }
+            result = orderIdempotencyCache.execute(userPrincipal.getId(), idempotencyKey,
+                    request.getProductId() + ":" + request.getQuantity(),
+                    () -> orderService.createOrder(request, userPrincipal.getId()));
+        }
+        return ApiResponse.success(messageService.getMessage(MessageKeys.Order.PURCHASE), result);
+    }
+
+    /**
+     * Mua số lượng lớn - trả về đơn hàng ngay, tài khoản được giao theo từng lô ở nền
+     * Tiến độ: WebSocket /topic/order/{userId} hoặc GET /{id}/progress
+     * Kết quả: GET /{id}/accounts (phân trang), /{id}/accounts/stream (NDJSON), /{id}/accounts/download (gzip)
+     * VD: GET /api/v1/orders/buy-async?productId=1&quantity=20000&apikey=msk_xxx
+     */
+    @GetMapping("/buy-async")
+    public ApiResponse<AsyncOrderResponseDTO> createAsyncOrder(
             @Valid OrderCreateDTO request,
             @AuthenticationPrincipal UserPrincipal userPrincipal) {
         return ApiResponse.success(messageService.getMessage(MessageKeys.Order.PURCHASE),
-                orderService.createOrder(request, userPrincipal.getId()));
+                asyncOrderProcessor.submit(request, userPrincipal.getId()));
+    }
+
+    @GetMapping("/{id}/progress")
+    public ApiResponse<AsyncOrderResponseDTO> getOrderProgress(
+            @PathVariable Long id,
+            @AuthenticationPrincipal UserPrincipal userPrincipal) {
+        return ApiResponse.success(orderService.getAsyncOrder(id, userPrincipal.getId()));
+    }
+
+    /**
+     * Tài khoản đã giao theo trang (theo thứ tự giao), dùng được khi đơn đang giao
+     */
+    @GetMapping("/{id}/accounts")
+    public ApiResponse<Page<String>> getOrderAccounts(
+            @PathVariable Long id,
+            @RequestParam(defaultValue = "0") int page,
+            @RequestParam(defaultValue = "500") int size,
+            @AuthenticationPrincipal UserPrincipal userPrincipal) {
+        PageRequest pageable = PageRequest.of(Math.max(page, 0), Math.min(Math.max(size, 1), MAX_ACCOUNT_PAGE_SIZE));
+        return ApiResponse.success(orderService.getOrderAccounts(id, userPrincipal.getId(), pageable));
+    }
+
+    /**
+     * Toàn bộ tài khoản đã giao dạng NDJSON (mỗi dòng một chuỗi JSON), đọc và ghi theo lô
+     */
+    @GetMapping(value = "/{id}/accounts/stream", produces = "application/x-ndjson")
+    public ResponseEntity<StreamingResponseBody> streamOrderAccounts(
+            @PathVariable Long id,
+            @AuthenticationPrincipal UserPrincipal userPrincipal) {
+        orderService.getAsyncOrder(id, userPrincipal.getId());
+
+        StreamingResponseBody body = out -> {
+            writeAccounts(id, out, true);
+            out.flush();
+        };
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType("application/x-ndjson"))
+                .body(body);
+    }
+
+    /**
+     * Toàn bộ tài khoản đã giao dạng file text (mỗi dòng một tài khoản) nén gzip
+     */
+    @GetMapping("/{id}/accounts/download")
+    public ResponseEntity<StreamingResponseBody> downloadOrderAccounts(
+            @PathVariable Long id,
+            @AuthenticationPrincipal UserPrincipal userPrincipal) {
+        AsyncOrderResponseDTO order = orderService.getAsyncOrder(id, userPrincipal.getId());
+
+        StreamingResponseBody body = out -> {
+            GZIPOutputStream gzip = new GZIPOutputStream(out, 64 * 1024);
+            writeAccounts(id, gzip, false);
+            gzip.finish();
+            out.flush();
+        };
+        return ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + order.getOrderNumber() + ".txt.gz\"")
+                .contentType(MediaType.parseMediaType("application/gzip"))
+                .body(body);
     }
 
     @GetMapping("/{id}")
@@ -52,4 +167,20 @@ public class OrderController {
         return ApiResponse.success(orderService.search(filterDTO));
     }
 
+    private void writeAccounts(Long orderId, OutputStream out, boolean ndjson) throws IOException {
+        try {
+            orderService.forEachOrderAccountChunk(orderId, accounts -> {
+                try {
+                    for (String account : accounts) {
+                        out.write(ndjson ? objectMapper.writeValueAsBytes(account) : account.getBytes(StandardCharsets.UTF_8));
+                        out.write('\n');
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
 }
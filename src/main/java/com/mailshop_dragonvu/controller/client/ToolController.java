@@ -1,26 +1,50 @@
 package com.mailshop_dragonvu.controller.client;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.mailshop_dragonvu.dto.ApiResponse;
 import com.mailshop_dragonvu.dto.facebook.FacebookCheckLiveRequestDTO;
 import com.mailshop_dragonvu.dto.hotmail.*;
+import com.mailshop_dragonvu.dto.tools.ToolJobStatusDTO;
 import com.mailshop_dragonvu.dto.totp.TotpRequestDTO;
 import com.mailshop_dragonvu.dto.totp.TotpResponseDTO;
+import com.mailshop_dragonvu.exception.BusinessException;
+import com.mailshop_dragonvu.exception.ErrorCode;
 import com.mailshop_dragonvu.service.FacebookService;
 import com.mailshop_dragonvu.service.HotmailService;
 import com.mailshop_dragonvu.service.StreamSessionStore;
 import com.mailshop_dragonvu.service.TotpService;
+import com.mailshop_dragonvu.service.job.ToolInputSpool;
+import com.mailshop_dragonvu.service.job.ToolJob;
+import com.mailshop_dragonvu.service.job.ToolJobManager;
 import com.mailshop_dragonvu.utils.Constants;
+import com.mailshop_dragonvu.utils.SecurityUtils;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.servlet.http.HttpServletRequest;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import reactor.core.publisher.Flux;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
 
 @RestController
 @RequestMapping(Constants.API_PATH.TOOLS)
@@ -33,6 +57,13 @@ public class ToolController {
     private final FacebookService facebookService;
     private final StreamSessionStore sessionStore;
     private final TotpService totpService;
+    private final ToolJobManager jobManager;
+    private final ToolInputSpool inputSpool;
+    private final ObjectMapper objectMapper;
+
+    private static final String LAST_EVENT_ID_HEADER = "Last-Event-ID";
+    private static final long STREAM_TIMEOUT_MS = 300000L; // 5 min, the job keeps running after it
+    private static final long WAIT_CODE_STREAM_TIMEOUT_MS = 600000L; // 10 min, service ends earlier at its deadline
 
     // ==================== TOTP - 2FA CODE GENERATION ====================
 
@@ -42,8 +73,8 @@ public class ToolController {
     @PostMapping("/totp/generate")
     @Operation(summary = "Generate 2FA codes", description = "Generate TOTP 2FA codes from secret keys")
     public ResponseEntity<ApiResponse<List<TotpResponseDTO>>> generateTotpCodes(@RequestBody TotpRequestDTO request) {
-        log.info("Generating TOTP codes for {} secrets", 
-            request.getSecretData() != null ? request.getSecretData().split("\n").length : 0);
+        log.info("Generating TOTP codes for {} secrets",
+            request.getSecretData() != null ? request.getSecretData().lines().count() : 0);
         
         List<TotpResponseDTO> results = totpService.generateCodes(request.getSecretData());
         
@@ -53,6 +84,25 @@ public class ToolController {
         return ResponseEntity.ok(ApiResponse.success(message, results));
     }
 
+    /**
+     * Generate TOTP 2FA codes as NDJSON (one result per line, written as they are computed)
+     */
+    @PostMapping(value = "/totp/generate/stream", produces = "application/x-ndjson")
+    @Operation(summary = "Stream 2FA codes", description = "TOTP codes as NDJSON, for large lists of secrets")
+    public ResponseEntity<StreamingResponseBody> streamTotpCodes(@RequestBody TotpRequestDTO request) {
+        Flux<TotpResponseDTO> results = totpService.generateCodesStream(ToolInputSpool.lines(request.getSecretData()));
+
+        StreamingResponseBody body = out -> {
+            for (TotpResponseDTO result : results.toIterable()) {
+                writeNdjsonLine(out, result);
+            }
+            out.flush();
+        };
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType("application/x-ndjson"))
+                .body(body);
+    }
+
     /**
      * Get current TOTP time remaining
      */
@@ -70,31 +120,40 @@ public class ToolController {
      */
     @PostMapping("/hotmail/get-code/start")
     @Operation(summary = "Start get-code session", description = "Submit email data and get sessionId for streaming")
-    public ResponseEntity<ApiResponse<Map<String, String>>> startGetCode(@RequestBody HotmailGetCodeRequestDTO request) {
-        String sessionId = sessionStore.createGetCodeSession(request);
+    public ResponseEntity<ApiResponse<Map<String, String>>> startGetCode(@RequestBody HotmailGetCodeRequestDTO request,
+            HttpServletRequest httpRequest) {
+        String sessionId = sessionStore.createGetCodeSession(resolveOwner(httpRequest), request);
         log.info("Created get-code session: {}", sessionId);
         return ResponseEntity.ok(ApiResponse.success("Session created", Map.of("sessionId", sessionId)));
     }
 
     /**
-     * Step 2: GET stream with sessionId
+     * Step 1 (large lists): upload lines as text/plain body or multipart "file", get sessionId
+     */
+    @PostMapping("/hotmail/get-code/upload")
+    @Operation(summary = "Upload get-code input", description = "text/plain body or multipart file, one email per line")
+    public ResponseEntity<ApiResponse<Map<String, String>>> uploadGetCode(
+            @RequestParam(defaultValue = "Oauth2") String getType,
+            @RequestParam(defaultValue = "Auto") List<String> emailTypes,
+            HttpServletRequest httpRequest) {
+        HotmailGetCodeRequestDTO options = HotmailGetCodeRequestDTO.builder()
+                .getType(getType)
+                .emailTypes(emailTypes)
+                .build();
+        return startUploadSession("GET_CODE", httpRequest, options, null, false);
+    }
+
+    /**
+     * Step 2: GET stream with sessionId (reconnect with Last-Event-ID to resume)
      */
     @GetMapping(value = "/hotmail/get-code/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
     @Operation(summary = "Stream get-code results")
-    public SseEmitter getCodeStream(@RequestParam String sessionId) {
-        StreamSessionStore.SessionData session = sessionStore.getAndRemove(sessionId);
-        
-        if (session == null || session.isExpired()) {
-            log.warn("Invalid or expired session: {}", sessionId);
-            SseEmitter emitter = new SseEmitter(0L);
-            emitter.complete();
-            return emitter;
-        }
-        
-        log.info("Starting SSE stream for get-code session: {}", sessionId);
-        SseEmitter emitter = new SseEmitter(300000L); // 5 min timeout
-        hotmailService.getCodeStream(session.getCodeRequest, emitter);
-        return emitter;
+    public SseEmitter getCodeStream(@RequestParam String sessionId,
+            @RequestHeader(value = LAST_EVENT_ID_HEADER, required = false) String lastEventId,
+            @RequestParam(defaultValue = "false") boolean batch,
+            HttpServletRequest httpRequest) {
+        return openJobStream(sessionId, resolveOwner(httpRequest), lastEventId, batch, STREAM_TIMEOUT_MS,
+                session -> hotmailService.getCodeStream(session.getCodeRequest, inputLines(session)));
     }
 
     // ==================== HOTMAIL - CHECK LIVE MAIL ====================
@@ -104,31 +163,36 @@ public class ToolController {
      */
     @PostMapping("/hotmail/check-live-mail/start")
     @Operation(summary = "Start check-live-mail session", description = "Submit email data and get sessionId for streaming")
-    public ResponseEntity<ApiResponse<Map<String, String>>> startCheckLiveMail(@RequestBody CheckLiveMailRequestDTO request) {
-        String sessionId = sessionStore.createCheckLiveMailSession(request.getEmailData());
+    public ResponseEntity<ApiResponse<Map<String, String>>> startCheckLiveMail(@RequestBody CheckLiveMailRequestDTO request,
+            HttpServletRequest httpRequest) {
+        String sessionId = sessionStore.createCheckLiveMailSession(resolveOwner(httpRequest), request.getEmailData(),
+                request.isForceRecheck());
         log.info("Created check-live-mail session: {}", sessionId);
         return ResponseEntity.ok(ApiResponse.success("Session created", Map.of("sessionId", sessionId)));
     }
 
     /**
-     * Step 2: GET stream with sessionId
+     * Step 1 (large lists): upload lines as text/plain body or multipart "file", get sessionId
+     */
+    @PostMapping("/hotmail/check-live-mail/upload")
+    @Operation(summary = "Upload check-live-mail input", description = "text/plain body or multipart file, one email per line")
+    public ResponseEntity<ApiResponse<Map<String, String>>> uploadCheckLiveMail(
+            @RequestParam(defaultValue = "false") boolean forceRecheck,
+            HttpServletRequest httpRequest) {
+        return startUploadSession("CHECK_LIVE_MAIL", httpRequest, null, null, forceRecheck);
+    }
+
+    /**
+     * Step 2: GET stream with sessionId (reconnect with Last-Event-ID to resume)
      */
     @GetMapping(value = "/hotmail/check-live-mail/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
     @Operation(summary = "Stream check-live-mail results")
-    public SseEmitter checkLiveMailStream(@RequestParam String sessionId) {
-        StreamSessionStore.SessionData session = sessionStore.getAndRemove(sessionId);
-        
-        if (session == null || session.isExpired()) {
-            log.warn("Invalid or expired session: {}", sessionId);
-            SseEmitter emitter = new SseEmitter(0L);
-            emitter.complete();
-            return emitter;
-        }
-        
-        log.info("Starting SSE stream for check-live-mail session: {}", sessionId);
-        SseEmitter emitter = new SseEmitter(300000L);
-        hotmailService.checkLiveMailStream(session.emailData, emitter);
-        return emitter;
+    public SseEmitter checkLiveMailStream(@RequestParam String sessionId,
+            @RequestHeader(value = LAST_EVENT_ID_HEADER, required = false) String lastEventId,
+            @RequestParam(defaultValue = "false") boolean batch,
+            HttpServletRequest httpRequest) {
+        return openJobStream(sessionId, resolveOwner(httpRequest), lastEventId, batch, STREAM_TIMEOUT_MS,
+                session -> hotmailService.checkLiveMailStream(inputLines(session), session.forceRecheck));
     }
 
     // ==================== HOTMAIL - GET OAUTH2 ====================
@@ -138,31 +202,24 @@ public class ToolController {
      */
     @PostMapping("/hotmail/get-oauth2/start")
     @Operation(summary = "Start get-oauth2 session", description = "Submit email data and get sessionId for streaming")
-    public ResponseEntity<ApiResponse<Map<String, String>>> startGetOAuth2(@RequestBody GetOAuth2RequestDTO request) {
-        String sessionId = sessionStore.createGetOAuth2Session(request.getEmailData());
+    public ResponseEntity<ApiResponse<Map<String, String>>> startGetOAuth2(@RequestBody GetOAuth2RequestDTO request,
+            HttpServletRequest httpRequest) {
+        String sessionId = sessionStore.createGetOAuth2Session(resolveOwner(httpRequest), request.getEmailData());
         log.info("Created get-oauth2 session: {}", sessionId);
         return ResponseEntity.ok(ApiResponse.success("Session created", Map.of("sessionId", sessionId)));
     }
 
     /**
-     * Step 2: GET stream with sessionId
+     * Step 2: GET stream with sessionId (reconnect with Last-Event-ID to resume)
      */
     @GetMapping(value = "/hotmail/get-oauth2/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
     @Operation(summary = "Stream get-oauth2 results")
-    public SseEmitter getOAuth2Stream(@RequestParam String sessionId) {
-        StreamSessionStore.SessionData session = sessionStore.getAndRemove(sessionId);
-        
-        if (session == null || session.isExpired()) {
-            log.warn("Invalid or expired session: {}", sessionId);
-            SseEmitter emitter = new SseEmitter(0L);
-            emitter.complete();
-            return emitter;
-        }
-        
-        log.info("Starting SSE stream for get-oauth2 session: {}", sessionId);
-        SseEmitter emitter = new SseEmitter(300000L);
-        hotmailService.getOAuth2Stream(session.emailData, emitter);
-        return emitter;
+    public SseEmitter getOAuth2Stream(@RequestParam String sessionId,
+            @RequestHeader(value = LAST_EVENT_ID_HEADER, required = false) String lastEventId,
+            @RequestParam(defaultValue = "false") boolean batch,
+            HttpServletRequest httpRequest) {
+        return openJobStream(sessionId, resolveOwner(httpRequest), lastEventId, batch, STREAM_TIMEOUT_MS,
+                session -> hotmailService.getOAuth2Stream(session.emailData));
     }
 
     // ==================== FACEBOOK - CHECK LIVE ====================
@@ -172,31 +229,36 @@ public class ToolController {
      */
     @PostMapping("/facebook/check-live/start")
     @Operation(summary = "Start Facebook check-live session", description = "Submit UID data and get sessionId for streaming")
-    public ResponseEntity<ApiResponse<Map<String, String>>> startFacebookCheckLive(@RequestBody FacebookCheckLiveRequestDTO request) {
-        String sessionId = sessionStore.createFacebookCheckLiveSession(request.getUidData());
+    public ResponseEntity<ApiResponse<Map<String, String>>> startFacebookCheckLive(@RequestBody FacebookCheckLiveRequestDTO request,
+            HttpServletRequest httpRequest) {
+        String sessionId = sessionStore.createFacebookCheckLiveSession(resolveOwner(httpRequest), request.getUidData(),
+                request.isForceRecheck());
         log.info("Created facebook check-live session: {}", sessionId);
         return ResponseEntity.ok(ApiResponse.success("Session created", Map.of("sessionId", sessionId)));
     }
 
     /**
-     * Step 2: GET stream with sessionId
+     * Step 1 (large lists): upload UIDs as text/plain body or multipart "file", get sessionId
+     */
+    @PostMapping("/facebook/check-live/upload")
+    @Operation(summary = "Upload Facebook check-live input", description = "text/plain body or multipart file, one UID per line")
+    public ResponseEntity<ApiResponse<Map<String, String>>> uploadFacebookCheckLive(
+            @RequestParam(defaultValue = "false") boolean forceRecheck,
+            HttpServletRequest httpRequest) {
+        return startUploadSession("FACEBOOK_CHECK_LIVE", httpRequest, null, null, forceRecheck);
+    }
+
+    /**
+     * Step 2: GET stream with sessionId (reconnect with Last-Event-ID to resume)
      */
     @GetMapping(value = "/facebook/check-live/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
     @Operation(summary = "Stream Facebook check-live results")
-    public SseEmitter facebookCheckLiveStream(@RequestParam String sessionId) {
-        StreamSessionStore.SessionData session = sessionStore.getAndRemove(sessionId);
-        
-        if (session == null || session.isExpired()) {
-            log.warn("Invalid or expired session: {}", sessionId);
-            SseEmitter emitter = new SseEmitter(0L);
-            emitter.complete();
-            return emitter;
-        }
-        
-        log.info("Starting SSE stream for facebook check-live session: {}", sessionId);
-        SseEmitter emitter = new SseEmitter(300000L); // 5 min timeout
-        facebookService.checkLiveStream(session.emailData, emitter);
-        return emitter;
+    public SseEmitter facebookCheckLiveStream(@RequestParam String sessionId,
+            @RequestHeader(value = LAST_EVENT_ID_HEADER, required = false) String lastEventId,
+            @RequestParam(defaultValue = "false") boolean batch,
+            HttpServletRequest httpRequest) {
+        return openJobStream(sessionId, resolveOwner(httpRequest), lastEventId, batch, STREAM_TIMEOUT_MS,
+                session -> facebookService.checkLiveStream(inputLines(session), session.forceRecheck));
     }
 
     // ==================== HOTMAIL - READ MAIL ====================
@@ -206,31 +268,244 @@ public class ToolController {
      */
     @PostMapping("/hotmail/read-mail/start")
     @Operation(summary = "Start read-mail session", description = "Submit email data and get sessionId for streaming")
-    public ResponseEntity<ApiResponse<Map<String, String>>> startReadMail(@RequestBody ReadMailRequestDTO request) {
-        String sessionId = sessionStore.createReadMailSession(request);
+    public ResponseEntity<ApiResponse<Map<String, String>>> startReadMail(@RequestBody ReadMailRequestDTO request,
+            HttpServletRequest httpRequest) {
+        String sessionId = sessionStore.createReadMailSession(resolveOwner(httpRequest), request);
         log.info("Created read-mail session: {}", sessionId);
         return ResponseEntity.ok(ApiResponse.success("Session created", Map.of("sessionId", sessionId)));
     }
 
     /**
-     * Step 2: GET stream with sessionId
+     * Step 1 (large lists): upload lines as text/plain body or multipart "file", get sessionId
+     */
+    @PostMapping("/hotmail/read-mail/upload")
+    @Operation(summary = "Upload read-mail input", description = "text/plain body or multipart file, one email per line")
+    public ResponseEntity<ApiResponse<Map<String, String>>> uploadReadMail(
+            @RequestParam(defaultValue = "20") int messageCount,
+            HttpServletRequest httpRequest) {
+        ReadMailRequestDTO options = ReadMailRequestDTO.builder()
+                .messageCount(messageCount)
+                .build();
+        return startUploadSession("READ_MAIL", httpRequest, null, options, false);
+    }
+
+    /**
+     * Step 2: GET stream with sessionId (reconnect with Last-Event-ID to resume)
      */
     @GetMapping(value = "/hotmail/read-mail/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
     @Operation(summary = "Stream read-mail results")
-    public SseEmitter readMailStream(@RequestParam String sessionId) {
-        StreamSessionStore.SessionData session = sessionStore.getAndRemove(sessionId);
-        
-        if (session == null || session.isExpired()) {
+    public SseEmitter readMailStream(@RequestParam String sessionId,
+            @RequestHeader(value = LAST_EVENT_ID_HEADER, required = false) String lastEventId,
+            @RequestParam(defaultValue = "false") boolean batch,
+            HttpServletRequest httpRequest) {
+        return openJobStream(sessionId, resolveOwner(httpRequest), lastEventId, batch, STREAM_TIMEOUT_MS,
+                session -> hotmailService.readMailStream(session.readMailRequest, inputLines(session)));
+    }
+
+    // ==================== HOTMAIL - WAIT FOR CODE ====================
+
+    /**
+     * Step 1: POST email data, get sessionId
+     */
+    @PostMapping("/hotmail/wait-code/start")
+    @Operation(summary = "Start wait-for-code session", description = "Submit email data and get sessionId for push-based code waiting")
+    public ResponseEntity<ApiResponse<Map<String, String>>> startWaitCode(@RequestBody HotmailWaitCodeRequestDTO request,
+            HttpServletRequest httpRequest) {
+        String sessionId = sessionStore.createWaitCodeSession(resolveOwner(httpRequest), request);
+        log.info("Created wait-code session: {}", sessionId);
+        return ResponseEntity.ok(ApiResponse.success("Session created", Map.of("sessionId", sessionId)));
+    }
+
+    /**
+     * Step 2: GET stream with sessionId - one result per mailbox as soon as its code arrives
+     * Reconnect with Last-Event-ID to resume
+     */
+    @GetMapping(value = "/hotmail/wait-code/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    @Operation(summary = "Stream wait-for-code results")
+    public SseEmitter waitCodeStream(@RequestParam String sessionId,
+            @RequestHeader(value = LAST_EVENT_ID_HEADER, required = false) String lastEventId,
+            @RequestParam(defaultValue = "false") boolean batch,
+            HttpServletRequest httpRequest) {
+        return openJobStream(sessionId, resolveOwner(httpRequest), lastEventId, batch, WAIT_CODE_STREAM_TIMEOUT_MS,
+                session -> hotmailService.waitForCodeStream(session.waitCodeRequest));
+    }
+
+    // ==================== JOBS ====================
+
+    /**
+     * Progress of a job (jobId = sessionId)
+     */
+    @GetMapping("/jobs/{jobId}")
+    @Operation(summary = "Get job status", description = "Progress of a tool job started by a stream call")
+    public ResponseEntity<ApiResponse<ToolJobStatusDTO>> getJobStatus(@PathVariable String jobId,
+                                                                     HttpServletRequest httpRequest) {
+        return ResponseEntity.ok(ApiResponse.success(toStatusDTO(jobManager.getRequired(jobId, resolveOwner(httpRequest)))));
+    }
+
+    /**
+     * Download every result of a finished job as NDJSON (one JSON result per line)
+     * The job and its spool file are removed once the whole file was sent
+     */
+    @GetMapping("/jobs/{jobId}/download")
+    @Operation(summary = "Download job results", description = "All results of a finished job as an NDJSON file (one-time)")
+    public ResponseEntity<StreamingResponseBody> downloadJobResults(@PathVariable String jobId,
+                                                                    HttpServletRequest httpRequest) {
+        ToolJob job = jobManager.getRequired(jobId, resolveOwner(httpRequest));
+        if (job.getState() == ToolJob.State.RUNNING) {
+            throw new BusinessException(ErrorCode.BAD_REQUEST, "Job chưa hoàn thành");
+        }
+
+        StreamingResponseBody body = out -> {
+            Files.copy(job.getSpoolFile(), out);
+            out.flush();
+            jobManager.remove(job);
+        };
+        return ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+                        .filename(job.getType().toLowerCase() + "-" + jobId + ".ndjson")
+                        .build().toString())
+                .contentType(MediaType.parseMediaType("application/x-ndjson"))
+                .body(body);
+    }
+
+    /**
+     * Cancel a running job (results so far stay available)
+     */
+    @DeleteMapping("/jobs/{jobId}")
+    @Operation(summary = "Cancel job")
+    public ResponseEntity<ApiResponse<ToolJobStatusDTO>> cancelJob(@PathVariable String jobId,
+                                                                  HttpServletRequest httpRequest) {
+        String owner = resolveOwner(httpRequest);
+        jobManager.cancel(jobId, owner);
+        return ResponseEntity.ok(ApiResponse.success("Job cancelled", toStatusDTO(jobManager.getRequired(jobId, owner))));
+    }
+
+    /**
+     * First call with a sessionId starts the job (jobId = sessionId), later calls reattach to it
+     * Only the caller that created the session may start or attach; others get an empty stream
+     * batch=true: one "results" event (JSON array, id = last sequence) per micro-batch
+     */
+    private SseEmitter openJobStream(String sessionId, String owner, String lastEventId, boolean batch, long timeoutMs,
+                                     Function<StreamSessionStore.SessionData, Flux<?>> launcher) {
+        ToolJob job = jobManager.get(sessionId);
+        if (job == null) {
+            // Peek first: a stranger must not consume (and so destroy) someone else's session
+            StreamSessionStore.SessionData pending = sessionStore.get(sessionId);
+            StreamSessionStore.SessionData session = pending != null && owner.equals(pending.owner)
+                    ? sessionStore.getAndRemove(sessionId) : null;
+            if (session != null && !session.isExpired()) {
+                log.info("Starting job for {} session: {}", session.type, sessionId);
+                int total = session.inputFile != null ? session.inputLines : countLines(session.emailData);
+                job = jobManager.start(sessionId, session.type, session.owner, total, launcher.apply(session));
+            } else {
+                // Lost the race against a concurrent first call
+                job = jobManager.get(sessionId);
+            }
+        }
+        if (job != null && !job.isOwnedBy(owner)) {
+            log.warn("Session {} requested by {} who does not own it", sessionId, owner);
+            job = null;
+        }
+
+        if (job == null) {
             log.warn("Invalid or expired session: {}", sessionId);
             SseEmitter emitter = new SseEmitter(0L);
             emitter.complete();
             return emitter;
         }
-        
-        log.info("Starting SSE stream for read-mail session: {}", sessionId);
-        SseEmitter emitter = new SseEmitter(300000L); // 5 min timeout
-        hotmailService.readMailStream(session.readMailRequest, emitter);
-        return emitter;
+        return jobManager.attach(job, parseLastEventId(lastEventId), timeoutMs, batch);
     }
-}
 
+    /**
+     * Spool an uploaded input (multipart "file" part or the raw body) and create its session
+     */
+    private ResponseEntity<ApiResponse<Map<String, String>>> startUploadSession(String type, HttpServletRequest httpRequest,
+            HotmailGetCodeRequestDTO getCodeRequest, ReadMailRequestDTO readMailRequest, boolean forceRecheck) {
+        ToolInputSpool.SpooledInput input;
+        try (InputStream body = uploadBody(httpRequest)) {
+            input = inputSpool.spool(body);
+        } catch (IOException e) {
+            throw new BusinessException(ErrorCode.BAD_REQUEST, "Không thể đọc dữ liệu tải lên: " + e.getMessage(), e);
+        }
+
+        String sessionId;
+        try {
+            sessionId = sessionStore.createUploadSession(type, resolveOwner(httpRequest), input,
+                    getCodeRequest, readMailRequest, forceRecheck);
+        } catch (RuntimeException e) {
+            inputSpool.discard(input);
+            throw e;
+        }
+        log.info("Created {} upload session: {} ({} lines)", type, sessionId, input.lines());
+        return ResponseEntity.ok(ApiResponse.success("Session created", Map.of("sessionId", sessionId)));
+    }
+
+    private InputStream uploadBody(HttpServletRequest httpRequest) throws IOException {
+        if (httpRequest instanceof MultipartHttpServletRequest multipart) {
+            MultipartFile file = multipart.getFile("file");
+            if (file == null) {
+                throw new BusinessException(ErrorCode.BAD_REQUEST, "Thiếu file tải lên");
+            }
+            return file.getInputStream();
+        }
+        return httpRequest.getInputStream();
+    }
+
+    /**
+     * Input lines of a session: read lazily from the spool file for uploads, from emailData otherwise
+     */
+    private Flux<String> inputLines(StreamSessionStore.SessionData session) {
+        return session.inputFile != null
+                ? inputSpool.lines(Path.of(session.inputFile))
+                : ToolInputSpool.lines(session.emailData);
+    }
+
+    private void writeNdjsonLine(OutputStream out, Object value) throws IOException {
+        out.write(objectMapper.writeValueAsBytes(value));
+        out.write('\n');
+    }
+
+    /**
+     * Quota key and job owner of the caller: the user when logged in, the client IP otherwise
+     */
+    private String resolveOwner(HttpServletRequest httpRequest) {
+        Long userId = SecurityUtils.getCurrentUserId();
+        return userId != null ? "user:" + userId : "ip:" + SecurityUtils.getClientIp(httpRequest);
+    }
+
+    private long parseLastEventId(String lastEventId) {
+        if (lastEventId == null || lastEventId.isBlank()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(lastEventId.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private int countLines(String data) {
+        if (data == null || data.isBlank()) {
+            return 0;
+        }
+        return (int) data.lines().filter(line -> !line.isBlank()).count();
+    }
+
+    private ToolJobStatusDTO toStatusDTO(ToolJob job) {
+        return ToolJobStatusDTO.builder()
+                .jobId(job.getId())
+                .type(job.getType())
+                .state(job.getState().name())
+                .total(job.getTotal())
+                .completed(job.getProduced())
+                .cacheHits(job.getCacheHits())
+                .cacheMisses(job.getCacheMisses())
+                .createdAt(toLocalDateTime(job.getCreatedAt()))
+                .finishedAt(job.getFinishedAt() > 0 ? toLocalDateTime(job.getFinishedAt()) : null)
+                .build();
+    }
+
+    private LocalDateTime toLocalDateTime(long epochMillis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneId.systemDefault());
+    }
+}
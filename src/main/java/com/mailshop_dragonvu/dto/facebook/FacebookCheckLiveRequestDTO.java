@@ -14,4 +14,9 @@ import lombok.NoArgsConstructor;
 @AllArgsConstructor
 public class FacebookCheckLiveRequestDTO {
     private String uidData;
+
+    /**
+     * Ignore cached liveness results and check every line again
+     */
+    private boolean forceRecheck;
 }
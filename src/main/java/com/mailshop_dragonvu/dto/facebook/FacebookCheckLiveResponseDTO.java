@@ -1,6 +1,7 @@
 package com.mailshop_dragonvu.dto.facebook;
 
 import com.mailshop_dragonvu.dto.hotmail.CheckStatus;
+import com.mailshop_dragonvu.dto.tools.LivenessResult;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
@@ -13,9 +14,14 @@ import lombok.NoArgsConstructor;
 @Builder
 @NoArgsConstructor
 @AllArgsConstructor
-public class FacebookCheckLiveResponseDTO {
+public class FacebookCheckLiveResponseDTO implements LivenessResult {
     private String uid;
     private CheckStatus status;
     private String avatar;
     private String error;
+
+    /**
+     * Answered from the liveness cache
+     */
+    private boolean cached;
 }
@@ -18,4 +18,9 @@ public class CheckLiveMailRequestDTO {
      * One email per line
      */
     private String emailData;
+
+    /**
+     * Ignore cached liveness results and check every line again
+     */
+    private boolean forceRecheck;
 }
@@ -1,6 +1,7 @@
 package com.mailshop_dragonvu.dto.hotmail;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.mailshop_dragonvu.dto.tools.LivenessResult;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
@@ -13,7 +14,7 @@ import lombok.NoArgsConstructor;
 @Builder
 @NoArgsConstructor
 @AllArgsConstructor
-public class CheckLiveMailResponseDTO {
+public class CheckLiveMailResponseDTO implements LivenessResult {
     private String email;
     private String password;
     private String refreshToken;
@@ -24,5 +25,10 @@ public class CheckLiveMailResponseDTO {
     
     private CheckStatus status;
     private String error;
+
+    /**
+     * Answered from the liveness cache
+     */
+    private boolean cached;
 }
 
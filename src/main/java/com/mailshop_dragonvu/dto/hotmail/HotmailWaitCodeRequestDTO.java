@@ -0,0 +1,35 @@
+package com.mailshop_dragonvu.dto.hotmail;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * Request DTO for waiting until a verification code arrives (push mode)
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class HotmailWaitCodeRequestDTO {
+
+    /**
+     * Email data in format: email|password|refresh_token|client_id
+     * Multiple lines supported (one email per line)
+     */
+    private String emailData;
+
+    /**
+     * Email type filters: Auto, Facebook, Instagram, Twitter, Apple, Tiktok, etc.
+     */
+    @Builder.Default
+    private List<String> emailTypes = List.of("Auto");
+
+    /**
+     * How long to wait for a code (seconds), capped by server config
+     */
+    private Integer timeoutSeconds;
+}
@@ -55,7 +55,7 @@ public class ReadMailResponseDTO {
      * Single email message
      */
     @Data
-    @Builder
+    @Builder(toBuilder = true)
     @NoArgsConstructor
     @AllArgsConstructor
     public static class EmailMessage {
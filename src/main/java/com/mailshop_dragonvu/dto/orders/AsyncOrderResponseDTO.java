@@ -0,0 +1,24 @@
+package com.mailshop_dragonvu.dto.orders;
+
+import com.mailshop_dragonvu.enums.OrderStatusEnum;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Trạng thái đơn mua bất đồng bộ: PAID = đang giao, COMPLETED = đã giao xong (có thể thiếu), CANCELLED = không giao được
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class AsyncOrderResponseDTO {
+    private Long orderId;
+    private String orderNumber;
+    private OrderStatusEnum status;
+    private Integer requestedQuantity;
+    private Integer deliveredQuantity;
+    private Long totalAmount;
+    private String notes;
+}
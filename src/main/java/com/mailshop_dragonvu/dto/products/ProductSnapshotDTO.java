@@ -0,0 +1,21 @@
+package com.mailshop_dragonvu.dto.products;
+
+import com.mailshop_dragonvu.enums.ActiveStatusEnum;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Thông tin sản phẩm cần cho luồng mua (cache "productSnapshots"), không kèm số lượng tồn kho
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class ProductSnapshotDTO {
+    private Long id;
+    private String name;
+    private Long price;
+    private ActiveStatusEnum status;
+}
@@ -0,0 +1,18 @@
+package com.mailshop_dragonvu.dto.tools;
+
+import com.mailshop_dragonvu.dto.hotmail.CheckStatus;
+
+/**
+ * Check-live result that can be served from the liveness cache
+ */
+public interface LivenessResult {
+
+    CheckStatus getStatus();
+
+    /**
+     * True when the result was answered from the cache instead of the upstream
+     */
+    boolean isCached();
+
+    void setCached(boolean cached);
+}
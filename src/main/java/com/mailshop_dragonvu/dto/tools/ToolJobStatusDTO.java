@@ -0,0 +1,44 @@
+package com.mailshop_dragonvu.dto.tools;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * Progress of a tool job (get-code, check-live, ...)
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class ToolJobStatusDTO {
+    private String jobId;
+    private String type;
+
+    /**
+     * RUNNING, COMPLETED, FAILED, CANCELLED
+     */
+    private String state;
+
+    /**
+     * Number of input lines
+     */
+    private int total;
+
+    /**
+     * Number of results produced (also the id of the last SSE event)
+     */
+    private long completed;
+
+    /**
+     * Check-live jobs: results answered from the liveness cache / checked upstream
+     */
+    private long cacheHits;
+    private long cacheMisses;
+
+    private LocalDateTime createdAt;
+    private LocalDateTime finishedAt;
+}
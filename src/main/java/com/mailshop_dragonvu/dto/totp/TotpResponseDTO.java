@@ -29,6 +29,11 @@ public class TotpResponseDTO {
      */
     private String code;
 
+    /**
+     * Code of the next 30s window (valid once timeRemaining reaches 0)
+     */
+    private String nextCode;
+
     /**
      * Status: success or error
      */
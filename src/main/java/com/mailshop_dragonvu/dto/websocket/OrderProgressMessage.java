@@ -0,0 +1,41 @@
+package com.mailshop_dragonvu.dto.websocket;
+
+import com.mailshop_dragonvu.enums.OrderStatusEnum;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * WebSocket message for async order progress
+ * Sent to the user-specific topic after every delivered chunk and when the order finishes
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class OrderProgressMessage {
+
+    private Long orderId;
+
+    private String orderNumber;
+
+    /**
+     * PAID while delivering, COMPLETED / CANCELLED once finished
+     */
+    private OrderStatusEnum status;
+
+    private Integer requestedQuantity;
+
+    private Integer deliveredQuantity;
+
+    /**
+     * Amount charged so far
+     */
+    private Long totalAmount;
+
+    /**
+     * Why delivery stopped early (out of stock, balance, ...), null otherwise
+     */
+    private String message;
+}
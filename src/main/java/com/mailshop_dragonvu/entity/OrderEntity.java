@@ -46,6 +46,12 @@ public class OrderEntity extends BaseEntity {
     @Column(nullable = false)
     private Integer quantity;
 
+    /**
+     * Số lượng đặt của đơn mua bất đồng bộ (quantity = số đã giao), null với đơn mua trực tiếp
+     */
+    @Column(name = "requested_quantity")
+    private Integer requestedQuantity;
+
     @Column(nullable = false)
     private Long productId; // optional: để lưu loại sản phẩm
 
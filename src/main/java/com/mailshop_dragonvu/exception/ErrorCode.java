@@ -48,6 +48,11 @@ public enum ErrorCode {
     ORDER_CANNOT_BE_MODIFIED("5002", "Không thể sửa đổi đơn hàng"),
     INVALID_ORDER_STATUS("5003", "Trạng thái đơn hàng không hợp lệ"),
     ORDER_ITEM_NOT_FOUND("5004", "Không tìm thấy mặt hàng trong đơn hàng"),
+    IDEMPOTENCY_KEY_MISMATCH("5005", "Idempotency-Key đã được dùng cho một yêu cầu mua khác"),
+    IDEMPOTENCY_KEY_IN_PROGRESS("5006", "Yêu cầu mua với Idempotency-Key này vẫn đang được xử lý"),
+    IDEMPOTENCY_STORE_FULL("5007", "Hệ thống đang bận, vui lòng thử lại sau"),
+    ASYNC_ORDER_QUEUE_FULL("5008", "Đang có quá nhiều đơn lớn chờ giao, vui lòng thử lại sau"),
+    IDEMPOTENCY_RESULT_NOT_RETAINED("5009", "Đơn hàng với Idempotency-Key này đã được tạo, xem tài khoản trong lịch sử đơn hàng"),
 
     // Payment Errors (7000-7999)
     PAYMENT_NOT_FOUND("7000", "Không tìm thấy thanh toán"),
@@ -100,6 +105,12 @@ public enum ErrorCode {
     CATEGORY_NOT_FOUND("12000", "Không tìm thấy danh mục"),
     CATEGORY_ENUM_CONVERT_ERROR("12001", "Lỗi convert enum"),
 
+    // Tool Errors (13000-13999)
+    TOOL_SESSION_QUOTA_EXCEEDED("13000", "Quá nhiều phiên công cụ đang chờ, vui lòng thử lại sau"),
+    TOOL_SESSION_STORE_FULL("13001", "Hệ thống đang bận, vui lòng thử lại sau"),
+    TOOL_PAYLOAD_TOO_LARGE("13002", "Dữ liệu gửi lên quá lớn"),
+    TOOL_UPLOAD_NOT_SHARED("13003", "Máy chủ chưa hỗ trợ tải file lên, vui lòng gửi dữ liệu trực tiếp"),
+
     // Security Errors (10100-10199)
     RATE_LIMIT_EXCEEDED("429", "Vượt quá giới hạn truy cập, vui lòng thử lại sau"),
     SUSPICIOUS_ACTIVITY("10101", "Phát hiện hoạt động đáng ngờ"),
@@ -1,8 +1,11 @@
 package com.mailshop_dragonvu.repository;
 
 import com.mailshop_dragonvu.entity.OrderItemEntity;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.util.List;
@@ -13,6 +16,26 @@ public interface OrderItemRepository extends JpaRepository<OrderItemEntity, Long
     @Query("SELECT oi FROM OrderItemEntity oi WHERE oi.order.id = :orderId")
     List<OrderItemEntity> findByOrderId(Long orderId);
 
+    /**
+     * Dữ liệu tài khoản của đơn hàng theo trang, theo thứ tự giao
+     */
+    @Query(value = "SELECT pi.accountData FROM OrderItemEntity oi JOIN oi.productItem pi WHERE oi.order.id = :orderId ORDER BY oi.id",
+            countQuery = "SELECT COUNT(oi) FROM OrderItemEntity oi WHERE oi.order.id = :orderId")
+    Page<String> findAccountDataByOrderId(@Param("orderId") Long orderId, Pageable pageable);
+
+    /**
+     * Dữ liệu tài khoản sau order item afterId (keyset), dùng để stream đơn lớn theo từng lô
+     */
+    @Query("SELECT oi.id AS id, pi.accountData AS accountData FROM OrderItemEntity oi JOIN oi.productItem pi " +
+            "WHERE oi.order.id = :orderId AND oi.id > :afterId ORDER BY oi.id")
+    List<AccountDataRow> findAccountDataAfter(@Param("orderId") Long orderId, @Param("afterId") Long afterId, Pageable pageable);
+
+    interface AccountDataRow {
+        Long getId();
+
+        String getAccountData();
+    }
+
 //    @Query("SELECT oi FROM OrderItemEntity oi WHERE oi.productId = :productId")
 //    List<OrderItemEntity> findByProductId(Long productId);
 
@@ -7,10 +7,15 @@ import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
+import org.springframework.data.jpa.repository.Lock;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import jakarta.persistence.LockModeType;
+import jakarta.persistence.QueryHint;
+
 import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Optional;
@@ -29,6 +34,30 @@ public interface OrderRepository extends JpaRepository<OrderEntity, Long>, JpaSp
      */
     List<OrderEntity> findByCreatedAtBefore(LocalDateTime cutoffDate);
 
+    /**
+     * Đơn mua bất đồng bộ vẫn đang xử lý nhưng không được cập nhật từ cutoffDate (node xử lý đã dừng)
+     */
+    @Query("SELECT o.id FROM OrderEntity o WHERE o.orderStatus = :status AND o.requestedQuantity IS NOT NULL AND o.updatedAt < :cutoffDate")
+    List<Long> findStaleAsyncOrderIds(@Param("status") OrderStatusEnum status, @Param("cutoffDate") LocalDateTime cutoffDate);
+
+    /**
+     * Đơn hàng dưới lock (SELECT ... FOR UPDATE): giao lô / kết thúc đơn bất đồng bộ không chạy chồng lên nhau
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT o FROM OrderEntity o WHERE o.id = :id")
+    Optional<OrderEntity> findByIdForUpdate(@Param("id") Long id);
+
+    /**
+     * Đơn bất đồng bộ còn treo, dưới lock, kiểm tra lại sau khi lock
+     * SKIP LOCKED (lock.timeout = -2): đơn đang có lô được giao (node khác giữ lock) bị bỏ qua, không chờ
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @QueryHints(@QueryHint(name = "jakarta.persistence.lock.timeout", value = "-2"))
+    @Query("SELECT o FROM OrderEntity o WHERE o.id = :id AND o.orderStatus = :status AND o.updatedAt < :cutoffDate")
+    Optional<OrderEntity> findStaleAsyncOrderForUpdate(@Param("id") Long id,
+                                                       @Param("status") OrderStatusEnum status,
+                                                       @Param("cutoffDate") LocalDateTime cutoffDate);
+
     // ==================== STATISTICS QUERIES ====================
 
     /**
@@ -54,6 +54,30 @@ public interface ProductItemRepository extends JpaRepository<ProductItemEntity,
             @Param("quantity") int quantity
     );
 
+    // ID items kho PHỤ còn bán được, MỚI NHẤT trước - nạp hàng đợi claim (không lock)
+    @Query(value = """
+        SELECT id FROM product_items
+        WHERE product_id = :productId AND sold = false AND expired = false AND warehouse_type = 'SECONDARY'
+          AND (expires_at IS NULL OR expires_at > NOW())
+        ORDER BY created_at DESC
+        LIMIT :limit
+    """, nativeQuery = true)
+    List<Long> findClaimableSecondaryItemIds(
+            @Param("productId") Long productId,
+            @Param("limit") int limit
+    );
+
+    // Lock các items đã claim theo khóa chính, bỏ qua items đã bán / đang bị người khác giữ
+    @Query(value = """
+        SELECT * FROM product_items
+        WHERE id IN (:ids) AND product_id = :productId AND sold = false AND expired = false AND warehouse_type = 'SECONDARY'
+        FOR UPDATE SKIP LOCKED
+    """, nativeQuery = true)
+    List<ProductItemEntity> lockClaimedItems(
+            @Param("productId") Long productId,
+            @Param("ids") java.util.Collection<Long> ids
+    );
+
     // Lấy items từ kho CHÍNH để chuyển sang kho PHỤ (chưa hết hạn)
     @Query(value = """
         SELECT * FROM product_items
@@ -105,6 +129,11 @@ public interface ProductItemRepository extends JpaRepository<ProductItemEntity,
     @Query("UPDATE ProductItemEntity pi SET pi.sold = true, pi.buyerId = :buyerId, pi.soldAt = CURRENT_TIMESTAMP WHERE pi.id = :id")
     void markAsSold(@Param("id") Long id, @Param("buyerId") Long buyerId);
 
+    // Đánh dấu đã bán cả đơn hàng bằng MỘT câu UPDATE (items đã được lock trong cùng transaction)
+    @Modifying
+    @Query("UPDATE ProductItemEntity pi SET pi.sold = true, pi.buyerId = :buyerId, pi.soldAt = CURRENT_TIMESTAMP, pi.updatedAt = CURRENT_TIMESTAMP WHERE pi.id IN :ids AND pi.sold = false")
+    int markAllAsSold(@Param("ids") java.util.Collection<Long> ids, @Param("buyerId") Long buyerId);
+
     // Batch update warehouse type (chuyển từ PRIMARY sang SECONDARY)
     @Modifying
     @Query("UPDATE ProductItemEntity pi SET pi.warehouseType = :warehouseType WHERE pi.id IN :ids")
@@ -0,0 +1,162 @@
+package com.mailshop_dragonvu.service;
+
+import com.mailshop_dragonvu.dto.orders.AsyncOrderResponseDTO;
+import com.mailshop_dragonvu.dto.orders.OrderCreateDTO;
+import com.mailshop_dragonvu.exception.BusinessException;
+import com.mailshop_dragonvu.exception.ErrorCode;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Giao đơn bất đồng bộ (số lượng lớn) chạy nền
+ *
+ * - submit(): tạo đơn PAID và trả về ngay, việc giao chạy trên pool worker có giới hạn
+ *   (hàng đợi đầy → đơn bị hủy, ASYNC_ORDER_QUEUE_FULL)
+ * - Mỗi lô (app.orders.async.chunk-size) là một transaction ngắn riêng: lock đơn, claim items, trừ tiền lô đó,
+ *   ghi order_items. Lock kho / ví chỉ giữ trong từng lô, không giữ cho cả đơn
+ * - Lô thiếu hàng được thử lại với nửa kích thước, để phần hàng còn lại vẫn được giao
+ * - Dừng giao ở lỗi khác đầu tiên (số dư, ví bị khóa, ...) hoặc khi không còn nổi một item:
+ *   đơn hoàn tất với phần đã giao và đã trừ tiền, hoặc bị hủy nếu chưa giao được gì
+ * - Tiến độ gửi tới /topic/order/{userId} sau mỗi lô và khi đơn kết thúc
+ * - Đơn còn PAID do node giao bị dừng được stale sweep kết thúc (các lô đã giao đã commit);
+ *   đơn đang có lô được giao (đang bị lock, ở node này hay node khác) không bị sweep đụng tới
+ */
+@Component
+@Slf4j
+public class AsyncOrderProcessor {
+
+    private static final String INTERRUPTED = "Giao hàng bị gián đoạn";
+
+    @Value("${app.orders.async.chunk-size:500}")
+    private int chunkSize;
+
+    @Value("${app.orders.async.stale-minutes:30}")
+    private long staleMinutes;
+
+    private final OrderService orderService;
+    private final OrderProgressNotifier orderProgressNotifier;
+    private final ThreadPoolExecutor executor;
+    private final Set<Long> running = ConcurrentHashMap.newKeySet();
+
+    public AsyncOrderProcessor(OrderService orderService,
+                               OrderProgressNotifier orderProgressNotifier,
+                               @Value("${app.orders.async.workers:4}") int workers,
+                               @Value("${app.orders.async.queue-capacity:1000}") int queueCapacity) {
+        this.orderService = orderService;
+        this.orderProgressNotifier = orderProgressNotifier;
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(queueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, "async-order-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Tạo đơn bất đồng bộ và đưa việc giao vào hàng đợi
+     */
+    public AsyncOrderResponseDTO submit(OrderCreateDTO request, Long userId) {
+        AsyncOrderResponseDTO order = orderService.createAsyncOrder(request, userId);
+        orderProgressNotifier.notifyProgress(userId, order);
+        running.add(order.getOrderId());
+        try {
+            executor.execute(() -> deliver(order, userId));
+        } catch (RejectedExecutionException e) {
+            running.remove(order.getOrderId());
+            orderService.finishAsyncOrder(order.getOrderId(), ErrorCode.ASYNC_ORDER_QUEUE_FULL.getMessage());
+            throw new BusinessException(ErrorCode.ASYNC_ORDER_QUEUE_FULL);
+        }
+
+        log.info("Async order {} queued: product {}, quantity {}", order.getOrderNumber(),
+                request.getProductId(), request.getQuantity());
+        return order;
+    }
+
+    /**
+     * Kết thúc các đơn còn PAID mà node giao đã dừng (không có lô nào trong stale-minutes)
+     * Đơn đang giao ở node này bỏ qua qua running; ở node khác bỏ qua nhờ lock đơn (SKIP LOCKED) + kiểm tra lại
+     */
+    @Scheduled(fixedRateString = "${app.orders.async.sweep-interval:300000}")
+    public void finishStaleOrders() {
+        LocalDateTime cutoff = LocalDateTime.now().minusMinutes(staleMinutes);
+        for (Long orderId : orderService.findStaleAsyncOrderIds(cutoff)) {
+            if (running.contains(orderId)) {
+                continue;
+            }
+            try {
+                AsyncOrderResponseDTO order = orderService.finishStaleAsyncOrder(orderId, cutoff, INTERRUPTED);
+                if (order == null) {
+                    // Đang có lô được giao hoặc vừa được cập nhật
+                    continue;
+                }
+                log.warn("Async order {} finished by the stale sweep: {}/{} delivered",
+                        order.getOrderNumber(), order.getDeliveredQuantity(), order.getRequestedQuantity());
+            } catch (Exception e) {
+                log.error("Cannot finish stale async order {}: {}", orderId, e.getMessage());
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void deliver(AsyncOrderResponseDTO order, Long userId) {
+        Long orderId = order.getOrderId();
+        long startedAt = System.currentTimeMillis();
+        int delivered = 0;
+        int maxChunk = chunkSize;
+        String error = null;
+
+        try {
+            while (delivered < order.getRequestedQuantity() && !Thread.currentThread().isInterrupted()) {
+                int quantity = Math.min(maxChunk, order.getRequestedQuantity() - delivered);
+                try {
+                    AsyncOrderResponseDTO progress = orderService.fulfilAsyncOrderChunk(orderId, quantity);
+                    delivered = progress.getDeliveredQuantity();
+                    orderProgressNotifier.notifyProgress(userId, progress);
+                } catch (BusinessException e) {
+                    if (e.getErrorCode() == ErrorCode.NOT_ENOUGH_STOCK && quantity > 1) {
+                        maxChunk = quantity / 2;
+                        continue;
+                    }
+                    error = e.getCustomMessage() != null ? e.getCustomMessage() : e.getErrorCode().getMessage();
+                    break;
+                } catch (Exception e) {
+                    log.error("Async order {} chunk failed: {}", order.getOrderNumber(), e.getMessage(), e);
+                    error = ErrorCode.INTERNAL_SERVER_ERROR.getMessage();
+                    break;
+                }
+            }
+            if (error == null && delivered < order.getRequestedQuantity()) {
+                error = INTERRUPTED;
+            }
+
+            AsyncOrderResponseDTO result = orderService.finishAsyncOrder(orderId, error);
+            log.info("Async order {} finished: {}/{} delivered in {} ms{}", result.getOrderNumber(),
+                    result.getDeliveredQuantity(), result.getRequestedQuantity(),
+                    System.currentTimeMillis() - startedAt, error != null ? " (" + error + ")" : "");
+            orderProgressNotifier.notifyProgress(userId, result);
+        } catch (Exception e) {
+            // Còn PAID: stale sweep sẽ kết thúc đơn
+            log.error("Cannot finish async order {}: {}", order.getOrderNumber(), e.getMessage(), e);
+        } finally {
+            running.remove(orderId);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.mailshop_dragonvu.service;
 
-import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import com.mailshop_dragonvu.dto.facebook.FacebookCheckLiveResponseDTO;
+import reactor.core.publisher.Flux;
 
 /**
  * Service for Facebook operations
@@ -8,9 +9,15 @@ import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 public interface FacebookService {
     
     /**
-     * Check if Facebook UIDs are live with SSE streaming
+     * Check if Facebook UIDs are live, recent results are answered from the liveness cache
      * @param uidData - UIDs separated by newlines
-     * @param emitter - SSE emitter for streaming results
+     * @param forceRecheck - ignore cached results
+     * @return one result per UID, in input order
      */
-    void checkLiveStream(String uidData, SseEmitter emitter);
+    Flux<FacebookCheckLiveResponseDTO> checkLiveStream(String uidData, boolean forceRecheck);
+
+    /**
+     * Check UIDs read lazily (uploaded input)
+     */
+    Flux<FacebookCheckLiveResponseDTO> checkLiveStream(Flux<String> uids, boolean forceRecheck);
 }
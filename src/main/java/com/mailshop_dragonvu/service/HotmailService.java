@@ -1,44 +1,68 @@
 package com.mailshop_dragonvu.service;
 
 import com.mailshop_dragonvu.dto.hotmail.*;
-import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
-
-import java.util.List;
+import reactor.core.publisher.Flux;
 
 /**
  * Service interface for Hotmail operations
+ * Each method returns one result per input line; the caller (job engine) subscribes and streams them
  */
 public interface HotmailService {
     /**
-     * Get verification code with SSE streaming (real-time)
+     * Get verification code (real-time)
      * 
      * @param request contains email credentials and filter options
-     * @param emitter SSE emitter for streaming results
+     * @return one result per email line, in input order
+     */
+    Flux<HotmailGetCodeResponseDTO> getCodeStream(HotmailGetCodeRequestDTO request);
+
+    /**
+     * Get verification code for lines read lazily (uploaded input), request.emailData is ignored
      */
-    void getCodeStream(HotmailGetCodeRequestDTO request, SseEmitter emitter);
+    Flux<HotmailGetCodeResponseDTO> getCodeStream(HotmailGetCodeRequestDTO request, Flux<String> emailLines);
 
 
     /**
-     * Check live mail with SSE streaming (real-time)
+     * Check live mail (real-time), recent results are answered from the liveness cache
      * 
      * @param emailData email data string
-     * @param emitter SSE emitter for streaming results
+     * @param forceRecheck ignore cached results
+     * @return one result per email line, in input order
+     */
+    Flux<CheckLiveMailResponseDTO> checkLiveMailStream(String emailData, boolean forceRecheck);
+
+    /**
+     * Check live mail for lines read lazily (uploaded input)
      */
-    void checkLiveMailStream(String emailData, SseEmitter emitter);
+    Flux<CheckLiveMailResponseDTO> checkLiveMailStream(Flux<String> emailLines, boolean forceRecheck);
 
     /**
-     * Get OAuth2 token with SSE streaming (real-time)
+     * Get OAuth2 token (real-time)
      * 
      * @param emailData email data string
-     * @param emitter SSE emitter for streaming results
+     * @return one result per email line, in input order
      */
-    void getOAuth2Stream(String emailData, SseEmitter emitter);
+    Flux<GetOAuth2ResponseDTO> getOAuth2Stream(String emailData);
 
     /**
-     * Read mailbox with SSE streaming (real-time)
+     * Read mailbox (real-time)
      * 
      * @param request contains email credentials and options
-     * @param emitter SSE emitter for streaming results
+     * @return one result per email line, in input order
+     */
+    Flux<ReadMailResponseDTO> readMailStream(ReadMailRequestDTO request);
+
+    /**
+     * Read mailbox for lines read lazily (uploaded input), request.emailData is ignored
+     */
+    Flux<ReadMailResponseDTO> readMailStream(ReadMailRequestDTO request, Flux<String> emailLines);
+
+    /**
+     * Wait for verification codes (push mode)
+     * Holds one IMAP IDLE / Graph delta subscription per mailbox until a code arrives or the deadline passes
+     *
+     * @param request contains email credentials, filter options and timeout
+     * @return one result per mailbox, in arrival order
      */
-    void readMailStream(ReadMailRequestDTO request, SseEmitter emitter);
+    Flux<HotmailGetCodeResponseDTO> waitForCodeStream(HotmailWaitCodeRequestDTO request);
 }
@@ -0,0 +1,204 @@
+package com.mailshop_dragonvu.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mailshop_dragonvu.dto.hotmail.CheckStatus;
+import com.mailshop_dragonvu.dto.tools.LivenessResult;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Short-TTL cache of check-live results (Hotmail mailboxes, Facebook UIDs)
+ *
+ * - Key = namespace + SHA-256 of the checked identity, the identity itself is never stored as key
+ * - SUCCESS is kept for ttl-seconds, FAILED for the shorter negative-ttl-seconds
+ *   (a failed check may be a transient upstream error), UNKNOWN is never cached
+ * - store=memory (default, per node) or store=redis (shared by every instance)
+ */
+@Component
+@Slf4j
+public class LivenessCache {
+
+    private static final String REDIS_KEY_PREFIX = "tools:liveness:";
+
+    @Value("${app.tools.liveness-cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${app.tools.liveness-cache.store:memory}")
+    private String store;
+
+    @Value("${app.tools.liveness-cache.ttl-seconds:900}")
+    private long ttlSeconds;
+
+    @Value("${app.tools.liveness-cache.negative-ttl-seconds:300}")
+    private long negativeTtlSeconds;
+
+    @Value("${app.tools.liveness-cache.max-entries:200000}")
+    private int maxEntries;
+
+    private final ObjectMapper objectMapper;
+    private final ObjectProvider<ReactiveStringRedisTemplate> redisTemplateProvider;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public LivenessCache(ObjectMapper objectMapper, ObjectProvider<ReactiveStringRedisTemplate> redisTemplateProvider) {
+        this.objectMapper = objectMapper;
+        this.redisTemplateProvider = redisTemplateProvider;
+    }
+
+    /**
+     * Answer from the cache, or run the check and cache its result
+     *
+     * @param namespace    e.g. "hotmail", "facebook"
+     * @param identity     what was checked (mailbox credentials, UID)
+     * @param forceRecheck skip the lookup, still refresh the cached value
+     */
+    public <T extends LivenessResult> Mono<T> getOrCheck(String namespace, String identity, Class<T> type,
+                                                         boolean forceRecheck, Supplier<Mono<T>> check) {
+        if (!enabled) {
+            return check.get();
+        }
+
+        Mono<T> fresh = Mono.defer(check).flatMap(result -> put(namespace, identity, result).thenReturn(result));
+        if (forceRecheck) {
+            return fresh;
+        }
+        return find(namespace, identity, type).switchIfEmpty(fresh);
+    }
+
+    /**
+     * Cached result (marked cached) or empty, for callers that check misses in bulk
+     */
+    public <T extends LivenessResult> Mono<T> find(String namespace, String identity, Class<T> type) {
+        if (!enabled) {
+            return Mono.empty();
+        }
+        return lookup(key(namespace, identity), type).doOnNext(hit -> hit.setCached(true));
+    }
+
+    /**
+     * Cache a fresh result (no-op for UNKNOWN or when disabled)
+     */
+    public Mono<Void> put(String namespace, String identity, LivenessResult result) {
+        if (!enabled) {
+            return Mono.empty();
+        }
+        return save(key(namespace, identity), result);
+    }
+
+    /**
+     * Drop expired in-memory entries
+     */
+    @Scheduled(fixedRateString = "${app.tools.liveness-cache.sweep-interval:60000}")
+    public void evictExpired() {
+        long now = System.currentTimeMillis();
+        entries.entrySet().removeIf(e -> e.getValue().expiresAt() <= now);
+    }
+
+    private <T> Mono<T> lookup(String key, Class<T> type) {
+        if (useRedis()) {
+            return redisTemplateProvider.getObject().opsForValue()
+                    .get(REDIS_KEY_PREFIX + key)
+                    .flatMap(json -> Mono.justOrEmpty(parse(json, type)))
+                    .onErrorResume(e -> {
+                        log.debug("Liveness cache lookup failed: {}", e.getMessage());
+                        return Mono.empty();
+                    });
+        }
+
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return Mono.empty();
+        }
+        if (entry.expiresAt() <= System.currentTimeMillis()) {
+            entries.remove(key, entry);
+            return Mono.empty();
+        }
+        return Mono.justOrEmpty(parse(entry.json(), type));
+    }
+
+    private Mono<Void> save(String key, LivenessResult result) {
+        long ttl = ttlFor(result.getStatus());
+        if (ttl <= 0) {
+            return Mono.empty();
+        }
+
+        String json;
+        try {
+            json = objectMapper.writeValueAsString(result);
+        } catch (Exception e) {
+            log.debug("Cannot serialize liveness result: {}", e.getMessage());
+            return Mono.empty();
+        }
+
+        if (useRedis()) {
+            return redisTemplateProvider.getObject().opsForValue()
+                    .set(REDIS_KEY_PREFIX + key, json, Duration.ofSeconds(ttl))
+                    .onErrorResume(e -> {
+                        log.debug("Liveness cache write failed: {}", e.getMessage());
+                        return Mono.empty();
+                    })
+                    .then();
+        }
+
+        if (entries.size() >= maxEntries) {
+            evictExpired();
+            if (entries.size() >= maxEntries) {
+                return Mono.empty();
+            }
+        }
+        entries.put(key, new Entry(json, System.currentTimeMillis() + ttl * 1000));
+        return Mono.empty();
+    }
+
+    private long ttlFor(CheckStatus status) {
+        if (status == CheckStatus.SUCCESS) {
+            return ttlSeconds;
+        }
+        if (status == CheckStatus.FAILED) {
+            return negativeTtlSeconds;
+        }
+        return 0;
+    }
+
+    private <T> T parse(String json, Class<T> type) {
+        try {
+            return objectMapper.readValue(json, type);
+        } catch (Exception e) {
+            log.debug("Corrupt liveness cache entry: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private boolean useRedis() {
+        return "redis".equalsIgnoreCase(store) && redisTemplateProvider.getIfAvailable() != null;
+    }
+
+    private static String key(String namespace, String identity) {
+        return namespace + ":" + sha256(identity);
+    }
+
+    private static String sha256(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private record Entry(String json, long expiresAt) {
+    }
+}
@@ -0,0 +1,390 @@
+package com.mailshop_dragonvu.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mailshop_dragonvu.dto.orders.ClientOrderCreateResponseDTO;
+import com.mailshop_dragonvu.exception.BusinessException;
+import com.mailshop_dragonvu.exception.ErrorCode;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Idempotency-Key cho lệnh mua: gọi lại cùng key trả lại kết quả lần đầu thay vì mua thêm lần nữa
+ *
+ * - Key = người gọi (user) + Idempotency-Key, gắn với tham số yêu cầu (cùng key, khác tham số = từ chối).
+ *   Theo user chứ không theo API key: lệnh mua trừ số dư của user, /orders/buy nhận cả JWT (không có API key),
+ *   và một lần thử lại qua API key khác của cùng user vẫn không được mua lần hai
+ * - Lần gọi đầu chạy lệnh mua, các lần gọi trùng đồng thời chờ kết quả của nó
+ * - Kết quả thành công được giữ retention-minutes; lần mua lỗi không được giữ nên có thể thử lại
+ * - store=memory (mặc định, theo từng node, tối đa max-entries key và max-bytes ước lượng cho dữ liệu tài khoản)
+ *   hoặc store=redis (dùng chung mọi instance)
+ * - Kết quả lớn hơn max-result-bytes không được giữ: lần gọi trùng nhận lỗi 5009 (đơn đã tạo, xem lịch sử đơn)
+ *   thay vì mua lại
+ * - Redis: marker PENDING sống pending-ttl-seconds và được gia hạn suốt thời gian lệnh mua chạy,
+ *   nên lệnh mua chậm không mất marker; chỉ node chết mới để marker hết hạn
+ */
+@Component
+@Slf4j
+public class OrderIdempotencyCache {
+
+    private static final String REDIS_KEY_PREFIX = "orders:idempotency:";
+    private static final String PENDING = "PENDING";
+    private static final long REDIS_POLL_INTERVAL_MS = 100;
+
+    // Gia hạn / xóa marker chỉ khi nó vẫn là của lần gọi này (node khác có thể đã tiếp quản)
+    private static final RedisScript<Long> EXTEND_IF_OWNER = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('pexpire', KEYS[1], ARGV[2]) else return 0 end",
+            Long.class);
+    private static final RedisScript<Long> DELETE_IF_OWNER = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) else return 0 end",
+            Long.class);
+
+    @Value("${app.orders.idempotency.store:memory}")
+    private String store;
+
+    @Value("${app.orders.idempotency.retention-minutes:1440}")
+    private long retentionMinutes;
+
+    /**
+     * Thời gian một lần gọi trùng chờ lần gọi đầu
+     */
+    @Value("${app.orders.idempotency.wait-seconds:120}")
+    private long waitSeconds;
+
+    /**
+     * TTL của marker PENDING trên redis: gia hạn mỗi pending-ttl/3 khi lệnh mua còn chạy,
+     * nên chỉ hết hạn khi node đang mua bị dừng
+     */
+    @Value("${app.orders.idempotency.pending-ttl-seconds:60}")
+    private long pendingTtlSeconds;
+
+    @Value("${app.orders.idempotency.max-entries:100000}")
+    private int maxEntries;
+
+    /**
+     * Tổng dung lượng ước lượng của kết quả giữ trong bộ nhớ (mặc định 256 MB)
+     */
+    @Value("${app.orders.idempotency.max-bytes:268435456}")
+    private long maxBytes;
+
+    /**
+     * Kết quả lớn hơn mức này (mặc định 8 MB) chỉ giữ fingerprint, không giữ danh sách tài khoản
+     */
+    @Value("${app.orders.idempotency.max-result-bytes:8388608}")
+    private long maxResultBytes;
+
+    private final ObjectMapper objectMapper;
+    private final ObjectProvider<StringRedisTemplate> redisTemplateProvider;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final ScheduledExecutorService markerRefresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "idempotency-marker-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public OrderIdempotencyCache(ObjectMapper objectMapper, ObjectProvider<StringRedisTemplate> redisTemplateProvider) {
+        this.objectMapper = objectMapper;
+        this.redisTemplateProvider = redisTemplateProvider;
+    }
+
+    /**
+     * Chạy lệnh mua một lần cho mỗi (userId, idempotencyKey), các lần gọi sau nhận lại kết quả đó
+     *
+     * @param fingerprint tham số yêu cầu mà key được gắn vào
+     */
+    public ClientOrderCreateResponseDTO execute(Long userId, String idempotencyKey, String fingerprint,
+                                                Supplier<ClientOrderCreateResponseDTO> purchase) {
+        String key = userId + ":" + idempotencyKey;
+        if (useRedis()) {
+            return executeWithRedis(key, fingerprint, purchase);
+        }
+
+        Entry entry = new Entry(fingerprint, new CompletableFuture<>());
+        Entry existing = entries.get(key);
+        if (existing == null) {
+            ensureCapacity();
+            existing = entries.putIfAbsent(key, entry);
+        }
+        if (existing != null) {
+            if (!existing.fingerprint().equals(fingerprint)) {
+                throw new BusinessException(ErrorCode.IDEMPOTENCY_KEY_MISMATCH);
+            }
+            log.info("Replaying purchase for idempotency key {} of user {}", idempotencyKey, userId);
+            return await(existing.result());
+        }
+
+        try {
+            ClientOrderCreateResponseDTO result = purchase.get();
+            entry.result().complete(result);
+            retain(key, entry, result);
+            return result;
+        } catch (RuntimeException e) {
+            // Không giữ lại: các lần gọi trùng đang chờ nhận cùng lỗi, lần thử lại sau sẽ mua lại
+            remove(key, entry);
+            entry.result().completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Xóa kết quả quá thời gian lưu
+     */
+    @Scheduled(fixedRateString = "${app.orders.idempotency.sweep-interval:300000}")
+    public void evictExpired() {
+        long cutoff = System.currentTimeMillis() - retentionMinutes * 60_000;
+        entries.forEach((key, entry) -> {
+            if (entry.result().isDone() && entry.createdAt() < cutoff) {
+                remove(key, entry);
+            }
+        });
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long storedBytes() {
+        return storedBytes.get();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        markerRefresher.shutdownNow();
+    }
+
+    /**
+     * Đủ chỗ cho một key mới: xóa kết quả hết hạn, rồi 10% kết quả cũ nhất
+     * Key của lệnh mua đang chạy không bao giờ bị xóa; đầy toàn key đang chạy = từ chối
+     */
+    private void ensureCapacity() {
+        if (entries.size() < maxEntries) {
+            return;
+        }
+        evictExpired();
+        if (entries.size() < maxEntries) {
+            return;
+        }
+
+        List<Map.Entry<String, Entry>> oldest = entries.entrySet().stream()
+                .filter(e -> e.getValue().result().isDone())
+                .sorted(Comparator.comparingLong(e -> e.getValue().createdAt()))
+                .limit(Math.max(1, maxEntries / 10))
+                .toList();
+        oldest.forEach(e -> remove(e.getKey(), e.getValue()));
+        if (!oldest.isEmpty()) {
+            log.warn("Idempotency store full ({} keys), dropped {} oldest results", maxEntries, oldest.size());
+        }
+        if (entries.size() >= maxEntries) {
+            throw new BusinessException(ErrorCode.IDEMPOTENCY_STORE_FULL);
+        }
+    }
+
+    /**
+     * Tính dung lượng của kết quả vừa xong vào tổng; kết quả quá lớn được thay bằng entry chỉ còn fingerprint,
+     * rồi xóa kết quả cũ nhất cho đến khi tổng về dưới max-bytes
+     * (các lần gọi trùng đang chờ giữ future cũ nên vẫn nhận đủ kết quả)
+     */
+    private void retain(String key, Entry entry, ClientOrderCreateResponseDTO result) {
+        long bytes = estimateBytes(result);
+        if (bytes > maxResultBytes) {
+            CompletableFuture<ClientOrderCreateResponseDTO> notReplayable = new CompletableFuture<>();
+            notReplayable.completeExceptionally(new BusinessException(ErrorCode.IDEMPOTENCY_RESULT_NOT_RETAINED));
+            entries.replace(key, entry, new Entry(entry.fingerprint(), notReplayable, entry.createdAt(), 0));
+            log.info("Idempotency result for {} is ~{} bytes, keeping only its fingerprint", key, bytes);
+            return;
+        }
+        if (entries.replace(key, entry, new Entry(entry.fingerprint(), entry.result(), entry.createdAt(), bytes))) {
+            storedBytes.addAndGet(bytes);
+        }
+        if (storedBytes.get() <= maxBytes) {
+            return;
+        }
+
+        evictExpired();
+        List<Map.Entry<String, Entry>> oldest = entries.entrySet().stream()
+                .filter(e -> e.getValue().result().isDone() && e.getValue().bytes() > 0)
+                .sorted(Comparator.comparingLong(e -> e.getValue().createdAt()))
+                .toList();
+        int dropped = 0;
+        for (Map.Entry<String, Entry> e : oldest) {
+            if (storedBytes.get() <= maxBytes) {
+                break;
+            }
+            if (remove(e.getKey(), e.getValue())) {
+                dropped++;
+            }
+        }
+        if (dropped > 0) {
+            log.warn("Idempotency store over {} bytes, dropped {} oldest results", maxBytes, dropped);
+        }
+    }
+
+    private boolean remove(String key, Entry entry) {
+        if (!entries.remove(key, entry)) {
+            return false;
+        }
+        storedBytes.addAndGet(-entry.bytes());
+        return true;
+    }
+
+    /**
+     * Ước lượng heap của kết quả: mỗi tài khoản là một String (header + mảng ký tự) và một ô trong danh sách
+     */
+    private static long estimateBytes(ClientOrderCreateResponseDTO result) {
+        long bytes = 64;
+        if (result != null && result.getAccountData() != null) {
+            for (String account : result.getAccountData()) {
+                bytes += 56 + (account == null ? 0 : account.length());
+            }
+        }
+        return bytes;
+    }
+
+    private ClientOrderCreateResponseDTO await(CompletableFuture<ClientOrderCreateResponseDTO> result) {
+        try {
+            return result.get(waitSeconds, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new BusinessException(ErrorCode.INTERNAL_SERVER_ERROR, e.getCause().getMessage(), e.getCause());
+        } catch (TimeoutException e) {
+            throw new BusinessException(ErrorCode.IDEMPOTENCY_KEY_IN_PROGRESS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BusinessException(ErrorCode.IDEMPOTENCY_KEY_IN_PROGRESS);
+        }
+    }
+
+    /**
+     * Giá trị redis: "PENDING|fingerprint|owner" khi lệnh mua đang chạy, "fingerprint|json" khi đã thành công
+     */
+    private ClientOrderCreateResponseDTO executeWithRedis(String key, String fingerprint,
+                                                          Supplier<ClientOrderCreateResponseDTO> purchase) {
+        StringRedisTemplate redis = redisTemplateProvider.getObject();
+        String redisKey = REDIS_KEY_PREFIX + key;
+        String marker = PENDING + "|" + fingerprint + "|" + UUID.randomUUID();
+        long deadline = System.currentTimeMillis() + waitSeconds * 1000;
+
+        while (true) {
+            Boolean acquired = redis.opsForValue()
+                    .setIfAbsent(redisKey, marker, Duration.ofSeconds(pendingTtlSeconds));
+            if (Boolean.TRUE.equals(acquired)) {
+                return runAndStore(redis, redisKey, marker, fingerprint, purchase);
+            }
+
+            String value = redis.opsForValue().get(redisKey);
+            if (value != null) {
+                String[] parts = value.split("\\|", 3);
+                boolean pending = PENDING.equals(parts[0]);
+                String storedFingerprint = pending ? parts[1] : parts[0];
+                if (!storedFingerprint.equals(fingerprint)) {
+                    throw new BusinessException(ErrorCode.IDEMPOTENCY_KEY_MISMATCH);
+                }
+                if (!pending) {
+                    return parse(value.substring(value.indexOf('|') + 1));
+                }
+            }
+            // value == null: lần gọi đầu lỗi (hoặc node của nó đã dừng), lặp lại để tiếp quản
+
+            if (System.currentTimeMillis() > deadline) {
+                throw new BusinessException(ErrorCode.IDEMPOTENCY_KEY_IN_PROGRESS);
+            }
+            try {
+                Thread.sleep(REDIS_POLL_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BusinessException(ErrorCode.IDEMPOTENCY_KEY_IN_PROGRESS);
+            }
+        }
+    }
+
+    private ClientOrderCreateResponseDTO runAndStore(StringRedisTemplate redis, String redisKey, String marker,
+                                                     String fingerprint,
+                                                     Supplier<ClientOrderCreateResponseDTO> purchase) {
+        long refreshMillis = Math.max(100, pendingTtlSeconds * 1000 / 3);
+        ScheduledFuture<?> refresh = markerRefresher.scheduleAtFixedRate(
+                () -> extendMarker(redis, redisKey, marker), refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+
+        ClientOrderCreateResponseDTO result;
+        try {
+            result = purchase.get();
+        } catch (RuntimeException e) {
+            refresh.cancel(false);
+            redis.execute(DELETE_IF_OWNER, List.of(redisKey), marker);
+            throw e;
+        }
+        refresh.cancel(false);
+
+        try {
+            redis.opsForValue().set(redisKey, fingerprint + "|" + objectMapper.writeValueAsString(result),
+                    Duration.ofMinutes(retentionMinutes));
+        } catch (Exception e) {
+            // Lệnh mua đã commit: giữ marker PENDING suốt thời gian lưu để lần gọi trùng chờ rồi lỗi thay vì mua lại.
+            // Nếu chính redis không truy cập được thì marker hết hạn sau pending-ttl và lần thử lại sẽ mua lại.
+            log.error("Cannot store result for idempotency key {}: {}", redisKey, e.getMessage());
+            try {
+                redis.execute(EXTEND_IF_OWNER, List.of(redisKey), marker,
+                        String.valueOf(Duration.ofMinutes(retentionMinutes).toMillis()));
+            } catch (Exception ignored) {}
+        }
+        return result;
+    }
+
+    private void extendMarker(StringRedisTemplate redis, String redisKey, String marker) {
+        try {
+            Long extended = redis.execute(EXTEND_IF_OWNER, List.of(redisKey), marker,
+                    String.valueOf(pendingTtlSeconds * 1000));
+            if (extended == null || extended == 0) {
+                log.warn("Idempotency marker {} lost while the purchase is running", redisKey);
+            }
+        } catch (Exception e) {
+            log.warn("Cannot extend idempotency marker {}: {}", redisKey, e.getMessage());
+        }
+    }
+
+    private ClientOrderCreateResponseDTO parse(String json) {
+        try {
+            return objectMapper.readValue(json, ClientOrderCreateResponseDTO.class);
+        } catch (Exception e) {
+            throw new BusinessException(ErrorCode.INTERNAL_SERVER_ERROR, "Corrupt idempotency record", e);
+        }
+    }
+
+    private boolean useRedis() {
+        return "redis".equalsIgnoreCase(store) && redisTemplateProvider.getIfAvailable() != null;
+    }
+
+    /**
+     * bytes = dung lượng ước lượng đã tính vào storedBytes (0 khi lệnh mua còn chạy hoặc kết quả không được giữ)
+     */
+    private record Entry(String fingerprint, CompletableFuture<ClientOrderCreateResponseDTO> result, long createdAt,
+                         long bytes) {
+        Entry(String fingerprint, CompletableFuture<ClientOrderCreateResponseDTO> result) {
+            this(fingerprint, result, System.currentTimeMillis(), 0);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.mailshop_dragonvu.service;
+
+import com.mailshop_dragonvu.dto.orders.AsyncOrderResponseDTO;
+import com.mailshop_dragonvu.dto.websocket.OrderProgressMessage;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.stereotype.Service;
+
+/**
+ * Service to notify frontend about async order progress via WebSocket
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class OrderProgressNotifier {
+
+    private static final String DESTINATION_TEMPLATE = "/topic/order/%d";
+
+    private final SimpMessagingTemplate messagingTemplate;
+
+    /**
+     * Send the current state of an async order
+     * Uses user-specific topic so only the buyer receives the message
+     */
+    public void notifyProgress(Long userId, AsyncOrderResponseDTO order) {
+        if (userId == null || order == null) {
+            return;
+        }
+
+        OrderProgressMessage message = OrderProgressMessage.builder()
+                .orderId(order.getOrderId())
+                .orderNumber(order.getOrderNumber())
+                .status(order.getStatus())
+                .requestedQuantity(order.getRequestedQuantity())
+                .deliveredQuantity(order.getDeliveredQuantity())
+                .totalAmount(order.getTotalAmount())
+                .message(order.getNotes())
+                .build();
+
+        try {
+            messagingTemplate.convertAndSend(String.format(DESTINATION_TEMPLATE, userId), message);
+        } catch (Exception ex) {
+            log.error("Failed to send progress of order {} to user {}: {}", order.getOrderId(), userId, ex.getMessage(), ex);
+        }
+    }
+}
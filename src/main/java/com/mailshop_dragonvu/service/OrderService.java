@@ -4,10 +4,57 @@ import com.mailshop_dragonvu.dto.orders.*;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.function.Consumer;
+
 public interface OrderService {
 
     ClientOrderCreateResponseDTO createOrder(OrderCreateDTO request, Long userId);
 
+    /**
+     * Tạo đơn mua bất đồng bộ (PAID, chưa giao, chưa trừ tiền); việc giao do AsyncOrderProcessor thực hiện
+     */
+    AsyncOrderResponseDTO createAsyncOrder(OrderCreateDTO request, Long userId);
+
+    /**
+     * Giao một lô của đơn bất đồng bộ trong transaction riêng: lấy items, trừ tiền, ghi order_items
+     */
+    AsyncOrderResponseDTO fulfilAsyncOrderChunk(Long orderId, int quantity);
+
+    /**
+     * Kết thúc đơn bất đồng bộ (COMPLETED nếu đã giao được, CANCELLED nếu không); bỏ qua nếu đã kết thúc
+     *
+     * @param error lý do dừng sớm, null nếu giao đủ
+     */
+    AsyncOrderResponseDTO finishAsyncOrder(Long orderId, String error);
+
+    /**
+     * ID các đơn bất đồng bộ còn PAID nhưng không được cập nhật từ cutoff
+     */
+    List<Long> findStaleAsyncOrderIds(LocalDateTime cutoff);
+
+    /**
+     * Kết thúc đơn bất đồng bộ bị treo như finishAsyncOrder, chỉ khi đơn vẫn PAID, không cập nhật từ cutoff
+     * và không có lô nào đang giao (đơn đang bị lock thì bỏ qua)
+     *
+     * @return null nếu đã bỏ qua
+     */
+    AsyncOrderResponseDTO finishStaleAsyncOrder(Long orderId, LocalDateTime cutoff, String error);
+
+    AsyncOrderResponseDTO getAsyncOrder(Long orderId, Long userId);
+
+    /**
+     * Dữ liệu tài khoản đã giao theo trang (kiểm tra quyền xem đơn)
+     */
+    Page<String> getOrderAccounts(Long orderId, Long userId, Pageable pageable);
+
+    /**
+     * Đọc toàn bộ dữ liệu tài khoản đã giao theo từng lô (keyset), không giữ cả đơn trong bộ nhớ
+     * Không kiểm tra quyền: gọi getAsyncOrder trước
+     */
+    void forEachOrderAccountChunk(Long orderId, Consumer<List<String>> consumer);
+
     OrderResponseDTO getOrderById(Long id, Long userId);
 
     Page<OrderResponseDTO> search(OrderFilterDTO orderFilterDTO);
@@ -16,6 +16,11 @@ public interface ProductService {
 
     ProductResponseDTO getProductById(Long id);
 
+    /**
+     * Tên / giá / trạng thái sản phẩm cho luồng mua, có cache (không đếm tồn kho)
+     */
+    ProductSnapshotDTO getProductSnapshot(Long id);
+
     void deleteProduct(Long id);
 
     void activateProduct(Long id);
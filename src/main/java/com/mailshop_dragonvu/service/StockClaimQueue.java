@@ -0,0 +1,272 @@
+package com.mailshop_dragonvu.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+
+/**
+ * Hàng đợi ID items kho PHỤ (SECONDARY) còn bán được theo từng sản phẩm,
+ * để luồng mua không phải quét + lock các dòng của sản phẩm mỗi lần tìm hàng
+ *
+ * - claim(): pop ID nguyên tử; hàng đợi rỗng (hoặc quá cũ) được nạp lại từ database, MỚI NHẤT trước
+ * - Việc nạp (đánh dấu expired + truy vấn ID) chạy NGOÀI monitor của hàng đợi: người mua khác vẫn pop được
+ * - ID đã claim nhưng transaction chưa kết thúc được giữ trong in-flight: lần nạp lại không đưa chúng
+ *   vào hàng đợi (database vẫn thấy chúng chưa bán cho tới khi commit)
+ * - ID chỉ là gợi ý: người mua vẫn lock theo khóa chính và bỏ qua items đã bán / hết hạn trong lúc đó
+ * - Transaction rollback → ID được trả lại đầu hàng đợi; ID mất do crash quay lại ở lần nạp sau
+ *   (hàng đợi được dựng lại từ database chậm nhất sau max-age-seconds)
+ * - Kho thay đổi ngoài luồng mua (import, chuyển kho, xóa) → invalidateAfterCommit()
+ * - store=memory (mặc định, theo từng node) hoặc store=redis (dùng chung mọi instance, LPOP có count);
+ *   in-flight luôn là của node hiện tại
+ */
+@Component
+@Slf4j
+public class StockClaimQueue {
+
+    private static final String REDIS_KEY_PREFIX = "stock:claim-queue:";
+
+    @Value("${app.stock.claim-queue.enabled:true}")
+    private boolean enabled;
+
+    @Value("${app.stock.claim-queue.store:memory}")
+    private String store;
+
+    @Value("${app.stock.claim-queue.refill-size:500}")
+    private int refillSize;
+
+    @Value("${app.stock.claim-queue.max-age-seconds:300}")
+    private long maxAgeSeconds;
+
+    private final ObjectProvider<StringRedisTemplate> redisTemplateProvider;
+    private final Map<Long, ProductQueue> queues = new ConcurrentHashMap<>();
+
+    public StockClaimQueue(ObjectProvider<StringRedisTemplate> redisTemplateProvider) {
+        this.redisTemplateProvider = redisTemplateProvider;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Claim tối đa quantity ID item của sản phẩm
+     * Chỉ trả về ít hơn khi database cũng không còn hàng
+     * Trong transaction: các ID trả về là in-flight cho tới khi transaction kết thúc
+     *
+     * @param loader ID items SECONDARY chưa bán, MỚI NHẤT trước, tối đa count (gọi ngoài mọi lock của hàng đợi)
+     */
+    public List<Long> claim(Long productId, int quantity, IntFunction<List<Long>> loader) {
+        ProductQueue queue = queues.computeIfAbsent(productId, id -> new ProductQueue());
+        boolean track = TransactionSynchronizationManager.isSynchronizationActive();
+
+        List<Long> claimed;
+        if (useRedis()) {
+            try {
+                claimed = claimFromRedis(productId, queue, quantity, loader);
+            } catch (Exception e) {
+                log.warn("Stock claim queue unavailable for product {}, reading the database: {}", productId, e.getMessage());
+                return loader.apply(quantity);
+            }
+            if (track) {
+                synchronized (queue) {
+                    queue.inFlight.addAll(claimed);
+                }
+            }
+        } else {
+            synchronized (queue) {
+                claimed = queue.poll(quantity, maxAgeSeconds * 1000, track);
+            }
+            if (claimed.size() < quantity) {
+                // Nạp ngoài monitor: truy vấn (có lock dòng khi đánh dấu expired) không chặn người mua khác
+                List<Long> loaded = loader.apply(Math.max(refillSize, quantity - claimed.size()));
+                synchronized (queue) {
+                    queue.reload(loaded, claimed);
+                    claimed.addAll(queue.poll(quantity - claimed.size(), Long.MAX_VALUE, track));
+                }
+            }
+        }
+
+        if (track && !claimed.isEmpty()) {
+            List<Long> inFlight = List.copyOf(claimed);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    synchronized (queue) {
+                        inFlight.forEach(queue.inFlight::remove);
+                    }
+                }
+            });
+        }
+        return claimed;
+    }
+
+    /**
+     * Trả các ID đã claim về đầu hàng đợi nếu transaction hiện tại rollback
+     */
+    public void releaseOnRollback(Long productId, Collection<Long> itemIds) {
+        if (itemIds.isEmpty() || !TransactionSynchronizationManager.isSynchronizationActive()) {
+            return;
+        }
+        List<Long> ids = new ArrayList<>(itemIds);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                if (status == STATUS_ROLLED_BACK) {
+                    release(productId, ids);
+                }
+            }
+        });
+    }
+
+    /**
+     * Bỏ hàng đợi của sản phẩm, lần claim sau nạp lại từ database
+     * Dùng trong cùng transaction đã đổi kho (luồng mua sau khi chuyển kho)
+     */
+    public void invalidate(Long productId) {
+        ProductQueue queue = queues.get(productId);
+        if (queue != null) {
+            synchronized (queue) {
+                // Giữ in-flight: các ID đó vẫn đang được transaction khác xử lý
+                queue.ids.clear();
+                queue.loadedAt = 0;
+            }
+        }
+        if (useRedis()) {
+            try {
+                redisTemplateProvider.getObject().delete(REDIS_KEY_PREFIX + productId);
+            } catch (Exception e) {
+                log.debug("Cannot drop stock claim queue of product {}: {}", productId, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Bỏ hàng đợi sau khi transaction hiện tại commit (kho thay đổi ngoài luồng mua: import, chuyển kho, xóa)
+     * Không có transaction → bỏ ngay
+     */
+    public void invalidateAfterCommit(Long productId) {
+        if (!enabled || productId == null) {
+            return;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            invalidate(productId);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                invalidate(productId);
+            }
+        });
+    }
+
+    private void release(Long productId, List<Long> ids) {
+        if (useRedis()) {
+            try {
+                redisTemplateProvider.getObject().opsForList()
+                        .leftPushAll(REDIS_KEY_PREFIX + productId, ids.stream().map(String::valueOf).toList());
+            } catch (Exception e) {
+                // Không mất: items vẫn chưa bán trong database và quay lại ở lần nạp sau
+                log.debug("Cannot release stock claims of product {}: {}", productId, e.getMessage());
+            }
+            return;
+        }
+
+        ProductQueue queue = queues.get(productId);
+        if (queue != null) {
+            synchronized (queue) {
+                for (int i = ids.size() - 1; i >= 0; i--) {
+                    queue.ids.addFirst(ids.get(i));
+                }
+            }
+        }
+    }
+
+    private List<Long> claimFromRedis(Long productId, ProductQueue queue, int quantity, IntFunction<List<Long>> loader) {
+        StringRedisTemplate redis = redisTemplateProvider.getObject();
+        String key = REDIS_KEY_PREFIX + productId;
+
+        List<Long> claimed = pop(redis, key, quantity);
+        if (claimed.size() < quantity) {
+            List<Long> loaded = loader.apply(Math.max(refillSize, quantity - claimed.size()));
+            List<String> queued;
+            synchronized (queue) {
+                queued = loaded.stream()
+                        .filter(id -> !queue.inFlight.contains(id) && !claimed.contains(id))
+                        .map(String::valueOf)
+                        .toList();
+            }
+            if (!queued.isEmpty()) {
+                // Nạp đồng thời (nhiều node) có thể đưa một ID vào hai lần, row lock của người mua xử lý việc đó
+                redis.opsForList().rightPushAll(key, queued);
+                redis.expire(key, Duration.ofSeconds(maxAgeSeconds));
+            }
+            claimed.addAll(pop(redis, key, quantity - claimed.size()));
+        }
+        return claimed;
+    }
+
+    private static List<Long> pop(StringRedisTemplate redis, String key, int count) {
+        List<String> values = redis.opsForList().leftPop(key, count);
+        List<Long> ids = new ArrayList<>(count);
+        if (values != null) {
+            values.forEach(value -> ids.add(Long.valueOf(value)));
+        }
+        return ids;
+    }
+
+    private boolean useRedis() {
+        return "redis".equalsIgnoreCase(store) && redisTemplateProvider.getIfAvailable() != null;
+    }
+
+    /**
+     * Hàng đợi in-memory của một sản phẩm, được bảo vệ bởi monitor của chính nó
+     * inFlight: ID đã claim trong transaction chưa kết thúc (dùng cho cả store=redis)
+     */
+    private static final class ProductQueue {
+        private final Deque<Long> ids = new ArrayDeque<>();
+        private final Set<Long> inFlight = new HashSet<>();
+        private long loadedAt;
+
+        List<Long> poll(int count, long maxAgeMillis, boolean track) {
+            List<Long> claimed = new ArrayList<>(count);
+            if (System.currentTimeMillis() - loadedAt > maxAgeMillis) {
+                ids.clear();
+                return claimed;
+            }
+            while (claimed.size() < count && !ids.isEmpty()) {
+                claimed.add(ids.pollFirst());
+            }
+            if (track) {
+                inFlight.addAll(claimed);
+            }
+            return claimed;
+        }
+
+        void reload(List<Long> loaded, Collection<Long> claimedByCaller) {
+            ids.clear();
+            for (Long id : loaded) {
+                if (!inFlight.contains(id) && !claimedByCaller.contains(id)) {
+                    ids.addLast(id);
+                }
+            }
+            loadedAt = System.currentTimeMillis();
+        }
+    }
+}
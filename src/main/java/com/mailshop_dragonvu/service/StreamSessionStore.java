@@ -1,104 +1,159 @@
 package com.mailshop_dragonvu.service;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import com.mailshop_dragonvu.dto.hotmail.*;
-import org.springframework.stereotype.Component;
-
-import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
+import com.mailshop_dragonvu.service.job.ToolInputSpool;
 
 /**
- * In-memory session store for SSE streaming requests
+ * Session store for SSE streaming requests (start call -> stream call)
+ *
+ * Implementations (app.tools.session-store):
+ * - memory (default): single node, expiry sweeper, global memory cap, per-owner quota
+ * - redis: shared by every instance, so start and stream may hit different nodes
+ *   (except upload sessions, whose spool file is node-local: they need app.tools.upload.sticky-sessions=true)
  */
-@Component
-public class StreamSessionStore {
-    
-    // Session data storage
-    private final Map<String, SessionData> sessions = new ConcurrentHashMap<>();
-    
+public interface StreamSessionStore {
+
     // Session timeout: 5 minutes
-    private static final long SESSION_TIMEOUT_MS = 5 * 60 * 1000;
-    
+    long SESSION_TIMEOUT_MS = 5 * 60 * 1000;
+
+    /**
+     * Store a session and return its id
+     * Throws BusinessException when the owner quota or the store capacity is exceeded
+     */
+    String create(SessionData session);
+
+    /**
+     * Get session data and remove it (one-time use)
+     */
+    SessionData getAndRemove(String sessionId);
+
+    /**
+     * Get session data without removing
+     */
+    SessionData get(String sessionId);
+
     /**
      * Create a new session for check-live-mail
      */
-    public String createCheckLiveMailSession(String emailData) {
-        String sessionId = UUID.randomUUID().toString();
-        sessions.put(sessionId, new SessionData("CHECK_LIVE_MAIL", emailData, null, null));
-        return sessionId;
+    default String createCheckLiveMailSession(String owner, String emailData, boolean forceRecheck) {
+        return create(new SessionData("CHECK_LIVE_MAIL", owner, emailData, null, null, null, forceRecheck));
     }
-    
+
     /**
      * Create a new session for get-oauth2
      */
-    public String createGetOAuth2Session(String emailData) {
-        String sessionId = UUID.randomUUID().toString();
-        sessions.put(sessionId, new SessionData("GET_OAUTH2", emailData, null, null));
-        return sessionId;
+    default String createGetOAuth2Session(String owner, String emailData) {
+        return create(new SessionData("GET_OAUTH2", owner, emailData, null, null, null, false));
     }
-    
+
     /**
      * Create a new session for get-code
      */
-    public String createGetCodeSession(HotmailGetCodeRequestDTO request) {
-        String sessionId = UUID.randomUUID().toString();
-        sessions.put(sessionId, new SessionData("GET_CODE", request.getEmailData(), request, null));
-        return sessionId;
+    default String createGetCodeSession(String owner, HotmailGetCodeRequestDTO request) {
+        return create(new SessionData("GET_CODE", owner, request.getEmailData(), request, null, null, false));
     }
-    
+
     /**
      * Create a new session for Facebook check-live
      */
-    public String createFacebookCheckLiveSession(String uidData) {
-        String sessionId = UUID.randomUUID().toString();
-        sessions.put(sessionId, new SessionData("FACEBOOK_CHECK_LIVE", uidData, null, null));
-        return sessionId;
+    default String createFacebookCheckLiveSession(String owner, String uidData, boolean forceRecheck) {
+        return create(new SessionData("FACEBOOK_CHECK_LIVE", owner, uidData, null, null, null, forceRecheck));
     }
-    
+
     /**
      * Create a new session for read-mail
      */
-    public String createReadMailSession(ReadMailRequestDTO request) {
-        String sessionId = UUID.randomUUID().toString();
-        sessions.put(sessionId, new SessionData("READ_MAIL", request.getEmailData(), null, request));
-        return sessionId;
+    default String createReadMailSession(String owner, ReadMailRequestDTO request) {
+        return create(new SessionData("READ_MAIL", owner, request.getEmailData(), null, request, null, false));
     }
-    
+
     /**
-     * Get session data and remove it (one-time use)
+     * Create a new session for wait-for-code
      */
-    public SessionData getAndRemove(String sessionId) {
-        return sessions.remove(sessionId);
+    default String createWaitCodeSession(String owner, HotmailWaitCodeRequestDTO request) {
+        return create(new SessionData("WAIT_CODE", owner, request.getEmailData(), null, null, request, false));
     }
-    
+
     /**
-     * Get session data without removing
+     * Create a session for an uploaded input (lines spooled to a file instead of emailData)
+     * getCodeRequest / readMailRequest carry the options of those tools, their emailData is empty
+     * The spool file is local to this node: the stream call must reach the same node
      */
-    public SessionData get(String sessionId) {
-        return sessions.get(sessionId);
+    default String createUploadSession(String type, String owner, ToolInputSpool.SpooledInput input,
+                                       HotmailGetCodeRequestDTO getCodeRequest, ReadMailRequestDTO readMailRequest,
+                                       boolean forceRecheck) {
+        return create(new SessionData(type, owner, null, getCodeRequest, readMailRequest, null, forceRecheck,
+                input.file().toString(), input.lines(), System.currentTimeMillis()));
     }
-    
+
     /**
      * Session data holder
      */
-    public static class SessionData {
+    class SessionData {
         public final String type;
+        /**
+         * Who submitted the session (user:{id} or ip:{address}), used for quotas
+         */
+        public final String owner;
         public final String emailData;
         public final HotmailGetCodeRequestDTO getCodeRequest;
         public final ReadMailRequestDTO readMailRequest;
+        public final HotmailWaitCodeRequestDTO waitCodeRequest;
+        /**
+         * Check-live tools: ignore cached liveness results
+         */
+        public final boolean forceRecheck;
+        /**
+         * Uploaded input: spool file path and its line count (emailData is null then)
+         */
+        public final String inputFile;
+        public final int inputLines;
         public final long createdAt;
-        
-        public SessionData(String type, String emailData, HotmailGetCodeRequestDTO getCodeRequest, ReadMailRequestDTO readMailRequest) {
+
+        public SessionData(String type, String owner, String emailData, HotmailGetCodeRequestDTO getCodeRequest,
+                           ReadMailRequestDTO readMailRequest, HotmailWaitCodeRequestDTO waitCodeRequest,
+                           boolean forceRecheck) {
+            this(type, owner, emailData, getCodeRequest, readMailRequest, waitCodeRequest, forceRecheck,
+                    null, 0, System.currentTimeMillis());
+        }
+
+        @JsonCreator
+        public SessionData(@JsonProperty("type") String type,
+                           @JsonProperty("owner") String owner,
+                           @JsonProperty("emailData") String emailData,
+                           @JsonProperty("getCodeRequest") HotmailGetCodeRequestDTO getCodeRequest,
+                           @JsonProperty("readMailRequest") ReadMailRequestDTO readMailRequest,
+                           @JsonProperty("waitCodeRequest") HotmailWaitCodeRequestDTO waitCodeRequest,
+                           @JsonProperty("forceRecheck") boolean forceRecheck,
+                           @JsonProperty("inputFile") String inputFile,
+                           @JsonProperty("inputLines") int inputLines,
+                           @JsonProperty("createdAt") long createdAt) {
             this.type = type;
+            this.owner = owner;
             this.emailData = emailData;
             this.getCodeRequest = getCodeRequest;
             this.readMailRequest = readMailRequest;
-            this.createdAt = System.currentTimeMillis();
+            this.waitCodeRequest = waitCodeRequest;
+            this.forceRecheck = forceRecheck;
+            this.inputFile = inputFile;
+            this.inputLines = inputLines;
+            this.createdAt = createdAt;
         }
-        
+
+        @JsonIgnore
         public boolean isExpired() {
             return System.currentTimeMillis() - createdAt > SESSION_TIMEOUT_MS;
         }
+
+        /**
+         * Approximate heap footprint: the payload is stored once in emailData (request DTOs share the same String)
+         */
+        @JsonIgnore
+        public long estimatedBytes() {
+            return 64L + (emailData != null ? emailData.length() * 2L : 0);
+        }
     }
 }
-
@@ -2,6 +2,8 @@ package com.mailshop_dragonvu.service;
 
 import com.mailshop_dragonvu.dto.totp.TotpResponseDTO;
 
+import reactor.core.publisher.Flux;
+
 import java.util.List;
 
 /**
@@ -17,6 +19,14 @@ public interface TotpService {
      */
     List<TotpResponseDTO> generateCodes(String secretData);
 
+    /**
+     * Generate TOTP codes for a stream of input lines, results in input order
+     *
+     * @param lines Input lines (secret or email|password|secret)
+     * @return Flux of TOTP results, one per line with a secret
+     */
+    Flux<TotpResponseDTO> generateCodesStream(Flux<String> lines);
+
     /**
      * Generate TOTP code for a single secret
      *
@@ -0,0 +1,85 @@
+package com.mailshop_dragonvu.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Kiểm tra / chuyển kho và gửi số lượng kho phụ qua WebSocket sau khi mua, trên thread nền thay vì trong request
+ *
+ * - Chạy sau khi transaction mua commit (đếm kho không nằm trong lock của đơn hàng)
+ * - Gộp theo sản phẩm: các lần mua liên tiếp chỉ xếp hàng MỘT lần kiểm tra cho mỗi sản phẩm
+ * - Một thread duy nhất: hai lần chuyển kho của cùng sản phẩm không chạy song song
+ */
+@Component
+@Slf4j
+public class WarehouseCheckScheduler {
+
+    private final WarehouseService warehouseService;
+    private final ProductQuantityNotifier productQuantityNotifier;
+    private final Set<Long> pending = ConcurrentHashMap.newKeySet();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "warehouse-check");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public WarehouseCheckScheduler(WarehouseService warehouseService, ProductQuantityNotifier productQuantityNotifier) {
+        this.warehouseService = warehouseService;
+        this.productQuantityNotifier = productQuantityNotifier;
+    }
+
+    /**
+     * Xếp hàng kiểm tra kho của sản phẩm sau khi transaction hiện tại commit (ngay lập tức nếu không có transaction)
+     */
+    public void scheduleAfterCommit(Long productId) {
+        if (productId == null) {
+            return;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            schedule(productId);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                schedule(productId);
+            }
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void schedule(Long productId) {
+        if (!pending.add(productId)) {
+            return;
+        }
+        try {
+            executor.execute(() -> check(productId));
+        } catch (RejectedExecutionException e) {
+            pending.remove(productId);
+        }
+    }
+
+    private void check(Long productId) {
+        // Bỏ khỏi pending trước khi chạy: lần mua trong lúc kiểm tra sẽ xếp hàng thêm một lần
+        pending.remove(productId);
+        try {
+            warehouseService.checkAndTransferStock(productId);
+            productQuantityNotifier.publishAfterCommit(productId);
+        } catch (Exception e) {
+            log.error("Warehouse check failed for product {}: {}", productId, e.getMessage(), e);
+        }
+    }
+}
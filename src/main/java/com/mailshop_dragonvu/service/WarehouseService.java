@@ -31,6 +31,7 @@ public class WarehouseService {
     private final ProductRepository productRepository;
     private final ProductItemRepository productItemRepository;
     private final ProductQuantityNotifier productQuantityNotifier;
+    private final StockClaimQueue stockClaimQueue;
 
     /**
      * Kiểm tra và chuyển mail từ kho chính sang kho phụ nếu cần
@@ -91,6 +92,8 @@ public class WarehouseService {
         
         // Notify WebSocket về thay đổi số lượng
         productQuantityNotifier.publishAfterCommit(productId);
+        // Hàng đợi claim nạp lại để thấy items vừa chuyển sang kho phụ
+        stockClaimQueue.invalidateAfterCommit(productId);
 
         return ids.size();
     }
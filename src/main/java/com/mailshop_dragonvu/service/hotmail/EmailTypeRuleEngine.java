@@ -0,0 +1,369 @@
+package com.mailshop_dragonvu.service.hotmail;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mailshop_dragonvu.service.SystemSettingService;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Email-type matching and verification code extraction for the Hotmail tools
+ *
+ * - All keywords of all types are matched in one pass over "from + subject" (Aho-Corasick, ASCII, case-insensitive)
+ * - Each type carries its own code regex (group 1 = code), the generic one is used when no type matched
+ * - Each type may list sender addresses used for the Graph $filter push-down
+ *
+ * Rules are compiled once and swapped atomically. They can be overridden without a redeploy through the
+ * system setting {@value #KEY_RULES} (JSON array of {@link EmailTypeRule}), re-read periodically.
+ */
+@Component
+@Slf4j
+public class EmailTypeRuleEngine {
+
+    public static final String KEY_RULES = "hotmail.email_type_rules";
+
+    private static final String AUTO = "Auto";
+    private static final String DEFAULT_CODE_PATTERN = "\\b(\\d{5,10})\\b";
+    private static final int MAX_RULES = Long.SIZE;
+    private static final long ALL = -1L;
+
+    private static final List<EmailTypeRule> DEFAULT_RULES = List.of(
+            new EmailTypeRule("facebook", List.of("facebook", "fb.com"),
+                    List.of("security@facebookmail.com", "notification@facebookmail.com", "registration@facebookmail.com"),
+                    "\\b(\\d{5,8})\\b"),
+            new EmailTypeRule("instagram", List.of("instagram"),
+                    List.of("security@mail.instagram.com", "no-reply@mail.instagram.com"),
+                    "\\b(\\d{6})\\b"),
+            new EmailTypeRule("twitter", List.of("twitter", "x.com"),
+                    List.of("info@x.com", "verify@x.com", "info@twitter.com", "verify@twitter.com"),
+                    "\\b(\\d{5,8})\\b"),
+            new EmailTypeRule("apple", List.of("apple"), List.of(), "\\b(\\d{6})\\b"),
+            new EmailTypeRule("tiktok", List.of("tiktok"),
+                    List.of("noreply@account.tiktok.com", "register@account.tiktok.com"),
+                    "\\b(\\d{6})\\b"),
+            new EmailTypeRule("amazon", List.of("amazon"), List.of(), "\\b(\\d{6})\\b"),
+            new EmailTypeRule("lazada", List.of("lazada"), List.of(), "\\b(\\d{6})\\b"),
+            new EmailTypeRule("shopee", List.of("shopee"), List.of(), "\\b(\\d{6})\\b"),
+            new EmailTypeRule("kakaotalk", List.of("kakao"), List.of(), null),
+            new EmailTypeRule("telegram", List.of("telegram"), List.of("noreply@telegram.org"), "\\b(\\d{5,6})\\b"),
+            new EmailTypeRule("google", List.of("google"),
+                    List.of("noreply@google.com", "no-reply@accounts.google.com"),
+                    "\\b(?:G-)?(\\d{6})\\b"),
+            new EmailTypeRule("wechat", List.of("wechat", "weixin"), List.of(), null)
+    );
+
+    private final SystemSettingService systemSettingService;
+    private final ObjectMapper objectMapper;
+
+    private volatile CompiledRules rules;
+    private volatile String loadedSetting;
+
+    public EmailTypeRuleEngine(SystemSettingService systemSettingService, ObjectMapper objectMapper) {
+        this.systemSettingService = systemSettingService;
+        this.objectMapper = objectMapper;
+        this.rules = new CompiledRules(DEFAULT_RULES);
+    }
+
+    /**
+     * Verification code of a message, or null if the message does not match the requested types
+     * or carries no code
+     */
+    public String findCode(String from, String subject, List<String> emailTypes) {
+        return findCode(from, subject, emailTypes, null);
+    }
+
+    /**
+     * Same as {@link #findCode(String, String, List)}, but when the envelope matches a rule and the subject
+     * carries no code, the rule's code pattern is also applied to the body
+     *
+     * @param body loaded only for matching envelopes (may be null or return null)
+     */
+    public String findCode(String from, String subject, List<String> emailTypes, Supplier<String> body) {
+        if (subject == null) {
+            subject = "";
+        }
+        CompiledRules current = rules;
+        long matched = current.scan(from, subject);
+        if (subject.isEmpty() && (body == null || matched == 0)) {
+            return null;
+        }
+
+        long candidates = matched;
+        if (!isAuto(emailTypes)) {
+            long requested = current.maskOf(emailTypes);
+            // An unknown type accepts every message (same as before the rule engine)
+            if (requested != ALL) {
+                candidates = matched & requested;
+                if (candidates == 0) {
+                    return null;
+                }
+            }
+        }
+
+        Matcher matcher = candidates != 0
+                ? current.matcher(Long.numberOfTrailingZeros(candidates), subject)
+                : current.defaultMatcher(subject);
+        if (matcher.find()) {
+            return matcher.group(1);
+        }
+
+        // Body only for envelopes that matched a rule, never for every message
+        if (body == null || candidates == 0) {
+            return null;
+        }
+        String text = body.get();
+        if (text == null || text.isEmpty()) {
+            return null;
+        }
+        matcher.reset(text);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    /**
+     * Sender addresses of the requested types for the Graph $filter push-down
+     * Empty (no sender filter) when Auto is requested or any requested type has no known senders
+     */
+    public List<String> knownSenders(List<String> emailTypes) {
+        if (isAuto(emailTypes)) {
+            return List.of();
+        }
+        CompiledRules current = rules;
+        List<String> senders = new ArrayList<>();
+        for (String type : emailTypes) {
+            Integer index = current.indexByType.get(type);
+            if (index == null) {
+                return List.of();
+            }
+            List<String> known = current.rules.get(index).getSenders();
+            if (known == null || known.isEmpty()) {
+                return List.of();
+            }
+            senders.addAll(known);
+        }
+        return senders;
+    }
+
+    /**
+     * Re-read the rule setting and recompile when it changed
+     */
+    @Scheduled(fixedDelayString = "${app.hotmail.rules.refresh-interval:60000}")
+    public void refresh() {
+        String raw;
+        try {
+            raw = systemSettingService.getValue(KEY_RULES);
+        } catch (Exception e) {
+            log.warn("Cannot read email type rules setting: {}", e.getMessage());
+            return;
+        }
+        if (Objects.equals(raw, loadedSetting)) {
+            return;
+        }
+
+        if (raw == null || raw.isBlank()) {
+            rules = new CompiledRules(DEFAULT_RULES);
+            loadedSetting = raw;
+            log.info("Email type rules reset to defaults");
+            return;
+        }
+
+        try {
+            List<EmailTypeRule> configured = objectMapper.readValue(raw, new TypeReference<>() {});
+            rules = new CompiledRules(configured);
+            log.info("Email type rules reloaded: {} types", configured.size());
+        } catch (Exception e) {
+            log.warn("Invalid email type rules setting '{}', keeping current rules: {}", KEY_RULES, e.getMessage());
+        }
+        loadedSetting = raw;
+    }
+
+    private static boolean isAuto(List<String> emailTypes) {
+        return emailTypes == null || emailTypes.isEmpty() || emailTypes.contains(AUTO);
+    }
+
+    /**
+     * One email type as stored in the setting
+     */
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class EmailTypeRule {
+        private String type;
+        private List<String> keywords;
+        private List<String> senders;
+        /** Regex whose group 1 is the code; null = generic 5-10 digits */
+        private String codePattern;
+    }
+
+    /**
+     * Immutable compiled form of a rule list
+     */
+    private static class CompiledRules {
+        // ASCII letters map to themselves, everything else to OTHER (never part of a keyword)
+        private static final int ALPHABET = 129;
+        private static final int OTHER = 128;
+
+        private final List<EmailTypeRule> rules;
+        private final Map<String, Integer> indexByType = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        private final int[][] transitions;
+        private final long[] outputs;
+        private final ThreadLocal<Matcher>[] matchers;
+        private final ThreadLocal<Matcher> defaultMatcher;
+
+        @SuppressWarnings("unchecked")
+        CompiledRules(List<EmailTypeRule> source) {
+            if (source.size() > MAX_RULES) {
+                throw new IllegalArgumentException("At most " + MAX_RULES + " email types are supported");
+            }
+            this.rules = List.copyOf(source);
+            this.matchers = new ThreadLocal[rules.size()];
+            this.defaultMatcher = matcherOf(Pattern.compile(DEFAULT_CODE_PATTERN));
+
+            // Trie of all keywords
+            List<int[]> trie = new ArrayList<>();
+            List<Long> out = new ArrayList<>();
+            trie.add(newState());
+            out.add(0L);
+
+            for (int i = 0; i < rules.size(); i++) {
+                EmailTypeRule rule = rules.get(i);
+                if (rule.getType() == null || rule.getType().isBlank()) {
+                    throw new IllegalArgumentException("Email type rule without type");
+                }
+                indexByType.put(rule.getType().trim(), i);
+                matchers[i] = rule.getCodePattern() != null && !rule.getCodePattern().isBlank()
+                        ? matcherOf(Pattern.compile(rule.getCodePattern(), Pattern.CASE_INSENSITIVE))
+                        : defaultMatcher;
+
+                for (String keyword : rule.getKeywords() != null ? rule.getKeywords() : List.<String>of()) {
+                    String lower = keyword.toLowerCase(Locale.ROOT);
+                    if (lower.isEmpty() || !lower.chars().allMatch(c -> c < OTHER)) {
+                        log.warn("Ignoring non-ASCII or empty keyword '{}' of type {}", keyword, rule.getType());
+                        continue;
+                    }
+                    int state = 0;
+                    for (int k = 0; k < lower.length(); k++) {
+                        int c = lower.charAt(k);
+                        if (trie.get(state)[c] <= 0) {
+                            trie.add(newState());
+                            out.add(0L);
+                            trie.get(state)[c] = trie.size() - 1;
+                        }
+                        state = trie.get(state)[c];
+                    }
+                    out.set(state, out.get(state) | (1L << i));
+                }
+            }
+
+            // Breadth-first: failure links folded into a full transition table (DFA)
+            int size = trie.size();
+            this.transitions = trie.toArray(new int[size][]);
+            this.outputs = new long[size];
+            for (int s = 0; s < size; s++) {
+                outputs[s] = out.get(s);
+            }
+
+            int[] failure = new int[size];
+            Queue<Integer> queue = new ArrayDeque<>();
+            for (int c = 0; c < ALPHABET; c++) {
+                int next = transitions[0][c];
+                if (next > 0) {
+                    failure[next] = 0;
+                    queue.add(next);
+                } else {
+                    transitions[0][c] = 0;
+                }
+            }
+            while (!queue.isEmpty()) {
+                int state = queue.poll();
+                outputs[state] |= outputs[failure[state]];
+                for (int c = 0; c < ALPHABET; c++) {
+                    int next = transitions[state][c];
+                    if (next > 0) {
+                        failure[next] = transitions[failure[state]][c];
+                        queue.add(next);
+                    } else {
+                        transitions[state][c] = transitions[failure[state]][c];
+                    }
+                }
+            }
+        }
+
+        /**
+         * Bit mask of the types whose keywords occur in "from subject"
+         */
+        long scan(String from, String subject) {
+            int state = 0;
+            long matched = 0;
+            if (from != null) {
+                for (int i = 0; i < from.length(); i++) {
+                    state = transitions[state][symbol(from.charAt(i))];
+                    matched |= outputs[state];
+                }
+            }
+            state = transitions[state][' '];
+            matched |= outputs[state];
+            for (int i = 0; i < subject.length(); i++) {
+                state = transitions[state][symbol(subject.charAt(i))];
+                matched |= outputs[state];
+            }
+            return matched;
+        }
+
+        /**
+         * Bit mask of the requested types, ALL when one of them is unknown
+         */
+        long maskOf(List<String> emailTypes) {
+            long mask = 0;
+            for (String type : emailTypes) {
+                Integer index = indexByType.get(type);
+                if (index == null) {
+                    return ALL;
+                }
+                mask |= 1L << index;
+            }
+            return mask;
+        }
+
+        Matcher matcher(int ruleIndex, String text) {
+            return matchers[ruleIndex].get().reset(text);
+        }
+
+        Matcher defaultMatcher(String text) {
+            return defaultMatcher.get().reset(text);
+        }
+
+        private static int symbol(char c) {
+            if (c >= OTHER) {
+                return OTHER;
+            }
+            return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+        }
+
+        private static int[] newState() {
+            int[] state = new int[ALPHABET];
+            Arrays.fill(state, -1);
+            return state;
+        }
+
+        private static ThreadLocal<Matcher> matcherOf(Pattern pattern) {
+            return ThreadLocal.withInitial(() -> pattern.matcher(""));
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.mailshop_dragonvu.service.hotmail;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteBufferFeeder;
+import lombok.Getter;
+import org.springframework.core.io.buffer.DataBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.Predicate;
+
+/**
+ * Incremental parser for Graph "/me/messages" responses
+ *
+ * - Fed chunk by chunk with the DataBuffers of the response (no String, no JsonNode tree)
+ * - Calls the visitor for each object of the top-level "value" array
+ * - Stops parsing as soon as the visitor returns true; remaining chunks are ignored
+ *
+ * The {@link GraphMessage} passed to the visitor is reused, copy what you need before returning.
+ * One instance per response, not thread-safe.
+ */
+public class GraphMessageStreamParser {
+
+    private static final int MAX_DEPTH = 16;
+
+    private final JsonParser parser;
+    private final ByteBufferFeeder feeder;
+    private final Predicate<GraphMessage> visitor;
+
+    private final GraphMessage current = new GraphMessage();
+    private final String[] fieldNames = new String[MAX_DEPTH];
+    private int depth;
+    private boolean inValueArray;
+    private boolean stopped;
+
+    public GraphMessageStreamParser(JsonFactory jsonFactory, Predicate<GraphMessage> visitor) throws IOException {
+        this.parser = jsonFactory.createNonBlockingByteBufferParser();
+        this.feeder = (ByteBufferFeeder) parser.getNonBlockingInputFeeder();
+        this.visitor = visitor;
+    }
+
+    /**
+     * Feed one chunk of the response body. The caller keeps ownership of the buffer (release it afterwards).
+     */
+    public void feed(DataBuffer buffer) throws IOException {
+        if (stopped) {
+            return;
+        }
+        try (DataBuffer.ByteBufferIterator iterator = buffer.readableByteBuffers()) {
+            while (iterator.hasNext() && !stopped) {
+                ByteBuffer byteBuffer = iterator.next();
+                if (byteBuffer.hasRemaining()) {
+                    feeder.feedInput(byteBuffer);
+                    drain();
+                }
+            }
+        }
+    }
+
+    /**
+     * Signal end of the body
+     */
+    public void finish() throws IOException {
+        if (!stopped) {
+            feeder.endOfInput();
+            drain();
+        }
+        parser.close();
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    private void drain() throws IOException {
+        JsonToken token;
+        while (!stopped && (token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+            switch (token) {
+                case START_OBJECT, START_ARRAY -> {
+                    depth++;
+                    if (token == JsonToken.START_ARRAY && depth == 2 && "value".equals(fieldNames[1])) {
+                        inValueArray = true;
+                    } else if (token == JsonToken.START_OBJECT && inValueArray && depth == 3) {
+                        current.reset();
+                    }
+                    if (depth < MAX_DEPTH) {
+                        fieldNames[depth] = null;
+                    }
+                }
+                case END_OBJECT, END_ARRAY -> {
+                    if (inValueArray && depth == 3 && token == JsonToken.END_OBJECT) {
+                        stopped = visitor.test(current);
+                    } else if (inValueArray && depth == 2) {
+                        inValueArray = false;
+                    }
+                    depth--;
+                }
+                case FIELD_NAME -> {
+                    if (depth < MAX_DEPTH) {
+                        fieldNames[depth] = parser.currentName();
+                    }
+                }
+                default -> {
+                    if (inValueArray && depth >= 3) {
+                        readScalar(token);
+                    }
+                }
+            }
+        }
+    }
+
+    private void readScalar(JsonToken token) throws IOException {
+        if (depth >= MAX_DEPTH) {
+            return;
+        }
+        String field = fieldNames[depth];
+        if (field == null) {
+            return;
+        }
+
+        if (depth == 3) {
+            switch (field) {
+                case "id" -> current.id = textOf(token);
+                case "subject" -> current.subject = textOf(token);
+                case "bodyPreview" -> current.bodyPreview = textOf(token);
+                case "receivedDateTime" -> current.receivedDateTime = textOf(token);
+                case "isRead" -> current.read = token == JsonToken.VALUE_TRUE;
+                case "hasAttachments" -> current.hasAttachments = token == JsonToken.VALUE_TRUE;
+                default -> {
+                }
+            }
+        } else if (depth == 4 && "body".equals(fieldNames[3]) && "content".equals(field)) {
+            current.bodyContent = textOf(token);
+        } else if (depth == 5 && "from".equals(fieldNames[3]) && "emailAddress".equals(fieldNames[4])) {
+            if ("address".equals(field)) {
+                current.fromAddress = textOf(token);
+            } else if ("name".equals(field)) {
+                current.fromName = textOf(token);
+            }
+        }
+    }
+
+    private String textOf(JsonToken token) throws IOException {
+        return token == JsonToken.VALUE_NULL ? "" : parser.getText();
+    }
+
+    /**
+     * Fields of one Graph message that the tools read (missing fields are empty)
+     */
+    @Getter
+    public static class GraphMessage {
+        private String id;
+        private String subject;
+        private String fromAddress;
+        private String fromName;
+        private String bodyPreview;
+        private String bodyContent;
+        private String receivedDateTime;
+        private boolean read;
+        private boolean hasAttachments;
+
+        void reset() {
+            id = "";
+            subject = "";
+            fromAddress = "";
+            fromName = "";
+            bodyPreview = "";
+            bodyContent = "";
+            receivedDateTime = "";
+            read = false;
+            hasAttachments = false;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.mailshop_dragonvu.service.hotmail;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import jakarta.mail.Folder;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.Store;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pool of authenticated IMAP connections (Store + opened INBOX), one idle handle per mailbox + credentials
+ *
+ * - borrow(): reuse the idle handle of the mailbox (hit) or open a new one (miss)
+ * - A handle is only handed to a caller with the same credentials (hash of refresh token + clientId)
+ *   it was opened with; a caller with other credentials always logs in with its own token
+ * - release(): put the handle back, or close it if the slot is taken / the token expired
+ * - invalidate(): close a handle after an error
+ * - Idle handles are closed after idle-timeout or when the access token they logged in with expires
+ */
+@Component
+@Slf4j
+public class ImapConnectionPool {
+
+    @Value("${app.hotmail.imap-pool.enabled:true}")
+    private boolean enabled;
+
+    @Value("${app.hotmail.imap-pool.max-idle:500}")
+    private int maxIdle;
+
+    @Value("${app.hotmail.imap-pool.idle-timeout-seconds:300}")
+    private long idleTimeoutSeconds;
+
+    @Value("${app.hotmail.imap-pool.health-check-after-seconds:30}")
+    private long healthCheckAfterSeconds;
+
+    private final String host;
+    private final int readTimeoutMs;
+    private final Session session;
+    private final Map<String, PooledConnection> idleConnections = new ConcurrentHashMap<>();
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter evictions;
+
+    public ImapConnectionPool(MeterRegistry meterRegistry,
+                              @Value("${app.hotmail.imap.connect-timeout-ms:15000}") int connectTimeoutMs,
+                              @Value("${app.hotmail.imap.read-timeout-ms:30000}") int readTimeoutMs,
+                              @Value("${app.hotmail.imap.host:outlook.office365.com}") String host,
+                              @Value("${app.hotmail.imap.port:993}") int port,
+                              @Value("${app.hotmail.imap.ssl-trust:}") String sslTrust) {
+        this.host = host;
+        this.readTimeoutMs = readTimeoutMs;
+        Properties props = new Properties();
+        props.put("mail.store.protocol", "imaps");
+        props.put("mail.imaps.host", host);
+        props.put("mail.imaps.port", String.valueOf(port));
+        props.put("mail.imaps.ssl.enable", "true");
+        props.put("mail.imaps.auth.mechanisms", "XOAUTH2");
+        props.put("mail.imaps.connectiontimeout", String.valueOf(connectTimeoutMs));
+        props.put("mail.imaps.timeout", String.valueOf(readTimeoutMs));
+        if (!sslTrust.isBlank()) {
+            // Hosts whose certificate is trusted without validation, e.g. a local stand-in with a self-signed one
+            props.put("mail.imaps.ssl.trust", sslTrust);
+            props.put("mail.imaps.ssl.checkserveridentity", "false");
+        }
+        this.session = Session.getInstance(props);
+
+        this.hits = Counter.builder("hotmail.imap.pool.requests")
+                .tag("result", "hit")
+                .description("IMAP connections served from the pool")
+                .register(meterRegistry);
+        this.misses = Counter.builder("hotmail.imap.pool.requests")
+                .tag("result", "miss")
+                .description("IMAP connections opened because none was pooled")
+                .register(meterRegistry);
+        this.evictions = Counter.builder("hotmail.imap.pool.evictions")
+                .description("Pooled IMAP connections closed (idle, token expired, unhealthy, full)")
+                .register(meterRegistry);
+        Gauge.builder("hotmail.imap.pool.idle", idleConnections, Map::size)
+                .description("Idle pooled IMAP connections")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Socket read timeout of the connections (mail.imaps.timeout): a blocking IMAP call, IDLE included,
+     * that gets no server data for this long fails
+     */
+    public int getReadTimeoutMs() {
+        return readTimeoutMs;
+    }
+
+    /**
+     * Borrow an authenticated connection with INBOX opened READ_ONLY
+     *
+     * @param credentialId identity of the credentials the access token was obtained with
+     *                     (MicrosoftTokenCache.credentialId); null = never pooled
+     * @param tokenExpiresAt epoch millis after which the login token is no longer valid
+     */
+    public PooledConnection borrow(String email, String credentialId, String accessToken, long tokenExpiresAt)
+            throws MessagingException {
+        String key = credentialId != null ? email.toLowerCase(Locale.ROOT) + "|" + credentialId : null;
+
+        if (enabled && key != null) {
+            PooledConnection pooled = idleConnections.remove(key);
+            if (pooled != null) {
+                if (pooled.isOpenedWith(credentialId) && isUsable(pooled)) {
+                    hits.increment();
+                    return pooled;
+                }
+                closeQuietly(pooled);
+                evictions.increment();
+            }
+        }
+
+        misses.increment();
+        return open(key, credentialId, email, accessToken, tokenExpiresAt);
+    }
+
+    /**
+     * Return a connection to the pool. Null is ignored.
+     */
+    public void release(PooledConnection connection) {
+        if (connection == null) {
+            return;
+        }
+
+        connection.lastUsedAt = System.currentTimeMillis();
+        if (!enabled || connection.key == null || connection.isTokenExpired() || !connection.folder.isOpen()) {
+            closeQuietly(connection);
+            return;
+        }
+
+        if (idleConnections.size() >= maxIdle) {
+            evictOldest();
+        }
+
+        PooledConnection previous = idleConnections.putIfAbsent(connection.key, connection);
+        if (previous != null) {
+            // Another thread already parked a connection for this mailbox
+            closeQuietly(connection);
+        }
+    }
+
+    /**
+     * Close a connection that failed during use. Null is ignored.
+     */
+    public void invalidate(PooledConnection connection) {
+        if (connection != null) {
+            closeQuietly(connection);
+        }
+    }
+
+    /**
+     * Close idle connections that timed out or whose token expired
+     */
+    @Scheduled(fixedRateString = "${app.hotmail.imap-pool.sweep-interval:30000}")
+    public void evictIdle() {
+        long idleCutoff = System.currentTimeMillis() - idleTimeoutSeconds * 1000;
+        idleConnections.forEach((key, connection) -> {
+            if (connection.lastUsedAt < idleCutoff || connection.isTokenExpired()) {
+                if (idleConnections.remove(key, connection)) {
+                    closeQuietly(connection);
+                    evictions.increment();
+                }
+            }
+        });
+    }
+
+    @PreDestroy
+    public void closeAll() {
+        idleConnections.values().forEach(this::closeQuietly);
+        idleConnections.clear();
+    }
+
+    private PooledConnection open(String key, String credentialId, String email, String accessToken,
+                                  long tokenExpiresAt) throws MessagingException {
+        Store store = session.getStore("imaps");
+        try {
+            store.connect(host, email, accessToken);
+            Folder inbox = store.getFolder("INBOX");
+            inbox.open(Folder.READ_ONLY);
+            return new PooledConnection(key, credentialId, store, inbox, tokenExpiresAt);
+        } catch (MessagingException e) {
+            try {
+                if (store.isConnected()) store.close();
+            } catch (Exception ignored) {}
+            throw e;
+        }
+    }
+
+    /**
+     * Cheap local checks always; a server round-trip (NOOP) only after the handle sat idle for a while
+     */
+    private boolean isUsable(PooledConnection connection) {
+        if (connection.isTokenExpired() || !connection.folder.isOpen()) {
+            return false;
+        }
+        long idleMillis = System.currentTimeMillis() - connection.lastUsedAt;
+        if (idleMillis < healthCheckAfterSeconds * 1000) {
+            return true;
+        }
+        try {
+            return connection.store.isConnected();
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private void evictOldest() {
+        idleConnections.values().stream()
+                .min(Comparator.comparingLong(c -> c.lastUsedAt))
+                .ifPresent(oldest -> {
+                    if (idleConnections.remove(oldest.key, oldest)) {
+                        closeQuietly(oldest);
+                        evictions.increment();
+                    }
+                });
+    }
+
+    private void closeQuietly(PooledConnection connection) {
+        try {
+            if (connection.folder.isOpen()) connection.folder.close(false);
+            if (connection.store.isConnected()) connection.store.close();
+        } catch (Exception ignored) {}
+    }
+
+    /**
+     * Authenticated IMAP handle
+     */
+    @Getter
+    public static class PooledConnection {
+        private final String key;
+        private final String credentialId;
+        private final Store store;
+        private final Folder folder;
+        private final long tokenExpiresAt;
+        private volatile long lastUsedAt;
+
+        PooledConnection(String key, String credentialId, Store store, Folder folder, long tokenExpiresAt) {
+            this.key = key;
+            this.credentialId = credentialId;
+            this.store = store;
+            this.folder = folder;
+            this.tokenExpiresAt = tokenExpiresAt;
+            this.lastUsedAt = System.currentTimeMillis();
+        }
+
+        boolean isOpenedWith(String credentialId) {
+            return this.credentialId != null && credentialId != null
+                    && MessageDigest.isEqual(this.credentialId.getBytes(StandardCharsets.UTF_8),
+                    credentialId.getBytes(StandardCharsets.UTF_8));
+        }
+
+        boolean isTokenExpired() {
+            return System.currentTimeMillis() >= tokenExpiresAt;
+        }
+    }
+}
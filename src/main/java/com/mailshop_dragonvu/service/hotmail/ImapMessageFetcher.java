@@ -0,0 +1,198 @@
+package com.mailshop_dragonvu.service.hotmail;
+
+import jakarta.mail.FetchProfile;
+import jakarta.mail.Folder;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.UIDFolder;
+import jakarta.mail.internet.MimeUtility;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.angus.mail.imap.IMAPFolder;
+import org.eclipse.angus.mail.imap.protocol.BODY;
+import org.eclipse.angus.mail.imap.protocol.BODYSTRUCTURE;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.regex.Pattern;
+
+/**
+ * Cheap IMAP reads for code extraction and mailbox previews
+ *
+ * - Envelopes (from, subject, date), UIDs and optionally flags of a whole range in one FETCH
+ * - Body text only on demand: BODYSTRUCTURE of the one message, then a BODY.PEEK[section]<0.N>
+ *   partial of its first text/plain (else text/html) part, decoded and stripped of markup.
+ *   PEEK keeps the message unread.
+ */
+@Component
+@Slf4j
+public class ImapMessageFetcher {
+
+    private static final Pattern STYLE_OR_SCRIPT = Pattern.compile("(?is)<(style|script)[^>]*>.*?(</\\1>|$)");
+    private static final Pattern TAG = Pattern.compile("<[^>]*>?");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern NON_BASE64 = Pattern.compile("[^A-Za-z0-9+/=]");
+
+    /**
+     * Messages start..end (1-based, inclusive) with envelope and UID prefetched in one round-trip
+     */
+    public Message[] fetchEnvelopes(Folder folder, int start, int end, boolean withFlags) throws MessagingException {
+        if (end < start) {
+            return new Message[0];
+        }
+        Message[] messages = folder.getMessages(start, end);
+        folder.fetch(messages, profile(withFlags));
+        return messages;
+    }
+
+    /**
+     * Messages with a UID above lastUid, envelope, UID and flags prefetched in one round-trip
+     * Note: like "n:*" in IMAP, the result contains the last message even when its UID is not above lastUid
+     */
+    public Message[] fetchEnvelopesAfterUid(Folder folder, long lastUid) throws MessagingException {
+        Message[] messages = ((UIDFolder) folder).getMessagesByUID(lastUid + 1, UIDFolder.LASTUID);
+        folder.fetch(messages, profile(true));
+        return messages;
+    }
+
+    /**
+     * Current flags of the given UIDs in one round-trip, null entries for expunged messages
+     */
+    public Message[] fetchFlagsByUid(Folder folder, long[] uids) throws MessagingException {
+        Message[] messages = ((UIDFolder) folder).getMessagesByUID(uids);
+        Message[] existing = Arrays.stream(messages).filter(Objects::nonNull).toArray(Message[]::new);
+        FetchProfile profile = new FetchProfile();
+        profile.add(FetchProfile.Item.FLAGS);
+        profile.add(UIDFolder.FetchProfileItem.UID);
+        folder.fetch(existing, profile);
+        return messages;
+    }
+
+    /**
+     * Plain text from the first maxBytes of the message body, or null when not available
+     * Never marks the message as read
+     */
+    public String peekText(Folder folder, Message message, int maxBytes) {
+        if (!(folder instanceof IMAPFolder imapFolder)) {
+            return null;
+        }
+        int messageNumber = message.getMessageNumber();
+
+        try {
+            BODYSTRUCTURE structure = (BODYSTRUCTURE) imapFolder.doCommand(
+                    protocol -> protocol.fetchBodyStructure(messageNumber));
+            TextPart part = findTextPart(structure, "");
+            if (part == null) {
+                return null;
+            }
+
+            BODY body = (BODY) imapFolder.doCommand(
+                    protocol -> protocol.peekBody(messageNumber, part.section(), 0, maxBytes));
+            if (body == null) {
+                return null;
+            }
+
+            String text = new String(decode(body.getByteArrayInputStream(), part.encoding()), part.charset());
+            if (part.html()) {
+                text = TAG.matcher(STYLE_OR_SCRIPT.matcher(text).replaceAll(" ")).replaceAll(" ");
+            }
+            return WHITESPACE.matcher(text).replaceAll(" ").trim();
+        } catch (Exception e) {
+            log.debug("Cannot peek body of message {}: {}", messageNumber, e.getMessage());
+            return null;
+        }
+    }
+
+    private static FetchProfile profile(boolean withFlags) {
+        FetchProfile profile = new FetchProfile();
+        profile.add(FetchProfile.Item.ENVELOPE);
+        profile.add(UIDFolder.FetchProfileItem.UID);
+        if (withFlags) {
+            profile.add(FetchProfile.Item.FLAGS);
+        }
+        return profile;
+    }
+
+    /**
+     * First text/plain part, else first text/html part (depth-first, IMAP section numbering)
+     */
+    private TextPart findTextPart(BODYSTRUCTURE structure, String section) {
+        if (structure == null) {
+            return null;
+        }
+        if (!structure.isMulti()) {
+            if (!"text".equalsIgnoreCase(structure.type) || "attachment".equalsIgnoreCase(structure.disposition)) {
+                return null;
+            }
+            // A single-part message has its content in TEXT, a nested part in its own section
+            String partSection = section.isEmpty() ? "TEXT" : section;
+            String charsetName = structure.cParams != null ? structure.cParams.get("charset") : null;
+            return new TextPart(partSection, structure.encoding, charsetOf(charsetName),
+                    "html".equalsIgnoreCase(structure.subtype));
+        }
+
+        TextPart html = null;
+        for (int i = 0; i < structure.bodies.length; i++) {
+            String child = section.isEmpty() ? String.valueOf(i + 1) : section + "." + (i + 1);
+            TextPart part = findTextPart(structure.bodies[i], child);
+            if (part != null && !part.html()) {
+                return part;
+            }
+            if (part != null && html == null) {
+                html = part;
+            }
+        }
+        return html;
+    }
+
+    /**
+     * Decode a (possibly truncated) transfer-encoded part, keeping what decoded before the cut
+     */
+    private static byte[] decode(ByteArrayInputStream raw, String encoding) throws MessagingException {
+        if (encoding == null || encoding.isBlank()) {
+            return raw.readAllBytes();
+        }
+        if ("base64".equalsIgnoreCase(encoding.trim())) {
+            // Drop line breaks and the incomplete 4-char group at the cut
+            String base64 = NON_BASE64.matcher(new String(raw.readAllBytes(), StandardCharsets.US_ASCII)).replaceAll("");
+            try {
+                return Base64.getDecoder().decode(base64.substring(0, base64.length() - base64.length() % 4));
+            } catch (IllegalArgumentException e) {
+                return new byte[0];
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream decoded = MimeUtility.decode(raw, encoding.toLowerCase(Locale.ROOT))) {
+            byte[] buffer = new byte[512];
+            int read;
+            while ((read = decoded.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            // Partial fetch cut an encoded unit in half
+        }
+        return out.toByteArray();
+    }
+
+    private static Charset charsetOf(String name) {
+        if (name == null) {
+            return StandardCharsets.UTF_8;
+        }
+        try {
+            return Charset.forName(MimeUtility.javaCharset(name));
+        } catch (Exception e) {
+            return StandardCharsets.UTF_8;
+        }
+    }
+
+    private record TextPart(String section, String encoding, Charset charset, boolean html) {
+    }
+}
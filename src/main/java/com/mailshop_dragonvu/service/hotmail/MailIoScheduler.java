@@ -0,0 +1,127 @@
+package com.mailshop_dragonvu.service.hotmail;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.Collections;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dedicated, bounded thread pools for blocking Jakarta Mail (IMAP) work
+ *
+ * - scheduler(): short IMAP reads (get-code, read-mail)
+ * - idleScheduler(): long-held IMAP IDLE subscriptions (wait-for-code), kept apart so they cannot starve reads
+ *
+ * Keeps slow IMAP sockets off Schedulers.boundedElastic() and away from the WebClient event loop.
+ * Pure HTTP work should not be scheduled here.
+ *
+ * Metrics: executor.* with name=hotmail.mail-io / hotmail.mail-idle (pool size, active, queued, completed)
+ * and hotmail.mail-io.queue.wait (time a task waited before a thread picked it up, tag pool)
+ */
+@Component
+@Slf4j
+public class MailIoScheduler {
+
+    private final ThreadPoolExecutor executor;
+    private final Scheduler scheduler;
+    private final ThreadPoolExecutor idleExecutor;
+    private final Scheduler idleScheduler;
+
+    public MailIoScheduler(MeterRegistry meterRegistry,
+                           @Value("${app.hotmail.mail-io.max-threads:200}") int maxThreads,
+                           @Value("${app.hotmail.mail-io.max-idle-threads:500}") int maxIdleThreads,
+                           @Value("${app.hotmail.mail-io.queue-capacity:10000}") int queueCapacity,
+                           @Value("${app.hotmail.mail-io.keep-alive-seconds:60}") long keepAliveSeconds) {
+        this.executor = createPool(meterRegistry, "mail-io", maxThreads, queueCapacity, keepAliveSeconds);
+        this.scheduler = Schedulers.fromExecutorService(executor, "mail-io");
+        this.idleExecutor = createPool(meterRegistry, "mail-idle", maxIdleThreads, queueCapacity, keepAliveSeconds);
+        this.idleScheduler = Schedulers.fromExecutorService(idleExecutor, "mail-idle");
+        log.info("Mail I/O schedulers started: maxThreads={}, maxIdleThreads={}, queueCapacity={}",
+                maxThreads, maxIdleThreads, queueCapacity);
+    }
+
+    /**
+     * Scheduler to subscribe short blocking IMAP calls on
+     */
+    public Scheduler scheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Scheduler for blocking calls that hold a thread for a long time (IMAP IDLE)
+     */
+    public Scheduler idleScheduler() {
+        return idleScheduler;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.dispose();
+        idleScheduler.dispose();
+        executor.shutdownNow();
+        idleExecutor.shutdownNow();
+    }
+
+    private ThreadPoolExecutor createPool(MeterRegistry meterRegistry, String name, int threads,
+                                          int queueCapacity, long keepAliveSeconds) {
+        Timer queueWait = Timer.builder("hotmail.mail-io.queue.wait")
+                .tag("pool", name)
+                .description("Time blocking mail tasks wait for a thread")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+
+        ThreadPoolExecutor pool = new InstrumentedExecutor(name, threads, keepAliveSeconds,
+                new LinkedBlockingQueue<>(queueCapacity), queueWait);
+        pool.allowCoreThreadTimeOut(true);
+        ExecutorServiceMetrics.monitor(meterRegistry, pool, "hotmail." + name, Collections.emptyList());
+        return pool;
+    }
+
+    /**
+     * Fixed-size pool (core = max, idle threads time out) that records queue wait time per task
+     */
+    private static class InstrumentedExecutor extends ThreadPoolExecutor {
+        private final Timer queueWait;
+
+        InstrumentedExecutor(String name, int threads, long keepAliveSeconds, LinkedBlockingQueue<Runnable> queue, Timer queueWait) {
+            super(threads, threads, keepAliveSeconds, TimeUnit.SECONDS, queue, new MailIoThreadFactory(name));
+            this.queueWait = queueWait;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            long enqueuedAt = System.nanoTime();
+            super.execute(() -> {
+                queueWait.record(System.nanoTime() - enqueuedAt, TimeUnit.NANOSECONDS);
+                command.run();
+            });
+        }
+    }
+
+    private static class MailIoThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        MailIoThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.mailshop_dragonvu.service.hotmail;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mailshop_dragonvu.dto.hotmail.ReadMailResponseDTO;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-mailbox sync cursor + message summaries of the last read-mail call
+ *
+ * Keyed by mailbox + credentials (MicrosoftTokenCache.credentialId): a caller only ever gets back
+ * the snapshot of a read done with its own refresh token + clientId.
+ *
+ * - Graph: receivedDateTime of the newest message (high-water mark) + message ids; the cached messages
+ *   are re-checked against a listing of the current ones, so deleted messages drop out
+ * - IMAP: UIDVALIDITY + last seen UID
+ * A repeat read only fetches messages past the cursor, the unchanged tail comes from the snapshot.
+ * Snapshots older than max-age-minutes are ignored, so the mailbox is fully re-read now and then.
+ *
+ * store=memory (default, per node) or store=redis (shared by every instance)
+ */
+@Component
+@Slf4j
+public class MailboxSyncCache {
+
+    private static final String REDIS_KEY_PREFIX = "hotmail:mailbox-sync:";
+
+    @Value("${app.hotmail.mailbox-sync.enabled:true}")
+    private boolean enabled;
+
+    @Value("${app.hotmail.mailbox-sync.store:memory}")
+    private String store;
+
+    @Value("${app.hotmail.mailbox-sync.max-age-minutes:30}")
+    private long maxAgeMinutes;
+
+    @Value("${app.hotmail.mailbox-sync.max-entries:10000}")
+    private int maxEntries;
+
+    private final ObjectMapper objectMapper;
+    private final ObjectProvider<ReactiveStringRedisTemplate> redisTemplateProvider;
+    private final Map<String, MailboxSnapshot> snapshots = new ConcurrentHashMap<>();
+
+    public MailboxSyncCache(ObjectMapper objectMapper, ObjectProvider<ReactiveStringRedisTemplate> redisTemplateProvider) {
+        this.objectMapper = objectMapper;
+        this.redisTemplateProvider = redisTemplateProvider;
+    }
+
+    /**
+     * Snapshot of the previous read, empty when unknown or too old
+     */
+    public Mono<MailboxSnapshot> get(String email, String credentialId, ProtocolAffinityTable.Protocol protocol) {
+        if (!enabled || credentialId == null) {
+            return Mono.empty();
+        }
+        String key = key(email, credentialId, protocol);
+
+        if (useRedis()) {
+            return redisTemplateProvider.getObject().opsForValue()
+                    .get(REDIS_KEY_PREFIX + key)
+                    .flatMap(json -> Mono.justOrEmpty(parse(json)))
+                    .filter(snapshot -> !isStale(snapshot))
+                    .onErrorResume(e -> {
+                        log.debug("Mailbox sync lookup failed: {}", e.getMessage());
+                        return Mono.empty();
+                    });
+        }
+
+        MailboxSnapshot snapshot = snapshots.get(key);
+        if (snapshot == null) {
+            return Mono.empty();
+        }
+        if (isStale(snapshot)) {
+            snapshots.remove(key, snapshot);
+            return Mono.empty();
+        }
+        return Mono.just(snapshot);
+    }
+
+    public Mono<Void> put(String email, String credentialId, ProtocolAffinityTable.Protocol protocol,
+                          MailboxSnapshot snapshot) {
+        if (!enabled || credentialId == null || snapshot == null) {
+            return Mono.empty();
+        }
+        String key = key(email, credentialId, protocol);
+
+        if (useRedis()) {
+            String json;
+            try {
+                json = objectMapper.writeValueAsString(snapshot);
+            } catch (Exception e) {
+                log.debug("Cannot serialize mailbox snapshot: {}", e.getMessage());
+                return Mono.empty();
+            }
+            return redisTemplateProvider.getObject().opsForValue()
+                    .set(REDIS_KEY_PREFIX + key, json, Duration.ofMinutes(maxAgeMinutes))
+                    .onErrorResume(e -> {
+                        log.debug("Mailbox sync write failed: {}", e.getMessage());
+                        return Mono.empty();
+                    })
+                    .then();
+        }
+
+        if (snapshots.size() >= maxEntries && !snapshots.containsKey(key)) {
+            evictExpired();
+            if (snapshots.size() >= maxEntries) {
+                return Mono.empty();
+            }
+        }
+        snapshots.put(key, snapshot);
+        return Mono.empty();
+    }
+
+    /**
+     * Drop snapshots past max age
+     */
+    @Scheduled(fixedRateString = "${app.hotmail.mailbox-sync.sweep-interval:300000}")
+    public void evictExpired() {
+        snapshots.values().removeIf(this::isStale);
+    }
+
+    private boolean isStale(MailboxSnapshot snapshot) {
+        return System.currentTimeMillis() - snapshot.getSyncedAt() > maxAgeMinutes * 60_000;
+    }
+
+    private MailboxSnapshot parse(String json) {
+        try {
+            return objectMapper.readValue(json, MailboxSnapshot.class);
+        } catch (Exception e) {
+            log.debug("Corrupt mailbox snapshot: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private boolean useRedis() {
+        return "redis".equalsIgnoreCase(store) && redisTemplateProvider.getIfAvailable() != null;
+    }
+
+    private static String key(String email, String credentialId, ProtocolAffinityTable.Protocol protocol) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            String identity = email.trim().toLowerCase(Locale.ROOT) + "|" + credentialId;
+            byte[] hash = digest.digest(identity.getBytes(StandardCharsets.UTF_8));
+            return protocol.name() + ":" + HexFormat.of().formatHex(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * State after one read-mail call, messages newest first
+     */
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class MailboxSnapshot {
+        /**
+         * Graph: receivedDateTime (ISO) of the newest message
+         */
+        private String receivedCursor;
+
+        /**
+         * IMAP: UIDVALIDITY of INBOX and highest UID seen
+         */
+        private long uidValidity;
+        private long lastUid;
+
+        /**
+         * messageCount of the read that produced the snapshot (serves reads of up to that many messages)
+         */
+        private int messageCount;
+
+        private int totalMessages;
+        private List<CachedMessage> messages;
+        private long syncedAt;
+    }
+
+    /**
+     * One message summary with its server id (Graph id or IMAP UID)
+     */
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class CachedMessage {
+        private String id;
+        private long uid;
+        private ReadMailResponseDTO.EmailMessage message;
+    }
+}
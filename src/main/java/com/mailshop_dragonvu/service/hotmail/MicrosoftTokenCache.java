@@ -0,0 +1,245 @@
+package com.mailshop_dragonvu.service.hotmail;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * In-memory cache for Microsoft OAuth2 access tokens
+ *
+ * - Key = hash(refresh token) + clientId + scope family (GRAPH / IMAP)
+ * - Entry is valid until expires_in minus a safety skew
+ * - Also remembers the rotated refresh token returned by the token endpoint,
+ *   so the next refresh for the same mailbox uses the newest token
+ *   (at most max-rotated-tokens entries, each kept for rotation-retention-hours)
+ * - refreshOnce: one token request per key at a time, concurrent callers share its result
+ */
+@Component
+@Slf4j
+public class MicrosoftTokenCache {
+
+    public enum ScopeFamily {
+        GRAPH,
+        IMAP
+    }
+
+    @Value("${app.hotmail.token-cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${app.hotmail.token-cache.max-entries:200000}")
+    private int maxEntries;
+
+    @Value("${app.hotmail.token-cache.expiry-skew-seconds:120}")
+    private long expirySkewSeconds;
+
+    @Value("${app.hotmail.token-cache.rotation-retention-hours:24}")
+    private long rotationRetentionHours;
+
+    @Value("${app.hotmail.token-cache.max-rotated-tokens:200000}")
+    private int maxRotatedTokens;
+
+    // Lifetime used when expires_in is missing from the token response
+    private static final long DEFAULT_EXPIRES_IN_SECONDS = 3600;
+
+    private final Map<String, CachedToken> tokens = new ConcurrentHashMap<>();
+
+    // hash(original refresh token)|clientId -> latest rotated refresh token
+    private final Map<String, RotatedToken> rotatedRefreshTokens = new ConcurrentHashMap<>();
+
+    // token key -> shared token request still running for it
+    private final Map<String, Mono<?>> refreshesInFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Get a still-valid access token, or null if none is cached
+     */
+    public CachedToken get(String refreshToken, String clientId, ScopeFamily family) {
+        if (!enabled || refreshToken == null || refreshToken.isEmpty()) {
+            return null;
+        }
+
+        String key = tokenKey(refreshToken, clientId, family);
+        CachedToken cached = tokens.get(key);
+        if (cached == null) {
+            return null;
+        }
+        if (cached.isExpired()) {
+            tokens.remove(key, cached);
+            return null;
+        }
+        return cached;
+    }
+
+    /**
+     * Store a freshly refreshed token
+     *
+     * @param refreshToken the refresh token the caller supplied (cache key)
+     * @param expiresInSeconds expires_in from the token response (<= 0 means unknown)
+     */
+    public CachedToken put(String refreshToken, String clientId, ScopeFamily family,
+                           String accessToken, String newRefreshToken, boolean graphToken,
+                           long expiresInSeconds) {
+        long expiresIn = expiresInSeconds > 0 ? expiresInSeconds : DEFAULT_EXPIRES_IN_SECONDS;
+        long ttlMillis = Math.max(0, expiresIn - expirySkewSeconds) * 1000;
+        CachedToken token = new CachedToken(accessToken, newRefreshToken, graphToken,
+                System.currentTimeMillis() + ttlMillis);
+
+        if (!enabled || refreshToken == null || refreshToken.isEmpty()
+                || accessToken == null || accessToken.isEmpty() || ttlMillis == 0) {
+            return token;
+        }
+
+        if (tokens.size() >= maxEntries) {
+            evictExpired();
+            if (tokens.size() >= maxEntries) {
+                log.warn("Token cache full ({} entries), skip caching", tokens.size());
+                return token;
+            }
+        }
+
+        tokens.put(tokenKey(refreshToken, clientId, family), token);
+        if (newRefreshToken != null && !newRefreshToken.isEmpty() && !newRefreshToken.equals(refreshToken)) {
+            rememberRotation(rotationKey(refreshToken, clientId), newRefreshToken);
+        }
+        return token;
+    }
+
+    /**
+     * Run a token refresh, or join the one already running for the same refresh token + clientId + scope family
+     * The refresh keeps running when a caller cancels, so the others (and the cache) still get its result
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Mono<T> refreshOnce(String refreshToken, String clientId, ScopeFamily family, Supplier<Mono<T>> refresh) {
+        if (!enabled || refreshToken == null || refreshToken.isEmpty()) {
+            return Mono.defer(refresh);
+        }
+
+        String key = tokenKey(refreshToken, clientId, family);
+        return Mono.defer(() -> {
+            AtomicReference<Mono<T>> created = new AtomicReference<>();
+            return (Mono<T>) refreshesInFlight.computeIfAbsent(key, k -> {
+                Mono<T> flight = Mono.defer(refresh)
+                        .doFinally(signal -> refreshesInFlight.remove(k, created.get()))
+                        .cache();
+                created.set(flight);
+                return flight;
+            });
+        });
+    }
+
+    private void rememberRotation(String key, String newRefreshToken) {
+        if (rotatedRefreshTokens.size() >= maxRotatedTokens && !rotatedRefreshTokens.containsKey(key)) {
+            evictExpired();
+            if (rotatedRefreshTokens.size() >= maxRotatedTokens) {
+                log.warn("Rotated refresh token cache full ({} entries), skip remembering", rotatedRefreshTokens.size());
+                return;
+            }
+        }
+        rotatedRefreshTokens.put(key, new RotatedToken(newRefreshToken, System.currentTimeMillis()));
+    }
+
+    /**
+     * Newest refresh token known for the given one (the given one if it was never rotated)
+     */
+    public String latestRefreshToken(String refreshToken, String clientId) {
+        if (!enabled || refreshToken == null || refreshToken.isEmpty()) {
+            return refreshToken;
+        }
+        String key = rotationKey(refreshToken, clientId);
+        RotatedToken rotated = rotatedRefreshTokens.get(key);
+        if (rotated == null) {
+            return refreshToken;
+        }
+        if (rotated.rotatedAt() < rotationCutoff()) {
+            rotatedRefreshTokens.remove(key, rotated);
+            return refreshToken;
+        }
+        return rotated.refreshToken();
+    }
+
+    /**
+     * Forget a rotated refresh token that stopped working
+     */
+    public void invalidateRotation(String refreshToken, String clientId) {
+        if (refreshToken != null) {
+            rotatedRefreshTokens.remove(rotationKey(refreshToken, clientId));
+        }
+    }
+
+    /**
+     * Remove expired access tokens and rotated refresh tokens older than the retention window
+     */
+    @Scheduled(fixedRateString = "${app.hotmail.token-cache.sweep-interval:60000}")
+    public void evictExpired() {
+        int before = tokens.size();
+        tokens.entrySet().removeIf(e -> e.getValue().isExpired());
+
+        long rotationCutoff = rotationCutoff();
+        rotatedRefreshTokens.entrySet().removeIf(e -> e.getValue().rotatedAt() < rotationCutoff);
+
+        int removed = before - tokens.size();
+        if (removed > 0) {
+            log.debug("Evicted {} expired Microsoft access tokens, {} remaining", removed, tokens.size());
+        }
+    }
+
+    public int size() {
+        return tokens.size();
+    }
+
+    public int rotatedSize() {
+        return rotatedRefreshTokens.size();
+    }
+
+    private long rotationCutoff() {
+        return System.currentTimeMillis() - rotationRetentionHours * 3600_000L;
+    }
+
+    private String tokenKey(String refreshToken, String clientId, ScopeFamily family) {
+        return sha256(refreshToken) + "|" + clientId + "|" + family.name();
+    }
+
+    private String rotationKey(String refreshToken, String clientId) {
+        return sha256(refreshToken) + "|" + clientId;
+    }
+
+    /**
+     * Identity of the credentials a mailbox is accessed with: hash(refresh token) + clientId
+     * Never contains the refresh token itself, so it can be used as a map / redis key
+     */
+    public static String credentialId(String refreshToken, String clientId) {
+        return sha256((refreshToken != null ? refreshToken : "") + "|" + clientId);
+    }
+
+    static String sha256(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Cached access token
+     */
+    public record CachedToken(String accessToken, String refreshToken, boolean graphToken, long expiresAt) {
+
+        public boolean isExpired() {
+            return System.currentTimeMillis() >= expiresAt;
+        }
+    }
+
+    private record RotatedToken(String refreshToken, long rotatedAt) {
+    }
+}
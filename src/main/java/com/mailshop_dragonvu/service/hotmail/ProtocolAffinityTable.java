@@ -0,0 +1,182 @@
+package com.mailshop_dragonvu.service.hotmail;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers which protocol (Graph or IMAP) last worked per clientId + mailbox domain
+ *
+ * - Graph is tried first unless IMAP succeeded recently for the same key
+ * - Entries decay after ttl-minutes; a failure of the remembered protocol drops the entry
+ * - store=memory (default, per node) or store=redis (shared, memory stays a near cache)
+ *
+ * Metrics: hotmail.protocol.attempts (tags protocol, outcome), hotmail.protocol.affinity.entries
+ */
+@Component
+@Slf4j
+public class ProtocolAffinityTable {
+
+    public enum Protocol {
+        GRAPH,
+        IMAP;
+
+        public Protocol other() {
+            return this == GRAPH ? IMAP : GRAPH;
+        }
+    }
+
+    private static final String REDIS_KEY_PREFIX = "hotmail:protocol-affinity:";
+
+    @Value("${app.hotmail.protocol-affinity.enabled:true}")
+    private boolean enabled;
+
+    @Value("${app.hotmail.protocol-affinity.store:memory}")
+    private String store;
+
+    @Value("${app.hotmail.protocol-affinity.ttl-minutes:60}")
+    private long ttlMinutes;
+
+    @Value("${app.hotmail.protocol-affinity.max-entries:100000}")
+    private int maxEntries;
+
+    private final ObjectProvider<ReactiveStringRedisTemplate> redisTemplateProvider;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<Protocol, Counter> successes = new EnumMap<>(Protocol.class);
+    private final Map<Protocol, Counter> failures = new EnumMap<>(Protocol.class);
+
+    public ProtocolAffinityTable(MeterRegistry meterRegistry,
+                                 ObjectProvider<ReactiveStringRedisTemplate> redisTemplateProvider) {
+        this.redisTemplateProvider = redisTemplateProvider;
+        for (Protocol protocol : Protocol.values()) {
+            String tag = protocol.name().toLowerCase(Locale.ROOT);
+            successes.put(protocol, Counter.builder("hotmail.protocol.attempts")
+                    .tag("protocol", tag)
+                    .tag("outcome", "success")
+                    .register(meterRegistry));
+            failures.put(protocol, Counter.builder("hotmail.protocol.attempts")
+                    .tag("protocol", tag)
+                    .tag("outcome", "failure")
+                    .register(meterRegistry));
+        }
+        Gauge.builder("hotmail.protocol.affinity.entries", entries, Map::size)
+                .description("clientId + domain pairs with a remembered protocol")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Protocol to try first for this mailbox (GRAPH when nothing is known)
+     */
+    public Mono<Protocol> preferred(String clientId, String email) {
+        if (!enabled) {
+            return Mono.just(Protocol.GRAPH);
+        }
+
+        String key = key(clientId, email);
+        Entry entry = entries.get(key);
+        if (entry != null && !entry.isExpired()) {
+            return Mono.just(entry.protocol());
+        }
+        if (!useRedis()) {
+            return Mono.just(Protocol.GRAPH);
+        }
+
+        return redisTemplateProvider.getObject().opsForValue()
+                .get(REDIS_KEY_PREFIX + key)
+                .map(value -> {
+                    Protocol protocol = Protocol.valueOf(value);
+                    remember(key, protocol);
+                    return protocol;
+                })
+                .onErrorResume(e -> {
+                    log.debug("Protocol affinity lookup failed: {}", e.getMessage());
+                    return Mono.empty();
+                })
+                .defaultIfEmpty(Protocol.GRAPH);
+    }
+
+    public void recordSuccess(String clientId, String email, Protocol protocol) {
+        successes.get(protocol).increment();
+        if (!enabled) {
+            return;
+        }
+
+        String key = key(clientId, email);
+        Entry previous = entries.get(key);
+        remember(key, protocol);
+        // Shared store is only written when the answer changes or half the TTL has passed
+        if (useRedis() && (previous == null || previous.protocol() != protocol || previous.isHalfExpired())) {
+            redisTemplateProvider.getObject().opsForValue()
+                    .set(REDIS_KEY_PREFIX + key, protocol.name(), Duration.ofMinutes(ttlMinutes))
+                    .subscribe(ok -> { }, e -> log.debug("Protocol affinity write failed: {}", e.getMessage()));
+        }
+    }
+
+    public void recordFailure(String clientId, String email, Protocol protocol) {
+        failures.get(protocol).increment();
+        if (!enabled) {
+            return;
+        }
+
+        String key = key(clientId, email);
+        Entry entry = entries.get(key);
+        if (entry != null && entry.protocol() == protocol) {
+            entries.remove(key, entry);
+            if (useRedis()) {
+                redisTemplateProvider.getObject().delete(REDIS_KEY_PREFIX + key)
+                        .subscribe(n -> { }, e -> log.debug("Protocol affinity delete failed: {}", e.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * Drop decayed entries
+     */
+    @Scheduled(fixedRateString = "${app.hotmail.protocol-affinity.sweep-interval:300000}")
+    public void evictExpired() {
+        entries.entrySet().removeIf(e -> e.getValue().isExpired());
+    }
+
+    private void remember(String key, Protocol protocol) {
+        if (entries.size() >= maxEntries && !entries.containsKey(key)) {
+            evictExpired();
+            if (entries.size() >= maxEntries) {
+                return;
+            }
+        }
+        entries.put(key, new Entry(protocol, System.currentTimeMillis(), ttlMinutes * 60_000));
+    }
+
+    private boolean useRedis() {
+        return "redis".equalsIgnoreCase(store) && redisTemplateProvider.getIfAvailable() != null;
+    }
+
+    private static String key(String clientId, String email) {
+        int at = email != null ? email.lastIndexOf('@') : -1;
+        String domain = at >= 0 ? email.substring(at + 1).toLowerCase(Locale.ROOT) : "";
+        return clientId + "|" + domain;
+    }
+
+    private record Entry(Protocol protocol, long recordedAt, long ttlMillis) {
+        boolean isExpired() {
+            return System.currentTimeMillis() - recordedAt > ttlMillis;
+        }
+
+        boolean isHalfExpired() {
+            return System.currentTimeMillis() - recordedAt > ttlMillis / 2;
+        }
+    }
+}
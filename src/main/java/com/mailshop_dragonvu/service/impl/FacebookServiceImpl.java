@@ -1,25 +1,37 @@
 package com.mailshop_dragonvu.service.impl;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.mailshop_dragonvu.dto.facebook.FacebookCheckLiveResponseDTO;
 import com.mailshop_dragonvu.dto.hotmail.CheckStatus;
 import com.mailshop_dragonvu.service.FacebookService;
+import com.mailshop_dragonvu.service.LivenessCache;
+import com.mailshop_dragonvu.service.job.ToolInputSpool;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.BodyInserters;
 import org.springframework.web.reactive.function.client.WebClient;
-import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.core.scheduler.Schedulers;
 
-import java.io.IOException;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 /**
  * Implementation of FacebookService using WebClient for non-blocking HTTP requests
  * Provides better performance and scalability compared to RestTemplate + ThreadPool
+ *
+ * With app.facebook.access-token set, cache misses are checked through Graph batch requests
+ * (up to 50 UIDs per POST); a batch that cannot be sent or parsed, or a sub-request without an answer,
+ * falls back to single GET calls. A batch answered 429 / 5xx is reported as UNKNOWN (no extra load).
+ *
+ * UIDs are validated before any request: the batch is authenticated with the server's token, so a UID must
+ * never be able to change the relative_url it is put into.
  */
 @Service
 @Slf4j
@@ -27,70 +39,204 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class FacebookServiceImpl implements FacebookService {
 
     private final WebClient webClient;
+    private final LivenessCache livenessCache;
+    private final ObjectMapper objectMapper;
 
     // Concurrency limit for parallel requests (prevent overwhelming Facebook servers)
     private static final int MAX_CONCURRENT_REQUESTS = 20;
 
+    // Graph API hard limit of sub-requests per batch
+    private static final int MAX_BATCH_SIZE = 50;
+
+    // Numeric IDs and usernames only: no '/', '?', '&' that would reach another Graph path
+    private static final Pattern UID_PATTERN = Pattern.compile("[A-Za-z0-9._]{1,100}");
+
+    /**
+     * Graph base URL, overridable to point at a local stand-in (load tests)
+     */
+    @Value("${app.facebook.graph-url:https://graph.facebook.com}")
+    private String graphUrl;
+
+    /**
+     * App or user access token, required by the batch endpoint (empty = single GET per UID)
+     */
+    @Value("${app.facebook.access-token:}")
+    private String accessToken;
+
+    @Value("${app.facebook.batch.enabled:true}")
+    private boolean batchEnabled;
+
+    @Value("${app.facebook.batch.size:50}")
+    private int batchSize;
+
+    @Value("${app.facebook.batch.concurrency:4}")
+    private int batchConcurrency;
+
     @Override
-    public void checkLiveStream(String uidData, SseEmitter emitter) {
-        if (uidData == null || uidData.isEmpty()) {
-            completeEmitter(emitter);
-            return;
+    public Flux<FacebookCheckLiveResponseDTO> checkLiveStream(String uidData, boolean forceRecheck) {
+        return checkLiveStream(ToolInputSpool.lines(uidData), forceRecheck);
+    }
+
+    @Override
+    public Flux<FacebookCheckLiveResponseDTO> checkLiveStream(Flux<String> uids, boolean forceRecheck) {
+        AtomicInteger processed = new AtomicInteger();
+
+        if (batchEnabled && accessToken != null && !accessToken.isBlank()) {
+            return uids
+                    .buffer(Math.max(1, Math.min(batchSize, MAX_BATCH_SIZE)))
+                    .flatMapSequential(chunk -> checkChunkReactive(chunk, forceRecheck), batchConcurrency)
+                    .doOnNext(result -> processed.incrementAndGet())
+                    .doOnComplete(() -> log.info("Facebook check-live completed for {} UIDs (batched)", processed.get()));
         }
 
-        // Parse UIDs from input
-        List<String> uids = Arrays.stream(uidData.trim().split("\\n"))
-                .map(String::trim)
-                .filter(uid -> !uid.isEmpty())
+        // Process all UIDs using reactive streams with flatMap for concurrency control
+        return uids
+                .flatMapSequential(uid -> checkSingleUidReactive(uid, forceRecheck),
+                        MAX_CONCURRENT_REQUESTS) // Limit concurrent requests
+                .doOnNext(result -> processed.incrementAndGet())
+                .doOnComplete(() -> log.info("Facebook check-live completed for {} UIDs", processed.get()));
+    }
+
+    /**
+     * Check a chunk of UIDs: cache hits first, then one batch request for the misses
+     * Results are emitted in input order
+     */
+    private Flux<FacebookCheckLiveResponseDTO> checkChunkReactive(List<String> chunk, boolean forceRecheck) {
+        return Flux.fromIterable(chunk)
+                .concatMap(uid -> !isValidUid(uid)
+                        ? Mono.just(new UidCheck(uid, createInvalidUidResponse(uid)))
+                        : forceRecheck
+                        ? Mono.just(new UidCheck(uid, null))
+                        : livenessCache.find("facebook", uid, FacebookCheckLiveResponseDTO.class)
+                                .map(hit -> new UidCheck(uid, hit))
+                                .defaultIfEmpty(new UidCheck(uid, null)))
+                .collectList()
+                .flatMapMany(checks -> {
+                    List<String> misses = checks.stream()
+                            .filter(check -> check.result() == null)
+                            .map(UidCheck::uid)
+                            .toList();
+                    if (misses.isEmpty()) {
+                        return Flux.fromIterable(checks).map(UidCheck::result);
+                    }
+                    return fetchBatchStatus(misses)
+                            .flatMapMany(fetched -> {
+                                List<FacebookCheckLiveResponseDTO> results = new ArrayList<>(checks.size());
+                                int next = 0;
+                                for (UidCheck check : checks) {
+                                    results.add(check.result() != null ? check.result() : fetched.get(next++));
+                                }
+                                return Flux.fromIterable(results);
+                            });
+                });
+    }
+
+    /**
+     * One Graph batch POST for the given (validated) UIDs, one result per UID in the same order
+     * Sub-requests without an answer (timed out) and batches that failed in transport or parsing are retried as
+     * single GETs; a batch answered 429 / 5xx gives UNKNOWN for every UID instead of 50 more requests
+     */
+    private Mono<List<FacebookCheckLiveResponseDTO>> fetchBatchStatus(List<String> uids) {
+        List<Map<String, String>> requests = uids.stream()
+                .map(uid -> Map.of("method", "GET", "relative_url", uid + "/picture?type=normal&redirect=false"))
                 .toList();
 
-        if (uids.isEmpty()) {
-            completeEmitter(emitter);
-            return;
+        String batch;
+        try {
+            batch = objectMapper.writeValueAsString(requests);
+        } catch (Exception e) {
+            return fallbackToSingle(uids, e.getMessage());
         }
 
-        AtomicInteger completed = new AtomicInteger(0);
-        int total = uids.size();
+        return webClient.post()
+                .uri(graphUrl + "/")
+                .body(BodyInserters.fromFormData("access_token", accessToken)
+                        .with("include_headers", "false")
+                        .with("batch", batch))
+                .exchangeToMono(response -> response.bodyToMono(String.class)
+                        .defaultIfEmpty("")
+                        .map(body -> {
+                            int status = response.statusCode().value();
+                            if (status == 429 || status >= 500) {
+                                throw new BatchOverloadedException(status);
+                            }
+                            if (!response.statusCode().is2xxSuccessful()) {
+                                throw new IllegalStateException("Batch HTTP " + status + ": " + body);
+                            }
+                            return body;
+                        }))
+                .flatMap(body -> fanOut(uids, body))
+                .onErrorResume(BatchOverloadedException.class, e -> {
+                    log.warn("Facebook batch of {} UIDs answered HTTP {}, reporting UNKNOWN", uids.size(), e.status);
+                    return Mono.just(uids.stream()
+                            .map(uid -> FacebookCheckLiveResponseDTO.builder()
+                                    .uid(uid)
+                                    .status(CheckStatus.UNKNOWN)
+                                    .error("Facebook đang quá tải (HTTP " + e.status + "), vui lòng thử lại sau")
+                                    .build())
+                            .toList());
+                })
+                .onErrorResume(Exception.class, e -> fallbackToSingle(uids, e.getMessage()));
+    }
 
-        // Setup error/timeout handlers
-        emitter.onError(e -> log.warn("SSE error: {}", e.getMessage()));
-        emitter.onTimeout(() -> log.warn("SSE timeout"));
+    private Mono<List<FacebookCheckLiveResponseDTO>> fanOut(List<String> uids, String body) {
+        JsonNode responses;
+        try {
+            responses = objectMapper.readTree(body);
+        } catch (Exception e) {
+            return Mono.error(new IllegalStateException("Invalid batch response: " + e.getMessage()));
+        }
+        if (!responses.isArray()) {
+            return Mono.error(new IllegalStateException("Unexpected batch response: " + body));
+        }
 
-        // Process all UIDs using reactive streams with flatMap for concurrency control
-        Flux.fromIterable(uids)
-                .flatMapSequential(uid -> checkSingleUidReactive(uid)
-                                .subscribeOn(Schedulers.boundedElastic()),
-                        MAX_CONCURRENT_REQUESTS) // Limit concurrent requests
-                .doOnNext(result -> {
-                    try {
-                        emitter.send(SseEmitter.event()
-                                .name("result")
-                                .data(result));
-                    } catch (IOException e) {
-                        log.error("Error sending SSE result: {}", e.getMessage());
+        return Flux.range(0, uids.size())
+                .concatMap(i -> {
+                    String uid = uids.get(i);
+                    JsonNode sub = responses.get(i);
+                    if (sub == null || sub.isNull()) {
+                        return checkSingleUidReactive(uid, true);
                     }
-
-                    // Check if all completed
-                    if (completed.incrementAndGet() == total) {
-                        sendCompleteEvent(emitter);
+                    try {
+                        FacebookCheckLiveResponseDTO result = toResponse(uid, sub.path("code").asInt(),
+                                sub.path("body").asText(""));
+                        return livenessCache.put("facebook", uid, result).thenReturn(result);
+                    } catch (IllegalStateException e) {
+                        return Mono.just(createErrorResponse(uid, e.getMessage()));
                     }
                 })
-                .doOnError(error -> {
-                    log.error("Stream error: {}", error.getMessage());
-                    completeEmitter(emitter);
-                })
-                .doOnComplete(() -> {
-                    log.info("Facebook check-live completed for {} UIDs", total);
-                })
-                .subscribe();
+                .collectList();
+    }
+
+    private Mono<List<FacebookCheckLiveResponseDTO>> fallbackToSingle(List<String> uids, String reason) {
+        log.warn("Facebook batch of {} UIDs failed, falling back to single requests: {}", uids.size(), reason);
+        return Flux.fromIterable(uids)
+                .flatMapSequential(uid -> checkSingleUidReactive(uid, true), MAX_CONCURRENT_REQUESTS)
+                .collectList();
+    }
+
+    /**
+     * Check a single Facebook UID, answered from the liveness cache when checked recently
+     * Transport errors, 429 and 5xx are reported but never cached
+     */
+    private Mono<FacebookCheckLiveResponseDTO> checkSingleUidReactive(String uid, boolean forceRecheck) {
+        if (!isValidUid(uid)) {
+            return Mono.just(createInvalidUidResponse(uid));
+        }
+        return livenessCache.getOrCheck("facebook", uid, FacebookCheckLiveResponseDTO.class, forceRecheck,
+                        () -> fetchUidStatus(uid))
+                .onErrorResume(Exception.class, e -> {
+                    log.debug("Error checking UID {}: {}", uid, e.getMessage());
+                    return Mono.just(createErrorResponse(uid, e.getMessage()));
+                });
     }
 
     /**
      * Check a single Facebook UID using WebClient (non-blocking)
      * Uses exchangeToMono to read response body even on error status codes
      */
-    private Mono<FacebookCheckLiveResponseDTO> checkSingleUidReactive(String uid) {
-        String url = String.format("https://graph.facebook.com/%s/picture?type=normal&redirect=false", uid);
+    private Mono<FacebookCheckLiveResponseDTO> fetchUidStatus(String uid) {
+        String url = String.format("%s/%s/picture?type=normal&redirect=false", graphUrl, uid);
 
         return webClient.get()
                 .uri(url)
@@ -98,33 +244,38 @@ public class FacebookServiceImpl implements FacebookService {
                     // Always read the body, regardless of status code
                     return response.bodyToMono(String.class)
                             .defaultIfEmpty("")
-                            .map(body -> {
-                                if (response.statusCode().is2xxSuccessful()) {
-                                    // Success response - check if valid profile picture
-                                    if (body.contains("height") || body.contains("width")) {
-                                        return FacebookCheckLiveResponseDTO.builder()
-                                                .uid(uid)
-                                                .status(CheckStatus.SUCCESS)
-                                                .build();
-                                    } else {
-                                        return FacebookCheckLiveResponseDTO.builder()
-                                                .uid(uid)
-                                                .status(CheckStatus.FAILED)
-                                                .build();
-                                    }
-                                } else {
-                                    // Error response - parse error message from body
-                                    log.debug("Facebook error for UID {}: {} - body: {}", uid, response.statusCode(), body);
-                                    return createErrorResponse(uid, body);
-                                }
-                            });
-                })
-                .onErrorResume(Exception.class, e -> {
-                    log.debug("Error checking UID {}: {}", uid, e.getMessage());
-                    return Mono.just(createErrorResponse(uid, e.getMessage()));
+                            .map(body -> toResponse(uid, response.statusCode().value(), body));
                 });
     }
 
+    /**
+     * Interpret a picture lookup (single GET or batch sub-response)
+     * Throws IllegalStateException on 429 / 5xx so the answer is never cached
+     */
+    private FacebookCheckLiveResponseDTO toResponse(String uid, int statusCode, String body) {
+        if (statusCode >= 200 && statusCode < 300) {
+            // Success response - check if valid profile picture
+            if (body.contains("height") || body.contains("width")) {
+                return FacebookCheckLiveResponseDTO.builder()
+                        .uid(uid)
+                        .status(CheckStatus.SUCCESS)
+                        .build();
+            } else {
+                return FacebookCheckLiveResponseDTO.builder()
+                        .uid(uid)
+                        .status(CheckStatus.FAILED)
+                        .build();
+            }
+        } else if (statusCode == 429 || statusCode >= 500) {
+            // Upstream overloaded: not an answer about the UID, keep it out of the cache
+            throw new IllegalStateException(body);
+        } else {
+            // Error response - parse error message from body
+            log.debug("Facebook error for UID {}: {} - body: {}", uid, statusCode, body);
+            return createErrorResponse(uid, body);
+        }
+    }
+
     /**
      * Create error response based on error message
      */
@@ -143,25 +294,30 @@ public class FacebookServiceImpl implements FacebookService {
                 .build();
     }
 
-    /**
-     * Send completion event and complete emitter
-     */
-    private void sendCompleteEvent(SseEmitter emitter) {
-        try {
-            emitter.send(SseEmitter.event().name("done").data("complete"));
-            emitter.complete();
-        } catch (Exception e) {
-            log.debug("Error sending complete event: {}", e.getMessage());
-        }
+    private static boolean isValidUid(String uid) {
+        return uid != null && UID_PATTERN.matcher(uid).matches();
+    }
+
+    private FacebookCheckLiveResponseDTO createInvalidUidResponse(String uid) {
+        return FacebookCheckLiveResponseDTO.builder()
+                .uid(uid)
+                .status(CheckStatus.FAILED)
+                .error("UID không hợp lệ")
+                .build();
+    }
+
+    private record UidCheck(String uid, FacebookCheckLiveResponseDTO result) {
     }
 
     /**
-     * Safely complete emitter
+     * Whole batch answered 429 / 5xx: Graph is overloaded, the UIDs were not checked
      */
-    private void completeEmitter(SseEmitter emitter) {
-        try {
-            emitter.complete();
-        } catch (Exception ignored) {
+    private static class BatchOverloadedException extends RuntimeException {
+        private final int status;
+
+        BatchOverloadedException(int status) {
+            super("Batch HTTP " + status);
+            this.status = status;
         }
     }
 }
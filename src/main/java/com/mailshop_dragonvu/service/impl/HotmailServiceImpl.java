@@ -4,25 +4,51 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.mailshop_dragonvu.dto.hotmail.*;
 import com.mailshop_dragonvu.service.HotmailService;
+import com.mailshop_dragonvu.service.LivenessCache;
+import com.mailshop_dragonvu.service.hotmail.EmailTypeRuleEngine;
+import com.mailshop_dragonvu.service.hotmail.GraphMessageStreamParser;
+import com.mailshop_dragonvu.service.hotmail.ImapConnectionPool;
+import com.mailshop_dragonvu.service.hotmail.ImapMessageFetcher;
+import com.mailshop_dragonvu.service.hotmail.MailIoScheduler;
+import com.mailshop_dragonvu.service.hotmail.MailboxSyncCache;
+import com.mailshop_dragonvu.service.hotmail.MicrosoftTokenCache;
+import com.mailshop_dragonvu.service.hotmail.ProtocolAffinityTable;
+import com.mailshop_dragonvu.service.job.ToolInputSpool;
 import jakarta.mail.*;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.eclipse.angus.mail.imap.IMAPFolder;
+import org.eclipse.angus.mail.imap.IMAPStore;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
 import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.client.ClientResponse;
 import org.springframework.web.reactive.function.client.WebClient;
-import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.Exceptions;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Schedulers;
 
 import java.io.IOException;
+import java.net.URI;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 /**
  * Implementation of HotmailService using WebClient for non-blocking HTTP requests
@@ -36,33 +62,160 @@ public class HotmailServiceImpl implements HotmailService {
 
     private final WebClient webClient;
     private final ObjectMapper objectMapper;
+    private final MicrosoftTokenCache tokenCache;
+    private final ImapConnectionPool imapConnectionPool;
+    private final MailIoScheduler mailIoScheduler;
+    private final EmailTypeRuleEngine emailTypeRuleEngine;
+    private final LivenessCache livenessCache;
+    private final ProtocolAffinityTable protocolAffinity;
+    private final ImapMessageFetcher imapMessageFetcher;
+    private final MailboxSyncCache mailboxSyncCache;
 
     // Concurrency limit for parallel requests
     private static final int MAX_CONCURRENT_REQUESTS = 20;
 
-    private static final String GRAPH_TOKEN_URL = "https://login.microsoftonline.com/common/oauth2/v2.0/token";
-    private static final String IMAP_TOKEN_URL = "https://login.live.com/oauth20_token.srf";
-    private static final String GRAPH_MESSAGES_URL = "https://graph.microsoft.com/v1.0/me/messages";
-    private static final String IMAP_HOST = "outlook.office365.com";
-    private static final int IMAP_PORT = 993;
+    private static final String GRAPH_MAILBOX_SELECT = "id,subject,from,bodyPreview,body,receivedDateTime,isRead,hasAttachments";
+    // Incremental reads: which messages are still there, and their read flag
+    private static final String GRAPH_MAILBOX_LISTING_SELECT = "id,receivedDateTime,isRead";
     private static final String DEFAULT_CLIENT_ID = "9e5f94bc-e8a4-4e73-b8be-63364c29d753";
 
-    // Regex pattern to extract 5-10 digit codes
-    private static final Pattern CODE_PATTERN = Pattern.compile("(\\d{5,10})");
-    
+    // Upstream endpoints, overridable to point at local stand-ins (load tests)
+    @Value("${app.hotmail.endpoints.graph-token-url:https://login.microsoftonline.com/common/oauth2/v2.0/token}")
+    private String graphTokenUrl;
+
+    @Value("${app.hotmail.endpoints.imap-token-url:https://login.live.com/oauth20_token.srf}")
+    private String imapTokenUrl;
+
+    @Value("${app.hotmail.endpoints.graph-api-url:https://graph.microsoft.com/v1.0}")
+    private String graphApiUrl;
+
+    // Get-code over Graph only looks at messages received in the last lookback-minutes (24 h by default).
+    // Before the $filter push-down the newest 50 messages were scanned whatever their age; a verification
+    // code older than a day has expired anyway. 0 turns the window off
+    @Value("${app.hotmail.graph.lookback-minutes:1440}")
+    private long graphLookbackMinutes;
+
+    @Value("${app.hotmail.graph.sender-filter-enabled:true}")
+    private boolean graphSenderFilterEnabled;
+
+    // IMAP get-code: newest messages whose envelopes are scanned
+    private static final int IMAP_SCAN_MESSAGES = 50;
+
+    // Per-line result when the mail I/O pool rejects the IMAP work (queue full or shutting down)
+    private static final String MAIL_IO_BUSY = "Error: mail I/O is busy, try again later";
+
+    // IMAP read-mail: preview length shown per message
+    private static final int PREVIEW_LENGTH = 200;
+
+    @Value("${app.hotmail.imap.body-peek-bytes:4096}")
+    private int imapBodyPeekBytes;
+
+    @Value("${app.hotmail.imap.preview-peek-bytes:1024}")
+    private int imapPreviewPeekBytes;
+
+    // Wait-for-code: how many of the newest messages are checked before subscribing
+    private static final int WAIT_CODE_INITIAL_SCAN_MESSAGES = 10;
+
+    @Value("${app.hotmail.wait-code.default-timeout-seconds:120}")
+    private int waitCodeDefaultTimeoutSeconds;
+
+    @Value("${app.hotmail.wait-code.max-timeout-seconds:540}")
+    private int waitCodeMaxTimeoutSeconds;
+
+    @Value("${app.hotmail.wait-code.lookback-seconds:60}")
+    private long waitCodeLookbackSeconds;
+
+    @Value("${app.hotmail.wait-code.poll-interval-ms:5000}")
+    private long waitCodePollIntervalMs;
+
+    @Value("${app.hotmail.wait-code.max-concurrent-mailboxes:200}")
+    private int waitCodeMaxConcurrentMailboxes;
+
     // Date formatter for response
     private static final java.time.format.DateTimeFormatter DATE_FORMATTER = 
         java.time.format.DateTimeFormatter.ofPattern("HH:mm - dd/MM/yyyy");
 
     // ==================== TOKEN REFRESH METHODS (WebClient) ====================
 
+    /**
+     * Get a Graph API access token, served from the token cache when still valid
+     */
+    private Mono<TokenResult> refreshAccessTokenGraphReactive(String refreshToken, String clientId) {
+        return refreshAccessTokenCached(refreshToken, clientId, MicrosoftTokenCache.ScopeFamily.GRAPH);
+    }
+
+    /**
+     * Get an IMAP access token, served from the token cache when still valid
+     */
+    private Mono<TokenResult> refreshAccessTokenImapReactive(String refreshToken, String clientId) {
+        return refreshAccessTokenCached(refreshToken, clientId, MicrosoftTokenCache.ScopeFamily.IMAP);
+    }
+
+    /**
+     * Try the protocol that last worked for this clientId + mailbox domain, then the other one
+     * An attempt that completes empty (no usable token) counts as a failure of that protocol
+     */
+    private <T> Mono<T> withProtocolAffinity(String clientId, String email,
+                                             Function<ProtocolAffinityTable.Protocol, Mono<T>> attempt) {
+        return protocolAffinity.preferred(clientId, email)
+                .flatMap(first -> tryProtocol(clientId, email, first, attempt)
+                        .switchIfEmpty(Mono.defer(() -> tryProtocol(clientId, email, first.other(), attempt))));
+    }
+
+    private <T> Mono<T> tryProtocol(String clientId, String email, ProtocolAffinityTable.Protocol protocol,
+                                    Function<ProtocolAffinityTable.Protocol, Mono<T>> attempt) {
+        return Mono.defer(() -> attempt.apply(protocol))
+                .doOnNext(result -> protocolAffinity.recordSuccess(clientId, email, protocol))
+                .switchIfEmpty(Mono.fromRunnable(() -> protocolAffinity.recordFailure(clientId, email, protocol)));
+    }
+
+    /**
+     * Cache lookup, then refresh with the newest rotated refresh token
+     * Falls back to the original refresh token if the rotated one was rejected
+     */
+    private Mono<TokenResult> refreshAccessTokenCached(String refreshToken, String clientId,
+                                                       MicrosoftTokenCache.ScopeFamily family) {
+        String credentialId = MicrosoftTokenCache.credentialId(refreshToken, clientId);
+        MicrosoftTokenCache.CachedToken cached = tokenCache.get(refreshToken, clientId, family);
+        if (cached != null) {
+            return Mono.just(TokenResult.from(cached, credentialId));
+        }
+
+        // Lines of the same mailbox that miss the cache together share one token request
+        return tokenCache.refreshOnce(refreshToken, clientId, family, () -> {
+            MicrosoftTokenCache.CachedToken refreshed = tokenCache.get(refreshToken, clientId, family);
+            if (refreshed != null) {
+                return Mono.just(TokenResult.from(refreshed, credentialId));
+            }
+
+            String latestRefreshToken = tokenCache.latestRefreshToken(refreshToken, clientId);
+            Mono<TokenResult> refresh = requestAccessToken(latestRefreshToken, clientId, family);
+            if (!latestRefreshToken.equals(refreshToken)) {
+                refresh = refresh.switchIfEmpty(Mono.defer(() -> {
+                    tokenCache.invalidateRotation(refreshToken, clientId);
+                    return requestAccessToken(refreshToken, clientId, family);
+                }));
+            }
+
+            return refresh.map(token -> TokenResult.from(tokenCache.put(refreshToken, clientId, family,
+                    token.accessToken, token.newRefreshToken, token.isGraphToken, token.expiresIn), credentialId));
+        });
+    }
+
+    private Mono<TokenResult> requestAccessToken(String refreshToken, String clientId,
+                                                 MicrosoftTokenCache.ScopeFamily family) {
+        return family == MicrosoftTokenCache.ScopeFamily.GRAPH
+                ? requestGraphToken(refreshToken, clientId)
+                : requestImapToken(refreshToken, clientId);
+    }
+
     /**
      * Refresh token for Graph API using WebClient (non-blocking)
      * Returns new access_token AND new refresh_token
      */
-    private Mono<TokenResult> refreshAccessTokenGraphReactive(String refreshToken, String clientId) {
+    private Mono<TokenResult> requestGraphToken(String refreshToken, String clientId) {
         return webClient.post()
-                .uri(GRAPH_TOKEN_URL)
+                .uri(graphTokenUrl)
                 .contentType(MediaType.APPLICATION_FORM_URLENCODED)
                 .body(BodyInserters.fromFormData("client_id", clientId)
                         .with("refresh_token", refreshToken)
@@ -76,8 +229,9 @@ public class HotmailServiceImpl implements HotmailService {
                                         JsonNode json = objectMapper.readTree(body);
                                         String accessToken = json.path("access_token").asText();
                                         String newRefreshToken = json.path("refresh_token").asText();
+                                        long expiresIn = json.path("expires_in").asLong(0);
                                         boolean isGraphToken = body.contains("Mail.Read") || body.contains("Mail.ReadWrite");
-                                        return new TokenResult(accessToken, newRefreshToken, isGraphToken);
+                                        return new TokenResult(accessToken, newRefreshToken, isGraphToken, expiresIn);
                                     } catch (Exception e) {
                                         log.warn("Failed to parse Graph token response: {}", e.getMessage());
                                         return null;
@@ -99,9 +253,9 @@ public class HotmailServiceImpl implements HotmailService {
      * Refresh token for IMAP using WebClient (non-blocking)
      * Returns new access_token AND new refresh_token
      */
-    private Mono<TokenResult> refreshAccessTokenImapReactive(String refreshToken, String clientId) {
+    private Mono<TokenResult> requestImapToken(String refreshToken, String clientId) {
         return webClient.post()
-                .uri(IMAP_TOKEN_URL)
+                .uri(imapTokenUrl)
                 .contentType(MediaType.APPLICATION_FORM_URLENCODED)
                 .body(BodyInserters.fromFormData("client_id", clientId)
                         .with("refresh_token", refreshToken)
@@ -114,7 +268,8 @@ public class HotmailServiceImpl implements HotmailService {
                                         JsonNode json = objectMapper.readTree(body);
                                         String accessToken = json.path("access_token").asText();
                                         String newRefreshToken = json.path("refresh_token").asText();
-                                        return new TokenResult(accessToken, newRefreshToken, false);
+                                        long expiresIn = json.path("expires_in").asLong(0);
+                                        return new TokenResult(accessToken, newRefreshToken, false, expiresIn);
                                     } catch (Exception e) {
                                         log.warn("Failed to parse IMAP token response: {}", e.getMessage());
                                         return null;
@@ -136,15 +291,25 @@ public class HotmailServiceImpl implements HotmailService {
 
     /**
      * Read emails using Microsoft Graph API (non-blocking with WebClient)
+     * Filtering by received date / sender and field projection are done server-side
      */
     private Mono<HotmailGetCodeResponseDTO> readMailByGraphReactive(String accessToken, String emailAddr, String password, List<String> emailTypes) {
+        List<String> senders = graphSenderFilterEnabled ? emailTypeRuleEngine.knownSenders(emailTypes) : List.of();
+        return readMailByGraphReactive(accessToken, emailAddr, password, emailTypes, senders);
+    }
+
+    private Mono<HotmailGetCodeResponseDTO> readMailByGraphReactive(String accessToken, String emailAddr, String password,
+                                                                   List<String> emailTypes, List<String> senders) {
         return webClient.get()
-                .uri(GRAPH_MESSAGES_URL + "?$top=50&$orderby=receivedDateTime desc")
+                .uri(buildGraphCodeQueryUri(senders))
                 .headers(h -> h.setBearerAuth(accessToken))
                 .exchangeToMono(response -> {
                     if (response.statusCode().is2xxSuccessful()) {
-                        return response.bodyToMono(String.class)
-                                .map(body -> parseGraphMessages(body, emailAddr, password, emailTypes));
+                        return parseGraphMessages(response, emailAddr, password, emailTypes);
+                    } else if (response.statusCode().value() == 400 && !senders.isEmpty()) {
+                        // Mailbox rejected the sender filter - retry with the date filter only
+                        return response.releaseBody()
+                                .then(readMailByGraphReactive(accessToken, emailAddr, password, emailTypes, List.of()));
                     } else {
                         return response.bodyToMono(String.class)
                                 .doOnNext(body -> log.debug("Graph messages read failed: {} - {}", response.statusCode(), body))
@@ -158,80 +323,132 @@ public class HotmailServiceImpl implements HotmailService {
     }
 
     /**
-     * Parse Graph API messages response
+     * Build the get-code query: only subject/from/receivedDateTime, received inside the look-back window,
+     * optionally restricted to known sender addresses
+     * receivedDateTime must come first in $filter because it is also the $orderby property
      */
-    private HotmailGetCodeResponseDTO parseGraphMessages(String responseBody, String emailAddr, String password, List<String> emailTypes) {
-        try {
-            JsonNode json = objectMapper.readTree(responseBody);
-            JsonNode messages = json.path("value");
+    private URI buildGraphCodeQueryUri(List<String> senders) {
+        StringBuilder filter = new StringBuilder();
+        if (graphLookbackMinutes > 0) {
+            Instant since = Instant.now().minus(graphLookbackMinutes, ChronoUnit.MINUTES).truncatedTo(ChronoUnit.SECONDS);
+            filter.append("receivedDateTime ge ").append(since);
+        }
+        if (!senders.isEmpty()) {
+            if (filter.length() > 0) {
+                filter.append(" and ");
+            }
+            filter.append('(');
+            for (int i = 0; i < senders.size(); i++) {
+                if (i > 0) {
+                    filter.append(" or ");
+                }
+                filter.append("from/emailAddress/address eq ").append(odataString(senders.get(i)));
+            }
+            filter.append(')');
+        }
 
-            for (JsonNode msg : messages) {
-                String fromAddr = msg.path("from").path("emailAddress").path("address").asText();
-                String subject = msg.path("subject").asText();
-                String receivedDateTime = msg.path("receivedDateTime").asText();
+        UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(graphApiUrl + "/me/messages")
+                .queryParam("$top", 50)
+                .queryParam("$select", "subject,from,receivedDateTime")
+                .queryParam("$orderby", "receivedDateTime desc");
+        if (filter.length() > 0) {
+            builder.queryParam("$filter", filter.toString());
+        }
+        return builder.encode().build().toUri();
+    }
 
-                // Filter by email types
-                if (!matchesEmailTypes(fromAddr, subject, emailTypes)) {
-                    continue;
-                }
+    /**
+     * OData string literal: single quotes around, embedded quotes doubled
+     */
+    private static String odataString(String value) {
+        return "'" + value.replace("'", "''") + "'";
+    }
 
-                // Extract code from subject
-                String code = extractCode(subject);
-                if (code != null && !code.isEmpty()) {
-                    LocalDateTime dateTime = parseDateTime(receivedDateTime);
-                    String formattedDate = dateTime != null ? dateTime.format(DATE_FORMATTER) : "";
-                    
-                    return HotmailGetCodeResponseDTO.builder()
-                            .email(emailAddr)
-                            .password(password)
-                            .status(true)
-                            .code(code)
-                            .content(subject)
-                            .date(formattedDate)
-                            .build();
-                }
+    /**
+     * Parse Graph API messages response while it streams in
+     * Stops parsing at the first message that yields a code
+     */
+    private Mono<HotmailGetCodeResponseDTO> parseGraphMessages(ClientResponse response, String emailAddr, String password, List<String> emailTypes) {
+        AtomicReference<HotmailGetCodeResponseDTO> found = new AtomicReference<>();
+        return streamGraphMessages(response, msg -> {
+            // Filter by email types and extract code from subject
+            String code = emailTypeRuleEngine.findCode(msg.getFromAddress(), msg.getSubject(), emailTypes);
+            if (code == null || code.isEmpty()) {
+                return false;
             }
-        } catch (Exception e) {
-            log.error("Error parsing Graph messages: {}", e.getMessage());
-        }
 
-        return createNoCodeResult(emailAddr, password);
+            LocalDateTime dateTime = parseDateTime(msg.getReceivedDateTime());
+            String formattedDate = dateTime != null ? dateTime.format(DATE_FORMATTER) : "";
+            found.set(HotmailGetCodeResponseDTO.builder()
+                    .email(emailAddr)
+                    .password(password)
+                    .status(true)
+                    .code(code)
+                    .content(msg.getSubject())
+                    .date(formattedDate)
+                    .build());
+            return true;
+        }).then(Mono.fromSupplier(() -> found.get() != null ? found.get() : createNoCodeResult(emailAddr, password)));
+    }
+
+    /**
+     * Feed the response body to a {@link GraphMessageStreamParser} chunk by chunk
+     * The body is always read to the end (keeps the pooled connection reusable), parsing stops when the visitor returns true
+     */
+    private Mono<Void> streamGraphMessages(ClientResponse response, Predicate<GraphMessageStreamParser.GraphMessage> visitor) {
+        return Mono.defer(() -> {
+            GraphMessageStreamParser parser;
+            try {
+                parser = new GraphMessageStreamParser(objectMapper.getFactory(), visitor);
+            } catch (IOException e) {
+                return Mono.error(e);
+            }
+
+            return response.bodyToFlux(DataBuffer.class)
+                    .doOnNext(buffer -> {
+                        try {
+                            parser.feed(buffer);
+                        } catch (IOException e) {
+                            throw Exceptions.propagate(e);
+                        } finally {
+                            DataBufferUtils.release(buffer);
+                        }
+                    })
+                    .then(Mono.fromCallable(() -> {
+                        parser.finish();
+                        return true;
+                    }))
+                    .then();
+        });
     }
 
     /**
      * Read emails using IMAP with OAuth2 (blocking - wrapped in Mono)
-     * IMAP operations are inherently blocking, so we run on boundedElastic scheduler
+     * IMAP operations are inherently blocking, so we run on the dedicated mail I/O scheduler
      */
-    private Mono<HotmailGetCodeResponseDTO> readMailByImapReactive(String emailAddr, String password, String accessToken, List<String> emailTypes) {
-        return Mono.fromCallable(() -> readMailByImapBlocking(emailAddr, password, accessToken, emailTypes))
-                .subscribeOn(Schedulers.boundedElastic());
+    private Mono<HotmailGetCodeResponseDTO> readMailByImapReactive(String emailAddr, String password, TokenResult token, List<String> emailTypes) {
+        return Mono.fromCallable(() -> readMailByImapBlocking(emailAddr, password, token, emailTypes))
+                .subscribeOn(mailIoScheduler.scheduler())
+                .onErrorResume(RejectedExecutionException.class, e -> {
+                    logMailIoRejected(emailAddr);
+                    return Mono.just(createMailIoBusyResult(emailAddr, password));
+                });
     }
 
     /**
-     * Blocking IMAP read operation
+     * Blocking IMAP read operation on a pooled connection
      */
-    private HotmailGetCodeResponseDTO readMailByImapBlocking(String emailAddr, String password, String accessToken, List<String> emailTypes) {
-        Store store = null;
-        Folder inbox = null;
+    private HotmailGetCodeResponseDTO readMailByImapBlocking(String emailAddr, String password, TokenResult token, List<String> emailTypes) {
+        ImapConnectionPool.PooledConnection connection = null;
 
         try {
-            Properties props = new Properties();
-            props.put("mail.store.protocol", "imaps");
-            props.put("mail.imaps.host", IMAP_HOST);
-            props.put("mail.imaps.port", String.valueOf(IMAP_PORT));
-            props.put("mail.imaps.ssl.enable", "true");
-            props.put("mail.imaps.auth.mechanisms", "XOAUTH2");
-
-            Session session = Session.getInstance(props);
-            store = session.getStore("imaps");
-            store.connect(IMAP_HOST, emailAddr, accessToken);
-
-            inbox = store.getFolder("INBOX");
-            inbox.open(Folder.READ_ONLY);
+            connection = imapConnectionPool.borrow(emailAddr, token.credentialId, token.accessToken, token.expiresAt());
+            Folder inbox = connection.getFolder();
 
+            // Envelopes + UIDs of the whole range in one FETCH, bodies only for matching envelopes
             int messageCount = inbox.getMessageCount();
-            int start = Math.max(1, messageCount - 49);
-            Message[] messages = inbox.getMessages(start, messageCount);
+            int start = Math.max(1, messageCount - IMAP_SCAN_MESSAGES + 1);
+            Message[] messages = imapMessageFetcher.fetchEnvelopes(inbox, start, messageCount, false);
 
             for (int i = messages.length - 1; i >= 0; i--) {
                 Message msg = messages[i];
@@ -239,11 +456,8 @@ public class HotmailServiceImpl implements HotmailService {
                 String from = getFromAddress(msg);
                 Date sentDate = msg.getSentDate();
 
-                if (!matchesEmailTypes(from, subject, emailTypes)) {
-                    continue;
-                }
-
-                String code = extractCode(subject);
+                String code = emailTypeRuleEngine.findCode(from, subject, emailTypes,
+                        () -> imapMessageFetcher.peekText(inbox, msg, imapBodyPeekBytes));
                 if (code != null && !code.isEmpty()) {
                     String formattedDate = "";
                     if (sentDate != null) {
@@ -264,11 +478,10 @@ public class HotmailServiceImpl implements HotmailService {
 
         } catch (Exception e) {
             log.error("Error reading mail by IMAP: {}", e.getMessage());
+            imapConnectionPool.invalidate(connection);
+            connection = null;
         } finally {
-            try {
-                if (inbox != null && inbox.isOpen()) inbox.close(false);
-                if (store != null && store.isConnected()) store.close();
-            } catch (Exception ignored) {}
+            imapConnectionPool.release(connection);
         }
 
         return createNoCodeResult(emailAddr, password);
@@ -286,55 +499,24 @@ public class HotmailServiceImpl implements HotmailService {
                 .build();
     }
 
-    // ==================== HELPER METHODS ====================
-
     /**
-     * Check if email matches any of the specified type filters
+     * Result for a line whose IMAP work was refused by a full mail I/O pool (checkStatus UNKNOWN: retry later)
      */
-    private boolean matchesEmailTypes(String from, String subject, List<String> emailTypes) {
-        if (emailTypes == null || emailTypes.isEmpty() || emailTypes.contains("Auto")) {
-            return true;
-        }
-        
-        String combined = (from + " " + subject).toLowerCase();
-        
-        for (String type : emailTypes) {
-            String typeLower = type.toLowerCase();
-            boolean matches = switch (typeLower) {
-                case "facebook" -> combined.contains("facebook") || combined.contains("fb.com");
-                case "instagram" -> combined.contains("instagram");
-                case "twitter" -> combined.contains("twitter") || combined.contains("x.com");
-                case "apple" -> combined.contains("apple");
-                case "tiktok" -> combined.contains("tiktok");
-                case "amazon" -> combined.contains("amazon");
-                case "lazada" -> combined.contains("lazada");
-                case "shopee" -> combined.contains("shopee");
-                case "kakaotalk" -> combined.contains("kakao");
-                case "telegram" -> combined.contains("telegram");
-                case "google" -> combined.contains("google");
-                case "wechat" -> combined.contains("wechat") || combined.contains("weixin");
-                default -> true;
-            };
-            if (matches) return true;
-        }
-        
-        return false;
+    private HotmailGetCodeResponseDTO createMailIoBusyResult(String emailAddr, String password) {
+        return HotmailGetCodeResponseDTO.builder()
+                .email(emailAddr)
+                .password(password)
+                .status(false)
+                .content(MAIL_IO_BUSY)
+                .build();
     }
 
-    /**
-     * Extract verification code from text using regex
-     */
-    private String extractCode(String text) {
-        if (text == null || text.isEmpty()) {
-            return null;
-        }
-        Matcher matcher = CODE_PATTERN.matcher(text);
-        if (matcher.find()) {
-            return matcher.group(1);
-        }
-        return null;
+    private void logMailIoRejected(String emailAddr) {
+        log.warn("Mail I/O pool is full, IMAP work for {} was rejected", emailAddr);
     }
 
+    // ==================== HELPER METHODS ====================
+
     /**
      * Get from address from message
      */
@@ -365,68 +547,27 @@ public class HotmailServiceImpl implements HotmailService {
         }
     }
 
-    // ==================== SSE STREAMING METHODS (Reactive) ====================
+    // ==================== STREAMING METHODS (Reactive) ====================
 
     /**
-     * Get verification code with SSE streaming using reactive Flux
+     * Get verification code as a reactive Flux (one result per line)
      */
     @Override
-    public void getCodeStream(HotmailGetCodeRequestDTO request, SseEmitter emitter) {
-        if (request.getEmailData() == null || request.getEmailData().isEmpty()) {
-            completeEmitter(emitter);
-            return;
-        }
-
-        List<String> emailLines = Arrays.stream(request.getEmailData().trim().split("\\n"))
-                .map(String::trim)
-                .filter(line -> !line.isEmpty())
-                .toList();
-
-        if (emailLines.isEmpty()) {
-            completeEmitter(emitter);
-            return;
-        }
-
-        AtomicInteger completed = new AtomicInteger(0);
-        int total = emailLines.size();
+    public Flux<HotmailGetCodeResponseDTO> getCodeStream(HotmailGetCodeRequestDTO request) {
+        return getCodeStream(request, ToolInputSpool.lines(request.getEmailData()));
+    }
 
-        // Setup error/timeout handlers
-        emitter.onError(e -> log.warn("SSE error: {}", e.getMessage()));
-        emitter.onTimeout(() -> log.warn("SSE timeout"));
+    @Override
+    public Flux<HotmailGetCodeResponseDTO> getCodeStream(HotmailGetCodeRequestDTO request, Flux<String> emailLines) {
+        AtomicInteger processed = new AtomicInteger();
 
-        // Process all emails using reactive streams with concurrency control
-        Flux.fromIterable(emailLines)
-                .flatMapSequential(line -> processGetCodeSingleEmailReactive(line, request)
-                                .subscribeOn(Schedulers.boundedElastic()),
+        // Process all emails using reactive streams with concurrency control (lines are pulled as slots free up)
+        return emailLines
+                .flatMapSequential(line -> processGetCodeSingleEmailReactive(line, request),
                         MAX_CONCURRENT_REQUESTS)
-                .doOnNext(result -> {
-                    // Set CheckStatus based on result
-                    if (result.isStatus() && result.getCode() != null && !result.getCode().isEmpty()) {
-                        result.setCheckStatus(CheckStatus.SUCCESS);
-                    } else if (result.getContent() != null && result.getContent().contains("Error")) {
-                        result.setCheckStatus(CheckStatus.UNKNOWN);
-                    } else {
-                        result.setCheckStatus(CheckStatus.FAILED);
-                    }
-
-                    try {
-                        emitter.send(SseEmitter.event()
-                                .name("result")
-                                .data(result));
-                    } catch (IOException e) {
-                        log.error("Error sending SSE for get-code: {}", e.getMessage());
-                    }
-
-                    if (completed.incrementAndGet() == total) {
-                        sendCompleteEvent(emitter);
-                    }
-                })
-                .doOnError(error -> {
-                    log.error("Stream error: {}", error.getMessage());
-                    completeEmitter(emitter);
-                })
-                .doOnComplete(() -> log.info("Get-code completed for {} emails", total))
-                .subscribe();
+                .doOnNext(this::applyCodeCheckStatus)
+                .doOnNext(result -> processed.incrementAndGet())
+                .doOnComplete(() -> log.info("Get-code completed for {} emails", processed.get()));
     }
 
     /**
@@ -459,37 +600,25 @@ public class HotmailServiceImpl implements HotmailService {
             }
             final List<String> finalEmailTypes = emailTypes;
 
-            // Try Graph API first
+            // Graph API or IMAP OAuth, whichever last worked for this clientId + domain first
             if ("Oauth2".equalsIgnoreCase(request.getGetType()) || "Graph API".equalsIgnoreCase(request.getGetType())) {
-                return refreshAccessTokenGraphReactive(refreshToken, clientId)
-                        .flatMap(graphToken -> {
-                            if (graphToken != null && graphToken.isGraphToken) {
-                                log.info("Reading mail using Graph API for: {}", emailAddr);
-                                return readMailByGraphReactive(graphToken.accessToken, emailAddr, password, finalEmailTypes)
-                                        .map(result -> {
-                                            result.setRefreshToken(refreshToken);
-                                            result.setClientId(clientId);
-                                            return result;
-                                        });
-                            }
-                            return Mono.empty();
+                return withProtocolAffinity(clientId, emailAddr, protocol -> protocol == ProtocolAffinityTable.Protocol.GRAPH
+                        ? refreshAccessTokenGraphReactive(refreshToken, clientId)
+                                .filter(graphToken -> graphToken.isGraphToken)
+                                .flatMap(graphToken -> {
+                                    log.info("Reading mail using Graph API for: {}", emailAddr);
+                                    return readMailByGraphReactive(graphToken.accessToken, emailAddr, password, finalEmailTypes);
+                                })
+                        : refreshAccessTokenImapReactive(refreshToken, clientId)
+                                .flatMap(imapToken -> {
+                                    log.info("Reading mail using IMAP OAuth for: {}", emailAddr);
+                                    return readMailByImapReactive(emailAddr, password, imapToken, finalEmailTypes);
+                                }))
+                        .map(result -> {
+                            result.setRefreshToken(refreshToken);
+                            result.setClientId(clientId);
+                            return result;
                         })
-                        .switchIfEmpty(
-                            // Fallback to IMAP with OAuth
-                            refreshAccessTokenImapReactive(refreshToken, clientId)
-                                    .flatMap(imapToken -> {
-                                        if (imapToken != null) {
-                                            log.info("Reading mail using IMAP OAuth for: {}", emailAddr);
-                                            return readMailByImapReactive(emailAddr, password, imapToken.accessToken, finalEmailTypes)
-                                                    .map(result -> {
-                                                        result.setRefreshToken(refreshToken);
-                                                        result.setClientId(clientId);
-                                                        return result;
-                                                    });
-                                        }
-                                        return Mono.empty();
-                                    })
-                        )
                         .switchIfEmpty(Mono.just(HotmailGetCodeResponseDTO.builder()
                                 .email(emailAddr)
                                 .password(password)
@@ -525,63 +654,24 @@ public class HotmailServiceImpl implements HotmailService {
     }
 
     /**
-     * Check live mail with SSE streaming using reactive Flux
+     * Check live mail as a reactive Flux (one result per line)
      */
     @Override
-    public void checkLiveMailStream(String emailData, SseEmitter emitter) {
-        if (emailData == null || emailData.isEmpty()) {
-            completeEmitter(emitter);
-            return;
-        }
-
-        List<String> emailLines = Arrays.stream(emailData.trim().split("\\n"))
-                .map(String::trim)
-                .filter(line -> !line.isEmpty())
-                .toList();
-
-        if (emailLines.isEmpty()) {
-            completeEmitter(emitter);
-            return;
-        }
-
-        AtomicInteger completed = new AtomicInteger(0);
-        int total = emailLines.size();
+    public Flux<CheckLiveMailResponseDTO> checkLiveMailStream(String emailData, boolean forceRecheck) {
+        return checkLiveMailStream(ToolInputSpool.lines(emailData), forceRecheck);
+    }
 
-        emitter.onError(e -> log.warn("SSE error: {}", e.getMessage()));
-        emitter.onTimeout(() -> log.warn("SSE timeout"));
+    @Override
+    public Flux<CheckLiveMailResponseDTO> checkLiveMailStream(Flux<String> emailLines, boolean forceRecheck) {
+        AtomicInteger processed = new AtomicInteger();
 
-        Flux.fromIterable(emailLines)
-                .flatMapSequential(line -> checkLiveSingleMailReactive(line)
-                                .subscribeOn(Schedulers.boundedElastic()),
+        return emailLines
+                .flatMapSequential(line -> livenessCache.getOrCheck("hotmail", livenessIdentity(line),
+                                CheckLiveMailResponseDTO.class, forceRecheck,
+                                () -> checkLiveSingleMailReactive(line).doOnNext(this::applyLiveCheckStatus)),
                         MAX_CONCURRENT_REQUESTS)
-                .doOnNext(result -> {
-                    // Set CheckStatus based on isLive and error
-                    if (result.isLive()) {
-                        result.setStatus(CheckStatus.SUCCESS);
-                    } else if (result.getError() != null && (result.getError().contains("Error") || result.getError().contains("exception"))) {
-                        result.setStatus(CheckStatus.UNKNOWN);
-                    } else {
-                        result.setStatus(CheckStatus.FAILED);
-                    }
-
-                    try {
-                        emitter.send(SseEmitter.event()
-                                .name("result")
-                                .data(result));
-                    } catch (IOException e) {
-                        log.error("Error sending SSE for check-live-mail: {}", e.getMessage());
-                    }
-
-                    if (completed.incrementAndGet() == total) {
-                        sendCompleteEvent(emitter);
-                    }
-                })
-                .doOnError(error -> {
-                    log.error("Stream error: {}", error.getMessage());
-                    completeEmitter(emitter);
-                })
-                .doOnComplete(() -> log.info("Check-live-mail completed for {} emails", total))
-                .subscribe();
+                .doOnNext(result -> processed.incrementAndGet())
+                .doOnComplete(() -> log.info("Check-live-mail completed for {} emails", processed.get()));
     }
 
     /**
@@ -606,9 +696,11 @@ public class HotmailServiceImpl implements HotmailService {
             String refreshToken = parts[2].trim();
             String clientId = parts.length > 3 && !parts[3].isEmpty() ? parts[3].trim() : DEFAULT_CLIENT_ID;
 
-            // Try to refresh token - if successful, email is live
-            return refreshAccessTokenGraphReactive(refreshToken, clientId)
-                    .filter(token -> token != null && token.accessToken != null && !token.accessToken.isEmpty())
+            // Try to refresh token (Graph or IMAP, last working protocol first) - if successful, email is live
+            return withProtocolAffinity(clientId, email, protocol -> (protocol == ProtocolAffinityTable.Protocol.GRAPH
+                            ? refreshAccessTokenGraphReactive(refreshToken, clientId)
+                            : refreshAccessTokenImapReactive(refreshToken, clientId))
+                            .filter(token -> token.accessToken != null && !token.accessToken.isEmpty()))
                     .map(token -> CheckLiveMailResponseDTO.builder()
                             .email(email)
                             .password(password)
@@ -616,18 +708,6 @@ public class HotmailServiceImpl implements HotmailService {
                             .clientId(clientId)
                             .isLive(true)
                             .build())
-                    .switchIfEmpty(
-                        // Try IMAP token as fallback
-                        refreshAccessTokenImapReactive(refreshToken, clientId)
-                                .filter(token -> token != null && token.accessToken != null && !token.accessToken.isEmpty())
-                                .map(token -> CheckLiveMailResponseDTO.builder()
-                                        .email(email)
-                                        .password(password)
-                                        .refreshToken(refreshToken)
-                                        .clientId(clientId)
-                                        .isLive(true)
-                                        .build())
-                    )
                     .switchIfEmpty(Mono.just(CheckLiveMailResponseDTO.builder()
                             .email(email)
                             .password(password)
@@ -648,13 +728,12 @@ public class HotmailServiceImpl implements HotmailService {
     }
 
     /**
-     * Get OAuth2 token with SSE streaming using reactive Flux
+     * Get OAuth2 token as a reactive Flux (one result per line)
      */
     @Override
-    public void getOAuth2Stream(String emailData, SseEmitter emitter) {
+    public Flux<GetOAuth2ResponseDTO> getOAuth2Stream(String emailData) {
         if (emailData == null || emailData.isEmpty()) {
-            completeEmitter(emitter);
-            return;
+            return Flux.empty();
         }
 
         List<String> emailLines = Arrays.stream(emailData.trim().split("\\n"))
@@ -662,20 +741,8 @@ public class HotmailServiceImpl implements HotmailService {
                 .filter(line -> !line.isEmpty())
                 .toList();
 
-        if (emailLines.isEmpty()) {
-            completeEmitter(emitter);
-            return;
-        }
-
-        AtomicInteger completed = new AtomicInteger(0);
-        int total = emailLines.size();
-
-        emitter.onError(e -> log.warn("SSE error: {}", e.getMessage()));
-        emitter.onTimeout(() -> log.warn("SSE timeout"));
-
-        Flux.fromIterable(emailLines)
-                .flatMapSequential(line -> getOAuth2ForSingleMailReactive(line)
-                                .subscribeOn(Schedulers.boundedElastic()),
+        return Flux.fromIterable(emailLines)
+                .flatMapSequential(line -> getOAuth2ForSingleMailReactive(line),
                         MAX_CONCURRENT_REQUESTS)
                 .doOnNext(result -> {
                     // Set CheckStatus based on success and error
@@ -686,25 +753,8 @@ public class HotmailServiceImpl implements HotmailService {
                     } else {
                         result.setStatus(CheckStatus.FAILED);
                     }
-
-                    try {
-                        emitter.send(SseEmitter.event()
-                                .name("result")
-                                .data(result));
-                    } catch (IOException e) {
-                        log.error("Error sending SSE for get-oauth2: {}", e.getMessage());
-                    }
-
-                    if (completed.incrementAndGet() == total) {
-                        sendCompleteEvent(emitter);
-                    }
-                })
-                .doOnError(error -> {
-                    log.error("Stream error: {}", error.getMessage());
-                    completeEmitter(emitter);
                 })
-                .doOnComplete(() -> log.info("Get-oauth2 completed for {} emails", total))
-                .subscribe();
+                .doOnComplete(() -> log.info("Get-oauth2 completed for {} emails", emailLines.size()));
     }
 
     /**
@@ -788,79 +838,63 @@ public class HotmailServiceImpl implements HotmailService {
     // ==================== UTILITY METHODS ====================
 
     /**
-     * Send completion event and complete emitter
+     * Set CheckStatus of a check-live-mail result based on isLive and error
      */
-    private void sendCompleteEvent(SseEmitter emitter) {
-        try {
-            emitter.send(SseEmitter.event().name("done").data("complete"));
-            emitter.complete();
-        } catch (Exception e) {
-            log.debug("Error sending complete event: {}", e.getMessage());
+    private void applyLiveCheckStatus(CheckLiveMailResponseDTO result) {
+        if (result.isLive()) {
+            result.setStatus(CheckStatus.SUCCESS);
+        } else if (result.getError() != null && (result.getError().contains("Error") || result.getError().contains("exception"))) {
+            result.setStatus(CheckStatus.UNKNOWN);
+        } else {
+            result.setStatus(CheckStatus.FAILED);
         }
     }
 
     /**
-     * Safely complete emitter
+     * Liveness cache identity of a mailbox line: email + refresh token + client id (password excluded)
      */
-    private void completeEmitter(SseEmitter emitter) {
-        try {
-            emitter.complete();
-        } catch (Exception ignored) {
+    private String livenessIdentity(String emailLine) {
+        String[] parts = emailLine.split("\\|");
+        if (parts.length < 3) {
+            return emailLine;
         }
+        String clientId = parts.length > 3 && !parts[3].isEmpty() ? parts[3].trim() : DEFAULT_CLIENT_ID;
+        return parts[0].trim().toLowerCase() + "|" + parts[2].trim() + "|" + clientId;
     }
 
-    // ==================== READ MAIL STREAM ====================
-
     /**
-     * Read mailbox with SSE streaming using reactive Flux
+     * Set CheckStatus of a get-code / wait-code result
      */
-    @Override
-    public void readMailStream(ReadMailRequestDTO request, SseEmitter emitter) {
-        if (request.getEmailData() == null || request.getEmailData().isEmpty()) {
-            completeEmitter(emitter);
-            return;
+    private void applyCodeCheckStatus(HotmailGetCodeResponseDTO result) {
+        if (result.isStatus() && result.getCode() != null && !result.getCode().isEmpty()) {
+            result.setCheckStatus(CheckStatus.SUCCESS);
+        } else if (result.getContent() != null && result.getContent().contains("Error")) {
+            result.setCheckStatus(CheckStatus.UNKNOWN);
+        } else {
+            result.setCheckStatus(CheckStatus.FAILED);
         }
+    }
 
-        List<String> emailLines = Arrays.stream(request.getEmailData().trim().split("\\n"))
-                .map(String::trim)
-                .filter(line -> !line.isEmpty())
-                .toList();
+    // ==================== READ MAIL STREAM ====================
 
-        if (emailLines.isEmpty()) {
-            completeEmitter(emitter);
-            return;
-        }
+    /**
+     * Read mailbox as a reactive Flux (one result per line)
+     */
+    @Override
+    public Flux<ReadMailResponseDTO> readMailStream(ReadMailRequestDTO request) {
+        return readMailStream(request, ToolInputSpool.lines(request.getEmailData()));
+    }
 
-        AtomicInteger completed = new AtomicInteger(0);
-        int total = emailLines.size();
+    @Override
+    public Flux<ReadMailResponseDTO> readMailStream(ReadMailRequestDTO request, Flux<String> emailLines) {
         int messageCount = request.getMessageCount() > 0 ? request.getMessageCount() : 20;
+        AtomicInteger processed = new AtomicInteger();
 
-        emitter.onError(e -> log.warn("SSE error: {}", e.getMessage()));
-        emitter.onTimeout(() -> log.warn("SSE timeout"));
-
-        Flux.fromIterable(emailLines)
-                .flatMapSequential(line -> readMailForSingleEmailReactive(line, messageCount)
-                                .subscribeOn(Schedulers.boundedElastic()),
+        return emailLines
+                .flatMapSequential(line -> readMailForSingleEmailReactive(line, messageCount),
                         MAX_CONCURRENT_REQUESTS)
-                .doOnNext(result -> {
-                    try {
-                        emitter.send(SseEmitter.event()
-                                .name("result")
-                                .data(result));
-                    } catch (IOException e) {
-                        log.error("Error sending SSE for read-mail: {}", e.getMessage());
-                    }
-
-                    if (completed.incrementAndGet() == total) {
-                        sendCompleteEvent(emitter);
-                    }
-                })
-                .doOnError(error -> {
-                    log.error("Stream error: {}", error.getMessage());
-                    completeEmitter(emitter);
-                })
-                .doOnComplete(() -> log.info("Read-mail completed for {} emails", total))
-                .subscribe();
+                .doOnNext(result -> processed.incrementAndGet())
+                .doOnComplete(() -> log.info("Read-mail completed for {} emails", processed.get()));
     }
 
     /**
@@ -884,16 +918,14 @@ public class HotmailServiceImpl implements HotmailService {
             String refreshToken = parts[2].trim();
             String clientId = parts.length > 3 && !parts[3].isEmpty() ? parts[3].trim() : DEFAULT_CLIENT_ID;
 
-            // Try Graph API first
-            return refreshAccessTokenGraphReactive(refreshToken, clientId)
-                    .filter(token -> token != null && token.isGraphToken)
-                    .flatMap(token -> readMailboxByGraphReactive(token.accessToken, email, password, messageCount))
-                    .switchIfEmpty(
-                        // Fallback to IMAP
-                        refreshAccessTokenImapReactive(refreshToken, clientId)
-                                .filter(token -> token != null && token.accessToken != null)
-                                .flatMap(token -> readMailboxByImapReactive(email, password, token.accessToken, messageCount))
-                    )
+            // Graph API or IMAP, whichever last worked for this clientId + domain first
+            return withProtocolAffinity(clientId, email, protocol -> protocol == ProtocolAffinityTable.Protocol.GRAPH
+                            ? refreshAccessTokenGraphReactive(refreshToken, clientId)
+                                    .filter(token -> token.isGraphToken)
+                                    .flatMap(token -> readMailboxByGraphReactive(token, email, password, messageCount))
+                            : refreshAccessTokenImapReactive(refreshToken, clientId)
+                                    .filter(token -> token.accessToken != null)
+                                    .flatMap(token -> readMailboxByImapReactive(email, password, token, messageCount)))
                     .switchIfEmpty(Mono.just(ReadMailResponseDTO.builder()
                             .email(email)
                             .password(password)
@@ -915,199 +947,658 @@ public class HotmailServiceImpl implements HotmailService {
 
     /**
      * Read mailbox using Graph API (non-blocking)
+     * A repeat read only downloads messages at or after the cursor of the previous snapshot
      */
-    private Mono<ReadMailResponseDTO> readMailboxByGraphReactive(String accessToken, String email, String password, int messageCount) {
+    private Mono<ReadMailResponseDTO> readMailboxByGraphReactive(TokenResult token, String email, String password, int messageCount) {
+        String accessToken = token.accessToken;
+        return mailboxSyncCache.get(email, token.credentialId, ProtocolAffinityTable.Protocol.GRAPH)
+                .filter(previous -> previous.getMessageCount() >= messageCount && previous.getReceivedCursor() != null)
+                .flatMap(previous -> syncMailboxByGraphReactive(accessToken, previous))
+                .switchIfEmpty(Mono.defer(() -> fetchMailboxByGraphReactive(accessToken, messageCount)))
+                .flatMap(snapshot -> mailboxSyncCache.put(email, token.credentialId, ProtocolAffinityTable.Protocol.GRAPH, snapshot)
+                        .thenReturn(toReadMailResponse(email, password, snapshot, messageCount,
+                                Math.min(messageCount, snapshot.getMessages().size()))))
+                .onErrorResume(e -> {
+                    if (e instanceof GraphMailboxException failure) {
+                        return Mono.just(ReadMailResponseDTO.builder()
+                                .email(email)
+                                .password(password)
+                                .success(false)
+                                .status(failure.status)
+                                .error(failure.getMessage())
+                                .build());
+                    }
+                    log.error("Error reading mailbox by Graph API: {}", e.getMessage());
+                    return Mono.just(ReadMailResponseDTO.builder()
+                            .email(email)
+                            .password(password)
+                            .success(false)
+                            .status(CheckStatus.UNKNOWN)
+                            .error("Error: " + e.getMessage())
+                            .build());
+                });
+    }
+
+    /**
+     * Full read of the newest messages
+     */
+    private Mono<MailboxSyncCache.MailboxSnapshot> fetchMailboxByGraphReactive(String accessToken, int messageCount) {
+        URI uri = UriComponentsBuilder.fromHttpUrl(graphApiUrl + "/me/messages")
+                .queryParam("$top", messageCount)
+                .queryParam("$orderby", "receivedDateTime desc")
+                .queryParam("$select", GRAPH_MAILBOX_SELECT)
+                .encode()
+                .build()
+                .toUri();
+        return readGraphMailboxPage(uri, accessToken)
+                .map(page -> {
+                    page.setMessageCount(messageCount);
+                    return page;
+                });
+    }
+
+    /**
+     * Incremental read: full content only for messages received since the cursor,
+     * plus a light listing (id + isRead) of the current newest messages
+     *
+     * The listing is the mailbox state: cached messages no longer listed (deleted / moved) drop out,
+     * the others get their read flag refreshed. Empty when a read fails or a listed message is in
+     * neither the fresh page nor the cache (caller falls back to a full read)
+     */
+    private Mono<MailboxSyncCache.MailboxSnapshot> syncMailboxByGraphReactive(String accessToken,
+                                                                             MailboxSyncCache.MailboxSnapshot previous) {
+        URI freshUri = UriComponentsBuilder.fromHttpUrl(graphApiUrl + "/me/messages")
+                .queryParam("$top", previous.getMessageCount())
+                .queryParam("$filter", "receivedDateTime ge " + previous.getReceivedCursor())
+                .queryParam("$orderby", "receivedDateTime desc")
+                .queryParam("$select", GRAPH_MAILBOX_SELECT)
+                .encode()
+                .build()
+                .toUri();
+        URI listingUri = UriComponentsBuilder.fromHttpUrl(graphApiUrl + "/me/messages")
+                .queryParam("$top", previous.getMessageCount())
+                .queryParam("$orderby", "receivedDateTime desc")
+                .queryParam("$select", GRAPH_MAILBOX_LISTING_SELECT)
+                .encode()
+                .build()
+                .toUri();
+        return Mono.zip(readGraphMailboxPage(freshUri, accessToken), readGraphMailboxPage(listingUri, accessToken))
+                .flatMap(pages -> {
+                    Map<String, MailboxSyncCache.CachedMessage> known = new HashMap<>();
+                    previous.getMessages().forEach(message -> known.put(message.getId(), message));
+                    pages.getT1().getMessages().forEach(message -> known.put(message.getId(), message));
+
+                    List<MailboxSyncCache.CachedMessage> merged = new ArrayList<>();
+                    for (MailboxSyncCache.CachedMessage listed : pages.getT2().getMessages()) {
+                        MailboxSyncCache.CachedMessage message = known.get(listed.getId());
+                        if (message == null) {
+                            return Mono.<MailboxSyncCache.MailboxSnapshot>empty();
+                        }
+                        merged.add(new MailboxSyncCache.CachedMessage(message.getId(), 0, message.getMessage().toBuilder()
+                                .isRead(listed.getMessage().isRead())
+                                .build()));
+                    }
+                    String cursor = pages.getT2().getReceivedCursor() != null
+                            ? pages.getT2().getReceivedCursor() : previous.getReceivedCursor();
+                    return Mono.just(new MailboxSyncCache.MailboxSnapshot(cursor, 0, 0, previous.getMessageCount(),
+                            merged.size(), merged, System.currentTimeMillis()));
+                })
+                .onErrorResume(e -> {
+                    log.debug("Incremental Graph mailbox read failed, doing a full read: {}", e.getMessage());
+                    return Mono.empty();
+                });
+    }
+
+    private Mono<MailboxSyncCache.MailboxSnapshot> readGraphMailboxPage(URI uri, String accessToken) {
         return webClient.get()
-                .uri(GRAPH_MESSAGES_URL + "?$top=" + messageCount + "&$orderby=receivedDateTime desc&$select=subject,from,bodyPreview,body,receivedDateTime,isRead,hasAttachments")
+                .uri(uri)
                 .headers(h -> h.setBearerAuth(accessToken))
                 .exchangeToMono(response -> {
                     if (response.statusCode().is2xxSuccessful()) {
-                        return response.bodyToMono(String.class)
-                                .map(body -> parseMailboxGraphResponse(body, email, password));
+                        return parseMailboxGraphResponse(response);
                     } else {
                         return response.bodyToMono(String.class)
                                 .doOnNext(body -> log.debug("Graph mailbox read failed: {} - {}", response.statusCode(), body))
-                                .thenReturn(ReadMailResponseDTO.builder()
-                                        .email(email)
-                                        .password(password)
-                                        .success(false)
-                                        .status(CheckStatus.FAILED)
-                                        .error("Graph API error: " + response.statusCode())
-                                        .build());
+                                .then(Mono.error(new GraphMailboxException("Graph API error: " + response.statusCode(), CheckStatus.FAILED)));
                     }
-                })
-                .onErrorResume(e -> {
-                    log.error("Error reading mailbox by Graph API: {}", e.getMessage());
-                    return Mono.just(ReadMailResponseDTO.builder()
+                });
+    }
+
+    /**
+     * Parse Graph API mailbox response while it streams in (messages newest first)
+     */
+    private Mono<MailboxSyncCache.MailboxSnapshot> parseMailboxGraphResponse(ClientResponse response) {
+        List<MailboxSyncCache.CachedMessage> messages = new ArrayList<>();
+        AtomicReference<String> cursor = new AtomicReference<>();
+        return streamGraphMessages(response, msg -> {
+            if (cursor.get() == null && !msg.getReceivedDateTime().isEmpty()) {
+                cursor.set(msg.getReceivedDateTime());
+            }
+            LocalDateTime dateTime = parseDateTime(msg.getReceivedDateTime());
+            String formattedDate = dateTime != null ? dateTime.format(DATE_FORMATTER) : "";
+
+            // Format from as "Name <email>" or just email
+            String fromAddr = msg.getFromAddress();
+            String fromName = msg.getFromName();
+            String from = fromName.isEmpty() ? fromAddr : fromName + " <" + fromAddr + ">";
+            String preview = msg.getBodyPreview();
+
+            messages.add(new MailboxSyncCache.CachedMessage(msg.getId(), 0, ReadMailResponseDTO.EmailMessage.builder()
+                    .subject(msg.getSubject())
+                    .from(from)
+                    .preview(preview.length() > PREVIEW_LENGTH ? preview.substring(0, PREVIEW_LENGTH) + "..." : preview)
+                    .htmlBody(msg.getBodyContent())
+                    .date(formattedDate)
+                    .isRead(msg.isRead())
+                    .hasAttachments(msg.isHasAttachments())
+                    .build()));
+            return false;
+        }).then(Mono.fromSupplier(() -> new MailboxSyncCache.MailboxSnapshot(cursor.get(), 0, 0, 0,
+                messages.size(), messages, System.currentTimeMillis())))
+                .onErrorMap(e -> !(e instanceof GraphMailboxException), e -> {
+                    log.error("Error parsing Graph mailbox response: {}", e.getMessage());
+                    return new GraphMailboxException("Parse error: " + e.getMessage(), CheckStatus.UNKNOWN);
+                });
+    }
+
+    /**
+     * Read mailbox using IMAP (blocking - wrapped in Mono)
+     */
+    private Mono<ReadMailResponseDTO> readMailboxByImapReactive(String email, String password, TokenResult token, int messageCount) {
+        return mailboxSyncCache.get(email, token.credentialId, ProtocolAffinityTable.Protocol.IMAP)
+                .map(Optional::of)
+                .defaultIfEmpty(Optional.empty())
+                .flatMap(previous -> Mono.fromCallable(() ->
+                                readMailboxByImapBlocking(email, password, token, messageCount, previous.orElse(null)))
+                        .subscribeOn(mailIoScheduler.scheduler()))
+                .onErrorResume(RejectedExecutionException.class, e -> {
+                    logMailIoRejected(email);
+                    return Mono.just(new ImapMailboxRead(ReadMailResponseDTO.builder()
                             .email(email)
                             .password(password)
                             .success(false)
                             .status(CheckStatus.UNKNOWN)
-                            .error("Error: " + e.getMessage())
-                            .build());
-                });
+                            .error(MAIL_IO_BUSY)
+                            .build(), null));
+                })
+                .flatMap(read -> read.snapshot() != null
+                        ? mailboxSyncCache.put(email, token.credentialId, ProtocolAffinityTable.Protocol.IMAP, read.snapshot())
+                                .thenReturn(read.response())
+                        : Mono.just(read.response()));
     }
 
     /**
-     * Parse Graph API mailbox response
+     * Blocking IMAP mailbox read on a pooled connection
+     * With a snapshot of the same UIDVALIDITY only UIDs past the last seen one are fetched;
+     * the cached tail just gets its flags refreshed (expunged messages drop out)
      */
-    private ReadMailResponseDTO parseMailboxGraphResponse(String responseBody, String email, String password) {
+    private ImapMailboxRead readMailboxByImapBlocking(String email, String password, TokenResult token, int messageCount,
+                                                     MailboxSyncCache.MailboxSnapshot previous) {
+        ImapConnectionPool.PooledConnection connection = null;
+
         try {
-            JsonNode json = objectMapper.readTree(responseBody);
-            JsonNode messagesNode = json.path("value");
-            
-            List<ReadMailResponseDTO.EmailMessage> messages = new ArrayList<>();
-            
-            for (JsonNode msg : messagesNode) {
-                String subject = msg.path("subject").asText("");
-                String fromAddr = msg.path("from").path("emailAddress").path("address").asText("");
-                String fromName = msg.path("from").path("emailAddress").path("name").asText("");
-                String preview = msg.path("bodyPreview").asText("");
-                String htmlBody = msg.path("body").path("content").asText("");
-                String receivedDateTime = msg.path("receivedDateTime").asText("");
-                boolean isRead = msg.path("isRead").asBoolean(false);
-                boolean hasAttachments = msg.path("hasAttachments").asBoolean(false);
-                
-                LocalDateTime dateTime = parseDateTime(receivedDateTime);
-                String formattedDate = dateTime != null ? dateTime.format(DATE_FORMATTER) : "";
-                
-                // Format from as "Name <email>" or just email
-                String from = fromName.isEmpty() ? fromAddr : fromName + " <" + fromAddr + ">";
-                
-                messages.add(ReadMailResponseDTO.EmailMessage.builder()
-                        .subject(subject)
-                        .from(from)
-                        .preview(preview.length() > 200 ? preview.substring(0, 200) + "..." : preview)
-                        .htmlBody(htmlBody)
-                        .date(formattedDate)
-                        .isRead(isRead)
-                        .hasAttachments(hasAttachments)
-                        .build());
+            connection = imapConnectionPool.borrow(email, token.credentialId, token.accessToken, token.expiresAt());
+            Folder inbox = connection.getFolder();
+            UIDFolder uidFolder = inbox instanceof UIDFolder folder ? folder : null;
+
+            int totalMessages = inbox.getMessageCount();
+            long uidValidity = uidFolder != null ? uidFolder.getUIDValidity() : 0;
+            int keep = messageCount;
+
+            List<MailboxSyncCache.CachedMessage> messages = null;
+            if (previous != null && uidFolder != null && previous.getUidValidity() == uidValidity
+                    && previous.getMessageCount() >= messageCount) {
+                keep = previous.getMessageCount();
+                messages = syncMailboxByImap(inbox, uidFolder, previous, keep);
+                // Expunged messages left a gap in the cached tail: a full read is needed to fill it
+                if (messages.size() < Math.min(keep, totalMessages)) {
+                    keep = messageCount;
+                    messages = null;
+                }
             }
-            
-            return ReadMailResponseDTO.builder()
-                    .email(email)
-                    .password(password)
-                    .success(true)
-                    .status(CheckStatus.SUCCESS)
-                    .messages(messages)
-                    .totalMessages(messages.size())
-                    .build();
-                    
+
+            if (messages == null) {
+                // Envelopes, UIDs and flags in one FETCH; previews from a partial body peek
+                int start = Math.max(1, totalMessages - keep + 1);
+                Message[] fetched = imapMessageFetcher.fetchEnvelopes(inbox, start, totalMessages, true);
+                messages = new ArrayList<>();
+                // Read messages in reverse order (newest first)
+                for (int i = fetched.length - 1; i >= 0; i--) {
+                    long uid = uidFolder != null ? uidFolder.getUID(fetched[i]) : 0;
+                    messages.add(new MailboxSyncCache.CachedMessage(null, uid, toImapEmailMessage(inbox, fetched[i])));
+                }
+            }
+
+            long lastUid = previous != null && previous.getUidValidity() == uidValidity ? previous.getLastUid() : 0;
+            for (MailboxSyncCache.CachedMessage message : messages) {
+                lastUid = Math.max(lastUid, message.getUid());
+            }
+            MailboxSyncCache.MailboxSnapshot snapshot = new MailboxSyncCache.MailboxSnapshot(null, uidValidity, lastUid,
+                    keep, totalMessages, messages, System.currentTimeMillis());
+            // Without UIDs there is no cursor to resume from
+            return new ImapMailboxRead(toReadMailResponse(email, password, snapshot, messageCount, totalMessages),
+                    uidFolder != null ? snapshot : null);
+
         } catch (Exception e) {
-            log.error("Error parsing Graph mailbox response: {}", e.getMessage());
-            return ReadMailResponseDTO.builder()
+            log.error("Error reading mailbox by IMAP: {}", e.getMessage());
+            imapConnectionPool.invalidate(connection);
+            connection = null;
+            return new ImapMailboxRead(ReadMailResponseDTO.builder()
                     .email(email)
                     .password(password)
                     .success(false)
                     .status(CheckStatus.UNKNOWN)
-                    .error("Parse error: " + e.getMessage())
+                    .error("IMAP error: " + e.getMessage())
+                    .build(), null);
+        } finally {
+            imapConnectionPool.release(connection);
+        }
+    }
+
+    /**
+     * New messages (UID > last seen) newest first, followed by the still existing cached messages
+     */
+    private List<MailboxSyncCache.CachedMessage> syncMailboxByImap(Folder inbox, UIDFolder uidFolder,
+                                                                  MailboxSyncCache.MailboxSnapshot previous,
+                                                                  int keep) throws MessagingException {
+        List<MailboxSyncCache.CachedMessage> messages = new ArrayList<>();
+
+        Message[] fresh = imapMessageFetcher.fetchEnvelopesAfterUid(inbox, previous.getLastUid());
+        for (int i = fresh.length - 1; i >= 0 && messages.size() < keep; i--) {
+            long uid = uidFolder.getUID(fresh[i]);
+            // "n:*" always includes the last message, even when its UID is below n
+            if (uid > previous.getLastUid()) {
+                messages.add(new MailboxSyncCache.CachedMessage(null, uid, toImapEmailMessage(inbox, fresh[i])));
+            }
+        }
+        if (messages.size() >= keep) {
+            return messages;
+        }
+
+        List<MailboxSyncCache.CachedMessage> tail = previous.getMessages();
+        long[] uids = tail.stream().mapToLong(MailboxSyncCache.CachedMessage::getUid).toArray();
+        Message[] current = imapMessageFetcher.fetchFlagsByUid(inbox, uids);
+        for (int i = 0; i < tail.size() && messages.size() < keep; i++) {
+            if (current[i] == null) {
+                continue;
+            }
+            ReadMailResponseDTO.EmailMessage cached = tail.get(i).getMessage();
+            ReadMailResponseDTO.EmailMessage refreshed = ReadMailResponseDTO.EmailMessage.builder()
+                    .subject(cached.getSubject())
+                    .from(cached.getFrom())
+                    .preview(cached.getPreview())
+                    .htmlBody(cached.getHtmlBody())
+                    .date(cached.getDate())
+                    .isRead(current[i].isSet(Flags.Flag.SEEN))
+                    .hasAttachments(cached.isHasAttachments())
                     .build();
+            messages.add(new MailboxSyncCache.CachedMessage(null, uids[i], refreshed));
         }
+        return messages;
+    }
+
+    private ReadMailResponseDTO.EmailMessage toImapEmailMessage(Folder inbox, Message msg) throws MessagingException {
+        String subject = msg.getSubject() != null ? msg.getSubject() : "(No Subject)";
+        String from = getFromAddress(msg);
+        Date sentDate = msg.getSentDate();
+        boolean isRead = msg.isSet(Flags.Flag.SEEN);
+
+        String formattedDate = "";
+        if (sentDate != null) {
+            LocalDateTime dateTime = LocalDateTime.ofInstant(sentDate.toInstant(), ZoneId.systemDefault());
+            formattedDate = dateTime.format(DATE_FORMATTER);
+        }
+
+        // Get preview (first 200 chars of the text part, partial fetch instead of the full content)
+        String preview = imapMessageFetcher.peekText(inbox, msg, imapPreviewPeekBytes);
+        if (preview == null) {
+            preview = "";
+        }
+
+        return ReadMailResponseDTO.EmailMessage.builder()
+                .subject(subject)
+                .from(from)
+                .preview(preview.length() > PREVIEW_LENGTH ? preview.substring(0, PREVIEW_LENGTH) + "..." : preview)
+                .date(formattedDate)
+                .isRead(isRead)
+                .hasAttachments(false) // IMAP doesn't easily expose this
+                .build();
     }
 
     /**
-     * Read mailbox using IMAP (blocking - wrapped in Mono)
+     * Read-mail result with the newest messageCount messages of a snapshot
      */
-    private Mono<ReadMailResponseDTO> readMailboxByImapReactive(String email, String password, String accessToken, int messageCount) {
-        return Mono.fromCallable(() -> readMailboxByImapBlocking(email, password, accessToken, messageCount))
-                .subscribeOn(Schedulers.boundedElastic());
+    private ReadMailResponseDTO toReadMailResponse(String email, String password,
+                                                   MailboxSyncCache.MailboxSnapshot snapshot, int messageCount,
+                                                   int totalMessages) {
+        List<ReadMailResponseDTO.EmailMessage> messages = snapshot.getMessages().stream()
+                .limit(messageCount)
+                .map(MailboxSyncCache.CachedMessage::getMessage)
+                .toList();
+        return ReadMailResponseDTO.builder()
+                .email(email)
+                .password(password)
+                .success(true)
+                .status(CheckStatus.SUCCESS)
+                .messages(messages)
+                .totalMessages(totalMessages)
+                .build();
     }
 
     /**
-     * Blocking IMAP mailbox read
+     * IMAP read-mail result plus the snapshot to cache (null when not cacheable)
      */
-    private ReadMailResponseDTO readMailboxByImapBlocking(String email, String password, String accessToken, int messageCount) {
-        Store store = null;
-        Folder inbox = null;
+    private record ImapMailboxRead(ReadMailResponseDTO response, MailboxSyncCache.MailboxSnapshot snapshot) {
+    }
 
-        try {
-            Properties props = new Properties();
-            props.put("mail.store.protocol", "imaps");
-            props.put("mail.imaps.host", IMAP_HOST);
-            props.put("mail.imaps.port", String.valueOf(IMAP_PORT));
-            props.put("mail.imaps.ssl.enable", "true");
-            props.put("mail.imaps.auth.mechanisms", "XOAUTH2");
+    /**
+     * Graph mailbox read that produced an answer for the user (HTTP error, unparsable body)
+     */
+    private static class GraphMailboxException extends RuntimeException {
+        private final CheckStatus status;
 
-            Session session = Session.getInstance(props);
-            store = session.getStore("imaps");
-            store.connect(IMAP_HOST, email, accessToken);
+        GraphMailboxException(String message, CheckStatus status) {
+            super(message);
+            this.status = status;
+        }
+    }
 
-            inbox = store.getFolder("INBOX");
-            inbox.open(Folder.READ_ONLY);
+    // ==================== WAIT FOR CODE (PUSH) ====================
 
-            int totalMessages = inbox.getMessageCount();
-            int start = Math.max(1, totalMessages - messageCount + 1);
-            Message[] messages = inbox.getMessages(start, totalMessages);
-            
-            List<ReadMailResponseDTO.EmailMessage> emailMessages = new ArrayList<>();
-            
-            // Read messages in reverse order (newest first)
-            for (int i = messages.length - 1; i >= 0; i--) {
-                Message msg = messages[i];
-                String subject = msg.getSubject() != null ? msg.getSubject() : "(No Subject)";
-                String from = getFromAddress(msg);
-                Date sentDate = msg.getSentDate();
-                boolean isRead = msg.isSet(Flags.Flag.SEEN);
-                
-                String formattedDate = "";
-                if (sentDate != null) {
-                    LocalDateTime dateTime = LocalDateTime.ofInstant(sentDate.toInstant(), ZoneId.systemDefault());
-                    formattedDate = dateTime.format(DATE_FORMATTER);
+    /**
+     * Wait for verification codes as a reactive Flux
+     * One waiter per mailbox, result is pushed as soon as a code is seen:
+     * - Graph: polls the inbox delta link every poll-interval-ms (5 s by default); Graph has no push for this,
+     *   the delta cursor only keeps each poll down to the changes since the previous one
+     * - IMAP: IDLE, re-issued before the socket read timeout
+     */
+    @Override
+    public Flux<HotmailGetCodeResponseDTO> waitForCodeStream(HotmailWaitCodeRequestDTO request) {
+        if (request.getEmailData() == null || request.getEmailData().isEmpty()) {
+            return Flux.empty();
+        }
+
+        List<String> emailLines = Arrays.stream(request.getEmailData().trim().split("\\n"))
+                .map(String::trim)
+                .filter(line -> !line.isEmpty())
+                .toList();
+
+        int timeoutSeconds = request.getTimeoutSeconds() != null && request.getTimeoutSeconds() > 0
+                ? Math.min(request.getTimeoutSeconds(), waitCodeMaxTimeoutSeconds)
+                : waitCodeDefaultTimeoutSeconds;
+        long timeoutMs = timeoutSeconds * 1000L;
+        // Codes received while a mailbox was still queued behind max-concurrent-mailboxes count too
+        long since = System.currentTimeMillis() - waitCodeLookbackSeconds * 1000L;
+
+        List<String> emailTypes = request.getEmailTypes() == null || request.getEmailTypes().isEmpty()
+                ? List.of("Auto")
+                : request.getEmailTypes();
+
+        // flatMap (not sequential): each mailbox is pushed the moment its code arrives
+        // Each mailbox gets the full timeout from when its wait starts, not from the request
+        return Flux.fromIterable(emailLines)
+                .flatMap(line -> waitForCodeSingleEmailReactive(line, emailTypes, since, timeoutMs),
+                        waitCodeMaxConcurrentMailboxes)
+                .doOnNext(this::applyCodeCheckStatus)
+                .doOnComplete(() -> log.info("Wait-code completed for {} emails", emailLines.size()));
+    }
+
+    /**
+     * Wait for a code on a single mailbox: Graph delta polling when the token has Mail.Read, IMAP IDLE otherwise
+     * The deadline is set when the wait starts: Graph once the token is there, IMAP once a mail-idle thread
+     * picks the task up (time queued on the pool is not taken from the wait)
+     */
+    private Mono<HotmailGetCodeResponseDTO> waitForCodeSingleEmailReactive(String emailLine, List<String> emailTypes,
+                                                                          long since, long timeoutMs) {
+        String[] parts = emailLine.split("\\|");
+        if (parts.length < 3) {
+            return Mono.just(HotmailGetCodeResponseDTO.builder()
+                    .email(parts.length > 0 ? parts[0] : emailLine)
+                    .password(parts.length > 1 ? parts[1] : "")
+                    .refreshToken("")
+                    .clientId("")
+                    .status(false)
+                    .content("Invalid format: requires email|password|refresh_token|client_id")
+                    .build());
+        }
+
+        String emailAddr = parts[0].trim();
+        String password = parts[1].trim();
+        String refreshToken = parts[2].trim();
+        String clientId = parts.length > 3 && !parts[3].isEmpty() ? parts[3].trim() : DEFAULT_CLIENT_ID;
+
+        return refreshAccessTokenGraphReactive(refreshToken, clientId)
+                .filter(token -> token.isGraphToken)
+                .flatMap(token -> waitForCodeByGraphDelta(token.accessToken, emailAddr, password, emailTypes, since,
+                        System.currentTimeMillis() + timeoutMs))
+                .switchIfEmpty(Mono.defer(() -> refreshAccessTokenImapReactive(refreshToken, clientId)
+                        .flatMap(token -> Mono.fromCallable(() ->
+                                        waitForCodeByImapIdleBlocking(emailAddr, password, token, emailTypes, since,
+                                                System.currentTimeMillis() + timeoutMs))
+                                .subscribeOn(mailIoScheduler.idleScheduler())
+                                .onErrorResume(RejectedExecutionException.class, e -> {
+                                    logMailIoRejected(emailAddr);
+                                    return Mono.just(createMailIoBusyResult(emailAddr, password));
+                                }))))
+                .map(result -> {
+                    result.setRefreshToken(refreshToken);
+                    result.setClientId(clientId);
+                    return result;
+                })
+                .switchIfEmpty(Mono.fromSupplier(() -> HotmailGetCodeResponseDTO.builder()
+                        .email(emailAddr)
+                        .password(password)
+                        .refreshToken(refreshToken)
+                        .clientId(clientId)
+                        .status(false)
+                        .content("Could not get access token")
+                        .build()));
+    }
+
+    /**
+     * Poll the Graph inbox delta link every poll-interval-ms until a matching message shows up or the deadline passes
+     * The first round is limited to messages received after {@code since}, later rounds only return changes
+     */
+    private Mono<HotmailGetCodeResponseDTO> waitForCodeByGraphDelta(String accessToken, String emailAddr, String password,
+                                                                   List<String> emailTypes, long since, long deadline) {
+        String sinceIso = Instant.ofEpochMilli(since).truncatedTo(ChronoUnit.SECONDS).toString();
+        URI initialUri = UriComponentsBuilder.fromHttpUrl(graphApiUrl + "/me/mailFolders/inbox/messages/delta")
+                .queryParam("$select", "subject,from,receivedDateTime")
+                .queryParam("$filter", "receivedDateTime ge " + sinceIso)
+                .encode()
+                .build()
+                .toUri();
+        return pollGraphDelta(initialUri, accessToken, emailAddr, password, emailTypes, deadline);
+    }
+
+    private Mono<HotmailGetCodeResponseDTO> pollGraphDelta(URI uri, String accessToken, String emailAddr, String password,
+                                                          List<String> emailTypes, long deadline) {
+        return webClient.get()
+                .uri(uri)
+                .headers(h -> h.setBearerAuth(accessToken))
+                .exchangeToMono(response -> {
+                    if (response.statusCode().is2xxSuccessful()) {
+                        return response.bodyToMono(String.class);
+                    }
+                    return response.bodyToMono(String.class)
+                            .doOnNext(body -> log.debug("Graph delta read failed: {} - {}", response.statusCode(), body))
+                            .then(Mono.error(new IllegalStateException("Graph delta error: " + response.statusCode())));
+                })
+                .flatMap(body -> {
+                    JsonNode json;
+                    try {
+                        json = objectMapper.readTree(body);
+                    } catch (Exception e) {
+                        return Mono.error(e);
+                    }
+
+                    HotmailGetCodeResponseDTO found = findCodeInGraphMessages(json.path("value"), emailAddr, password, emailTypes);
+                    if (found != null) {
+                        return Mono.just(found);
+                    }
+
+                    String nextLink = json.path("@odata.nextLink").asText("");
+                    if (!nextLink.isEmpty()) {
+                        return pollGraphDelta(URI.create(nextLink), accessToken, emailAddr, password, emailTypes, deadline);
+                    }
+
+                    String deltaLink = json.path("@odata.deltaLink").asText("");
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (deltaLink.isEmpty() || remaining <= 0) {
+                        return Mono.just(createNoCodeResult(emailAddr, password));
+                    }
+                    return Mono.delay(Duration.ofMillis(Math.min(waitCodePollIntervalMs, remaining)))
+                            .then(Mono.defer(() -> pollGraphDelta(URI.create(deltaLink), accessToken,
+                                    emailAddr, password, emailTypes, deadline)));
+                })
+                .onErrorResume(e -> {
+                    log.warn("Error waiting for code by Graph delta: {}", e.getMessage());
+                    return Mono.just(HotmailGetCodeResponseDTO.builder()
+                            .email(emailAddr)
+                            .password(password)
+                            .status(false)
+                            .content("Error: " + e.getMessage())
+                            .build());
+                });
+    }
+
+    /**
+     * Check a page of Graph messages (delta items marked @removed are skipped)
+     */
+    private HotmailGetCodeResponseDTO findCodeInGraphMessages(JsonNode messages, String emailAddr, String password,
+                                                             List<String> emailTypes) {
+        for (JsonNode msg : messages) {
+            if (msg.has("@removed")) {
+                continue;
+            }
+            String fromAddr = msg.path("from").path("emailAddress").path("address").asText();
+            String subject = msg.path("subject").asText();
+            String code = emailTypeRuleEngine.findCode(fromAddr, subject, emailTypes);
+            if (code != null && !code.isEmpty()) {
+                LocalDateTime dateTime = parseDateTime(msg.path("receivedDateTime").asText());
+                return HotmailGetCodeResponseDTO.builder()
+                        .email(emailAddr)
+                        .password(password)
+                        .status(true)
+                        .code(code)
+                        .content(subject)
+                        .date(dateTime != null ? dateTime.format(DATE_FORMATTER) : "")
+                        .build();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Hold an IMAP IDLE on INBOX until a matching message arrives or the deadline passes
+     * The pooled connection has a socket read timeout (ImapConnectionPool.getReadTimeoutMs) and a quiet IDLE
+     * sends nothing, so the IDLE is ended and re-issued every half read timeout, before the read can time out.
+     * Falls back to polling the message count only when the server does not advertise IDLE
+     */
+    private HotmailGetCodeResponseDTO waitForCodeByImapIdleBlocking(String emailAddr, String password, TokenResult token,
+                                                                  List<String> emailTypes, long since, long deadline) {
+        ImapConnectionPool.PooledConnection connection = null;
+        Disposable abortIdle = null;
+
+        try {
+            connection = imapConnectionPool.borrow(emailAddr, token.credentialId, token.accessToken, token.expiresAt());
+            Folder inbox = connection.getFolder();
+
+            // Messages that arrived shortly before the wait started
+            int lastCount = inbox.getMessageCount();
+            int scanFrom = Math.max(1, lastCount - WAIT_CODE_INITIAL_SCAN_MESSAGES + 1);
+            HotmailGetCodeResponseDTO found = findCodeInImapMessages(inbox, scanFrom, lastCount, since, emailAddr, password, emailTypes);
+            if (found != null) {
+                return found;
+            }
+
+            boolean idleSupported = inbox instanceof IMAPFolder
+                    && inbox.getStore() instanceof IMAPStore store && store.hasCapability("IDLE");
+            if (!idleSupported) {
+                log.debug("IMAP IDLE not advertised for {}, polling the message count", emailAddr);
+            } else {
+                // Any folder call from another thread ends a running IDLE (the loop re-issues it):
+                // every half read timeout so a quiet IDLE never hits the timeout, and once at the deadline
+                Runnable endIdle = () -> {
+                    try {
+                        inbox.getMessageCount();
+                    } catch (Exception ignored) {}
+                };
+                long renewMs = Math.max(1000, imapConnectionPool.getReadTimeoutMs() / 2);
+                abortIdle = Disposables.composite(
+                        Schedulers.parallel().schedulePeriodically(endIdle, renewMs, renewMs, TimeUnit.MILLISECONDS),
+                        Schedulers.parallel().schedule(endIdle,
+                                Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+            }
+
+            while (System.currentTimeMillis() < deadline) {
+                if (idleSupported) {
+                    // A failure here is a broken connection, not a missing IDLE: handled below (connection dropped)
+                    ((IMAPFolder) inbox).idle(true);
+                } else {
+                    Thread.sleep(Math.min(waitCodePollIntervalMs, Math.max(1, deadline - System.currentTimeMillis())));
                 }
-                
-                // Get preview (first 200 chars of content)
-                String preview = "";
-                try {
-                    Object content = msg.getContent();
-                    if (content instanceof String) {
-                        preview = ((String) content).substring(0, Math.min(200, ((String) content).length()));
-                    } else if (content instanceof Multipart) {
-                        Multipart mp = (Multipart) content;
-                        if (mp.getCount() > 0) {
-                            BodyPart bp = mp.getBodyPart(0);
-                            if (bp.getContent() instanceof String) {
-                                String text = (String) bp.getContent();
-                                preview = text.substring(0, Math.min(200, text.length()));
-                            }
-                        }
+
+                int count = inbox.getMessageCount();
+                if (count > lastCount) {
+                    found = findCodeInImapMessages(inbox, lastCount + 1, count, 0, emailAddr, password, emailTypes);
+                    if (found != null) {
+                        return found;
                     }
-                } catch (Exception ignored) {}
-                
-                emailMessages.add(ReadMailResponseDTO.EmailMessage.builder()
-                        .subject(subject)
-                        .from(from)
-                        .preview(preview.length() > 200 ? preview.substring(0, 200) + "..." : preview)
-                        .date(formattedDate)
-                        .isRead(isRead)
-                        .hasAttachments(false) // IMAP doesn't easily expose this
-                        .build());
+                }
+                lastCount = count;
             }
-            
-            return ReadMailResponseDTO.builder()
-                    .email(email)
-                    .password(password)
-                    .success(true)
-                    .status(CheckStatus.SUCCESS)
-                    .messages(emailMessages)
-                    .totalMessages(totalMessages)
-                    .build();
 
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
-            log.error("Error reading mailbox by IMAP: {}", e.getMessage());
-            return ReadMailResponseDTO.builder()
-                    .email(email)
-                    .password(password)
-                    .success(false)
-                    .status(CheckStatus.UNKNOWN)
-                    .error("IMAP error: " + e.getMessage())
-                    .build();
+            log.error("Error waiting for code by IMAP: {}", e.getMessage());
+            imapConnectionPool.invalidate(connection);
+            connection = null;
         } finally {
-            try {
-                if (inbox != null && inbox.isOpen()) inbox.close(false);
-                if (store != null && store.isConnected()) store.close();
-            } catch (Exception ignored) {}
+            if (abortIdle != null) {
+                abortIdle.dispose();
+            }
+            imapConnectionPool.release(connection);
+        }
+
+        return createNoCodeResult(emailAddr, password);
+    }
+
+    /**
+     * Look for a code in messages [from..to], newest first, skipping messages received before {@code since}
+     */
+    private HotmailGetCodeResponseDTO findCodeInImapMessages(Folder inbox, int from, int to, long since, String emailAddr,
+                                                           String password, List<String> emailTypes) throws MessagingException {
+        if (to < from) {
+            return null;
         }
+
+        Message[] messages = inbox.getMessages(from, to);
+        for (int i = messages.length - 1; i >= 0; i--) {
+            Message msg = messages[i];
+            Date receivedDate = msg.getReceivedDate();
+            if (since > 0 && receivedDate != null && receivedDate.getTime() < since) {
+                break;
+            }
+
+            String subject = msg.getSubject();
+            String code = emailTypeRuleEngine.findCode(getFromAddress(msg), subject, emailTypes);
+            if (code != null && !code.isEmpty()) {
+                String formattedDate = receivedDate != null
+                        ? LocalDateTime.ofInstant(receivedDate.toInstant(), ZoneId.systemDefault()).format(DATE_FORMATTER)
+                        : "";
+                return HotmailGetCodeResponseDTO.builder()
+                        .email(emailAddr)
+                        .password(password)
+                        .status(true)
+                        .code(code)
+                        .content(subject)
+                        .date(formattedDate)
+                        .build();
+            }
+        }
+        return null;
     }
 
     /**
@@ -1117,11 +1608,31 @@ public class HotmailServiceImpl implements HotmailService {
         final String accessToken;
         final String newRefreshToken;
         final boolean isGraphToken;
+        final long expiresIn;
+        // Identity of the refresh token + clientId the access token was obtained with (null = unknown)
+        final String credentialId;
 
-        TokenResult(String accessToken, String newRefreshToken, boolean isGraphToken) {
+        TokenResult(String accessToken, String newRefreshToken, boolean isGraphToken, long expiresIn) {
+            this(accessToken, newRefreshToken, isGraphToken, expiresIn, null);
+        }
+
+        TokenResult(String accessToken, String newRefreshToken, boolean isGraphToken, long expiresIn,
+                    String credentialId) {
             this.accessToken = accessToken;
             this.newRefreshToken = newRefreshToken;
             this.isGraphToken = isGraphToken;
+            this.expiresIn = expiresIn;
+            this.credentialId = credentialId;
+        }
+
+        long expiresAt() {
+            return System.currentTimeMillis() + expiresIn * 1000;
+        }
+
+        static TokenResult from(MicrosoftTokenCache.CachedToken cached, String credentialId) {
+            long expiresIn = Math.max(0, (cached.expiresAt() - System.currentTimeMillis()) / 1000);
+            return new TokenResult(cached.accessToken(), cached.refreshToken(), cached.graphToken(), expiresIn,
+                    credentialId);
         }
     }
 }
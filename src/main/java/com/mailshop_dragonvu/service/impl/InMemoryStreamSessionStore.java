@@ -0,0 +1,127 @@
+package com.mailshop_dragonvu.service.impl;
+
+import com.mailshop_dragonvu.exception.BusinessException;
+import com.mailshop_dragonvu.exception.ErrorCode;
+import com.mailshop_dragonvu.service.StreamSessionStore;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * In-memory session store (single node)
+ *
+ * - Expired sessions are swept periodically, not only when streamed
+ * - Global cap on the total payload size and per-payload cap
+ * - Per-owner quota on pending sessions
+ */
+@Component
+@ConditionalOnProperty(name = "app.tools.session-store", havingValue = "memory", matchIfMissing = true)
+@Slf4j
+public class InMemoryStreamSessionStore implements StreamSessionStore {
+
+    @Value("${app.tools.sessions.max-total-mb:256}")
+    private long maxTotalMb;
+
+    @Value("${app.tools.sessions.max-payload-mb:16}")
+    private long maxPayloadMb;
+
+    @Value("${app.tools.sessions.max-per-owner:10}")
+    private int maxPerOwner;
+
+    // Guarded by this
+    private final Map<String, SessionData> sessions = new HashMap<>();
+    private final Map<String, Integer> sessionsPerOwner = new HashMap<>();
+    private long totalBytes;
+
+    public InMemoryStreamSessionStore(MeterRegistry meterRegistry) {
+        Gauge.builder("tools.sessions.count", this, InMemoryStreamSessionStore::size)
+                .description("Pending tool sessions")
+                .register(meterRegistry);
+        Gauge.builder("tools.sessions.bytes", this, InMemoryStreamSessionStore::totalBytes)
+                .description("Approximate heap used by pending tool sessions")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public synchronized String create(SessionData session) {
+        long bytes = session.estimatedBytes();
+        if (bytes > maxPayloadMb * 1024 * 1024) {
+            throw new BusinessException(ErrorCode.TOOL_PAYLOAD_TOO_LARGE);
+        }
+        if (sessionsPerOwner.getOrDefault(session.owner, 0) >= maxPerOwner) {
+            evictExpired();
+            if (sessionsPerOwner.getOrDefault(session.owner, 0) >= maxPerOwner) {
+                throw new BusinessException(ErrorCode.TOOL_SESSION_QUOTA_EXCEEDED);
+            }
+        }
+        if (totalBytes + bytes > maxTotalMb * 1024 * 1024) {
+            evictExpired();
+            if (totalBytes + bytes > maxTotalMb * 1024 * 1024) {
+                log.warn("Session store full ({} bytes), rejecting session of {} bytes", totalBytes, bytes);
+                throw new BusinessException(ErrorCode.TOOL_SESSION_STORE_FULL);
+            }
+        }
+
+        String sessionId = UUID.randomUUID().toString();
+        sessions.put(sessionId, session);
+        sessionsPerOwner.merge(session.owner, 1, Integer::sum);
+        totalBytes += bytes;
+        return sessionId;
+    }
+
+    @Override
+    public synchronized SessionData getAndRemove(String sessionId) {
+        SessionData session = sessions.remove(sessionId);
+        if (session != null) {
+            release(session);
+        }
+        return session;
+    }
+
+    @Override
+    public synchronized SessionData get(String sessionId) {
+        return sessions.get(sessionId);
+    }
+
+    /**
+     * Drop sessions that were never streamed
+     */
+    @Scheduled(fixedRateString = "${app.tools.sessions.sweep-interval:30000}")
+    public synchronized void evictExpired() {
+        int removed = 0;
+        Iterator<SessionData> iterator = sessions.values().iterator();
+        while (iterator.hasNext()) {
+            SessionData session = iterator.next();
+            if (session.isExpired()) {
+                iterator.remove();
+                release(session);
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            log.debug("Evicted {} expired stream sessions, {} remaining", removed, sessions.size());
+        }
+    }
+
+    synchronized int size() {
+        return sessions.size();
+    }
+
+    synchronized long totalBytes() {
+        return totalBytes;
+    }
+
+    private void release(SessionData session) {
+        totalBytes -= session.estimatedBytes();
+        sessionsPerOwner.computeIfPresent(session.owner, (owner, count) -> count > 1 ? count - 1 : null);
+    }
+}
@@ -1,18 +1,20 @@
 package com.mailshop_dragonvu.service.impl;
 
 import com.mailshop_dragonvu.dto.orders.*;
-import com.mailshop_dragonvu.dto.products.ProductResponseDTO;
+import com.mailshop_dragonvu.dto.products.ProductSnapshotDTO;
 import com.mailshop_dragonvu.entity.OrderEntity;
-import com.mailshop_dragonvu.entity.OrderItemEntity;
 import com.mailshop_dragonvu.entity.ProductItemEntity;
 import com.mailshop_dragonvu.entity.UserEntity;
 import com.mailshop_dragonvu.entity.WalletEntity;
+import com.mailshop_dragonvu.enums.ActiveStatusEnum;
 import com.mailshop_dragonvu.enums.OrderStatusEnum;
 import com.mailshop_dragonvu.exception.BusinessException;
 import com.mailshop_dragonvu.exception.ErrorCode;
 import com.mailshop_dragonvu.mapper.OrderItemMapper;
 import com.mailshop_dragonvu.mapper.OrderMapper;
+import com.mailshop_dragonvu.repository.OrderItemRepository;
 import com.mailshop_dragonvu.repository.OrderRepository;
+import com.mailshop_dragonvu.repository.ProductItemRepository;
 import com.mailshop_dragonvu.repository.UserRepository;
 import com.mailshop_dragonvu.repository.WalletRepository;
 import com.mailshop_dragonvu.service.*;
@@ -32,10 +34,14 @@ import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.jpa.domain.Specification;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 @Slf4j
@@ -51,76 +57,301 @@ public class OrderServiceImpl implements OrderService {
     private final OrderMapper orderMapper;
     private final OrderItemMapper orderItemMapper;
     private final EmailService emailService;
-    private final WalletService walletService;
-    private final ProductQuantityNotifier productQuantityNotifier;
-    private final WarehouseService warehouseService;
-
+    private final WarehouseCheckScheduler warehouseCheckScheduler;
+    private final ProductItemRepository productItemRepository;
+    private final OrderItemRepository orderItemRepository;
+    private final JdbcTemplate jdbcTemplate;
+
+    private static final String INSERT_ORDER_ITEM_SQL =
+            "INSERT INTO order_items (order_id, product_item_id, created_at, updated_at) VALUES (?, ?, ?, ?)";
+
+    // JDBC batch size cho order_items (rewriteBatchedStatements gộp thành INSERT nhiều dòng)
+    private static final int ORDER_ITEM_BATCH_SIZE = 1000;
+
+    // Số tài khoản đọc mỗi lần khi stream / tải file đơn hàng
+    private static final int ACCOUNT_READ_CHUNK_SIZE = 1000;
+
+    /**
+     * Luồng mua gọn, số câu SQL cố định mỗi lần mua:
+     * - Giá / trạng thái sản phẩm từ snapshot có cache (không findById + 2 câu COUNT)
+     * - User chỉ dùng reference (không SELECT), ví đọc MỘT lần dưới lock và trừ tiền trên chính entity đó
+     * - Tổng tiền = giá snapshot x số items (không lazy-load product của từng item)
+     * - Chuyển kho + cập nhật số lượng WebSocket chạy nền sau commit
+     */
     @Override
     @Transactional
     @CacheEvict(value = "orders", allEntries = true)
     public ClientOrderCreateResponseDTO createOrder(OrderCreateDTO request, Long userId) {
-        List<String> accountDataList = new ArrayList<>();
+        ProductSnapshotDTO product = getPurchasableProduct(request.getProductId());
+
+        // Khóa ví TRƯỚC KHI lock product items, kiểm tra số dư một lần
+        WalletEntity wallet = lockWalletForPurchase(userId, totalPrice(product, request.getQuantity()));
+
+        OrderEntity order = OrderEntity.builder()
+                .user(userRepository.getReferenceById(userId))
+                .orderNumber(generateOrderNumber())
+                .productId(request.getProductId())
+                .productName(product.getName())
+                .orderStatus(OrderStatusEnum.COMPLETED)
+                .build();
+
+        List<ProductItemEntity> productItems = productItemService.getNewestUnsoldItems(request.getProductId(), request.getQuantity());
+
+        List<Long> productItemIds = new ArrayList<>(productItems.size());
+        List<String> accountDataList = new ArrayList<>(productItems.size());
+        for (var productItem : productItems) {
+            productItemIds.add(productItem.getId());
+            accountDataList.add(productItem.getAccountData());
+        }
+        order.setTotalAmount(charge(wallet, product, productItems.size()));
+        order.setQuantity(productItems.size());
+
+        orderRepository.save(order);
+        saveOrderItems(order, productItemIds, userId);
+
+        // Kiểm tra và chuyển kho nếu kho phụ dưới mức tối thiểu (nền, sau commit)
+        warehouseCheckScheduler.scheduleAfterCommit(request.getProductId());
 
+        return ClientOrderCreateResponseDTO.builder()
+                .accountData(accountDataList)
+                .build();
+    }
+
+    /**
+     * Đơn lớn không giữ lock kho / ví và toàn bộ dữ liệu tài khoản trong một transaction:
+     * chỉ tạo đơn PAID ở đây, AsyncOrderProcessor giao theo từng lô (fulfilAsyncOrderChunk)
+     */
+    @Override
+    @Transactional
+    @CacheEvict(value = "orders", allEntries = true)
+    public AsyncOrderResponseDTO createAsyncOrder(OrderCreateDTO request, Long userId) {
         UserEntity userEntity = userRepository.findById(userId)
                 .orElseThrow(() -> new BusinessException(ErrorCode.USER_NOT_FOUND));
 
-        ProductResponseDTO productResponseDTO = productService.getProductById(request.getProductId());
+        ProductSnapshotDTO product = getPurchasableProduct(request.getProductId());
 
-        // VALIDATION: Kiểm tra số dư TRƯỚC KHI lock product items ==========
-        Long estimatedTotal = productResponseDTO.getPrice() * request.getQuantity();
-        
-        WalletEntity wallet = walletRepository.findByUserId(userId)
-                .orElseThrow(() -> new BusinessException(ErrorCode.WALLET_NOT_FOUND));
-        
-        if (wallet.getIsLocked()) {
-            throw new BusinessException(ErrorCode.WALLET_LOCKED);
-        }
-        
-        if (!wallet.hasSufficientBalance(estimatedTotal)) {
-            log.warn("User {} attempted to purchase but insufficient balance. Required: {}, Available: {}", 
-                    userId, estimatedTotal, wallet.getBalance());
-            throw new BusinessException(ErrorCode.INSUFFICIENT_BALANCE);
-        }
-        // =============================================================================
+        // Kiểm tra số dư cho cả đơn dưới lock ví (không đọc số dư đang bị lần mua khác trừ dở);
+        // tiền được trừ theo từng lô đã giao
+        lockWalletForPurchase(userId, totalPrice(product, request.getQuantity()));
 
-        OrderEntity order = new OrderEntity().builder()
+        OrderEntity order = OrderEntity.builder()
                 .user(userEntity)
                 .orderNumber(generateOrderNumber())
                 .productId(request.getProductId())
-                .productName(productResponseDTO.getName())
-                .orderStatus(OrderStatusEnum.COMPLETED)
+                .productName(product.getName())
+                .orderStatus(OrderStatusEnum.PAID)
+                .quantity(0)
+                .totalAmount(0L)
+                .requestedQuantity(request.getQuantity())
                 .build();
 
-        List<ProductItemEntity> productItems = productItemService.getNewestUnsoldItems(request.getProductId(), request.getQuantity());
+        orderRepository.save(order);
+        return toAsyncResponse(order);
+    }
+
+    @Override
+    @Transactional
+    @CacheEvict(value = "orders", allEntries = true)
+    public AsyncOrderResponseDTO fulfilAsyncOrderChunk(Long orderId, int quantity) {
+        // Lock đơn trước ví / items: lô này và việc kết thúc đơn (kể cả stale sweep) không chạy chồng lên nhau
+        OrderEntity order = orderRepository.findByIdForUpdate(orderId)
+                .orElseThrow(() -> new BusinessException(ErrorCode.ORDER_NOT_FOUND));
+
+        if (order.getOrderStatus() != OrderStatusEnum.PAID) {
+            throw new BusinessException(ErrorCode.INVALID_ORDER_STATUS);
+        }
+
+        Long userId = order.getUser().getId();
+        ProductSnapshotDTO product = productService.getProductSnapshot(order.getProductId());
+        WalletEntity wallet = lockWalletForPurchase(userId, totalPrice(product, quantity));
+
+        List<ProductItemEntity> productItems = productItemService.getNewestUnsoldItems(order.getProductId(), quantity);
 
+        List<Long> productItemIds = new ArrayList<>(productItems.size());
         for (var productItem : productItems) {
-            OrderItemEntity orderItemEntity = new OrderItemEntity().builder()
-                    .order(order)
-                    .productItem(productItem)
-                    .build();
-            //Đánh dấu đã bán
-            productItem.markSold(userId);
-            order.addOrderItem(orderItemEntity);
+            productItemIds.add(productItem.getId());
+        }
+        order.setTotalAmount(order.getTotalAmount() + charge(wallet, product, productItems.size()));
+        order.setQuantity(order.getQuantity() + productItems.size());
 
-            accountDataList.add(productItem.getAccountData());
+        orderRepository.save(order);
+        saveOrderItems(order, productItemIds, userId);
+        warehouseCheckScheduler.scheduleAfterCommit(order.getProductId());
+
+        return toAsyncResponse(order);
+    }
+
+    @Override
+    @Transactional
+    @CacheEvict(value = "orders", allEntries = true)
+    public AsyncOrderResponseDTO finishAsyncOrder(Long orderId, String error) {
+        OrderEntity order = orderRepository.findByIdForUpdate(orderId)
+                .orElseThrow(() -> new BusinessException(ErrorCode.ORDER_NOT_FOUND));
+
+        if (order.getOrderStatus() != OrderStatusEnum.PAID) {
+            return toAsyncResponse(order);
         }
+        return finish(order, error);
+    }
 
-        //Tính toán tiền
-        order.calculationTotalAmount();
+    @Override
+    @Transactional
+    @CacheEvict(value = "orders", allEntries = true)
+    public AsyncOrderResponseDTO finishStaleAsyncOrder(Long orderId, LocalDateTime cutoff, String error) {
+        return orderRepository.findStaleAsyncOrderForUpdate(orderId, OrderStatusEnum.PAID, cutoff)
+                .map(order -> finish(order, error))
+                .orElse(null);
+    }
 
-        walletService.spend(userId, order.getTotalAmount(), "Thanh toán đơn hàng " + order.getOrderNumber());
+    private AsyncOrderResponseDTO finish(OrderEntity order, String error) {
+        // Giao được phần nào thì đơn hoàn tất với phần đó (chỉ trừ tiền phần đã giao)
+        order.setOrderStatus(order.getQuantity() > 0 ? OrderStatusEnum.COMPLETED : OrderStatusEnum.CANCELLED);
+        if (error != null) {
+            String notes = "Đã giao " + order.getQuantity() + "/" + order.getRequestedQuantity() + ": " + error;
+            order.setNotes(notes.length() > 1000 ? notes.substring(0, 1000) : notes);
+        }
+        orderRepository.save(order);
 
-         orderRepository.save(order);
-         productQuantityNotifier.publishAfterCommit(request.getProductId());
-         
-         // Kiểm tra và chuyển kho nếu kho phụ dưới mức tối thiểu
-         warehouseService.checkAndTransferStock(request.getProductId());
+        return toAsyncResponse(order);
+    }
 
-        return ClientOrderCreateResponseDTO.builder()
-                .accountData(accountDataList)
+    @Override
+    public List<Long> findStaleAsyncOrderIds(LocalDateTime cutoff) {
+        return orderRepository.findStaleAsyncOrderIds(OrderStatusEnum.PAID, cutoff);
+    }
+
+    @Override
+    public AsyncOrderResponseDTO getAsyncOrder(Long orderId, Long userId) {
+        OrderEntity order = orderRepository.findById(orderId)
+                .orElseThrow(() -> new BusinessException(ErrorCode.ORDER_NOT_FOUND));
+        checkOrderAccess(order, userId);
+        return toAsyncResponse(order);
+    }
+
+    @Override
+    public Page<String> getOrderAccounts(Long orderId, Long userId, Pageable pageable) {
+        getAsyncOrder(orderId, userId);
+        return orderItemRepository.findAccountDataByOrderId(orderId, pageable);
+    }
+
+    @Override
+    public void forEachOrderAccountChunk(Long orderId, Consumer<List<String>> consumer) {
+        long afterId = 0L;
+        while (true) {
+            List<OrderItemRepository.AccountDataRow> rows = orderItemRepository.findAccountDataAfter(
+                    orderId, afterId, PageRequest.of(0, ACCOUNT_READ_CHUNK_SIZE));
+            if (rows.isEmpty()) {
+                return;
+            }
+            consumer.accept(rows.stream().map(OrderItemRepository.AccountDataRow::getAccountData).toList());
+            if (rows.size() < ACCOUNT_READ_CHUNK_SIZE) {
+                return;
+            }
+            afterId = rows.get(rows.size() - 1).getId();
+        }
+    }
+
+    /**
+     * Trừ tiền count items theo giá snapshot trên ví đã khóa (mỗi item = 1 sản phẩm)
+     * Lỗi của WalletEntity.deductBalance được trả về dạng BusinessException (không thành lỗi 500)
+     */
+    private long charge(WalletEntity wallet, ProductSnapshotDTO product, int count) {
+        long amount = totalPrice(product, count);
+        try {
+            wallet.deductBalance(amount);
+        } catch (IllegalArgumentException e) {
+            throw new BusinessException(ErrorCode.INVALID_AMOUNT);
+        } catch (IllegalStateException e) {
+            throw new BusinessException(ErrorCode.INSUFFICIENT_BALANCE);
+        }
+        walletRepository.save(wallet);
+        return amount;
+    }
+
+    /**
+     * Giá snapshot x số lượng; <= 0 (giá lỗi / số lượng âm) hoặc tràn số → INVALID_AMOUNT như walletService.spend
+     */
+    private long totalPrice(ProductSnapshotDTO product, int count) {
+        try {
+            long amount = Math.multiplyExact(product.getPrice() != null ? product.getPrice() : 0L, (long) count);
+            if (amount <= 0) {
+                throw new BusinessException(ErrorCode.INVALID_AMOUNT);
+            }
+            return amount;
+        } catch (ArithmeticException e) {
+            throw new BusinessException(ErrorCode.INVALID_AMOUNT);
+        }
+    }
+
+    /**
+     * Sản phẩm còn bán được: sản phẩm không ACTIVE bị ẩn khỏi cửa hàng (ProductService chỉ liệt kê ACTIVE),
+     * nên mua theo ID cũng trả về PRODUCT_NOT_FOUND như sản phẩm không tồn tại
+     */
+    private ProductSnapshotDTO getPurchasableProduct(Long productId) {
+        ProductSnapshotDTO product = productService.getProductSnapshot(productId);
+        if (product.getStatus() != ActiveStatusEnum.ACTIVE) {
+            throw new BusinessException(ErrorCode.PRODUCT_NOT_FOUND);
+        }
+        return product;
+    }
+
+    /**
+     * Ví của người mua dưới lock (SELECT ... FOR UPDATE), đã kiểm tra khóa ví và số dư
+     */
+    private WalletEntity lockWalletForPurchase(Long userId, long estimatedTotal) {
+        WalletEntity wallet = walletRepository.findByUserIdWithLock(userId)
+                .orElseThrow(() -> new BusinessException(ErrorCode.WALLET_NOT_FOUND));
+        checkBalance(wallet, userId, estimatedTotal);
+        return wallet;
+    }
+
+    private void checkBalance(WalletEntity wallet, Long userId, long estimatedTotal) {
+        if (wallet.getIsLocked()) {
+            throw new BusinessException(ErrorCode.WALLET_LOCKED);
+        }
+
+        if (!wallet.hasSufficientBalance(estimatedTotal)) {
+            log.warn("User {} attempted to purchase but insufficient balance. Required: {}, Available: {}",
+                    userId, estimatedTotal, wallet.getBalance());
+            throw new BusinessException(ErrorCode.INSUFFICIENT_BALANCE);
+        }
+    }
+
+    private AsyncOrderResponseDTO toAsyncResponse(OrderEntity order) {
+        return AsyncOrderResponseDTO.builder()
+                .orderId(order.getId())
+                .orderNumber(order.getOrderNumber())
+                .status(order.getOrderStatus())
+                .requestedQuantity(order.getRequestedQuantity() != null ? order.getRequestedQuantity() : order.getQuantity())
+                .deliveredQuantity(order.getQuantity())
+                .totalAmount(order.getTotalAmount())
+                .notes(order.getNotes())
                 .build();
     }
 
+    /**
+     * Ghi order_items và đánh dấu đã bán theo lô thay vì từng entity:
+     * - product_items: MỘT câu UPDATE ... WHERE id IN (...)
+     * - order_items: JDBC batch (rewriteBatchedStatements → INSERT nhiều dòng), không qua Hibernate
+     *   vì IDENTITY không cho Hibernate gộp insert
+     */
+    private void saveOrderItems(OrderEntity order, List<Long> productItemIds, Long userId) {
+        int updated = productItemRepository.markAllAsSold(productItemIds, userId);
+        if (updated != productItemIds.size()) {
+            // Items đã được lock trong transaction này, lệch nghĩa là dữ liệu bị sửa ngoài luồng mua
+            throw new BusinessException(ErrorCode.NOT_ENOUGH_STOCK);
+        }
+
+        Long orderId = order.getId();
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        jdbcTemplate.batchUpdate(INSERT_ORDER_ITEM_SQL, productItemIds, ORDER_ITEM_BATCH_SIZE, (ps, productItemId) -> {
+            ps.setLong(1, orderId);
+            ps.setLong(2, productItemId);
+            ps.setTimestamp(3, now);
+            ps.setTimestamp(4, now);
+        });
+    }
+
     @Override
     @Cacheable(value = "orders", key = "{#id, #userId}")
     public OrderResponseDTO getOrderById(Long id, Long userId) {
@@ -129,10 +360,16 @@ public class OrderServiceImpl implements OrderService {
         OrderEntity orderEntity = orderRepository.findById(id)
                 .orElseThrow(() -> new BusinessException(ErrorCode.ORDER_NOT_FOUND));
 
+        checkOrderAccess(orderEntity, userId);
+
+        return orderMapper.toResponse(orderEntity);
+    }
+
+    private void checkOrderAccess(OrderEntity orderEntity, Long userId) {
         // Get user to check if admin
         UserEntity currentUser = userRepository.findById(userId)
                 .orElseThrow(() -> new BusinessException(ErrorCode.USER_NOT_FOUND));
-        
+
         boolean isAdmin = currentUser.getRoles().stream()
                 .anyMatch(role -> Constants.ROLE_ADMIN.equals(role.getName()));
 
@@ -140,8 +377,6 @@ public class OrderServiceImpl implements OrderService {
         if (!isAdmin && !orderEntity.getUser().getId().equals(userId)) {
             throw new BusinessException(ErrorCode.PERMISSION_DENIED);
         }
-
-        return orderMapper.toResponse(orderEntity);
     }
 
     @Override
@@ -15,6 +15,7 @@ import com.mailshop_dragonvu.repository.ProductRepository;
 import com.mailshop_dragonvu.repository.UserRepository;
 import com.mailshop_dragonvu.service.ProductItemService;
 import com.mailshop_dragonvu.service.ProductQuantityNotifier;
+import com.mailshop_dragonvu.service.StockClaimQueue;
 import com.mailshop_dragonvu.service.WarehouseService;
 import com.mailshop_dragonvu.utils.Utils;
 import jakarta.persistence.criteria.Predicate;
@@ -38,6 +39,7 @@ import java.nio.charset.StandardCharsets;
 import java.sql.Timestamp;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -60,6 +62,10 @@ public class ProductItemServiceImpl implements ProductItemService {
     private final UserRepository userRepository;
     private final JdbcTemplate jdbcTemplate;
     private final WarehouseService warehouseService;
+    private final StockClaimQueue stockClaimQueue;
+
+    // Số vòng claim tối đa (mỗi vòng bù cho items đã bị người khác mua / hết hạn)
+    private static final int MAX_CLAIM_ROUNDS = 5;
 
     @Override
     public int batchCreateProductItems(ProductItemCreateDTO productItemCreateDTO) {
@@ -136,6 +142,7 @@ public class ProductItemServiceImpl implements ProductItemService {
 
         // 6. Async notifications
         productQuantityNotifier.publishAfterCommit(productItemCreateDTO.getProductId());
+        stockClaimQueue.invalidateAfterCommit(productItemCreateDTO.getProductId());
         
         // 7. Async warehouse check - chạy SAU KHI transaction commit
         final Long finalProductId = productId;
@@ -227,11 +234,13 @@ public class ProductItemServiceImpl implements ProductItemService {
      * Tự động loại bỏ items đã hết hạn trước khi trả về
      * 
      * FOR UPDATE SKIP LOCKED: đảm bảo nhiều người mua cùng lúc không lấy trùng items
+     * Không kiểm tra sản phẩm tồn tại: luồng mua đã kiểm tra qua ProductService.getProductSnapshot
      */
     @Override
     public List<ProductItemEntity> getNewestUnsoldItems(Long productId, int quantity) {
-        productRepository.findById(productId)
-                .orElseThrow(() -> new BusinessException(ErrorCode.PRODUCT_NOT_FOUND));
+        if (stockClaimQueue.isEnabled()) {
+            return claimNewestUnsoldItems(productId, quantity);
+        }
 
         // 1. Đánh dấu các items đã hết hạn trước khi lấy (dựa trên expiresAt của từng item)
         markExpiredItems(productId);
@@ -281,6 +290,89 @@ public class ProductItemServiceImpl implements ProductItemService {
         return validItems;
     }
 
+    /**
+     * Lấy items qua hàng đợi claim: pop ID từ hàng đợi, chỉ lock đúng các dòng đó theo khóa chính
+     * Items đã bị mua / hết hạn trong lúc đó được bù ở vòng sau, hết hàng thì thử chuyển kho một lần
+     * Hàng đợi có ID cũ (bán ở node khác, hoặc redis nạp lại ID node khác đang giữ) → bỏ hàng đợi, vòng sau nạp lại
+     * Vẫn thiếu sau các vòng → quét thẳng database một lần (FOR UPDATE SKIP LOCKED) trước khi báo hết hàng
+     * Transaction rollback → ID được trả lại hàng đợi
+     */
+    private List<ProductItemEntity> claimNewestUnsoldItems(Long productId, int quantity) {
+        List<ProductItemEntity> claimed = new ArrayList<>(quantity);
+        List<Long> expiredIds = new ArrayList<>();
+        Set<Long> tried = new HashSet<>();
+        boolean transferred = false;
+
+        for (int round = 0; round < MAX_CLAIM_ROUNDS && claimed.size() < quantity; round++) {
+            List<Long> ids = stockClaimQueue.claim(productId, quantity - claimed.size(), limit -> {
+                // Nạp lại hàng đợi: đánh dấu expired một lần cho cả lô thay vì mỗi lần mua
+                markExpiredItems(productId);
+                return productItemRepository.findClaimableSecondaryItemIds(productId, limit);
+            });
+            ids.removeIf(id -> !tried.add(id));
+
+            if (ids.isEmpty()) {
+                if (transferred) {
+                    break;
+                }
+                // Kho phụ không đủ, thử chuyển kho rồi claim lại
+                warehouseService.checkAndTransferStock(productId);
+                stockClaimQueue.invalidate(productId);
+                transferred = true;
+                continue;
+            }
+
+            // ID không lock được: đã bán, hoặc đang bị transaction khác giữ (nó tự trả lại nếu rollback)
+            List<ProductItemEntity> locked = productItemRepository.lockClaimedItems(productId, ids);
+            if (locked.size() < ids.size()) {
+                // Hàng đợi lệch với database: nạp lại thay vì tiếp tục pop ID cũ
+                stockClaimQueue.invalidate(productId);
+            }
+            for (ProductItemEntity item : locked) {
+                if (item.isExpired()) {
+                    expiredIds.add(item.getId());
+                } else {
+                    claimed.add(item);
+                }
+            }
+        }
+        stockClaimQueue.releaseOnRollback(productId, claimed.stream().map(ProductItemEntity::getId).toList());
+
+        if (claimed.size() < quantity) {
+            // Quét database: các dòng đã lock trong transaction này không bị SKIP LOCKED bỏ qua → lọc theo ID
+            Set<Long> seen = new HashSet<>(expiredIds);
+            claimed.forEach(item -> seen.add(item.getId()));
+            for (ProductItemEntity item : productItemRepository.findNewestUnsoldSecondaryItems(productId, quantity)) {
+                if (claimed.size() >= quantity) {
+                    break;
+                }
+                if (!seen.add(item.getId())) {
+                    continue;
+                }
+                if (item.isExpired()) {
+                    expiredIds.add(item.getId());
+                } else {
+                    claimed.add(item);
+                }
+            }
+        }
+
+        if (!expiredIds.isEmpty()) {
+            productItemRepository.markAsExpired(expiredIds);
+            log.info("Product {}: Marked {} items as expired during claim", productId, expiredIds.size());
+            productQuantityNotifier.publishAfterCommit(productId);
+        }
+
+        if (claimed.size() < quantity) {
+            throw new BusinessException(ErrorCode.NOT_ENOUGH_STOCK);
+        }
+
+        // Giữ thứ tự MỚI NHẤT trước như truy vấn cũ
+        claimed.sort(Comparator.comparing(ProductItemEntity::getCreatedAt,
+                Comparator.nullsLast(Comparator.reverseOrder())));
+        return claimed;
+    }
+
     /**
      * Đánh dấu các items đã hết hạn trong database
      */
@@ -318,6 +410,7 @@ public class ProductItemServiceImpl implements ProductItemService {
             Long productId = item.getProduct().getId();
             productItemRepository.delete(item);
             productQuantityNotifier.publishAfterCommit(productId);
+            stockClaimQueue.invalidateAfterCommit(productId);
         });
     }
 
@@ -410,6 +503,7 @@ public class ProductItemServiceImpl implements ProductItemService {
                 newAccountDataList.size(), productId, expirationType, duplicateCount);
 
         productQuantityNotifier.publishAfterCommit(productId);
+        stockClaimQueue.invalidateAfterCommit(productId);
         
         // Async warehouse check - chạy SAU KHI transaction commit
         final Long finalProductId = productId;
@@ -519,6 +613,7 @@ public class ProductItemServiceImpl implements ProductItemService {
         
         log.info("Product {}: Deleted {} items by email match", productId, idsToDelete.size());
         productQuantityNotifier.publishAfterCommit(productId);
+        stockClaimQueue.invalidateAfterCommit(productId);
         
         return idsToDelete.size();
     }
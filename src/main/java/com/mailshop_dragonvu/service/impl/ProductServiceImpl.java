@@ -18,6 +18,8 @@ import jakarta.persistence.criteria.Root;
 import jakarta.persistence.criteria.Subquery;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.cache.annotation.CacheEvict;
+import org.springframework.cache.annotation.Cacheable;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
@@ -89,6 +91,7 @@ public class ProductServiceImpl implements ProductService {
     // ================== UPDATE PRODUCT ==================
 
     @Override
+    @CacheEvict(value = "productSnapshots", key = "#id")
     public ProductResponseDTO updateProduct(Long id, ProductUpdateDTO request) {
         log.info("Updating product {}", id);
 
@@ -149,10 +152,24 @@ public class ProductServiceImpl implements ProductService {
         return toProductResponse(product);
     }
 
+    @Override
+    @Transactional(readOnly = true)
+    @Cacheable(value = "productSnapshots", key = "#id")
+    public ProductSnapshotDTO getProductSnapshot(Long id) {
+        ProductEntity product = findProductOrThrow(id);
+        return ProductSnapshotDTO.builder()
+                .id(product.getId())
+                .name(product.getName())
+                .price(product.getPrice())
+                .status(product.getStatus())
+                .build();
+    }
+
 
     // ================== DELETE PRODUCT ==================
 
     @Override
+    @CacheEvict(value = "productSnapshots", key = "#id")
     public void deleteProduct(Long id) {
         ProductEntity product = findProductOrThrow(id);
         
@@ -172,6 +189,7 @@ public class ProductServiceImpl implements ProductService {
     // ================== ACTIVATE / DEACTIVATE ==================
 
     @Override
+    @CacheEvict(value = "productSnapshots", key = "#id")
     public void activateProduct(Long id) {
         ProductEntity product = findProductOrThrow(id);
         product.setStatus(ActiveStatusEnum.ACTIVE);
@@ -179,6 +197,7 @@ public class ProductServiceImpl implements ProductService {
     }
 
     @Override
+    @CacheEvict(value = "productSnapshots", key = "#id")
     public void deactivateProduct(Long id) {
         ProductEntity product = findProductOrThrow(id);
         product.setStatus(ActiveStatusEnum.INACTIVE);
@@ -0,0 +1,155 @@
+package com.mailshop_dragonvu.service.impl;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mailshop_dragonvu.dto.hotmail.HotmailGetCodeRequestDTO;
+import com.mailshop_dragonvu.dto.hotmail.ReadMailRequestDTO;
+import com.mailshop_dragonvu.exception.BusinessException;
+import com.mailshop_dragonvu.exception.ErrorCode;
+import com.mailshop_dragonvu.service.StreamSessionStore;
+import com.mailshop_dragonvu.service.job.ToolInputSpool;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Redis-backed session store shared by every instance behind the load balancer
+ *
+ * - Session JSON stored with a TTL (Redis expires abandoned sessions)
+ * - Per-owner and global pending-session quotas kept in sorted sets (score = created at),
+ *   checked and updated atomically by a Lua script
+ * - Upload sessions point at a spool file on the node that received the upload, so they are rejected unless
+ *   the load balancer pins each client to one node (app.tools.upload.sticky-sessions=true)
+ */
+@Component
+@ConditionalOnProperty(name = "app.tools.session-store", havingValue = "redis")
+@Slf4j
+public class RedisStreamSessionStore implements StreamSessionStore {
+
+    private static final String SESSION_KEY_PREFIX = "tools:session:";
+    private static final String OWNER_KEY_PREFIX = "tools:session-owner:";
+    private static final String ALL_SESSIONS_KEY = "tools:sessions";
+
+    private static final long RESULT_OK = 0;
+    private static final long RESULT_OWNER_QUOTA = 1;
+
+    // KEYS: session, owner set, global set
+    // ARGV: json, ttl ms, now, expired cutoff, max per owner, max total, session id
+    private static final DefaultRedisScript<Long> CREATE_SCRIPT = new DefaultRedisScript<>("""
+            redis.call('ZREMRANGEBYSCORE', KEYS[2], '-inf', ARGV[4])
+            redis.call('ZREMRANGEBYSCORE', KEYS[3], '-inf', ARGV[4])
+            if redis.call('ZCARD', KEYS[2]) >= tonumber(ARGV[5]) then return 1 end
+            if redis.call('ZCARD', KEYS[3]) >= tonumber(ARGV[6]) then return 2 end
+            redis.call('SET', KEYS[1], ARGV[1], 'PX', ARGV[2])
+            redis.call('ZADD', KEYS[2], ARGV[3], ARGV[7])
+            redis.call('PEXPIRE', KEYS[2], ARGV[2])
+            redis.call('ZADD', KEYS[3], ARGV[3], ARGV[7])
+            return 0
+            """, Long.class);
+
+    private final StringRedisTemplate redisTemplate;
+    private final ObjectMapper objectMapper;
+
+    @Value("${app.tools.sessions.max-payload-mb:16}")
+    private long maxPayloadMb;
+
+    @Value("${app.tools.sessions.max-per-owner:10}")
+    private int maxPerOwner;
+
+    @Value("${app.tools.sessions.max-total:1000}")
+    private int maxTotal;
+
+    /**
+     * The load balancer sends the start and the stream call of a client to the same node
+     */
+    @Value("${app.tools.upload.sticky-sessions:false}")
+    private boolean stickySessions;
+
+    public RedisStreamSessionStore(StringRedisTemplate redisTemplate, ObjectMapper objectMapper) {
+        this.redisTemplate = redisTemplate;
+        this.objectMapper = objectMapper;
+    }
+
+    @Override
+    public String create(SessionData session) {
+        if (session.estimatedBytes() > maxPayloadMb * 1024 * 1024) {
+            throw new BusinessException(ErrorCode.TOOL_PAYLOAD_TOO_LARGE);
+        }
+
+        String json;
+        try {
+            json = objectMapper.writeValueAsString(session);
+        } catch (JsonProcessingException e) {
+            throw new BusinessException(ErrorCode.INTERNAL_SERVER_ERROR, "Không thể lưu phiên: " + e.getMessage(), e);
+        }
+
+        String sessionId = UUID.randomUUID().toString();
+        long now = System.currentTimeMillis();
+        Long result = redisTemplate.execute(CREATE_SCRIPT,
+                List.of(SESSION_KEY_PREFIX + sessionId, OWNER_KEY_PREFIX + session.owner, ALL_SESSIONS_KEY),
+                json,
+                String.valueOf(SESSION_TIMEOUT_MS),
+                String.valueOf(now),
+                String.valueOf(now - SESSION_TIMEOUT_MS),
+                String.valueOf(maxPerOwner),
+                String.valueOf(maxTotal),
+                sessionId);
+
+        if (result == null || result != RESULT_OK) {
+            if (result != null && result == RESULT_OWNER_QUOTA) {
+                throw new BusinessException(ErrorCode.TOOL_SESSION_QUOTA_EXCEEDED);
+            }
+            log.warn("Redis session store full ({} sessions), rejecting session", maxTotal);
+            throw new BusinessException(ErrorCode.TOOL_SESSION_STORE_FULL);
+        }
+        return sessionId;
+    }
+
+    /**
+     * The spool file stays on this node: without sticky sessions a stream call on another node cannot read it
+     */
+    @Override
+    public String createUploadSession(String type, String owner, ToolInputSpool.SpooledInput input,
+                                      HotmailGetCodeRequestDTO getCodeRequest, ReadMailRequestDTO readMailRequest,
+                                      boolean forceRecheck) {
+        if (!stickySessions) {
+            throw new BusinessException(ErrorCode.TOOL_UPLOAD_NOT_SHARED);
+        }
+        return StreamSessionStore.super.createUploadSession(type, owner, input, getCodeRequest, readMailRequest,
+                forceRecheck);
+    }
+
+    @Override
+    public SessionData getAndRemove(String sessionId) {
+        String json = redisTemplate.opsForValue().getAndDelete(SESSION_KEY_PREFIX + sessionId);
+        SessionData session = parse(sessionId, json);
+        if (session != null) {
+            redisTemplate.opsForZSet().remove(OWNER_KEY_PREFIX + session.owner, sessionId);
+            redisTemplate.opsForZSet().remove(ALL_SESSIONS_KEY, sessionId);
+        }
+        return session;
+    }
+
+    @Override
+    public SessionData get(String sessionId) {
+        return parse(sessionId, redisTemplate.opsForValue().get(SESSION_KEY_PREFIX + sessionId));
+    }
+
+    private SessionData parse(String sessionId, String json) {
+        if (json == null) {
+            return null;
+        }
+        try {
+            return objectMapper.readValue(json, SessionData.class);
+        } catch (JsonProcessingException e) {
+            log.warn("Corrupt stream session {}: {}", sessionId, e.getMessage());
+            return null;
+        }
+    }
+}
@@ -2,35 +2,41 @@ package com.mailshop_dragonvu.service.impl;
 
 import com.mailshop_dragonvu.dto.totp.TotpResponseDTO;
 import com.mailshop_dragonvu.service.TotpService;
-import dev.samstevens.totp.code.CodeGenerator;
-import dev.samstevens.totp.code.DefaultCodeGenerator;
-import dev.samstevens.totp.code.HashingAlgorithm;
-import dev.samstevens.totp.exceptions.CodeGenerationException;
+import com.mailshop_dragonvu.service.job.ToolInputSpool;
+import com.mailshop_dragonvu.service.totp.TotpEngine;
 import dev.samstevens.totp.time.SystemTimeProvider;
 import dev.samstevens.totp.time.TimeProvider;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 /**
  * Service implementation for TOTP 2FA code generation using RFC 6238 standard
+ *
+ * Large inputs are split into chunks computed in parallel (Schedulers.parallel(), CPU-bound),
+ * results keep the input order. Every line of one call uses the same time window.
  */
 @Service
 @Slf4j
 public class TotpServiceImpl implements TotpService {
 
     private static final int TIME_PERIOD = 30; // Standard TOTP time period in seconds
-    private static final int CODE_DIGITS = 6;  // Standard 6-digit code
 
     private final TimeProvider timeProvider;
-    private final CodeGenerator codeGenerator;
+    private final TotpEngine totpEngine;
 
-    public TotpServiceImpl() {
+    @Value("${app.totp.chunk-size:1000}")
+    private int chunkSize;
+
+    public TotpServiceImpl(TotpEngine totpEngine) {
         this.timeProvider = new SystemTimeProvider();
-        this.codeGenerator = new DefaultCodeGenerator(HashingAlgorithm.SHA1, CODE_DIGITS);
+        this.totpEngine = totpEngine;
     }
 
     @Override
@@ -39,118 +45,123 @@ public class TotpServiceImpl implements TotpService {
             return new ArrayList<>();
         }
 
-        List<TotpResponseDTO> results = new ArrayList<>();
-        String[] lines = secretData.split("\n");
-        int timeRemaining = getTimeRemaining();
-
-        for (String line : lines) {
-            String secret = extractSecret(line.trim());
-            
-            if (secret.isEmpty()) {
-                continue;
-            }
-
-            try {
-                String code = generateCode(secret);
-                
-                if (code != null) {
-                    results.add(TotpResponseDTO.builder()
-                            .identifier(getIdentifier(line.trim(), secret))
-                            .secret(secret)
-                            .code(code)
-                            .status("success")
-                            .timeRemaining(timeRemaining)
-                            .build());
-                } else {
-                    results.add(TotpResponseDTO.builder()
-                            .identifier(getIdentifier(line.trim(), secret))
-                            .secret(secret)
-                            .status("error")
-                            .error("Invalid secret key")
-                            .timeRemaining(0)
-                            .build());
-                }
-            } catch (Exception e) {
-                log.error("Error generating TOTP for secret: {}", maskSecret(secret), e);
-                results.add(TotpResponseDTO.builder()
-                        .identifier(getIdentifier(line.trim(), secret))
-                        .secret(secret)
-                        .status("error")
-                        .error("Failed to generate code: " + e.getMessage())
-                        .timeRemaining(0)
-                        .build());
-            }
-        }
+        List<TotpResponseDTO> results = generateCodesStream(ToolInputSpool.lines(secretData))
+                .collectList()
+                .block();
 
         log.info("Generated {} TOTP codes", results.size());
         return results;
     }
 
+    @Override
+    public Flux<TotpResponseDTO> generateCodesStream(Flux<String> lines) {
+        long now = timeProvider.getTime();
+        long counter = Math.floorDiv(now, TIME_PERIOD);
+        int timeRemaining = (int) (TIME_PERIOD - now % TIME_PERIOD);
+
+        return lines
+                .buffer(Math.max(1, chunkSize))
+                .flatMapSequential(chunk -> Mono.fromCallable(() -> generateChunk(chunk, counter, timeRemaining))
+                                .subscribeOn(Schedulers.parallel()),
+                        Schedulers.DEFAULT_POOL_SIZE)
+                .flatMapIterable(results -> results);
+    }
+
     @Override
     public String generateCode(String secret) {
         if (secret == null || secret.trim().isEmpty()) {
             return null;
         }
 
-        try {
-            // Clean up secret - remove spaces and convert to uppercase
-            String cleanSecret = secret.replaceAll("\\s+", "").toUpperCase();
-            
-            // Get current time bucket (counter)
-            long currentBucket = Math.floorDiv(timeProvider.getTime(), TIME_PERIOD);
-            
-            // Generate code
-            return codeGenerator.generate(cleanSecret, currentBucket);
-        } catch (CodeGenerationException e) {
-            log.error("Failed to generate TOTP code: {}", e.getMessage());
-            return null;
-        }
+        // Get current time bucket (counter)
+        long currentBucket = Math.floorDiv(timeProvider.getTime(), TIME_PERIOD);
+
+        String[] codes = totpEngine.generate(TotpEngine.normalize(secret), currentBucket, 1);
+        return codes != null ? codes[0] : null;
     }
 
-    @Override
-    public int getTimeRemaining() {
-        long currentSecond = timeProvider.getTime() % TIME_PERIOD;
-        return (int) (TIME_PERIOD - currentSecond);
+    private List<TotpResponseDTO> generateChunk(List<String> lines, long counter, int timeRemaining) {
+        List<TotpResponseDTO> results = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            TotpResponseDTO result = generateLine(line.trim(), counter, timeRemaining);
+            if (result != null) {
+                results.add(result);
+            }
+        }
+        return results;
     }
 
     /**
-     * Extract secret from input line
+     * Result for one input line, null when the line has no secret
      * Supports formats:
      * - Just secret: ABCDEFGH123456
      * - email|password|secret: test@email.com|pass123|ABCDEFGH123456
      */
-    private String extractSecret(String line) {
+    private TotpResponseDTO generateLine(String line, long counter, int timeRemaining) {
         if (line.isEmpty()) {
-            return "";
+            return null;
         }
 
-        String[] parts = line.split("\\|");
-        
-        // If format is email|password|secret, get the 3rd part
-        if (parts.length >= 3) {
-            return parts[2].trim();
+        // One pass over the separators instead of split() per field
+        int first = line.indexOf('|');
+        int second = first >= 0 ? line.indexOf('|', first + 1) : -1;
+        String secret;
+        String identifier = null;
+        if (second >= 0) {
+            int third = line.indexOf('|', second + 1);
+            secret = line.substring(second + 1, third >= 0 ? third : line.length()).trim();
+            String email = line.substring(0, first).trim();
+            if (!email.isEmpty()) {
+                identifier = email;
+            }
+        } else {
+            secret = (first >= 0 ? line.substring(0, first) : line).trim();
         }
-        
-        // Otherwise, treat the whole line as secret
-        return parts[0].trim();
-    }
 
-    /**
-     * Get display identifier for the result
-     */
-    private String getIdentifier(String originalLine, String secret) {
-        String[] parts = originalLine.split("\\|");
-        
-        // If email was provided, use it
-        if (parts.length >= 3 && !parts[0].trim().isEmpty()) {
-            return parts[0].trim();
+        if (secret.isEmpty()) {
+            return null;
         }
-        
-        // Otherwise, use truncated secret
-        if (secret.length() > 10) {
-            return secret.substring(0, 10) + "...";
+        if (identifier == null) {
+            identifier = secret.length() > 10 ? secret.substring(0, 10) + "..." : secret;
+        }
+
+        try {
+            // Current and next window, so clients near the end of a window can switch without a new call
+            String[] codes = totpEngine.generate(TotpEngine.normalize(secret), counter, 2);
+
+            if (codes != null) {
+                return TotpResponseDTO.builder()
+                        .identifier(identifier)
+                        .secret(secret)
+                        .code(codes[0])
+                        .nextCode(codes[1])
+                        .status("success")
+                        .timeRemaining(timeRemaining)
+                        .build();
+            }
+            return TotpResponseDTO.builder()
+                    .identifier(identifier)
+                    .secret(secret)
+                    .status("error")
+                    .error("Invalid secret key")
+                    .timeRemaining(0)
+                    .build();
+        } catch (Exception e) {
+            log.error("Error generating TOTP for secret: {}", maskSecret(secret), e);
+            return TotpResponseDTO.builder()
+                    .identifier(identifier)
+                    .secret(secret)
+                    .status("error")
+                    .error("Failed to generate code: " + e.getMessage())
+                    .timeRemaining(0)
+                    .build();
         }
-        return secret;
+    }
+
+    @Override
+    public int getTimeRemaining() {
+        long currentSecond = timeProvider.getTime() % TIME_PERIOD;
+        return (int) (TIME_PERIOD - currentSecond);
     }
 
     /**
@@ -0,0 +1,224 @@
+package com.mailshop_dragonvu.service.job;
+
+import com.mailshop_dragonvu.exception.BusinessException;
+import com.mailshop_dragonvu.exception.ErrorCode;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.BufferedWriter;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.stream.Stream;
+
+/**
+ * Tool input lines (email|password|refresh_token|client_id, UIDs, ...) without holding the whole list on the heap
+ *
+ * - Uploads are copied line by line from the request stream to a temp file (trimmed, blank lines dropped)
+ * - Limits are enforced while reading: request bytes (max-mb) and characters per line (max-line-length),
+ *   so a body without newlines is never buffered whole
+ * - Jobs read the file lazily: only the lines in flight are in memory, the file is deleted once read
+ * - Files of sessions that were never streamed are swept after the retention period
+ *
+ * The file lives on the node that received the upload: with the redis session store,
+ * the stream call has to reach the same node (sticky sessions).
+ */
+@Component
+@Slf4j
+public class ToolInputSpool {
+
+    private static final String FILE_PREFIX = "tool-input-";
+
+    @Value("${app.tools.upload.max-mb:256}")
+    private long maxMb;
+
+    @Value("${app.tools.upload.max-line-length:16384}")
+    private int maxLineLength;
+
+    @Value("${app.tools.upload.retention-minutes:30}")
+    private long retentionMinutes;
+
+    private final Path directory;
+
+    public ToolInputSpool() throws IOException {
+        this.directory = Files.createTempDirectory("tool-inputs");
+    }
+
+    /**
+     * Copy a request body to a spool file
+     * Throws TOOL_PAYLOAD_TOO_LARGE above app.tools.upload.max-mb bytes or app.tools.upload.max-line-length
+     * characters in one line
+     */
+    public SpooledInput spool(InputStream body) {
+        Path file = null;
+        try {
+            file = Files.createTempFile(directory, FILE_PREFIX, ".txt");
+            int lines = 0;
+
+            try (Reader reader = new InputStreamReader(new LimitedInputStream(body, maxMb * 1024 * 1024),
+                    StandardCharsets.UTF_8);
+                 BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                char[] buffer = new char[8192];
+                StringBuilder line = new StringBuilder();
+                int read;
+                while ((read = reader.read(buffer)) != -1) {
+                    for (int i = 0; i < read; i++) {
+                        char c = buffer[i];
+                        if (c == '\n') {
+                            lines += writeLine(writer, line);
+                        } else if (line.length() >= maxLineLength) {
+                            throw new BusinessException(ErrorCode.TOOL_PAYLOAD_TOO_LARGE,
+                                    "Một dòng dữ liệu dài quá " + maxLineLength + " ký tự");
+                        } else {
+                            line.append(c);
+                        }
+                    }
+                }
+                lines += writeLine(writer, line);
+            }
+            return new SpooledInput(file, lines);
+        } catch (IOException e) {
+            delete(file);
+            throw new BusinessException(ErrorCode.BAD_REQUEST, "Không thể đọc dữ liệu tải lên: " + e.getMessage(), e);
+        } catch (RuntimeException e) {
+            delete(file);
+            throw e;
+        }
+    }
+
+    /**
+     * Write one trimmed line (\r included) unless blank, then reset the builder; returns the lines written
+     */
+    private static int writeLine(BufferedWriter writer, StringBuilder line) throws IOException {
+        String trimmed = line.toString().strip();
+        line.setLength(0);
+        if (trimmed.isEmpty()) {
+            return 0;
+        }
+        writer.write(trimmed);
+        writer.newLine();
+        return 1;
+    }
+
+    /**
+     * Lines of a spool file, read on demand (boundedElastic) and deleted after the last line or on cancel
+     */
+    public Flux<String> lines(Path file) {
+        return Flux.using(
+                        () -> Files.newBufferedReader(file, StandardCharsets.UTF_8),
+                        reader -> Flux.fromStream(reader.lines()),
+                        reader -> {
+                            try {
+                                reader.close();
+                            } catch (IOException e) {
+                                log.debug("Cannot close tool input {}: {}", file, e.getMessage());
+                            }
+                            delete(file);
+                        })
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * Non-blank, trimmed lines of an inline payload, without an intermediate array or list
+     */
+    public static Flux<String> lines(String data) {
+        if (data == null || data.isEmpty()) {
+            return Flux.empty();
+        }
+        return Flux.fromStream(() -> data.lines().map(String::strip).filter(line -> !line.isEmpty()));
+    }
+
+    /**
+     * Drop a spool file that will not be streamed (e.g. session rejected)
+     */
+    public void discard(SpooledInput input) {
+        delete(input.file());
+    }
+
+    /**
+     * Delete spool files whose session was never streamed
+     */
+    @Scheduled(fixedRateString = "${app.tools.upload.sweep-interval:300000}")
+    public void evictExpired() {
+        FileTime cutoff = FileTime.from(Instant.now().minus(Duration.ofMinutes(retentionMinutes)));
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(file -> {
+                try {
+                    return Files.getLastModifiedTime(file).compareTo(cutoff) < 0;
+                } catch (IOException e) {
+                    return false;
+                }
+            }).forEach(ToolInputSpool::delete);
+        } catch (IOException | UncheckedIOException e) {
+            log.warn("Cannot sweep tool inputs: {}", e.getMessage());
+        }
+    }
+
+    private static void delete(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.debug("Cannot delete tool input {}: {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Request body that fails with TOOL_PAYLOAD_TOO_LARGE as soon as more than maxBytes have been read
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+        private final long maxBytes;
+        private long bytes;
+
+        LimitedInputStream(InputStream in, long maxBytes) {
+            super(in);
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count(read);
+            }
+            return read;
+        }
+
+        private void count(int read) {
+            bytes += read;
+            if (bytes > maxBytes) {
+                throw new BusinessException(ErrorCode.TOOL_PAYLOAD_TOO_LARGE);
+            }
+        }
+    }
+
+    /**
+     * Spool file and its number of non-blank lines
+     */
+    public record SpooledInput(Path file, int lines) {
+    }
+}
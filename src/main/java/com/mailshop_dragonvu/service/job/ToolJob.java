@@ -0,0 +1,463 @@
+package com.mailshop_dragonvu.service.job;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mailshop_dragonvu.dto.tools.LivenessResult;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * One server-side tool run (get-code, check-live, ...), independent of the HTTP connection
+ *
+ * - Each result gets a sequence number (SSE id, starts at 1) and is serialized once to JSON
+ * - The newest results stay in a bounded ring buffer, every result is spooled to an NDJSON file
+ *   (owner-only permissions, in the job manager's private directory; deleted on download or eviction)
+ * - Only the owner (user or client IP of the start call) may see, stream, download or cancel the job
+ * - Subscribers (SSE emitters) can attach/detach at any time and resume after a given sequence
+ * - Check-live jobs count liveness cache hits, reported in the "done" event
+ *
+ * Results arrive in micro-batches. Each subscriber has a bounded frame queue drained on a
+ * boundedElastic worker: one write + flush per batch, and a slow client never blocks the job.
+ * A subscriber whose queue overflows is closed and resumes with Last-Event-ID.
+ * Batched subscribers get one "results" event (JSON array, id = last sequence) per batch,
+ * the others one "result" event per result.
+ *
+ * All state changes happen under the job monitor.
+ */
+@Slf4j
+public class ToolJob {
+
+    public enum State {
+        RUNNING,
+        COMPLETED,
+        FAILED,
+        CANCELLED
+    }
+
+    @Getter
+    private final String id;
+    @Getter
+    private final String type;
+    @Getter
+    private final String owner;
+    @Getter
+    private final int total;
+    @Getter
+    private final long createdAt = System.currentTimeMillis();
+
+    private final ObjectMapper objectMapper;
+    private final String[] ring;
+    private final int batchSize;
+    private final int maxPendingFrames;
+    private final Path spoolFile;
+    private BufferedWriter spoolWriter;
+
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    private Disposable subscription;
+
+    private long produced;
+    private long cacheHits;
+    private long cacheMisses;
+    private State state = State.RUNNING;
+    private long finishedAt;
+    private long lastSeenAt = createdAt;
+
+    ToolJob(String id, String type, String owner, int total, int bufferSize, int batchSize, int maxPendingFrames,
+            ObjectMapper objectMapper, Path spoolDirectory) throws IOException {
+        this.id = id;
+        this.type = type;
+        this.owner = owner;
+        this.total = total;
+        this.objectMapper = objectMapper;
+        this.ring = new String[bufferSize];
+        this.batchSize = batchSize;
+        this.maxPendingFrames = maxPendingFrames;
+        this.spoolFile = ToolJobManager.createOwnerOnlyFile(spoolDirectory, "tool-job-", ".ndjson");
+        this.spoolWriter = Files.newBufferedWriter(spoolFile, StandardCharsets.UTF_8);
+    }
+
+    synchronized void setSubscription(Disposable subscription) {
+        if (state == State.RUNNING) {
+            this.subscription = subscription;
+        } else {
+            subscription.dispose();
+        }
+    }
+
+    /**
+     * Record a batch of results and queue it to the attached subscribers
+     */
+    synchronized void onResults(List<?> results) {
+        if (state != State.RUNNING) {
+            return;
+        }
+
+        List<String> batch = new ArrayList<>(results.size());
+        long firstSeq = produced + 1;
+        for (Object result : results) {
+            String json;
+            try {
+                json = objectMapper.writeValueAsString(result);
+            } catch (IOException e) {
+                log.error("Job {}: cannot serialize result: {}", id, e.getMessage());
+                continue;
+            }
+
+            if (result instanceof LivenessResult liveness) {
+                if (liveness.isCached()) {
+                    cacheHits++;
+                } else {
+                    cacheMisses++;
+                }
+            }
+
+            long seq = ++produced;
+            ring[(int) ((seq - 1) % ring.length)] = json;
+            try {
+                spoolWriter.write(json);
+                spoolWriter.newLine();
+            } catch (IOException e) {
+                log.warn("Job {}: cannot spool result {}: {}", id, seq, e.getMessage());
+            }
+            batch.add(json);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        Frame frame = new Frame(firstSeq, batch);
+        Iterator<Subscriber> iterator = subscribers.iterator();
+        while (iterator.hasNext()) {
+            Subscriber subscriber = iterator.next();
+            if (subscriber.live.tryEmitNext(frame).isFailure()) {
+                log.debug("Job {}: subscriber too slow, closing its stream", id);
+                iterator.remove();
+                subscriber.drop();
+            }
+        }
+    }
+
+    /**
+     * Mark the job finished and close every attached stream ("done" only on normal completion)
+     */
+    synchronized void finish(State finalState) {
+        if (state != State.RUNNING) {
+            return;
+        }
+        state = finalState;
+        finishedAt = System.currentTimeMillis();
+        subscription = null;
+        lastSeenAt = finishedAt;
+        closeSpool();
+
+        // Queued frames are still written, then "done" and close
+        for (Subscriber subscriber : subscribers) {
+            subscriber.live.tryEmitComplete();
+        }
+        subscribers.clear();
+        long elapsedMs = Math.max(1, finishedAt - createdAt);
+        log.info("Job {} ({}) finished: {} with {}/{} results in {} ms ({} lines/s)",
+                id, type, finalState, produced, total, elapsedMs, produced * 1000 / elapsedMs);
+    }
+
+    /**
+     * Stop the work, keep the results produced so far
+     */
+    void cancel() {
+        Disposable toDispose;
+        synchronized (this) {
+            toDispose = subscription;
+        }
+        if (toDispose != null) {
+            toDispose.dispose();
+        }
+        finish(State.CANCELLED);
+    }
+
+    /**
+     * Replay results after lastEventId, then follow live results until the job finishes
+     */
+    synchronized void attach(SseEmitter emitter, long lastEventId, boolean batched) {
+        lastSeenAt = System.currentTimeMillis();
+        long from = Math.max(lastEventId, 0) + 1;
+        long oldestInRing = Math.max(1, produced - ring.length + 1);
+
+        // Older than the ring buffer: read them back from the spool file
+        Flux<Frame> replay = Flux.empty();
+        if (from < oldestInRing) {
+            replay = replayFromSpool(from, oldestInRing - 1);
+        }
+        long ringFrom = Math.max(from, oldestInRing);
+        List<String> recent = new ArrayList<>();
+        for (long seq = ringFrom; seq <= produced; seq++) {
+            recent.add(ring[(int) ((seq - 1) % ring.length)]);
+        }
+        replay = replay.concatWith(Flux.range(0, (recent.size() + batchSize - 1) / batchSize)
+                .map(i -> new Frame(ringFrom + (long) i * batchSize,
+                        recent.subList(i * batchSize, Math.min(recent.size(), (i + 1) * batchSize)))));
+
+        Subscriber subscriber = new Subscriber(emitter, batched);
+        if (state == State.RUNNING) {
+            subscribers.add(subscriber);
+        } else {
+            subscriber.live.tryEmitComplete();
+        }
+        subscriber.start(replay);
+    }
+
+    synchronized void detach(SseEmitter emitter) {
+        Iterator<Subscriber> iterator = subscribers.iterator();
+        while (iterator.hasNext()) {
+            Subscriber subscriber = iterator.next();
+            if (subscriber.emitter == emitter) {
+                iterator.remove();
+                subscriber.writer.dispose();
+                lastSeenAt = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Whether the caller (see ToolController.resolveOwner) started this job
+     */
+    public boolean isOwnedBy(String caller) {
+        return owner != null && owner.equals(caller);
+    }
+
+    /**
+     * A client asked about the job (status call), counts as a subscriber for abandonment
+     */
+    synchronized void touch() {
+        lastSeenAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Delete the spool file (job evicted or downloaded)
+     */
+    synchronized void discard() {
+        closeSpool();
+        subscribers.forEach(Subscriber::drop);
+        subscribers.clear();
+        try {
+            Files.deleteIfExists(spoolFile);
+        } catch (IOException e) {
+            log.warn("Job {}: cannot delete spool file {}: {}", id, spoolFile, e.getMessage());
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized long getProduced() {
+        return produced;
+    }
+
+    public synchronized long getFinishedAt() {
+        return finishedAt;
+    }
+
+    public synchronized long getCacheHits() {
+        return cacheHits;
+    }
+
+    public synchronized long getCacheMisses() {
+        return cacheMisses;
+    }
+
+    public synchronized int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * Last attach, detach or status call (millis)
+     */
+    public synchronized long getLastSeenAt() {
+        return lastSeenAt;
+    }
+
+    /**
+     * NDJSON file with every result, complete once the job is no longer running
+     */
+    public Path getSpoolFile() {
+        return spoolFile;
+    }
+
+    /**
+     * Results from..to read lazily from the spool file, in frames of batchSize
+     */
+    private Flux<Frame> replayFromSpool(long from, long to) {
+        // Writer is already closed (file complete) once the job finished
+        if (spoolWriter != null) {
+            try {
+                spoolWriter.flush();
+            } catch (IOException e) {
+                log.warn("Job {}: cannot flush spool file: {}", id, e.getMessage());
+            }
+        }
+        return Flux.using(
+                        () -> Files.newBufferedReader(spoolFile, StandardCharsets.UTF_8),
+                        reader -> Flux.fromStream(reader.lines())
+                                .take(to)
+                                .skip(from - 1)
+                                .buffer(batchSize)
+                                .index((i, lines) -> new Frame(from + i * batchSize, lines)),
+                        reader -> {
+                            try {
+                                reader.close();
+                            } catch (IOException e) {
+                                log.debug("Job {}: cannot close spool reader: {}", id, e.getMessage());
+                            }
+                        })
+                .onErrorResume(e -> {
+                    log.warn("Job {}: cannot replay from spool: {}", id, e.getMessage());
+                    return Flux.empty();
+                });
+    }
+
+    private void write(SseEmitter emitter, boolean batched, Frame frame) throws IOException {
+        if (batched) {
+            emitter.send(SseEmitter.event()
+                    .id(String.valueOf(frame.lastSeq()))
+                    .name("results")
+                    .data("[" + String.join(",", frame.results()) + "]", MediaType.APPLICATION_JSON));
+            return;
+        }
+        // One "result" event per result, written with a single flush
+        Set<ResponseBodyEmitter.DataWithMediaType> events = new LinkedHashSet<>();
+        long seq = frame.firstSeq();
+        for (String json : frame.results()) {
+            events.addAll(SseEmitter.event()
+                    .id(String.valueOf(seq++))
+                    .name("result")
+                    .data(json, MediaType.APPLICATION_JSON)
+                    .build());
+        }
+        emitter.send(events);
+    }
+
+    private void closeStream(SseEmitter emitter) {
+        try {
+            if (getState() == State.COMPLETED) {
+                emitter.send(SseEmitter.event().name("done").data(doneData()));
+            }
+            emitter.complete();
+        } catch (Exception e) {
+            log.debug("Job {}: error closing stream: {}", id, e.getMessage());
+        }
+    }
+
+    /**
+     * "complete", or a JSON summary with the cache hit ratio for check-live jobs
+     */
+    private synchronized String doneData() {
+        long lookups = cacheHits + cacheMisses;
+        if (lookups == 0) {
+            return "complete";
+        }
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("status", "complete");
+        summary.put("total", total);
+        summary.put("completed", produced);
+        summary.put("cacheHits", cacheHits);
+        summary.put("cacheMisses", cacheMisses);
+        summary.put("cacheHitRatio", Math.round(cacheHits * 10000.0 / lookups) / 10000.0);
+        try {
+            return objectMapper.writeValueAsString(summary);
+        } catch (IOException e) {
+            return "complete";
+        }
+    }
+
+    private void closeSpool() {
+        if (spoolWriter == null) {
+            return;
+        }
+        try {
+            spoolWriter.close();
+        } catch (IOException e) {
+            log.warn("Job {}: cannot close spool file: {}", id, e.getMessage());
+        }
+        spoolWriter = null;
+    }
+
+    /**
+     * Consecutive results starting at firstSeq, already serialized
+     */
+    private record Frame(long firstSeq, List<String> results) {
+        long lastSeq() {
+            return firstSeq + results.size() - 1;
+        }
+    }
+
+    /**
+     * One attached SSE stream: replay, then live frames from a bounded queue, written off the producer thread
+     */
+    private final class Subscriber {
+        private final SseEmitter emitter;
+        private final boolean batched;
+        private final Sinks.Many<Frame> live;
+        private Disposable writer;
+
+        Subscriber(SseEmitter emitter, boolean batched) {
+            this.emitter = emitter;
+            this.batched = batched;
+            this.live = Sinks.many().unicast().onBackpressureBuffer(new ArrayBlockingQueue<>(maxPendingFrames));
+        }
+
+        void start(Flux<Frame> replay) {
+            writer = replay.concatWith(live.asFlux())
+                    .subscribeOn(Schedulers.boundedElastic())
+                    .publishOn(Schedulers.boundedElastic(), 1)
+                    .<Frame>handle((frame, sink) -> {
+                        try {
+                            write(emitter, batched, frame);
+                        } catch (Exception e) {
+                            sink.error(e);
+                        }
+                    })
+                    .subscribe(
+                            frame -> { },
+                            e -> {
+                                log.debug("Job {}: subscriber dropped: {}", id, e.getMessage());
+                                detach(emitter);
+                            },
+                            () -> closeStream(emitter));
+        }
+
+        /**
+         * Stop writing and close the stream without "done" (client reconnects with Last-Event-ID)
+         */
+        void drop() {
+            writer.dispose();
+            Schedulers.boundedElastic().schedule(() -> {
+                try {
+                    emitter.complete();
+                } catch (Exception e) {
+                    log.debug("Job {}: error closing stream: {}", id, e.getMessage());
+                }
+            });
+        }
+    }
+}
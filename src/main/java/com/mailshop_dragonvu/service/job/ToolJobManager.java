@@ -0,0 +1,239 @@
+package com.mailshop_dragonvu.service.job;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mailshop_dragonvu.exception.BusinessException;
+import com.mailshop_dragonvu.exception.ErrorCode;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.reactivestreams.Subscription;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Runs tool jobs independently of the SSE connection that started them
+ *
+ * - start(): subscribe the result Flux once, results are buffered in the job
+ * - attach(): open an SSE stream on a job, resuming after Last-Event-ID
+ * - Finished jobs (and their spool files) are kept for the retention period or until downloaded, then evicted
+ * - Every lookup is bound to the owner of the job: another caller gets RESOURCE_NOT_FOUND
+ * - Spool files live in a private directory (rwx------) as rw------- files: results carry tokens / passwords
+ * - Running jobs nobody streamed or polled for abandon-after-seconds are cancelled
+ *
+ * Results are pulled in micro-batches (batch-size results or batch-window-ms, whichever first),
+ * one batch requested at a time.
+ */
+@Component
+@Slf4j
+public class ToolJobManager {
+
+    private static final FileAttribute<Set<PosixFilePermission>> OWNER_ONLY_DIRECTORY =
+            PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------"));
+    private static final FileAttribute<Set<PosixFilePermission>> OWNER_ONLY_FILE =
+            PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"));
+
+    private final ObjectMapper objectMapper;
+    private final Path spoolDirectory;
+    private final Map<String, ToolJob> jobs = new ConcurrentHashMap<>();
+
+    @Value("${app.tools.jobs.buffer-size:1000}")
+    private int bufferSize;
+
+    @Value("${app.tools.jobs.retention-minutes:60}")
+    private long retentionMinutes;
+
+    @Value("${app.tools.jobs.abandon-after-seconds:120}")
+    private long abandonAfterSeconds;
+
+    @Value("${app.tools.stream.batch-size:100}")
+    private int batchSize;
+
+    @Value("${app.tools.stream.batch-window-ms:50}")
+    private long batchWindowMs;
+
+    /**
+     * Frames (batches) queued per SSE subscriber before it is considered too slow and closed
+     */
+    @Value("${app.tools.stream.max-pending-frames:256}")
+    private int maxPendingFrames;
+
+    public ToolJobManager(ObjectMapper objectMapper) throws IOException {
+        this.objectMapper = objectMapper;
+        this.spoolDirectory = isPosix()
+                ? Files.createTempDirectory("tool-jobs", OWNER_ONLY_DIRECTORY)
+                : Files.createTempDirectory("tool-jobs");
+    }
+
+    /**
+     * Start a job with the given id (the sessionId of the start call)
+     *
+     * @param owner caller that created the session, the only one allowed to use the job
+     * @param total number of input lines, for progress only
+     */
+    public ToolJob start(String jobId, String type, String owner, int total, Flux<?> results) {
+        ToolJob job;
+        try {
+            job = new ToolJob(jobId, type, owner, total, bufferSize, batchSize, maxPendingFrames, objectMapper,
+                    spoolDirectory);
+        } catch (IOException e) {
+            throw new BusinessException(ErrorCode.INTERNAL_SERVER_ERROR, "Không thể tạo job: " + e.getMessage(), e);
+        }
+
+        ToolJob existing = jobs.putIfAbsent(jobId, job);
+        if (existing != null) {
+            job.discard();
+            return existing;
+        }
+
+        log.info("Starting job {} ({}) with {} lines", jobId, type, total);
+        ToolJob started = job;
+        BaseSubscriber<List<Object>> consumer = new BaseSubscriber<>() {
+            @Override
+            protected void hookOnSubscribe(Subscription subscription) {
+                request(1);
+            }
+
+            @Override
+            protected void hookOnNext(List<Object> batch) {
+                started.onResults(batch);
+                request(1);
+            }
+
+            @Override
+            protected void hookOnError(Throwable error) {
+                log.error("Job {} failed: {}", jobId, error.getMessage());
+                started.finish(ToolJob.State.FAILED);
+            }
+
+            @Override
+            protected void hookOnComplete() {
+                started.finish(ToolJob.State.COMPLETED);
+            }
+        };
+        started.setSubscription(consumer);
+        results.<Object>map(result -> result)
+                .bufferTimeout(batchSize, Duration.ofMillis(batchWindowMs), true)
+                .subscribe(consumer);
+        return started;
+    }
+
+    public ToolJob get(String jobId) {
+        return jobs.get(jobId);
+    }
+
+    /**
+     * Get a job of the caller or throw RESOURCE_NOT_FOUND (counts as client interest, see abandon-after-seconds)
+     * A job of someone else is reported as missing, so job ids cannot be probed
+     */
+    public ToolJob getRequired(String jobId, String owner) {
+        ToolJob job = jobs.get(jobId);
+        if (job == null || !job.isOwnedBy(owner)) {
+            throw new BusinessException(ErrorCode.RESOURCE_NOT_FOUND, "Không tìm thấy job: " + jobId);
+        }
+        job.touch();
+        return job;
+    }
+
+    /**
+     * Open an SSE stream on a job; the stream closing does not stop the job
+     *
+     * @param lastEventId last sequence the client received (0 = from the beginning)
+     * @param batched     one "results" event (JSON array) per batch instead of one "result" event per result
+     */
+    public SseEmitter attach(ToolJob job, long lastEventId, long timeoutMs, boolean batched) {
+        SseEmitter emitter = new SseEmitter(timeoutMs);
+        emitter.onCompletion(() -> job.detach(emitter));
+        emitter.onTimeout(() -> {
+            log.debug("SSE timeout on job {}, job keeps running", job.getId());
+            job.detach(emitter);
+        });
+        emitter.onError(e -> {
+            log.debug("SSE error on job {}: {}", job.getId(), e.getMessage());
+            job.detach(emitter);
+        });
+        job.attach(emitter, lastEventId, batched);
+        return emitter;
+    }
+
+    /**
+     * Stop a running job, its results so far stay available
+     */
+    public void cancel(String jobId, String owner) {
+        getRequired(jobId, owner).cancel();
+    }
+
+    /**
+     * Drop a finished job and delete its spool file (results were downloaded)
+     */
+    public void remove(ToolJob job) {
+        if (jobs.remove(job.getId(), job)) {
+            job.discard();
+            log.debug("Removed downloaded job {}", job.getId());
+        }
+    }
+
+    /**
+     * Cancel abandoned jobs, evict finished jobs after the retention period
+     */
+    @Scheduled(fixedRateString = "${app.tools.jobs.sweep-interval:60000}")
+    public void evictExpired() {
+        long now = System.currentTimeMillis();
+        long cutoff = now - retentionMinutes * 60_000L;
+        long abandonCutoff = now - abandonAfterSeconds * 1000L;
+        jobs.forEach((id, job) -> {
+            if (abandonAfterSeconds > 0 && job.getState() == ToolJob.State.RUNNING
+                    && job.getSubscriberCount() == 0 && job.getLastSeenAt() < abandonCutoff) {
+                log.info("Job {} has no client for {}s, cancelling", id, abandonAfterSeconds);
+                job.cancel();
+            }
+            if (job.getState() != ToolJob.State.RUNNING && job.getFinishedAt() < cutoff
+                    && jobs.remove(id, job)) {
+                job.discard();
+                log.debug("Evicted job {}", id);
+            }
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        jobs.values().forEach(job -> {
+            job.cancel();
+            job.discard();
+        });
+        jobs.clear();
+        try {
+            Files.deleteIfExists(spoolDirectory);
+        } catch (IOException e) {
+            log.debug("Cannot delete job spool directory {}: {}", spoolDirectory, e.getMessage());
+        }
+    }
+
+    /**
+     * New empty file only the current OS user can read and write
+     */
+    static Path createOwnerOnlyFile(Path directory, String prefix, String suffix) throws IOException {
+        return isPosix()
+                ? Files.createTempFile(directory, prefix, suffix, OWNER_ONLY_FILE)
+                : Files.createTempFile(directory, prefix, suffix);
+    }
+
+    private static boolean isPosix() {
+        return FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+    }
+}
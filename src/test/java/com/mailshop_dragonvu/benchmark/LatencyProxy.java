@@ -0,0 +1,116 @@
+package com.mailshop_dragonvu.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * TCP forwarder in front of the embedded IMAP server, adding latency and failures to a protocol
+ * that has no HTTP layer to inject them in
+ *
+ * - Every server-to-client read is delayed by latency +- jitter (one delay per IMAP response burst)
+ * - error-rate of the new connections are closed right after accept (the client sees a connect/greeting failure)
+ * TLS runs end to end through the proxy, it only moves bytes.
+ */
+class LatencyProxy implements AutoCloseable {
+
+    private final ServerSocket serverSocket;
+    private final int targetPort;
+    private final StubUpstreamServer.Fault fault;
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "imap-proxy");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    LatencyProxy(int targetPort, StubUpstreamServer.Fault fault) throws IOException {
+        this.targetPort = targetPort;
+        this.fault = fault;
+        this.serverSocket = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        executor.execute(this::acceptLoop);
+    }
+
+    int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            Socket client;
+            try {
+                client = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            if (fault.errorRate() > 0 && Math.random() < fault.errorRate()) {
+                closeQuietly(client);
+                continue;
+            }
+            executor.execute(() -> forward(client));
+        }
+    }
+
+    private void forward(Socket client) {
+        Socket target;
+        try {
+            target = new Socket(InetAddress.getLoopbackAddress(), targetPort);
+            client.setTcpNoDelay(true);
+            target.setTcpNoDelay(true);
+        } catch (IOException e) {
+            closeQuietly(client);
+            return;
+        }
+        executor.execute(() -> pump(client, target, false));
+        pump(target, client, true);
+    }
+
+    private void pump(Socket from, Socket to, boolean delayed) {
+        byte[] buffer = new byte[16 * 1024];
+        try (InputStream in = from.getInputStream(); OutputStream out = to.getOutputStream()) {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                if (delayed) {
+                    delay();
+                }
+                out.write(buffer, 0, read);
+                out.flush();
+            }
+        } catch (IOException ignored) {
+            // Either side closed
+        } finally {
+            closeQuietly(from);
+            closeQuietly(to);
+        }
+    }
+
+    private void delay() {
+        long delay = fault.latencyMs();
+        if (fault.jitterMs() > 0) {
+            delay += (long) ((Math.random() * 2 - 1) * fault.jitterMs());
+        }
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+}
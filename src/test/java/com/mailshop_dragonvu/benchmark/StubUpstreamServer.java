@@ -0,0 +1,221 @@
+package com.mailshop_dragonvu.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for the Microsoft and Facebook endpoints the tool pipelines call
+ *
+ * - POST /oauth/graph-token, /oauth/imap-token: refresh token grant; access_token = "at-" + refresh_token
+ *   (also the GreenMail password of the mailbox), the refresh token is returned unchanged
+ * - GET  /graph/me/messages: a page of messages, the newest one carrying a Facebook code
+ * - POST /facebook/ (batch) and GET /facebook/{uid}/picture: picture lookups
+ *
+ * Refresh tokens ending in "-dead" get invalid_grant, UIDs ending in 0 have no picture.
+ * Every endpoint waits latency +- jitter and answers 503 for error-rate of the requests.
+ */
+class StubUpstreamServer implements AutoCloseable {
+
+    /**
+     * Latency and failure injection of one endpoint group
+     */
+    record Fault(long latencyMs, long jitterMs, double errorRate) {
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "stub-upstream");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Map<String, AtomicLong> requests = new HashMap<>();
+
+    private volatile Fault tokenFault;
+    private volatile Fault graphFault;
+    private volatile Fault facebookFault;
+    private volatile boolean graphScopes = true;
+    private volatile int messagesPerMailbox;
+
+    StubUpstreamServer(Fault tokenFault, Fault graphFault, Fault facebookFault, int messagesPerMailbox) throws IOException {
+        this.tokenFault = tokenFault;
+        this.graphFault = graphFault;
+        this.facebookFault = facebookFault;
+        this.messagesPerMailbox = messagesPerMailbox;
+        for (String name : new String[]{"token", "graph", "facebook"}) {
+            requests.put(name, new AtomicLong());
+        }
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        server.createContext("/oauth/", this::token);
+        server.createContext("/graph/", this::graph);
+        server.createContext("/facebook/", this::facebook);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    String baseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * false = Graph token responses lack Mail.Read, so the pipelines fall back to IMAP
+     */
+    void setGraphScopes(boolean graphScopes) {
+        this.graphScopes = graphScopes;
+    }
+
+    long requestCount(String group) {
+        return requests.get(group).get();
+    }
+
+    void resetCounts() {
+        requests.values().forEach(count -> count.set(0));
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void token(HttpExchange exchange) throws IOException {
+        requests.get("token").incrementAndGet();
+        if (injectFault(exchange, tokenFault)) {
+            return;
+        }
+        Map<String, String> form = parseForm(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+        String refreshToken = form.getOrDefault("refresh_token", "");
+        if (refreshToken.isEmpty() || refreshToken.endsWith("-dead")) {
+            respond(exchange, 400, "{\"error\":\"invalid_grant\",\"error_description\":\"AADSTS70000: token revoked\"}");
+            return;
+        }
+
+        boolean graph = exchange.getRequestURI().getPath().endsWith("/graph-token");
+        String scope = graph && graphScopes
+                ? "https://graph.microsoft.com/Mail.Read https://graph.microsoft.com/User.Read"
+                : "https://outlook.office.com/IMAP.AccessAsUser.All";
+        Map<String, Object> body = new HashMap<>();
+        body.put("token_type", "Bearer");
+        body.put("scope", scope);
+        body.put("expires_in", 3600);
+        body.put("access_token", "at-" + refreshToken);
+        body.put("refresh_token", refreshToken);
+        respond(exchange, 200, objectMapper.writeValueAsString(body));
+    }
+
+    private void graph(HttpExchange exchange) throws IOException {
+        requests.get("graph").incrementAndGet();
+        if (injectFault(exchange, graphFault)) {
+            return;
+        }
+        StringBuilder body = new StringBuilder(1024 * messagesPerMailbox).append("{\"value\":[");
+        Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+        for (int i = 0; i < messagesPerMailbox; i++) {
+            if (i > 0) {
+                body.append(',');
+            }
+            boolean code = i == 0;
+            String subject = code ? "Facebook: " + (100000 + i) + " is your confirmation code" : "Newsletter #" + i;
+            String from = code ? "security@facebookmail.com" : "news@example.com";
+            body.append("{\"id\":\"msg-").append(i)
+                    .append("\",\"subject\":\"").append(subject)
+                    .append("\",\"from\":{\"emailAddress\":{\"name\":\"Sender\",\"address\":\"").append(from)
+                    .append("\"}},\"receivedDateTime\":\"").append(now.minusSeconds(i * 60L))
+                    .append("\",\"bodyPreview\":\"").append(subject)
+                    .append("\",\"body\":{\"contentType\":\"html\",\"content\":\"<p>").append(subject)
+                    .append("</p>\"},\"isRead\":false,\"hasAttachments\":false}");
+        }
+        body.append("]}");
+        respond(exchange, 200, body.toString());
+    }
+
+    private void facebook(HttpExchange exchange) throws IOException {
+        requests.get("facebook").incrementAndGet();
+        if (injectFault(exchange, facebookFault)) {
+            return;
+        }
+        String path = exchange.getRequestURI().getPath();
+        if ("POST".equals(exchange.getRequestMethod())) {
+            Map<String, String> form = parseForm(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+            JsonNode batch = objectMapper.readTree(form.getOrDefault("batch", "[]"));
+            StringBuilder body = new StringBuilder("[");
+            for (int i = 0; i < batch.size(); i++) {
+                if (i > 0) {
+                    body.append(',');
+                }
+                String uid = batch.get(i).path("relative_url").asText().split("/")[0];
+                body.append("{\"code\":200,\"body\":").append(objectMapper.writeValueAsString(picture(uid))).append('}');
+            }
+            respond(exchange, 200, body.append(']').toString());
+            return;
+        }
+        String uid = path.substring("/facebook/".length()).split("/")[0];
+        respond(exchange, 200, picture(uid));
+    }
+
+    private String picture(String uid) {
+        return uid.endsWith("0")
+                ? "{\"data\":{\"is_silhouette\":true,\"url\":\"https://static.example/blank.gif\"}}"
+                : "{\"data\":{\"height\":100,\"width\":100,\"is_silhouette\":false,\"url\":\"https://static.example/" + uid + ".jpg\"}}";
+    }
+
+    /**
+     * Sleep the configured latency; true when this request was answered with an injected 503
+     */
+    private boolean injectFault(HttpExchange exchange, Fault fault) throws IOException {
+        long delay = fault.latencyMs();
+        if (fault.jitterMs() > 0) {
+            delay += (long) ((Math.random() * 2 - 1) * fault.jitterMs());
+        }
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (fault.errorRate() > 0 && Math.random() < fault.errorRate()) {
+            exchange.getRequestBody().readAllBytes();
+            respond(exchange, 503, "{\"error\":\"service_unavailable\"}");
+            return true;
+        }
+        return false;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static Map<String, String> parseForm(String body) {
+        Map<String, String> form = new HashMap<>();
+        for (String pair : body.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                form.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return form;
+    }
+}
@@ -0,0 +1,346 @@
+package com.mailshop_dragonvu.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetup;
+import com.mailshop_dragonvu.config.AppConfig;
+import com.mailshop_dragonvu.config.UpstreamConcurrencyLimiter;
+import com.mailshop_dragonvu.config.UpstreamHttpConnector;
+import com.mailshop_dragonvu.dto.facebook.FacebookCheckLiveResponseDTO;
+import com.mailshop_dragonvu.dto.hotmail.CheckLiveMailResponseDTO;
+import com.mailshop_dragonvu.dto.hotmail.HotmailGetCodeRequestDTO;
+import com.mailshop_dragonvu.dto.hotmail.HotmailGetCodeResponseDTO;
+import com.mailshop_dragonvu.dto.hotmail.ReadMailRequestDTO;
+import com.mailshop_dragonvu.dto.hotmail.ReadMailResponseDTO;
+import com.mailshop_dragonvu.service.FacebookService;
+import com.mailshop_dragonvu.service.HotmailService;
+import com.mailshop_dragonvu.service.LivenessCache;
+import com.mailshop_dragonvu.service.SystemSettingService;
+import com.mailshop_dragonvu.service.hotmail.EmailTypeRuleEngine;
+import com.mailshop_dragonvu.service.hotmail.ImapConnectionPool;
+import com.mailshop_dragonvu.service.hotmail.ImapMessageFetcher;
+import com.mailshop_dragonvu.service.hotmail.MailIoScheduler;
+import com.mailshop_dragonvu.service.hotmail.MailboxSyncCache;
+import com.mailshop_dragonvu.service.hotmail.MicrosoftTokenCache;
+import com.mailshop_dragonvu.service.hotmail.ProtocolAffinityTable;
+import com.mailshop_dragonvu.service.impl.FacebookServiceImpl;
+import com.mailshop_dragonvu.service.impl.HotmailServiceImpl;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.mail.Message;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.core.env.MapPropertySource;
+import reactor.core.publisher.Flux;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Offline load test of the Hotmail and Facebook tool pipelines
+ *
+ * HotmailServiceImpl and FacebookServiceImpl run with their real collaborators (token cache, IMAP pool,
+ * mail I/O scheduler, WebClient with the upstream limiter and connection pools) against local stand-ins:
+ * StubUpstreamServer (OAuth token, Graph /me/messages, graph.facebook.com) and GreenMail IMAPS behind
+ * a LatencyProxy. Nothing leaves the machine.
+ *
+ * Run: mvn -Pbenchmark test -Dtest=ToolPipelineBenchmark [-Dbenchmark.lines=100000 ...]
+ *
+ * Properties (system properties, defaults in brackets):
+ * - benchmark.lines [10000]: lines per job; benchmark.mailboxes [2000]: distinct mailboxes / UIDs the lines cycle over
+ * - benchmark.pipelines [get-code-graph,get-code-imap,check-live,read-mail-graph,read-mail-imap,facebook-check-live]
+ * - benchmark.messages [10]: messages per mailbox; benchmark.dead-ratio [0.05]: revoked refresh tokens
+ * - benchmark.{token,graph,facebook,imap}.latency-ms / .jitter-ms / .error-rate: fault injection per upstream
+ * - benchmark.token-cache [true]: MicrosoftTokenCache on/off (off = one token request per line)
+ *
+ * Report (stdout and target/benchmark/tool-pipelines.txt), per pipeline: lines/s, p50/p90/p99/max latency per
+ * line (from the line being pulled to its result being emitted, what a streaming client sees), result outcomes,
+ * peak heap, peak live threads and upstream request counts. The thread count includes the stub, proxy and
+ * GreenMail threads (one per open connection), compare runs rather than reading it as the application's own.
+ */
+@Tag("benchmark")
+class ToolPipelineBenchmark {
+
+    private static final String DOMAIN = "bench.local";
+
+    @Test
+    void run() throws Exception {
+        int lines = Integer.getInteger("benchmark.lines", 10_000);
+        int mailboxes = Math.min(lines, Integer.getInteger("benchmark.mailboxes", 2_000));
+        int messages = Integer.getInteger("benchmark.messages", 10);
+        double deadRatio = doubleProperty("benchmark.dead-ratio", 0.05);
+        List<String> pipelines = Arrays.asList(System.getProperty("benchmark.pipelines",
+                "get-code-graph,get-code-imap,check-live,read-mail-graph,read-mail-imap,facebook-check-live").split(","));
+
+        GreenMail greenMail = new GreenMail(new ServerSetup(0, "127.0.0.1", ServerSetup.PROTOCOL_IMAPS).dynamicPort());
+        greenMail.start();
+        try (StubUpstreamServer stub = new StubUpstreamServer(fault("token", 20), fault("graph", 40),
+                fault("facebook", 60), messages);
+             LatencyProxy imapProxy = new LatencyProxy(greenMail.getImaps().getPort(), fault("imap", 5))) {
+
+            seedMailboxes(greenMail, mailboxes, messages);
+            try (AnnotationConfigApplicationContext context = createContext(stub, imapProxy)) {
+                HotmailService hotmail = context.getBean(HotmailService.class);
+                FacebookService facebook = context.getBean(FacebookService.class);
+
+                StringBuilder report = new StringBuilder();
+                report.append(String.format("Tool pipeline benchmark: %d lines over %d mailboxes, %d messages each, "
+                        + "%.0f%% revoked tokens%n", lines, mailboxes, messages, deadRatio * 100));
+                report.append(String.format("%-20s %9s %9s %8s %8s %8s %8s %9s %8s  %s%n", "pipeline", "lines/s",
+                        "total ms", "p50 ms", "p90 ms", "p99 ms", "max ms", "heap MB", "threads", "outcomes / upstream requests"));
+
+                for (String pipeline : pipelines) {
+                    String clientId = "bench-" + pipeline;
+                    Function<Integer, String> line = i -> mailLine(i % mailboxes, clientId, deadRatio);
+                    Result result = switch (pipeline.trim()) {
+                        case "get-code-graph", "get-code-imap" -> {
+                            stub.setGraphScopes(pipeline.endsWith("graph"));
+                            HotmailGetCodeRequestDTO request = HotmailGetCodeRequestDTO.builder()
+                                    .getType("Oauth2").emailTypes(List.of("Auto")).build();
+                            yield measure(stub, lines, line,
+                                    input -> hotmail.getCodeStream(request, input),
+                                    (HotmailGetCodeResponseDTO r) -> r.getCode() != null ? "code" : String.valueOf(r.getCheckStatus()));
+                        }
+                        case "check-live" -> measure(stub, lines, line,
+                                input -> hotmail.checkLiveMailStream(input, true),
+                                (CheckLiveMailResponseDTO r) -> r.isLive() ? "live" : "dead");
+                        case "read-mail-graph", "read-mail-imap" -> {
+                            stub.setGraphScopes(pipeline.endsWith("graph"));
+                            ReadMailRequestDTO request = ReadMailRequestDTO.builder().messageCount(messages).build();
+                            yield measure(stub, lines, line,
+                                    input -> hotmail.readMailStream(request, input),
+                                    (ReadMailResponseDTO r) -> r.isSuccess() ? "read" : String.valueOf(r.getError()));
+                        }
+                        case "facebook-check-live" -> measure(stub, lines, i -> String.valueOf(100_000_000L + i % mailboxes),
+                                input -> facebook.checkLiveStream(input, true),
+                                (FacebookCheckLiveResponseDTO r) -> String.valueOf(r.getStatus()));
+                        default -> throw new IllegalArgumentException("Unknown pipeline " + pipeline);
+                    };
+                    report.append(result.format(pipeline.trim()));
+                    System.out.print(result.format(pipeline.trim()));
+                }
+
+                Path file = Path.of("target", "benchmark", "tool-pipelines.txt");
+                Files.createDirectories(file.getParent());
+                Files.writeString(file, report.toString(), StandardCharsets.UTF_8);
+                System.out.println();
+                System.out.print(report);
+                System.out.println("Report written to " + file.toAbsolutePath());
+            }
+        } finally {
+            greenMail.stop();
+        }
+    }
+
+    /**
+     * Feed the pipeline `lines` generated lines and time every line from pull to result
+     */
+    private <T> Result measure(StubUpstreamServer stub, int lines, Function<Integer, String> lineOf,
+                               Function<Flux<String>, Flux<T>> pipeline, Function<T, String> outcomeOf) {
+        System.gc();
+        stub.resetCounts();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        ResourceSampler sampler = new ResourceSampler();
+
+        long[] pulledAt = new long[lines];
+        long[] latencies = new long[lines];
+        AtomicInteger pulled = new AtomicInteger();
+        AtomicInteger done = new AtomicInteger();
+        Map<String, AtomicLong> outcomes = new TreeMap<>();
+
+        Flux<String> input = Flux.range(0, lines)
+                .map(i -> {
+                    pulledAt[pulled.getAndIncrement()] = System.nanoTime();
+                    return lineOf.apply(i);
+                });
+
+        long start = System.nanoTime();
+        pipeline.apply(input)
+                .doOnNext(result -> {
+                    int index = done.getAndIncrement();
+                    latencies[index] = System.nanoTime() - pulledAt[index];
+                    String outcome = outcomeOf.apply(result);
+                    outcomes.computeIfAbsent(outcome == null ? "null" : abbreviate(outcome), k -> new AtomicLong())
+                            .incrementAndGet();
+                })
+                .blockLast(Duration.ofHours(2));
+        long elapsed = System.nanoTime() - start;
+        sampler.stop();
+
+        long[] sorted = Arrays.copyOf(latencies, done.get());
+        Arrays.sort(sorted);
+        Map<String, Long> upstream = new TreeMap<>();
+        for (String group : new String[]{"token", "graph", "facebook"}) {
+            upstream.put(group, stub.requestCount(group));
+        }
+        return new Result(done.get(), elapsed, sorted, outcomes, sampler.peakHeapBytes,
+                Math.max(sampler.peakThreads, threads.getPeakThreadCount()), upstream);
+    }
+
+    private void seedMailboxes(GreenMail greenMail, int mailboxes, int messages) throws Exception {
+        Session session = Session.getInstance(new Properties());
+        for (int i = 0; i < mailboxes; i++) {
+            String email = "user" + i + "@" + DOMAIN;
+            // The IMAP login token of the mailbox, see StubUpstreamServer
+            GreenMailUser user = greenMail.setUser(email, email, "at-rt-" + i);
+            for (int m = messages - 1; m >= 0; m--) {
+                MimeMessage message = new MimeMessage(session);
+                boolean code = m == 0;
+                message.setFrom(new InternetAddress(code ? "security@facebookmail.com" : "news@example.com"));
+                message.setRecipient(Message.RecipientType.TO, new InternetAddress(email));
+                message.setSubject(code ? "Facebook: " + (100000 + i % 900000) + " is your confirmation code" : "Newsletter #" + m);
+                message.setText("Hello " + email + ", message " + m);
+                message.setSentDate(new Date(System.currentTimeMillis() - m * 60_000L));
+                user.deliver(message);
+            }
+        }
+    }
+
+    private AnnotationConfigApplicationContext createContext(StubUpstreamServer stub, LatencyProxy imapProxy) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("app.hotmail.endpoints.graph-token-url", stub.baseUrl() + "/oauth/graph-token");
+        properties.put("app.hotmail.endpoints.imap-token-url", stub.baseUrl() + "/oauth/imap-token");
+        properties.put("app.hotmail.endpoints.graph-api-url", stub.baseUrl() + "/graph");
+        properties.put("app.hotmail.imap.host", "127.0.0.1");
+        properties.put("app.hotmail.imap.port", String.valueOf(imapProxy.port()));
+        properties.put("app.hotmail.imap.ssl-trust", "*");
+        properties.put("app.hotmail.token-cache.enabled", System.getProperty("benchmark.token-cache", "true"));
+        properties.put("app.facebook.graph-url", stub.baseUrl() + "/facebook");
+        properties.put("app.facebook.access-token", "bench-token");
+        // Every line goes to the upstream: the liveness cache would answer repeated mailboxes from memory
+        properties.put("app.tools.liveness-cache.enabled", "false");
+        properties.put("app.hotmail.mailbox-sync.enabled", "false");
+
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("benchmark", properties));
+        context.register(BenchmarkConfiguration.class);
+        context.refresh();
+        return context;
+    }
+
+    private static String mailLine(int mailbox, String clientId, double deadRatio) {
+        boolean dead = deadRatio > 0 && mailbox % Math.max(1, Math.round(1 / deadRatio)) == 1;
+        return "user" + mailbox + "@" + DOMAIN + "|password|rt-" + mailbox + (dead ? "-dead" : "") + "|" + clientId;
+    }
+
+    private static StubUpstreamServer.Fault fault(String upstream, long defaultLatencyMs) {
+        return new StubUpstreamServer.Fault(
+                Long.getLong("benchmark." + upstream + ".latency-ms", defaultLatencyMs),
+                Long.getLong("benchmark." + upstream + ".jitter-ms", defaultLatencyMs / 2),
+                doubleProperty("benchmark." + upstream + ".error-rate", 0.01));
+    }
+
+    private static double doubleProperty(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        return value != null ? Double.parseDouble(value) : defaultValue;
+    }
+
+    private static String abbreviate(String value) {
+        return value.length() > 40 ? value.substring(0, 40) + "..." : value;
+    }
+
+    /**
+     * Only the beans the two pipelines need, wired exactly as in the application
+     */
+    @Configuration
+    @Import({AppConfig.class, UpstreamConcurrencyLimiter.class, UpstreamHttpConnector.class,
+            HotmailServiceImpl.class, FacebookServiceImpl.class, MicrosoftTokenCache.class, ImapConnectionPool.class,
+            MailIoScheduler.class, EmailTypeRuleEngine.class, LivenessCache.class, ProtocolAffinityTable.class,
+            ImapMessageFetcher.class, MailboxSyncCache.class})
+    static class BenchmarkConfiguration {
+
+        @Bean
+        ObjectMapper objectMapper() {
+            return new ObjectMapper().findAndRegisterModules();
+        }
+
+        @Bean
+        MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+
+        @Bean
+        SystemSettingService systemSettingService() {
+            // No rule setting: the built-in email type rules
+            return Mockito.mock(SystemSettingService.class);
+        }
+    }
+
+    /**
+     * Peak heap use and live thread count, sampled every 50 ms while a pipeline runs
+     */
+    private static final class ResourceSampler {
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        private final Thread thread;
+        private volatile boolean running = true;
+        private volatile long peakHeapBytes;
+        private volatile int peakThreads;
+
+        ResourceSampler() {
+            thread = new Thread(() -> {
+                while (running) {
+                    peakHeapBytes = Math.max(peakHeapBytes, memory.getHeapMemoryUsage().getUsed());
+                    peakThreads = Math.max(peakThreads, threads.getThreadCount());
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }, "benchmark-sampler");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void stop() {
+            running = false;
+            thread.interrupt();
+        }
+    }
+
+    private record Result(int lines, long elapsedNanos, long[] sortedLatencies, Map<String, AtomicLong> outcomes,
+                          long peakHeapBytes, int peakThreads, Map<String, Long> upstreamRequests) {
+
+        String format(String pipeline) {
+            double seconds = elapsedNanos / 1e9;
+            return String.format("%-20s %9.0f %9d %8.1f %8.1f %8.1f %8.1f %9d %8d  %s / %s%n",
+                    pipeline, lines / seconds, elapsedNanos / 1_000_000,
+                    percentile(0.50), percentile(0.90), percentile(0.99), percentile(1.0),
+                    peakHeapBytes / (1024 * 1024), peakThreads, outcomes, upstreamRequests);
+        }
+
+        private double percentile(double p) {
+            if (sortedLatencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(p * sortedLatencies.length) - 1;
+            return sortedLatencies[Math.max(0, Math.min(index, sortedLatencies.length - 1))] / 1e6;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.mailshop_dragonvu.config;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class UpstreamConcurrencyLimiterTest {
+
+    private static final String HOST = "graph.microsoft.com";
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private UpstreamConcurrencyLimiter limiter;
+
+    @BeforeEach
+    void setUp() {
+        limiter = new UpstreamConcurrencyLimiter(meterRegistry);
+        ReflectionTestUtils.setField(limiter, "enabled", true);
+        ReflectionTestUtils.setField(limiter, "initialLimit", 20);
+        ReflectionTestUtils.setField(limiter, "minLimit", 1);
+        ReflectionTestUtils.setField(limiter, "maxLimit", 200);
+        ReflectionTestUtils.setField(limiter, "backoffRatio", 0.9);
+        ReflectionTestUtils.setField(limiter, "latencyTolerance", 3.0);
+        ReflectionTestUtils.setField(limiter, "maxQueue", 100);
+    }
+
+    @Test
+    void permitIsHeldUntilTheBodyIsConsumed() {
+        ReflectionTestUtils.setField(limiter, "initialLimit", 1);
+        ReflectionTestUtils.setField(limiter, "maxLimit", 1);
+
+        ClientResponse first = limiter.filter(request(),
+                req -> Mono.just(ClientResponse.create(HttpStatus.OK).body("first").build())).block();
+        assertThat(inFlight()).isEqualTo(1);
+
+        // Headers are in but the body is not read: the second request still waits
+        AtomicReference<ClientResponse> second = new AtomicReference<>();
+        limiter.filter(request(), req -> Mono.just(ClientResponse.create(HttpStatus.OK).body("second").build()))
+                .subscribe(second::set);
+        assertThat(second.get()).isNull();
+
+        assertThat(first.bodyToMono(String.class).block()).isEqualTo("first");
+        assertThat(second.get()).isNotNull();
+
+        second.get().releaseBody().block();
+        assertThat(inFlight()).isZero();
+    }
+
+    @Test
+    void overloadsFromOneRoundTripLowerTheLimitOnce() {
+        // Ten requests in flight together, all answered 503
+        List<Sinks.One<ClientResponse>> upstream = new ArrayList<>();
+        List<ClientResponse> responses = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Sinks.One<ClientResponse> reply = Sinks.one();
+            upstream.add(reply);
+            limiter.filter(request(), req -> reply.asMono()).subscribe(responses::add);
+        }
+        upstream.forEach(reply -> reply.tryEmitValue(ClientResponse.create(HttpStatus.SERVICE_UNAVAILABLE).build()));
+        responses.forEach(response -> response.releaseBody().block());
+
+        assertThat(limiter.currentLimit(HOST)).isEqualTo(18);
+        assertThat(meterRegistry.get("upstream.limiter.rejected").counter().count()).isEqualTo(10);
+
+        // A request sent after the decrease is a new round trip
+        limiter.filter(request(), req -> Mono.just(ClientResponse.create(HttpStatus.TOO_MANY_REQUESTS).build()))
+                .flatMap(ClientResponse::releaseBody)
+                .block();
+        assertThat(limiter.currentLimit(HOST)).isEqualTo(16);
+    }
+
+    private double inFlight() {
+        return meterRegistry.get("upstream.limiter.inflight").gauge().value();
+    }
+
+    private static ClientRequest request() {
+        return ClientRequest.create(HttpMethod.GET, URI.create("https://" + HOST + "/v1.0/me/messages")).build();
+    }
+}
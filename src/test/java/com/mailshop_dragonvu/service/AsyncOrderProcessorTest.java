@@ -0,0 +1,109 @@
+package com.mailshop_dragonvu.service;
+
+import com.mailshop_dragonvu.dto.orders.AsyncOrderResponseDTO;
+import com.mailshop_dragonvu.dto.orders.OrderCreateDTO;
+import com.mailshop_dragonvu.enums.OrderStatusEnum;
+import com.mailshop_dragonvu.exception.BusinessException;
+import com.mailshop_dragonvu.exception.ErrorCode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class AsyncOrderProcessorTest {
+
+    private static final Long USER_ID = 7L;
+
+    private final OrderService orderService = mock(OrderService.class);
+    private final CountDownLatch releaseChunks = new CountDownLatch(1);
+    private AsyncOrderProcessor processor;
+
+    @BeforeEach
+    void setUp() {
+        // Một worker, hàng đợi 1: đơn thứ ba không còn chỗ
+        processor = new AsyncOrderProcessor(orderService, mock(OrderProgressNotifier.class), 1, 1);
+        ReflectionTestUtils.setField(processor, "chunkSize", 500);
+        ReflectionTestUtils.setField(processor, "staleMinutes", 30L);
+
+        AtomicLong ids = new AtomicLong();
+        when(orderService.createAsyncOrder(any(), eq(USER_ID))).thenAnswer(inv -> order(ids.incrementAndGet(), 0));
+        when(orderService.fulfilAsyncOrderChunk(anyLong(), anyInt())).thenAnswer(inv -> {
+            releaseChunks.await(10, TimeUnit.SECONDS);
+            return order(inv.getArgument(0), inv.getArgument(1));
+        });
+        when(orderService.finishAsyncOrder(anyLong(), any())).thenAnswer(inv -> order(inv.getArgument(0), 0));
+    }
+
+    @AfterEach
+    void tearDown() {
+        releaseChunks.countDown();
+        processor.shutdown();
+    }
+
+    @Test
+    void fullQueueCancelsTheOrderWithItsOwnErrorCode() {
+        processor.submit(request(), USER_ID);
+        processor.submit(request(), USER_ID);
+
+        assertThatThrownBy(() -> processor.submit(request(), USER_ID))
+                .isInstanceOf(BusinessException.class)
+                .extracting(e -> ((BusinessException) e).getErrorCode())
+                .isEqualTo(ErrorCode.ASYNC_ORDER_QUEUE_FULL);
+        verify(orderService).finishAsyncOrder(3L, ErrorCode.ASYNC_ORDER_QUEUE_FULL.getMessage());
+    }
+
+    @Test
+    void staleSweepLeavesOrdersWithAChunkInProgress() {
+        // Đơn 1 đang giao ở node này (chunk bị chặn)
+        processor.submit(request(), USER_ID);
+        verify(orderService, timeout(5000)).fulfilAsyncOrderChunk(eq(1L), anyInt());
+
+        // Đơn 2: lô đang giao ở node khác (bị lock) → finishStaleAsyncOrder bỏ qua; đơn 3 thật sự bị treo
+        when(orderService.findStaleAsyncOrderIds(any())).thenReturn(List.of(1L, 2L, 3L));
+        when(orderService.finishStaleAsyncOrder(eq(2L), any(LocalDateTime.class), anyString())).thenReturn(null);
+        when(orderService.finishStaleAsyncOrder(eq(3L), any(LocalDateTime.class), anyString())).thenReturn(order(3L, 0));
+
+        processor.finishStaleOrders();
+
+        verify(orderService, never()).finishStaleAsyncOrder(eq(1L), any(), any());
+        verify(orderService).finishStaleAsyncOrder(eq(2L), any(LocalDateTime.class), anyString());
+        verify(orderService).finishStaleAsyncOrder(eq(3L), any(LocalDateTime.class), anyString());
+        // Sweep không dùng finishAsyncOrder (không kiểm tra lại trạng thái treo dưới lock)
+        verify(orderService, never()).finishAsyncOrder(anyLong(), any());
+        assertThat(releaseChunks.getCount()).isEqualTo(1);
+    }
+
+    private static OrderCreateDTO request() {
+        return OrderCreateDTO.builder().productId(10L).quantity(100).build();
+    }
+
+    private static AsyncOrderResponseDTO order(long id, int delivered) {
+        return AsyncOrderResponseDTO.builder()
+                .orderId(id)
+                .orderNumber("ORD-" + id)
+                .status(OrderStatusEnum.PAID)
+                .requestedQuantity(100)
+                .deliveredQuantity(delivered)
+                .totalAmount(0L)
+                .build();
+    }
+}
@@ -0,0 +1,258 @@
+package com.mailshop_dragonvu.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mailshop_dragonvu.dto.orders.ClientOrderCreateResponseDTO;
+import com.mailshop_dragonvu.exception.BusinessException;
+import com.mailshop_dragonvu.exception.ErrorCode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class OrderIdempotencyCacheTest {
+
+    private final ExecutorService callers = Executors.newFixedThreadPool(8);
+    private OrderIdempotencyCache cache;
+
+    @AfterEach
+    void tearDown() {
+        callers.shutdownNow();
+        if (cache != null) {
+            cache.shutdown();
+        }
+    }
+
+    @Test
+    void concurrentDuplicatesRunThePurchaseOnce() throws Exception {
+        cache = newCache("memory", null);
+        AtomicInteger purchases = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+
+        List<Future<ClientOrderCreateResponseDTO>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            results.add(callers.submit(() -> {
+                start.await();
+                return cache.execute(1L, "key-1", "10:2", () -> slowPurchase(purchases, 200));
+            }));
+        }
+        start.countDown();
+
+        for (Future<ClientOrderCreateResponseDTO> result : results) {
+            assertThat(result.get(5, TimeUnit.SECONDS).getAccountData()).containsExactly("account-1");
+        }
+        assertThat(purchases).hasValue(1);
+
+        assertThatThrownBy(() -> cache.execute(1L, "key-1", "10:3", () -> slowPurchase(purchases, 0)))
+                .isInstanceOf(BusinessException.class)
+                .extracting(e -> ((BusinessException) e).getErrorCode())
+                .isEqualTo(ErrorCode.IDEMPOTENCY_KEY_MISMATCH);
+    }
+
+    @Test
+    void storeKeepsAtMostMaxEntries() {
+        cache = newCache("memory", null);
+        ReflectionTestUtils.setField(cache, "maxEntries", 10);
+        AtomicInteger purchases = new AtomicInteger();
+
+        for (int i = 0; i < 25; i++) {
+            cache.execute(1L, "key-" + i, "10:1", () -> slowPurchase(purchases, 0));
+        }
+
+        assertThat(cache.size()).isLessThanOrEqualTo(10);
+        assertThat(purchases).hasValue(25);
+    }
+
+    @Test
+    void storeIsBoundedByTheSizeOfItsResults() {
+        cache = newCache("memory", null);
+        // ~1.1 KB per result of 10 accounts, room for about 4 of them
+        ReflectionTestUtils.setField(cache, "maxBytes", 5_000L);
+
+        for (int i = 0; i < 20; i++) {
+            cache.execute(1L, "key-" + i, "10:10", () -> purchaseOf(10, 50));
+        }
+
+        assertThat(cache.storedBytes()).isLessThanOrEqualTo(5_000L);
+        assertThat(cache.size()).isBetween(1, 5);
+        // The newest result is the one kept
+        assertThat(cache.execute(1L, "key-19", "10:10", () -> purchaseOf(1, 1)).getAccountData()).hasSize(10);
+    }
+
+    @Test
+    void oversizedResultIsNotReplayedNorBoughtAgain() {
+        cache = newCache("memory", null);
+        ReflectionTestUtils.setField(cache, "maxResultBytes", 1_000L);
+        AtomicInteger purchases = new AtomicInteger();
+
+        ClientOrderCreateResponseDTO first = cache.execute(1L, "key-1", "10:100", () -> {
+            purchases.incrementAndGet();
+            return purchaseOf(100, 50);
+        });
+
+        assertThat(first.getAccountData()).hasSize(100);
+        assertThat(cache.storedBytes()).isZero();
+        assertThatThrownBy(() -> cache.execute(1L, "key-1", "10:100", () -> {
+            purchases.incrementAndGet();
+            return purchaseOf(100, 50);
+        }))
+                .isInstanceOf(BusinessException.class)
+                .extracting(e -> ((BusinessException) e).getErrorCode())
+                .isEqualTo(ErrorCode.IDEMPOTENCY_RESULT_NOT_RETAINED);
+        assertThat(purchases).hasValue(1);
+    }
+
+    @Test
+    void redisMarkerOutlivesItsTtlWhileThePurchaseRuns() throws Exception {
+        FakeRedis redis = new FakeRedis();
+        cache = newCache("redis", redis.template);
+        ReflectionTestUtils.setField(cache, "pendingTtlSeconds", 1L);
+        AtomicInteger purchases = new AtomicInteger();
+
+        // The purchase takes 3x the marker TTL: the duplicate must wait for it, not buy again
+        Callable<ClientOrderCreateResponseDTO> call =
+                () -> cache.execute(1L, "key-1", "10:2", () -> slowPurchase(purchases, 3000));
+        Future<ClientOrderCreateResponseDTO> first = callers.submit(call);
+        Thread.sleep(300);
+        Future<ClientOrderCreateResponseDTO> duplicate = callers.submit(call);
+
+        assertThat(first.get(10, TimeUnit.SECONDS).getAccountData()).containsExactly("account-1");
+        assertThat(duplicate.get(10, TimeUnit.SECONDS).getAccountData()).containsExactly("account-1");
+        assertThat(purchases).hasValue(1);
+    }
+
+    @Test
+    void expiredRedisMarkerOfAStoppedNodeIsTakenOver() {
+        FakeRedis redis = new FakeRedis();
+        cache = newCache("redis", redis.template);
+        // Marker of a node that stopped mid-purchase, already past its TTL
+        redis.put("orders:idempotency:1:key-1", "PENDING|10:2|other-node", -1);
+        AtomicInteger purchases = new AtomicInteger();
+
+        ClientOrderCreateResponseDTO result = cache.execute(1L, "key-1", "10:2", () -> slowPurchase(purchases, 0));
+
+        assertThat(result.getAccountData()).containsExactly("account-1");
+        assertThat(purchases).hasValue(1);
+        assertThat(redis.get("orders:idempotency:1:key-1")).startsWith("10:2|");
+    }
+
+    private OrderIdempotencyCache newCache(String store, StringRedisTemplate redis) {
+        @SuppressWarnings("unchecked")
+        ObjectProvider<StringRedisTemplate> provider = mock(ObjectProvider.class);
+        when(provider.getIfAvailable()).thenReturn(redis);
+        when(provider.getObject()).thenReturn(redis);
+
+        OrderIdempotencyCache created = new OrderIdempotencyCache(new ObjectMapper(), provider);
+        ReflectionTestUtils.setField(created, "store", store);
+        ReflectionTestUtils.setField(created, "retentionMinutes", 1440L);
+        ReflectionTestUtils.setField(created, "waitSeconds", 10L);
+        ReflectionTestUtils.setField(created, "pendingTtlSeconds", 60L);
+        ReflectionTestUtils.setField(created, "maxEntries", 100_000);
+        ReflectionTestUtils.setField(created, "maxBytes", 268_435_456L);
+        ReflectionTestUtils.setField(created, "maxResultBytes", 8_388_608L);
+        return created;
+    }
+
+    private static ClientOrderCreateResponseDTO slowPurchase(AtomicInteger purchases, long millis) {
+        int number = purchases.incrementAndGet();
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return new ClientOrderCreateResponseDTO(List.of("account-" + number));
+    }
+
+    private static ClientOrderCreateResponseDTO purchaseOf(int accounts, int length) {
+        List<String> accountData = new ArrayList<>();
+        for (int i = 0; i < accounts; i++) {
+            accountData.add("a".repeat(length));
+        }
+        return new ClientOrderCreateResponseDTO(accountData);
+    }
+
+    /**
+     * Just enough of redis for the cache: SET NX PX, GET, SET PX and the two owner scripts, with expiry
+     */
+    private static class FakeRedis {
+        private final Map<String, Object[]> values = new ConcurrentHashMap<>();
+        private final StringRedisTemplate template;
+
+        @SuppressWarnings("unchecked")
+        FakeRedis() {
+            ValueOperations<String, String> ops = mock(ValueOperations.class);
+            when(ops.setIfAbsent(anyString(), anyString(), any(Duration.class))).thenAnswer(inv -> {
+                synchronized (values) {
+                    if (get(inv.getArgument(0)) != null) {
+                        return false;
+                    }
+                    put(inv.getArgument(0), inv.getArgument(1), ((Duration) inv.getArgument(2)).toMillis());
+                    return true;
+                }
+            });
+            when(ops.get(any())).thenAnswer(inv -> get(inv.getArgument(0)));
+            doAnswer(inv -> {
+                put(inv.getArgument(0), inv.getArgument(1), ((Duration) inv.getArgument(2)).toMillis());
+                return null;
+            }).when(ops).set(anyString(), anyString(), any(Duration.class));
+
+            template = new StringRedisTemplate() {
+                @Override
+                public ValueOperations<String, String> opsForValue() {
+                    return ops;
+                }
+
+                @Override
+                public <T> T execute(RedisScript<T> script, List<String> keys, Object... args) {
+                    synchronized (values) {
+                        String key = keys.get(0);
+                        if (!args[0].equals(get(key))) {
+                            return (T) Long.valueOf(0);
+                        }
+                        if (script.getScriptAsString().contains("pexpire")) {
+                            put(key, (String) args[0], Long.parseLong((String) args[1]));
+                        } else {
+                            values.remove(key);
+                        }
+                        return (T) Long.valueOf(1);
+                    }
+                }
+            };
+        }
+
+        void put(String key, String value, long ttlMillis) {
+            values.put(key, new Object[]{value, System.currentTimeMillis() + ttlMillis});
+        }
+
+        String get(String key) {
+            Object[] stored = values.get(key);
+            if (stored == null || (long) stored[1] <= System.currentTimeMillis()) {
+                return null;
+            }
+            return (String) stored[0];
+        }
+    }
+}
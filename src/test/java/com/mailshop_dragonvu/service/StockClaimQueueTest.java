@@ -0,0 +1,122 @@
+package com.mailshop_dragonvu.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+class StockClaimQueueTest {
+
+    private static final Long PRODUCT_ID = 10L;
+
+    private final ExecutorService buyers = Executors.newFixedThreadPool(2);
+    private StockClaimQueue queue;
+
+    @BeforeEach
+    void setUp() {
+        @SuppressWarnings("unchecked")
+        ObjectProvider<StringRedisTemplate> redis = mock(ObjectProvider.class);
+        queue = new StockClaimQueue(redis);
+        ReflectionTestUtils.setField(queue, "enabled", true);
+        ReflectionTestUtils.setField(queue, "store", "memory");
+        ReflectionTestUtils.setField(queue, "refillSize", 5);
+        ReflectionTestUtils.setField(queue, "maxAgeSeconds", 300L);
+    }
+
+    @AfterEach
+    void tearDown() {
+        buyers.shutdownNow();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    void reloadsOfOneProductRunConcurrently() throws Exception {
+        // Both loaders must be inside at the same time: a loader run under the queue monitor never gets there
+        CountDownLatch bothLoading = new CountDownLatch(2);
+        IntFunction<List<Long>> slowLoader = limit -> {
+            bothLoading.countDown();
+            try {
+                assertThat(bothLoading.await(5, TimeUnit.SECONDS)).isTrue();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return List.of(1L, 2L, 3L, 4L, 5L);
+        };
+
+        Future<List<Long>> first = buyers.submit(() -> queue.claim(PRODUCT_ID, 1, slowLoader));
+        Future<List<Long>> second = buyers.submit(() -> queue.claim(PRODUCT_ID, 1, slowLoader));
+
+        List<Long> claimed = new ArrayList<>(first.get(10, TimeUnit.SECONDS));
+        claimed.addAll(second.get(10, TimeUnit.SECONDS));
+        assertThat(claimed).hasSize(2);
+    }
+
+    @Test
+    void reloadSkipsIdsClaimedByUnfinishedTransactions() throws Exception {
+        IntFunction<List<Long>> database = limit -> List.of(1L, 2L, 3L, 4L, 5L);
+
+        // Transaction A claims 1 and 2 and has not committed yet
+        TransactionSynchronizationManager.initSynchronization();
+        assertThat(queue.claim(PRODUCT_ID, 2, database)).containsExactly(1L, 2L);
+        List<TransactionSynchronization> transactionA = TransactionSynchronizationManager.getSynchronizations();
+        TransactionSynchronizationManager.clearSynchronization();
+
+        // The queue is rebuilt while the database still reports 1 and 2 as unsold
+        queue.invalidate(PRODUCT_ID);
+        assertThat(buyers.submit(() -> queue.claim(PRODUCT_ID, 3, database)).get(5, TimeUnit.SECONDS))
+                .containsExactly(3L, 4L, 5L);
+
+        // After A commits they are no longer in flight: a reload may return them (the database decides)
+        transactionA.forEach(sync -> sync.afterCompletion(TransactionSynchronization.STATUS_COMMITTED));
+        queue.invalidate(PRODUCT_ID);
+        assertThat(queue.claim(PRODUCT_ID, 2, limit -> List.of(1L, 6L))).containsExactly(1L, 6L);
+    }
+
+    @Test
+    void rolledBackClaimsGoBackToTheFrontOfTheQueue() {
+        IntFunction<List<Long>> database = limit -> List.of(1L, 2L, 3L, 4L, 5L);
+
+        TransactionSynchronizationManager.initSynchronization();
+        List<Long> claimed = queue.claim(PRODUCT_ID, 2, database);
+        queue.releaseOnRollback(PRODUCT_ID, claimed);
+        List<TransactionSynchronization> transaction = TransactionSynchronizationManager.getSynchronizations();
+        TransactionSynchronizationManager.clearSynchronization();
+        transaction.forEach(sync -> sync.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK));
+
+        assertThat(queue.claim(PRODUCT_ID, 3, limit -> List.of())).containsExactly(1L, 2L, 3L);
+    }
+
+    @Test
+    void stockChangesOutsideTheBuyPathDropTheQueueAfterCommit() {
+        assertThat(queue.claim(PRODUCT_ID, 1, limit -> List.of(1L, 2L))).containsExactly(1L);
+
+        TransactionSynchronizationManager.initSynchronization();
+        queue.invalidateAfterCommit(PRODUCT_ID);
+        List<TransactionSynchronization> transaction = TransactionSynchronizationManager.getSynchronizations();
+        TransactionSynchronizationManager.clearSynchronization();
+
+        // Not committed yet: the old queue still serves
+        assertThat(queue.claim(PRODUCT_ID, 1, limit -> List.of(7L))).containsExactly(2L);
+
+        transaction.forEach(TransactionSynchronization::afterCommit);
+        assertThat(queue.claim(PRODUCT_ID, 1, limit -> List.of(8L, 9L))).containsExactly(8L);
+    }
+}
@@ -0,0 +1,176 @@
+package com.mailshop_dragonvu.service.hotmail;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * JMH benchmark of GraphMessageStreamParser against the previous parse path
+ * (body decoded to a String, then ObjectMapper.readTree and JsonNode lookups)
+ *
+ * The body is a synthetic "/me/messages" page fed as 8 KiB DataBuffers, like the WebClient delivers it:
+ * - readAll: every message is visited (read-mail)
+ * - firstMatch: the code is in the newest message and the visitor stops there (get-code)
+ *
+ * Run: mvn -Pbenchmark test -Dtest=GraphMessageStreamParserBenchmark
+ * Report (stdout and target/benchmark/graph-message-parser.txt): ops/s per method and, from the GC profiler,
+ * bytes allocated per operation (gc.alloc.rate.norm)
+ */
+@Tag("benchmark")
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GraphMessageStreamParserBenchmark {
+
+    private static final int CHUNK_SIZE = 8 * 1024;
+    private static final String CODE_SUBJECT = "Your verification code is 482913";
+
+    @Param({"10", "50"})
+    public int messages;
+
+    @Param({"4096"})
+    public int bodyBytes;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final DefaultDataBufferFactory bufferFactory = DefaultDataBufferFactory.sharedInstance;
+    private byte[] response;
+
+    @Test
+    void run() throws Exception {
+        Path report = Path.of("target", "benchmark", "graph-message-parser.txt");
+        Files.createDirectories(report.getParent());
+        new Runner(new OptionsBuilder()
+                .include(GraphMessageStreamParserBenchmark.class.getName())
+                .addProfiler(GCProfiler.class)
+                .result(report.toString())
+                .resultFormat(ResultFormatType.TEXT)
+                .build()).run();
+    }
+
+    @Setup
+    public void setUp() {
+        String content = "<html><body>" + "x".repeat(Math.max(0, bodyBytes - 26)) + "</body></html>";
+        StringBuilder json = new StringBuilder("{\"@odata.context\":\"https://graph.microsoft.com/v1.0/$metadata#users('me')/messages\",\"value\":[");
+        for (int i = 0; i < messages; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"id\":\"AAMkAD").append(i).append("\",")
+                    .append("\"receivedDateTime\":\"2026-10-18T10:").append(String.format("%02d", i % 60)).append(":00Z\",")
+                    .append("\"hasAttachments\":false,\"isRead\":").append(i % 2 == 0).append(',')
+                    .append("\"subject\":\"").append(i == 0 ? CODE_SUBJECT : "Newsletter " + i).append("\",")
+                    .append("\"bodyPreview\":\"Preview of message ").append(i).append("\",")
+                    .append("\"body\":{\"contentType\":\"html\",\"content\":\"").append(content).append("\"},")
+                    .append("\"from\":{\"emailAddress\":{\"name\":\"Sender ").append(i)
+                    .append("\",\"address\":\"sender").append(i).append("@example.com\"}}}");
+        }
+        json.append("],\"@odata.nextLink\":\"https://graph.microsoft.com/v1.0/me/messages?$skip=").append(messages).append("\"}");
+        response = json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public void streamReadAll(Blackhole blackhole) throws IOException {
+        stream(message -> {
+            consume(blackhole, message);
+            return false;
+        });
+    }
+
+    @Benchmark
+    public void streamFirstMatch(Blackhole blackhole) throws IOException {
+        stream(message -> {
+            if (message.getSubject().contains("code")) {
+                blackhole.consume(message.getSubject());
+                return true;
+            }
+            return false;
+        });
+    }
+
+    @Benchmark
+    public void treeReadAll(Blackhole blackhole) throws IOException {
+        for (JsonNode message : readTree().path("value")) {
+            blackhole.consume(message.path("subject").asText(""));
+            blackhole.consume(message.path("from").path("emailAddress").path("address").asText(""));
+            blackhole.consume(message.path("from").path("emailAddress").path("name").asText(""));
+            blackhole.consume(message.path("bodyPreview").asText(""));
+            blackhole.consume(message.path("body").path("content").asText(""));
+            blackhole.consume(message.path("receivedDateTime").asText(""));
+            blackhole.consume(message.path("isRead").asBoolean(false));
+            blackhole.consume(message.path("hasAttachments").asBoolean(false));
+        }
+    }
+
+    @Benchmark
+    public void treeFirstMatch(Blackhole blackhole) throws IOException {
+        for (JsonNode message : readTree().path("value")) {
+            String subject = message.path("subject").asText();
+            if (subject.contains("code")) {
+                blackhole.consume(subject);
+                return;
+            }
+        }
+    }
+
+    private void stream(Predicate<GraphMessageStreamParser.GraphMessage> visitor) throws IOException {
+        GraphMessageStreamParser parser = new GraphMessageStreamParser(objectMapper.getFactory(), visitor);
+        for (int offset = 0; offset < response.length; offset += CHUNK_SIZE) {
+            DataBuffer chunk = bufferFactory.wrap(ByteBuffer.wrap(response, offset, Math.min(CHUNK_SIZE, response.length - offset)));
+            parser.feed(chunk);
+        }
+        parser.finish();
+    }
+
+    /**
+     * Previous path: the chunks are joined and decoded (bodyToMono(String.class)), then parsed into a tree
+     */
+    private JsonNode readTree() throws IOException {
+        byte[] joined = new byte[response.length];
+        for (int offset = 0; offset < response.length; offset += CHUNK_SIZE) {
+            int length = Math.min(CHUNK_SIZE, response.length - offset);
+            System.arraycopy(response, offset, joined, offset, length);
+        }
+        return objectMapper.readTree(new String(joined, StandardCharsets.UTF_8));
+    }
+
+    private static void consume(Blackhole blackhole, GraphMessageStreamParser.GraphMessage message) {
+        blackhole.consume(message.getSubject());
+        blackhole.consume(message.getFromAddress());
+        blackhole.consume(message.getFromName());
+        blackhole.consume(message.getBodyPreview());
+        blackhole.consume(message.getBodyContent());
+        blackhole.consume(message.getReceivedDateTime());
+        blackhole.consume(message.isRead());
+        blackhole.consume(message.isHasAttachments());
+    }
+}
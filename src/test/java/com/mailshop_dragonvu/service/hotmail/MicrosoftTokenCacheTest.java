@@ -0,0 +1,94 @@
+package com.mailshop_dragonvu.service.hotmail;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MicrosoftTokenCacheTest {
+
+    private static final String CLIENT_ID = "client";
+
+    private MicrosoftTokenCache cache;
+
+    @BeforeEach
+    void setUp() {
+        cache = new MicrosoftTokenCache();
+        ReflectionTestUtils.setField(cache, "enabled", true);
+        ReflectionTestUtils.setField(cache, "maxEntries", 100);
+        ReflectionTestUtils.setField(cache, "expirySkewSeconds", 120L);
+        ReflectionTestUtils.setField(cache, "rotationRetentionHours", 24L);
+        ReflectionTestUtils.setField(cache, "maxRotatedTokens", 2);
+    }
+
+    @Test
+    void rotatedRefreshTokensAreBounded() {
+        rotate("rt-1", "rt-1b");
+        rotate("rt-2", "rt-2b");
+        rotate("rt-3", "rt-3b");
+
+        assertThat(cache.rotatedSize()).isEqualTo(2);
+        assertThat(cache.latestRefreshToken("rt-3", CLIENT_ID)).isEqualTo("rt-3");
+
+        // A mailbox already known may still move to its next token
+        rotate("rt-1", "rt-1c");
+        assertThat(cache.latestRefreshToken("rt-1", CLIENT_ID)).isEqualTo("rt-1c");
+    }
+
+    @Test
+    void expiredRotationsMakeRoom() throws InterruptedException {
+        rotate("rt-1", "rt-1b");
+        rotate("rt-2", "rt-2b");
+        ageRotations();
+
+        // Full, but both entries are past retention: they are dropped for the new one
+        rotate("rt-3", "rt-3b");
+        assertThat(cache.rotatedSize()).isEqualTo(1);
+        assertThat(cache.latestRefreshToken("rt-1", CLIENT_ID)).isEqualTo("rt-1");
+    }
+
+    @Test
+    void concurrentRefreshesOfOneKeyShareOneRequest() {
+        AtomicInteger requests = new AtomicInteger();
+        Sinks.One<String> tokenEndpoint = Sinks.one();
+        AtomicReference<String> first = new AtomicReference<>();
+        AtomicReference<String> second = new AtomicReference<>();
+
+        cache.refreshOnce("rt-1", CLIENT_ID, MicrosoftTokenCache.ScopeFamily.GRAPH, () -> {
+            requests.incrementAndGet();
+            return tokenEndpoint.asMono();
+        }).subscribe(first::set);
+        cache.refreshOnce("rt-1", CLIENT_ID, MicrosoftTokenCache.ScopeFamily.GRAPH, () -> {
+            requests.incrementAndGet();
+            return Mono.just("second request");
+        }).subscribe(second::set);
+
+        tokenEndpoint.tryEmitValue("access-token");
+        assertThat(requests).hasValue(1);
+        assertThat(first).hasValue("access-token");
+        assertThat(second).hasValue("access-token");
+
+        // Finished: the next refresh is a new request, other scope families never shared it
+        assertThat(cache.refreshOnce("rt-1", CLIENT_ID, MicrosoftTokenCache.ScopeFamily.GRAPH,
+                () -> Mono.just("next")).block()).isEqualTo("next");
+        assertThat(cache.refreshOnce("rt-1", CLIENT_ID, MicrosoftTokenCache.ScopeFamily.IMAP,
+                () -> Mono.just("imap")).block()).isEqualTo("imap");
+    }
+
+    private void rotate(String refreshToken, String newRefreshToken) {
+        cache.put(refreshToken, CLIENT_ID, MicrosoftTokenCache.ScopeFamily.GRAPH, "access-" + newRefreshToken,
+                newRefreshToken, true, 3600);
+    }
+
+    private void ageRotations() throws InterruptedException {
+        // Retention 0: anything rotated before now is past it
+        ReflectionTestUtils.setField(cache, "rotationRetentionHours", 0L);
+        Thread.sleep(5);
+    }
+}
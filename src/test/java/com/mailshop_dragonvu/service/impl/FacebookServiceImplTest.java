@@ -0,0 +1,68 @@
+package com.mailshop_dragonvu.service.impl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mailshop_dragonvu.dto.facebook.FacebookCheckLiveResponseDTO;
+import com.mailshop_dragonvu.dto.hotmail.CheckStatus;
+import com.mailshop_dragonvu.service.LivenessCache;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+class FacebookServiceImplTest {
+
+    private final List<ClientRequest> requests = new ArrayList<>();
+    private HttpStatus upstreamStatus = HttpStatus.OK;
+    private FacebookServiceImpl service;
+
+    @BeforeEach
+    void setUp() {
+        WebClient webClient = WebClient.builder()
+                .exchangeFunction(request -> {
+                    requests.add(request);
+                    return Mono.just(ClientResponse.create(upstreamStatus).body("[]").build());
+                })
+                .build();
+        service = new FacebookServiceImpl(webClient, mock(LivenessCache.class), new ObjectMapper());
+        ReflectionTestUtils.setField(service, "graphUrl", "https://graph.facebook.com");
+        ReflectionTestUtils.setField(service, "accessToken", "server-token");
+        ReflectionTestUtils.setField(service, "batchEnabled", true);
+        ReflectionTestUtils.setField(service, "batchSize", 50);
+        ReflectionTestUtils.setField(service, "batchConcurrency", 1);
+    }
+
+    @Test
+    void invalidUidsFailWithoutCallingGraph() {
+        List<FacebookCheckLiveResponseDTO> results = service.checkLiveStream(
+                Flux.just("me/accounts?fields=access_token", "123&batch=x"), true).collectList().block();
+
+        assertThat(results).extracting(FacebookCheckLiveResponseDTO::getStatus)
+                .containsExactly(CheckStatus.FAILED, CheckStatus.FAILED);
+        assertThat(requests).isEmpty();
+    }
+
+    @Test
+    void overloadedBatchIsUnknownWithoutSingleFallback() {
+        upstreamStatus = HttpStatus.TOO_MANY_REQUESTS;
+
+        List<FacebookCheckLiveResponseDTO> results = service.checkLiveStream(
+                Flux.just("100001", "100002", "john.doe"), true).collectList().block();
+
+        assertThat(results).extracting(FacebookCheckLiveResponseDTO::getUid)
+                .containsExactly("100001", "100002", "john.doe");
+        assertThat(results).extracting(FacebookCheckLiveResponseDTO::getStatus)
+                .containsOnly(CheckStatus.UNKNOWN);
+        assertThat(requests).hasSize(1);
+    }
+}
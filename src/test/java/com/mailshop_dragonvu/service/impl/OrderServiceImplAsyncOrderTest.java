@@ -0,0 +1,199 @@
+package com.mailshop_dragonvu.service.impl;
+
+import com.mailshop_dragonvu.dto.orders.AsyncOrderResponseDTO;
+import com.mailshop_dragonvu.dto.orders.OrderCreateDTO;
+import com.mailshop_dragonvu.dto.products.ProductSnapshotDTO;
+import com.mailshop_dragonvu.entity.ProductEntity;
+import com.mailshop_dragonvu.entity.ProductItemEntity;
+import com.mailshop_dragonvu.entity.UserEntity;
+import com.mailshop_dragonvu.entity.WalletEntity;
+import com.mailshop_dragonvu.enums.ActiveStatusEnum;
+import com.mailshop_dragonvu.enums.OrderStatusEnum;
+import com.mailshop_dragonvu.enums.WarehouseType;
+import com.mailshop_dragonvu.exception.BusinessException;
+import com.mailshop_dragonvu.exception.ErrorCode;
+import com.mailshop_dragonvu.mapper.OrderItemMapper;
+import com.mailshop_dragonvu.mapper.OrderMapper;
+import com.mailshop_dragonvu.service.EmailService;
+import com.mailshop_dragonvu.service.ProductQuantityNotifier;
+import com.mailshop_dragonvu.service.ProductService;
+import com.mailshop_dragonvu.service.StockClaimQueue;
+import com.mailshop_dragonvu.service.WarehouseCheckScheduler;
+import com.mailshop_dragonvu.service.WarehouseService;
+import jakarta.persistence.EntityManager;
+import net.ttddyy.dsproxy.ExecutionInfo;
+import net.ttddyy.dsproxy.QueryInfo;
+import net.ttddyy.dsproxy.listener.QueryExecutionListener;
+import net.ttddyy.dsproxy.support.ProxyDataSource;
+import net.ttddyy.dsproxy.support.ProxyDataSourceBuilder;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.ImportAutoConfiguration;
+import org.springframework.boot.autoconfigure.jdbc.JdbcTemplateAutoConfiguration;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+
+import javax.sql.DataSource;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.when;
+
+/**
+ * Đơn bất đồng bộ trên H2: các lần đọc đơn / ví đều dưới lock, stale sweep chỉ kết thúc đơn còn treo
+ */
+@DataJpaTest(properties = {
+        "spring.jpa.hibernate.ddl-auto=create-drop",
+        "spring.jpa.show-sql=false"
+})
+@ImportAutoConfiguration(JdbcTemplateAutoConfiguration.class)
+@Import({OrderServiceImpl.class, ProductItemServiceImpl.class, StockClaimQueue.class,
+        OrderServiceImplAsyncOrderTest.RecordingDataSource.class})
+class OrderServiceImplAsyncOrderTest {
+
+    private static final List<String> STATEMENTS = new CopyOnWriteArrayList<>();
+
+    @Autowired
+    private OrderServiceImpl orderService;
+
+    @Autowired
+    private EntityManager entityManager;
+
+    @MockBean
+    private ProductService productService;
+    @MockBean
+    private WarehouseService warehouseService;
+    @MockBean
+    private WarehouseCheckScheduler warehouseCheckScheduler;
+    @MockBean
+    private ProductQuantityNotifier productQuantityNotifier;
+    @MockBean
+    private EmailService emailService;
+    @MockBean
+    private OrderMapper orderMapper;
+    @MockBean
+    private OrderItemMapper orderItemMapper;
+
+    private Long userId;
+    private Long productId;
+
+    @BeforeEach
+    void setUp() {
+        UserEntity user = UserEntity.builder().email("buyer@example.com").fullName("Buyer").build();
+        entityManager.persist(user);
+        entityManager.persist(WalletEntity.builder().user(user).balance(100_000L).build());
+
+        ProductEntity product = ProductEntity.builder().name("Hotmail New").price(1_000L).build();
+        entityManager.persist(product);
+        for (int i = 0; i < 10; i++) {
+            entityManager.persist(ProductItemEntity.builder()
+                    .product(product)
+                    .accountData("mail" + i + "@example.com|pass")
+                    .warehouseType(WarehouseType.SECONDARY)
+                    .build());
+        }
+        entityManager.flush();
+        entityManager.clear();
+
+        userId = user.getId();
+        productId = product.getId();
+        when(productService.getProductSnapshot(productId)).thenReturn(ProductSnapshotDTO.builder()
+                .id(productId).name("Hotmail New").price(1_000L).status(ActiveStatusEnum.ACTIVE).build());
+    }
+
+    @Test
+    void chunkAndFinishReadTheOrderUnderLock() {
+        AsyncOrderResponseDTO order = orderService.createAsyncOrder(request(5), userId);
+        entityManager.flush();
+
+        STATEMENTS.clear();
+        AsyncOrderResponseDTO progress = orderService.fulfilAsyncOrderChunk(order.getOrderId(), 3);
+        assertThat(progress.getDeliveredQuantity()).isEqualTo(3);
+        assertThat(lockedReadsOf("orders")).isEqualTo(1);
+
+        STATEMENTS.clear();
+        AsyncOrderResponseDTO finished = orderService.finishAsyncOrder(order.getOrderId(), "test");
+        assertThat(finished.getStatus()).isEqualTo(OrderStatusEnum.COMPLETED);
+        assertThat(lockedReadsOf("orders")).isEqualTo(1);
+    }
+
+    @Test
+    void createAsyncOrderChecksTheBalanceUnderTheWalletLock() {
+        STATEMENTS.clear();
+        orderService.createAsyncOrder(request(5), userId);
+        assertThat(lockedReadsOf("wallets")).isEqualTo(1);
+
+        assertThatThrownBy(() -> orderService.createAsyncOrder(request(1_000), userId))
+                .isInstanceOf(BusinessException.class)
+                .extracting(e -> ((BusinessException) e).getErrorCode())
+                .isEqualTo(ErrorCode.INSUFFICIENT_BALANCE);
+    }
+
+    @Test
+    void staleSweepOnlyFinishesOrdersStillStale() {
+        AsyncOrderResponseDTO order = orderService.createAsyncOrder(request(5), userId);
+        entityManager.flush();
+        entityManager.clear();
+
+        // Vừa được cập nhật (một lô vừa commit): không còn treo
+        assertThat(orderService.finishStaleAsyncOrder(order.getOrderId(), LocalDateTime.now().minusMinutes(30), "stale"))
+                .isNull();
+
+        STATEMENTS.clear();
+        AsyncOrderResponseDTO finished = orderService.finishStaleAsyncOrder(
+                order.getOrderId(), LocalDateTime.now().plusMinutes(1), "stale");
+        assertThat(finished.getStatus()).isEqualTo(OrderStatusEnum.CANCELLED);
+        assertThat(lockedReadsOf("orders")).isEqualTo(1);
+    }
+
+    private static long lockedReadsOf(String table) {
+        return STATEMENTS.stream()
+                .map(String::toLowerCase)
+                .filter(sql -> sql.startsWith("select") && sql.contains(" from " + table + " ") && sql.contains("for update"))
+                .count();
+    }
+
+    private OrderCreateDTO request(int quantity) {
+        return OrderCreateDTO.builder().productId(productId).quantity(quantity).build();
+    }
+
+    /**
+     * Ghi lại mọi câu SQL chạy qua DataSource
+     */
+    @TestConfiguration
+    static class RecordingDataSource {
+
+        @Bean
+        static BeanPostProcessor recordingDataSourcePostProcessor() {
+            return new BeanPostProcessor() {
+                @Override
+                public Object postProcessAfterInitialization(Object bean, String beanName) {
+                    if (bean instanceof DataSource dataSource && !(bean instanceof ProxyDataSource)) {
+                        QueryExecutionListener recorder = new QueryExecutionListener() {
+                            @Override
+                            public void beforeQuery(ExecutionInfo execInfo,
+                                                    List<QueryInfo> queryInfoList) {
+                            }
+
+                            @Override
+                            public void afterQuery(ExecutionInfo execInfo,
+                                                   List<QueryInfo> queryInfoList) {
+                                queryInfoList.forEach(query -> STATEMENTS.add(query.getQuery()));
+                            }
+                        };
+                        return ProxyDataSourceBuilder.create(dataSource).listener(recorder).build();
+                    }
+                    return bean;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.mailshop_dragonvu.service.impl;
+
+import com.mailshop_dragonvu.dto.orders.ClientOrderCreateResponseDTO;
+import com.mailshop_dragonvu.dto.orders.OrderCreateDTO;
+import com.mailshop_dragonvu.dto.products.ProductSnapshotDTO;
+import com.mailshop_dragonvu.entity.ProductEntity;
+import com.mailshop_dragonvu.entity.ProductItemEntity;
+import com.mailshop_dragonvu.entity.UserEntity;
+import com.mailshop_dragonvu.entity.WalletEntity;
+import com.mailshop_dragonvu.enums.ActiveStatusEnum;
+import com.mailshop_dragonvu.enums.WarehouseType;
+import com.mailshop_dragonvu.exception.BusinessException;
+import com.mailshop_dragonvu.exception.ErrorCode;
+import com.mailshop_dragonvu.mapper.OrderItemMapper;
+import com.mailshop_dragonvu.mapper.OrderMapper;
+import com.mailshop_dragonvu.service.EmailService;
+import com.mailshop_dragonvu.service.ProductQuantityNotifier;
+import com.mailshop_dragonvu.service.ProductService;
+import com.mailshop_dragonvu.service.StockClaimQueue;
+import com.mailshop_dragonvu.service.WarehouseCheckScheduler;
+import com.mailshop_dragonvu.service.WarehouseService;
+import jakarta.persistence.EntityManager;
+import net.ttddyy.dsproxy.ExecutionInfo;
+import net.ttddyy.dsproxy.QueryCount;
+import net.ttddyy.dsproxy.QueryCountHolder;
+import net.ttddyy.dsproxy.QueryInfo;
+import net.ttddyy.dsproxy.listener.QueryExecutionListener;
+import net.ttddyy.dsproxy.support.ProxyDataSource;
+import net.ttddyy.dsproxy.support.ProxyDataSourceBuilder;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.ImportAutoConfiguration;
+import org.springframework.boot.autoconfigure.jdbc.JdbcTemplateAutoConfiguration;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+
+import javax.sql.DataSource;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.when;
+
+/**
+ * Số câu SQL của luồng mua (createOrder), đếm bằng datasource-proxy trên H2
+ * Ngân sách cố định, không tăng theo số lượng mua
+ */
+@DataJpaTest(properties = {
+        "spring.jpa.hibernate.ddl-auto=create-drop",
+        "spring.jpa.show-sql=false"
+})
+@ImportAutoConfiguration(JdbcTemplateAutoConfiguration.class)
+@Import({OrderServiceImpl.class, ProductItemServiceImpl.class, StockClaimQueue.class,
+        OrderServiceImplStatementTest.CountingDataSource.class})
+class OrderServiceImplStatementTest {
+
+    private static final String DATA_SOURCE_NAME = "purchase";
+    private static final long PRICE = 1_000L;
+    // Câu SQL đã chạy, kèm số dòng của batch (1 nếu không phải batch)
+    private static final List<Statement> STATEMENTS = new CopyOnWriteArrayList<>();
+
+    @Autowired
+    private OrderServiceImpl orderService;
+
+    @Autowired
+    private EntityManager entityManager;
+
+    @MockBean
+    private ProductService productService;
+    @MockBean
+    private WarehouseService warehouseService;
+    @MockBean
+    private WarehouseCheckScheduler warehouseCheckScheduler;
+    @MockBean
+    private ProductQuantityNotifier productQuantityNotifier;
+    @MockBean
+    private EmailService emailService;
+    @MockBean
+    private OrderMapper orderMapper;
+    @MockBean
+    private OrderItemMapper orderItemMapper;
+
+    private Long userId;
+    private Long productId;
+
+    @BeforeEach
+    void setUp() {
+        UserEntity user = UserEntity.builder().email("buyer@example.com").fullName("Buyer").build();
+        entityManager.persist(user);
+        entityManager.persist(WalletEntity.builder().user(user).balance(1_000_000L).build());
+
+        ProductEntity product = ProductEntity.builder().name("Hotmail New").price(PRICE).build();
+        entityManager.persist(product);
+        for (int i = 0; i < 100; i++) {
+            entityManager.persist(ProductItemEntity.builder()
+                    .product(product)
+                    .accountData("mail" + i + "@example.com|pass")
+                    .warehouseType(WarehouseType.SECONDARY)
+                    .build());
+        }
+        entityManager.flush();
+        entityManager.clear();
+
+        userId = user.getId();
+        productId = product.getId();
+        when(productService.getProductSnapshot(productId)).thenReturn(ProductSnapshotDTO.builder()
+                .id(productId).name("Hotmail New").price(PRICE).status(ActiveStatusEnum.ACTIVE).build());
+    }
+
+    @Test
+    void purchaseUsesAFixedNumberOfStatementsWhateverTheQuantity() {
+        // Lần mua đầu nạp hàng đợi claim (đánh dấu expired + truy vấn ID), các lần sau thì không
+        QueryCount cold = purchase(1);
+        QueryCount single = purchase(1);
+        QueryCount many = purchase(20);
+
+        // Khóa ví + lock items đã claim; INSERT đơn + order_items; UPDATE items + ví
+        assertThat(single.getSelect()).isEqualTo(2);
+        assertThat(single.getInsert()).isEqualTo(2);
+        assertThat(single.getUpdate()).isEqualTo(2);
+        assertThat(single.getTotal()).isEqualTo(6);
+        assertThat(cold.getTotal()).isEqualTo(single.getTotal() + 2);
+
+        assertThat(many.getTotal()).isEqualTo(single.getTotal());
+        assertThat(many.getSelect()).isEqualTo(single.getSelect());
+    }
+
+    @Test
+    void multiItemPurchaseMarksItemsWithOneUpdateAndBatchesOrderItems() {
+        purchase(1);
+        purchase(20);
+
+        // product_items: MỘT câu UPDATE ... WHERE id IN (...) cho cả 20 items
+        List<Statement> itemUpdates = statements("update product_items");
+        assertThat(itemUpdates).hasSize(1);
+        assertThat(itemUpdates.get(0).batchSize()).isEqualTo(1);
+
+        // order_items: MỘT câu INSERT chạy theo batch 20 dòng
+        List<Statement> orderItemInserts = statements("insert into order_items");
+        assertThat(orderItemInserts).hasSize(1);
+        assertThat(orderItemInserts.get(0).batchSize()).isEqualTo(20);
+    }
+
+    @Test
+    void itemsSoldOutsideTheQueueDoNotFailThePurchase() {
+        // Nạp hàng đợi claim của node này với toàn bộ 100 items
+        purchase(1);
+
+        // Node khác bán gần hết: chỉ còn 3 items, hàng đợi ở đây vẫn giữ ID các items đã bán
+        List<Long> ids = entityManager.createQuery(
+                "SELECT pi.id FROM ProductItemEntity pi WHERE pi.sold = false ORDER BY pi.id", Long.class).getResultList();
+        entityManager.createQuery("UPDATE ProductItemEntity pi SET pi.sold = true WHERE pi.id IN :ids")
+                .setParameter("ids", ids.subList(3, ids.size()))
+                .executeUpdate();
+
+        assertThat(purchase(3).getTotal()).isPositive();
+        assertThat(entityManager.createQuery(
+                "SELECT COUNT(pi) FROM ProductItemEntity pi WHERE pi.sold = false", Long.class).getSingleResult())
+                .isZero();
+    }
+
+    @Test
+    void walletErrorsAreBusinessErrors() {
+        entityManager.createQuery("UPDATE WalletEntity w SET w.balance = 0").executeUpdate();
+        assertThatThrownBy(() -> orderService.createOrder(request(1), userId))
+                .isInstanceOf(BusinessException.class)
+                .extracting(e -> ((BusinessException) e).getErrorCode())
+                .isEqualTo(ErrorCode.INSUFFICIENT_BALANCE);
+
+        when(productService.getProductSnapshot(productId)).thenReturn(ProductSnapshotDTO.builder()
+                .id(productId).name("Hotmail New").price(0L).status(ActiveStatusEnum.ACTIVE).build());
+        assertThatThrownBy(() -> orderService.createOrder(request(1), userId))
+                .isInstanceOf(BusinessException.class)
+                .extracting(e -> ((BusinessException) e).getErrorCode())
+                .isEqualTo(ErrorCode.INVALID_AMOUNT);
+    }
+
+    private QueryCount purchase(int quantity) {
+        entityManager.clear();
+        QueryCountHolder.clear();
+        STATEMENTS.clear();
+        ClientOrderCreateResponseDTO response = orderService.createOrder(request(quantity), userId);
+        // Commit: các thay đổi còn chờ (ví) được ghi
+        entityManager.flush();
+        assertThat(response.getAccountData()).hasSize(quantity);
+        return QueryCountHolder.get(DATA_SOURCE_NAME);
+    }
+
+    private static List<Statement> statements(String prefix) {
+        return STATEMENTS.stream().filter(statement -> statement.sql().startsWith(prefix)).toList();
+    }
+
+    private OrderCreateDTO request(int quantity) {
+        OrderCreateDTO request = new OrderCreateDTO();
+        request.setProductId(productId);
+        request.setQuantity(quantity);
+        return request;
+    }
+
+    /**
+     * Bọc DataSource bằng datasource-proxy để đếm câu SQL theo loại (batch = 1 câu) và ghi lại từng câu
+     */
+    @TestConfiguration
+    static class CountingDataSource {
+
+        @Bean
+        static BeanPostProcessor countingDataSourcePostProcessor() {
+            return new BeanPostProcessor() {
+                @Override
+                public Object postProcessAfterInitialization(Object bean, String beanName) {
+                    if (bean instanceof DataSource dataSource && !(bean instanceof ProxyDataSource)) {
+                        QueryExecutionListener recorder = new QueryExecutionListener() {
+                            @Override
+                            public void beforeQuery(ExecutionInfo execInfo, List<QueryInfo> queryInfoList) {
+                            }
+
+                            @Override
+                            public void afterQuery(ExecutionInfo execInfo, List<QueryInfo> queryInfoList) {
+                                int batchSize = execInfo.isBatch() ? execInfo.getBatchSize() : 1;
+                                queryInfoList.forEach(query ->
+                                        STATEMENTS.add(new Statement(query.getQuery().trim().toLowerCase(), batchSize)));
+                            }
+                        };
+                        return ProxyDataSourceBuilder.create(dataSource).name(DATA_SOURCE_NAME).countQuery()
+                                .listener(recorder).build();
+                    }
+                    return bean;
+                }
+            };
+        }
+    }
+
+    private record Statement(String sql, int batchSize) {
+    }
+}
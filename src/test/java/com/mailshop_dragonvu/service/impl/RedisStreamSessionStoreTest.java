@@ -0,0 +1,30 @@
+package com.mailshop_dragonvu.service.impl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mailshop_dragonvu.exception.BusinessException;
+import com.mailshop_dragonvu.exception.ErrorCode;
+import com.mailshop_dragonvu.service.job.ToolInputSpool;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyNoInteractions;
+
+class RedisStreamSessionStoreTest {
+
+    @Test
+    void uploadSessionsAreRejectedWithoutStickySessions() {
+        StringRedisTemplate redis = mock(StringRedisTemplate.class);
+        RedisStreamSessionStore store = new RedisStreamSessionStore(redis, new ObjectMapper());
+        ToolInputSpool.SpooledInput input = new ToolInputSpool.SpooledInput(Path.of("/tmp/upload.txt"), 10);
+
+        assertThatThrownBy(() -> store.createUploadSession("CHECK_LIVE_MAIL", "user:1", input, null, null, false))
+                .isInstanceOf(BusinessException.class)
+                .extracting(e -> ((BusinessException) e).getErrorCode())
+                .isEqualTo(ErrorCode.TOOL_UPLOAD_NOT_SHARED);
+        verifyNoInteractions(redis);
+    }
+}
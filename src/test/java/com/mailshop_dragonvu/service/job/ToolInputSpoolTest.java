@@ -0,0 +1,69 @@
+package com.mailshop_dragonvu.service.job;
+
+import com.mailshop_dragonvu.exception.BusinessException;
+import com.mailshop_dragonvu.exception.ErrorCode;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ToolInputSpoolTest {
+
+    private ToolInputSpool spool;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        spool = new ToolInputSpool();
+        ReflectionTestUtils.setField(spool, "maxMb", 1L);
+        ReflectionTestUtils.setField(spool, "maxLineLength", 64);
+    }
+
+    @Test
+    void spoolsTrimmedNonBlankLines() throws Exception {
+        ToolInputSpool.SpooledInput input = spool.spool(body(" a@x.com|p|rt \r\n\n\r\nb@x.com|p|rt"));
+
+        assertThat(input.lines()).isEqualTo(2);
+        assertThat(Files.readAllLines(input.file())).containsExactly("a@x.com|p|rt", "b@x.com|p|rt");
+        spool.discard(input);
+    }
+
+    @Test
+    void bodyWithoutNewlinesFailsAtTheLineLimit() {
+        // Never ends: only the line limit stops it
+        InputStream endless = new InputStream() {
+            @Override
+            public int read() {
+                return 'a';
+            }
+        };
+
+        assertThatThrownBy(() -> spool.spool(endless))
+                .isInstanceOf(BusinessException.class)
+                .extracting(e -> ((BusinessException) e).getErrorCode())
+                .isEqualTo(ErrorCode.TOOL_PAYLOAD_TOO_LARGE);
+    }
+
+    @Test
+    void sizeLimitCountsBytesNotCharacters() {
+        // 21 characters but 51 UTF-8 bytes per line: under 0.5 M characters, over 1 MB of bytes
+        String line = "đ".repeat(10) + "ố".repeat(10) + "\n";
+        byte[] oneLine = line.getBytes(StandardCharsets.UTF_8);
+        int count = 1024 * 1024 / oneLine.length + 1_000;
+
+        assertThatThrownBy(() -> spool.spool(body(line.repeat(count))))
+                .isInstanceOf(BusinessException.class)
+                .extracting(e -> ((BusinessException) e).getErrorCode())
+                .isEqualTo(ErrorCode.TOOL_PAYLOAD_TOO_LARGE);
+    }
+
+    private static InputStream body(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
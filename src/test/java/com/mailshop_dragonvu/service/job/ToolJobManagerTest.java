@@ -0,0 +1,70 @@
+package com.mailshop_dragonvu.service.job;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mailshop_dragonvu.exception.BusinessException;
+import com.mailshop_dragonvu.exception.ErrorCode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Flux;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ToolJobManagerTest {
+
+    private ToolJobManager manager;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        manager = new ToolJobManager(new ObjectMapper());
+        ReflectionTestUtils.setField(manager, "bufferSize", 100);
+        ReflectionTestUtils.setField(manager, "retentionMinutes", 60L);
+        ReflectionTestUtils.setField(manager, "abandonAfterSeconds", 120L);
+        ReflectionTestUtils.setField(manager, "batchSize", 10);
+        ReflectionTestUtils.setField(manager, "batchWindowMs", 10L);
+        ReflectionTestUtils.setField(manager, "maxPendingFrames", 16);
+    }
+
+    @AfterEach
+    void tearDown() {
+        manager.shutdown();
+    }
+
+    @Test
+    void onlyTheOwnerSeesTheJob() {
+        manager.start("job-1", "GET_CODE", "user:1", 1, Flux.just(Map.of("email", "a@b.c")));
+
+        assertThat(manager.getRequired("job-1", "user:1").getOwner()).isEqualTo("user:1");
+        for (String stranger : new String[]{"user:2", "ip:127.0.0.1", null}) {
+            assertThatThrownBy(() -> manager.getRequired("job-1", stranger))
+                    .isInstanceOf(BusinessException.class)
+                    .extracting(e -> ((BusinessException) e).getErrorCode())
+                    .isEqualTo(ErrorCode.RESOURCE_NOT_FOUND);
+        }
+        assertThatThrownBy(() -> manager.cancel("job-1", "user:2")).isInstanceOf(BusinessException.class);
+    }
+
+    @Test
+    void spoolFileIsPrivateAndDeletedOnRemove() throws Exception {
+        ToolJob job = manager.start("job-2", "READ_MAIL", "user:1", 1, Flux.just(Map.of("token", "secret")));
+        Path spool = job.getSpoolFile();
+
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(spool))).isEqualTo("rw-------");
+            assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(spool.getParent())))
+                    .isEqualTo("rwx------");
+        }
+
+        manager.remove(job);
+        assertThat(spool).doesNotExist();
+        assertThat(manager.get("job-2")).isNull();
+    }
+}